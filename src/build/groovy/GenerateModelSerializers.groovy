@@ -0,0 +1,183 @@
+/*
+ * Generates a Jackson serializer and deserializer for each of the models generated from the RAML, i.e. the models of
+ * the API, from the same JSON schemas. The generated classes read and write the properties with getters and setters,
+ * in the order of the schema, without the reflection and introspection of Jackson's bean serializers.
+ *
+ * Runs in the generate-sources phase after the raml-jaxrs-maven-plugin, see the gmaven-plugin in pom.xml. The
+ * serializers are registered by com.az.ip.api.gen.json.ModelSerializersModule.
+ */
+import groovy.io.FileType
+import groovy.json.JsonSlurper
+
+def ramlDir = new File(project.basedir, 'src/main/resources/public/raml')
+def generatedSourcesDir = new File(project.build.directory, 'generated-sources')
+def outputDir = new File(generatedSourcesDir, 'model-serializers')
+def packageName = 'com.az.ip.api.gen.json'
+def modelPackageName = 'com.az.ip.api.gen.model'
+
+// The schema of Id is inline in az-ip-api.raml
+def schemas = [
+    Patient    : new JsonSlurper().parse(new File(ramlDir, 'patient/patient.schema')),
+    Doctor     : new JsonSlurper().parse(new File(ramlDir, 'doctor/doctor.schema')),
+    Study      : new JsonSlurper().parse(new File(ramlDir, 'study/study.schema')),
+    Measurement: new JsonSlurper().parse(new File(ramlDir, 'measurement/measurement.schema')),
+    Error      : new JsonSlurper().parse(new File(ramlDir, 'common/error.schema')),
+    Id         : [properties: [id: [type: 'string']]]
+]
+
+// Java type, how a value is written and how it is parsed, as mapped by jsonschema2pojo in the raml-jaxrs-maven-plugin
+def typeOf = { Map property ->
+    switch (property.type) {
+        case 'string' : return property.format == 'date-time' ?
+                            [java: 'java.util.Date', write: 'provider.defaultSerializeDateValue(%s, gen)', parse: '_parseDate(p, ctxt)'] :
+                            [java: 'String',         write: 'gen.writeString(%s)',                        parse: '_parseString(p, ctxt)']
+        case 'integer': return [java: 'Integer', write: 'gen.writeNumber(%s)',  parse: '_parseInteger(p, ctxt)']
+        case 'number' : return [java: 'Double',  write: 'gen.writeNumber(%s)',  parse: '_parseDouble(p, ctxt)']
+        case 'boolean': return [java: 'Boolean', write: 'gen.writeBoolean(%s)', parse: '_parseBoolean(p, ctxt)']
+        default: fail("Unsupported type in a schema of the models: ${property.type}")
+    }
+}
+
+// The source of a model generated by the raml-jaxrs-maven-plugin, null if it isn't found
+def modelSource = { String name ->
+    def source = null
+    if (generatedSourcesDir.exists()) {
+        generatedSourcesDir.eachFileRecurse(FileType.FILES) { file ->
+            if (source == null && !file.path.startsWith(outputDir.path) &&
+                file.path.endsWith(['gen', 'model', name + '.java'].join(File.separator))) source = file.text
+        }
+    }
+    source
+}
+
+def constantOf = { String property -> property.replaceAll(/([a-z])([A-Z])/, '$1_$2').toUpperCase() }
+def accessorOf = { String property -> property.substring(0, 1).toUpperCase() + property.substring(1) }
+
+def write = { String className, String source ->
+    def file = new File(outputDir, packageName.replace('.', File.separator) + File.separator + className + '.java')
+    if (!file.exists() || file.text != source) {
+        file.parentFile.mkdirs()
+        file.text = source
+    }
+}
+
+schemas.each { String model, Map schema ->
+    def properties = schema.properties.collect { String name, Map property -> [name: name] + typeOf(property) }
+
+    // Follow the generated model, i.e. the reflective path, for nulls and properties that aren't in the schema
+    def generated = modelSource(model)
+    def nonNull = generated == null || generated.contains('NON_NULL')
+    def additionalProperties = generated != null && generated.contains('setAdditionalProperty')
+
+    def constants = properties.collect { "    private static final SerializedString ${constantOf(it.name)} = new SerializedString(\"${it.name}\");" }
+
+    def writes = properties.collect { property ->
+        def statement = "gen.writeFieldName(${constantOf(property.name)}); ${String.format(property.write, property.name)};"
+        """\
+            ${property.java} ${property.name} = value.get${accessorOf(property.name)}();
+            ${nonNull ? "if (${property.name} != null) { ${statement} }" : "if (${property.name} == null) { gen.writeFieldName(${constantOf(property.name)}); gen.writeNull(); } else { ${statement} }"}"""
+    }
+    if (additionalProperties) writes << """\
+            for (Map.Entry<String, Object> property : value.getAdditionalProperties().entrySet()) {
+                gen.writeFieldName(property.getKey());
+                provider.defaultSerializeValue(property.getValue(), gen);
+            }"""
+
+    def reads = properties.collect { property ->
+        "                    case \"${property.name}\": value.set${accessorOf(property.name)}(isNull ? null : ${property.parse}); break;"
+    }
+    def unknown = additionalProperties ?
+        'value.setAdditionalProperty(name, ctxt.readValue(p, Object.class));' :
+        'ctxt.handleUnknownProperty(p, this, value, name);'
+
+    write("${model}Json", """\
+package ${packageName};
+
+import ${modelPackageName}.${model};
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+${additionalProperties ? 'import java.util.Map;\n' : ''}
+/**
+ * Serializer and deserializer of ${model}, generated by the build from its JSON schema, do not edit
+ */
+public final class ${model}Json {
+
+${constants.join('\n')}
+
+    private ${model}Json() {
+    }
+
+    public static final class Serializer extends StdSerializer<${model}> {
+
+        public Serializer() {
+            super(${model}.class);
+        }
+
+        @Override
+        public void serialize(${model} value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+${writes.join('\n')}
+            gen.writeEndObject();
+        }
+    }
+
+    public static final class Deserializer extends StdDeserializer<${model}> {
+
+        public Deserializer() {
+            super(${model}.class);
+        }
+
+        @Override
+        public ${model} deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonToken t = p.getCurrentToken();
+            if (t == JsonToken.START_OBJECT) {
+                t = p.nextToken();
+            } else if (t != JsonToken.FIELD_NAME && t != JsonToken.END_OBJECT) {
+                throw ctxt.mappingException(${model}.class);
+            }
+
+            ${model} value = new ${model}();
+            for (; t == JsonToken.FIELD_NAME; t = p.nextToken()) {
+                String name = p.getCurrentName();
+                boolean isNull = p.nextToken() == JsonToken.VALUE_NULL;
+                switch (name) {
+${reads.join('\n')}
+                    default: ${unknown}
+                }
+            }
+            return value;
+        }
+    }
+}
+""")
+}
+
+write('ModelSerializersModule', """\
+package ${packageName};
+
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Registers the serializers and deserializers of the models, generated by the build from their JSON schemas
+ */
+public class ModelSerializersModule extends SimpleModule {
+
+    public ModelSerializersModule() {
+        super("ModelSerializersModule");
+${schemas.keySet().collect { """\
+        addSerializer  (${modelPackageName}.${it}.class, new ${it}Json.Serializer());
+        addDeserializer(${modelPackageName}.${it}.class, new ${it}Json.Deserializer());""" }.join('\n')}
+    }
+}
+""")
+
+project.addCompileSourceRoot(outputDir.path)
+log.info("Generated serializers of ${schemas.size()} models in ${outputDir}")
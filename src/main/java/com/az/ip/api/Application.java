@@ -1,5 +1,7 @@
 package com.az.ip.api;
 
+import com.az.ip.api.gen.json.ModelSerializersModule;
+import com.fasterxml.jackson.databind.Module;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
@@ -26,6 +28,14 @@ public class Application {
         return filter;
     }
 
+    /**
+     * The serializers of the models generated by the build, registered with the object mappers of Spring MVC
+     */
+    @Bean
+    public Module modelSerializersModule() {
+        return new ModelSerializersModule();
+    }
+
     @PreDestroy
     public void cleanUp() throws Exception {
         LOG.info("### AZ-IP-SERVER {} stops", VERSION);
@@ -0,0 +1,52 @@
+package com.az.ip.api;
+
+import com.az.ip.api.services.core.BinaryFormats;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Reads and writes the CBOR and Smile representations of the Spring MVC API, negotiated by the Content-Type and Accept
+ * headers, see BinaryFormats.
+ *
+ * The object mappers are configured by the same builder as the JSON object mapper, i.e. the binary representations
+ * have the same fields and values as the JSON representation. The converters are added after the default converters,
+ * responses without a declared media type, e.g. errors, are still JSON if the request accepts anything.
+ */
+@Configuration
+public class BinaryFormatConfig extends WebMvcConfigurerAdapter {
+
+    @Inject
+    private Jackson2ObjectMapperBuilder objectMapperBuilder;
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(new BinaryJacksonHttpMessageConverter(objectMapperBuilder, new CBORFactory(), BinaryFormats.CBOR));
+        converters.add(new BinaryJacksonHttpMessageConverter(objectMapperBuilder, new SmileFactory(), BinaryFormats.SMILE));
+    }
+
+    /**
+     * Spring has no converters of its own for the binary formats of Jackson
+     */
+    private static class BinaryJacksonHttpMessageConverter extends AbstractJackson2HttpMessageConverter {
+
+        BinaryJacksonHttpMessageConverter(Jackson2ObjectMapperBuilder builder, JsonFactory factory, String mediaType) {
+            super(configure(builder, new ObjectMapper(factory)), MediaType.parseMediaType(mediaType));
+        }
+
+        private static ObjectMapper configure(Jackson2ObjectMapperBuilder builder, ObjectMapper mapper) {
+            builder.configure(mapper);
+            return mapper;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.az.ip.api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses responses with gzip or deflate, as negotiated by the Accept-Encoding header of the request.
+ *
+ * Only responses with a compressible content type and at least min-size bytes are compressed. The filter holds back
+ * the first min-size bytes to make that decision. After that the body is compressed while it is written, so streamed
+ * responses such as the measurement exports are never buffered in full. Responses that are already encoded are left
+ * as is, e.g. the precompressed static resources, see StaticResourceConfig. So are the responses written with
+ * non-blocking writes, i.e. after a WriteListener is set.
+ */
+@Component
+public class CompressionFilter extends OncePerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionFilter.class);
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Value("${compression.enabled:true}")
+    private boolean enabled;
+
+    @Value("${compression.min-size:2048}")
+    private int minSize;
+
+    @Value("${compression.level:6}")
+    private int level;
+
+    private final Set<String> mimeTypes = new HashSet<>();
+
+    @Value("${compression.mime-types:application/json,application/x-ndjson,application/cbor,application/x-jackson-smile,application/javascript,text/html,text/css,text/plain}")
+    public void setMimeTypes(String[] mimeTypes) {
+        this.mimeTypes.clear();
+        this.mimeTypes.addAll(Arrays.asList(mimeTypes));
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding header of the request, null if none
+     * @return gzip, deflate or null if none of them is accepted
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) continue;
+
+            if (name.equals(GZIP) || name.equals("*")) return GZIP;
+            if (name.equals(DEFLATE)) deflate = true;
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    // The body of a streamed response is written in an async dispatch, i.e. the compression ends there
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+
+        CompressingResponse compressing = WebUtils.getNativeResponse(response, CompressingResponse.class);
+        if (compressing == null) {
+            String encoding = negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+
+            if (!enabled || encoding == null || "HEAD".equals(request.getMethod())) {
+                chain.doFilter(request, response);
+                return;
+            }
+            compressing = new CompressingResponse(response, encoding);
+        }
+
+        chain.doFilter(request, compressing);
+
+        if (!isAsyncStarted(request)) compressing.finish();
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) return false;
+
+        int i = contentType.indexOf(';');
+        return mimeTypes.contains(((i == -1) ? contentType : contentType.substring(0, i)).trim().toLowerCase());
+    }
+
+    /**
+     * Holds back the Content-Length until it is decided if the body is compressed
+     */
+    private class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final String encoding;
+        private long contentLength = -1;
+        private CompressingOutputStream out;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response, String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) throw new IllegalStateException("getWriter() has already been called");
+            if (out == null) out = new CompressingOutputStream(this);
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (out != null) throw new IllegalStateException("getOutputStream() has already been called");
+                out = new CompressingOutputStream(this);
+                writer = new PrintWriter(new OutputStreamWriter(out, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            contentLength = len;
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+            contentLength = len;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                contentLength = Long.parseLong(value);
+            } else {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                contentLength = Long.parseLong(value);
+            } else {
+                super.addHeader(name, value);
+            }
+        }
+
+        // Committing the response would send the headers before it is decided if the body is compressed
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) writer.flush();
+            if (out != null) out.flush();
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (out != null) out.resetPending();
+            super.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            if (out != null) out.resetPending();
+            contentLength = -1;
+            super.reset();
+        }
+
+        void finish() throws IOException {
+            if (writer != null) writer.flush();
+            if (out != null) {
+                out.finish();
+            } else if (contentLength != -1) {
+                super.setContentLengthLong(contentLength);
+            }
+        }
+
+        /**
+         * @return the stream to write the body to, compressing or not
+         */
+        OutputStream start(boolean large) throws IOException {
+            HttpServletResponse response = (HttpServletResponse) getResponse();
+            boolean compressible = isCompressible(getContentType());
+
+            boolean encoded = containsHeader(HttpHeaders.CONTENT_ENCODING);
+
+            if (compressible || encoded) response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+            int status = getStatus();
+            boolean compress = large && compressible && !encoded && !containsHeader(HttpHeaders.CONTENT_RANGE) &&
+                status != SC_NO_CONTENT && status != SC_PARTIAL_CONTENT && status != SC_NOT_MODIFIED;
+
+            if (!compress) {
+                if (contentLength != -1) response.setContentLengthLong(contentLength);
+                return response.getOutputStream();
+            }
+
+            LOG.debug("Compress response with {}, level: {}", encoding, level);
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, encoding);
+
+            // Sync flush, i.e. a flush of a streamed response sends what has been compressed so far
+            return encoding.equals(GZIP) ?
+                new GZIPOutputStream(response.getOutputStream(), BUFFER_SIZE, true) {{ def.setLevel(level); }} :
+                new DeflaterOutputStream(response.getOutputStream(), true) {{ def.setLevel(level); }};
+        }
+    }
+
+    private class CompressingOutputStream extends ServletOutputStream {
+
+        private final CompressingResponse response;
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private OutputStream target;
+        private boolean finished;
+
+        CompressingOutputStream(CompressingResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) throw new IOException("The response has already been written");
+
+            if (target == null) {
+                if (pending.size() + len < minSize) {
+                    pending.write(b, off, len);
+                    return;
+                }
+                start(true);
+            }
+            target.write(b, off, len);
+        }
+
+        // Less than min-size bytes are held back until it is decided if they are compressed
+        @Override
+        public void flush() throws IOException {
+            if (target != null) target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        @Override
+        public boolean isReady() {
+            return !(target instanceof ServletOutputStream) || ((ServletOutputStream) target).isReady();
+        }
+
+        // Non-blocking writes go to the response as is, since the compressing streams would write to it when it isn't ready
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            if (target == null) {
+                try {
+                    start(false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            if (!(target instanceof ServletOutputStream)) throw new IllegalStateException("The response is already compressed");
+
+            LOG.debug("Non-blocking writes, the response is not compressed");
+            ((ServletOutputStream) target).setWriteListener(writeListener);
+        }
+
+        void resetPending() {
+            if (target == null) pending.reset();
+        }
+
+        void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+
+            if (target == null) {
+                // The complete body is smaller than min-size
+                response.setContentLength(pending.size());
+                start(false);
+            }
+
+            if (target instanceof DeflaterOutputStream) {
+                // Ends the deflater and writes the gzip trailer
+                target.close();
+            } else {
+                target.flush();
+            }
+        }
+
+        private void start(boolean large) throws IOException {
+            target = response.start(large);
+            pending.writeTo(target);
+            pending = null;
+        }
+    }
+}
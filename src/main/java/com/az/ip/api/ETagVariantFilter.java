@@ -0,0 +1,207 @@
+package com.az.ip.api;
+
+import com.az.ip.api.services.core.BinaryFormats;
+import com.az.ip.api.services.core.ETags;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Gives each variant of a response of the APIs its own ETag, e.g. "id.version+cbor-gzip", since the representations
+ * of BinaryFormats and the content codings of the CompressionFilter make each variant a different sequence of bytes,
+ * see ETags. Responses in JSON or a binary format, and responses with an ETag, get a Vary: Accept header.
+ *
+ * The variant is given by the representation and content coding that the request negotiates, whether or not the body
+ * ends up compressed, i.e. a conditional request can be evaluated before the body is written. The representation is
+ * the preferred type of the Accept header if it is a binary format, as in BinaryFormatFilter. The ETags in the
+ * If-None-Match header are mapped back to the ETags of the entities and lists if they are of the same variant, so that
+ * the resources compare them as before. If-Match is about the state of the entity, i.e. an ETag of any variant of it
+ * matches. The filter runs before the StudyResponseCacheFilter, i.e. the cached responses have the ETags of the
+ * entities and lists.
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE - 20)
+public class ETagVariantFilter extends OncePerRequestFilter {
+
+    @Value("${compression.enabled:true}")
+    private boolean compression;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) throws ServletException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !path.startsWith("/raml-api/") && !path.startsWith("/api/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+        String variant = variant(request);
+        chain.doFilter(new VariantRequest(request, variant), new VariantResponse(response, variant));
+    }
+
+    /**
+     * @return the variant negotiated by the request, empty for the JSON representation without content coding
+     */
+    private String variant(HttpServletRequest request) {
+        List<String> variant = new ArrayList<>();
+
+        String representation = representation(request.getHeader(HttpHeaders.ACCEPT));
+        if (representation != null) variant.add(representation);
+
+        String coding = compression ? CompressionFilter.negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING)) : null;
+        if (coding != null) variant.add(coding);
+
+        return String.join("-", variant);
+    }
+
+    /**
+     * @return cbor, smile or null for JSON
+     */
+    private static String representation(String accept) {
+        if (accept == null) return null;
+
+        List<MediaType> acceptable;
+        try {
+            acceptable = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return null;
+        }
+        if (acceptable.isEmpty()) return null;
+
+        MediaType.sortByQualityValue(acceptable);
+        String preferred = acceptable.get(0).getType() + "/" + acceptable.get(0).getSubtype();
+
+        if (BinaryFormats.CBOR.equalsIgnoreCase(preferred)) return "cbor";
+        if (BinaryFormats.SMILE.equalsIgnoreCase(preferred)) return "smile";
+        return null;
+    }
+
+    private static boolean isNegotiated(String contentType) {
+        if (contentType == null) return false;
+
+        try {
+            MediaType mediaType = MediaType.parseMediaType(contentType);
+            return MediaType.APPLICATION_JSON.includes(mediaType) || BinaryFormats.isBinary(mediaType.getType() + "/" + mediaType.getSubtype());
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+    }
+
+    private static class VariantRequest extends HttpServletRequestWrapper {
+
+        private final String variant;
+
+        VariantRequest(HttpServletRequest request, String variant) {
+            super(request);
+            this.variant = variant;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (HttpHeaders.IF_NONE_MATCH.equalsIgnoreCase(name)) return ETags.withoutVariant(joined(name), variant);
+            if (HttpHeaders.IF_MATCH.equalsIgnoreCase(name)) return ETags.withoutVariant(joined(name), null);
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (!HttpHeaders.IF_NONE_MATCH.equalsIgnoreCase(name) && !HttpHeaders.IF_MATCH.equalsIgnoreCase(name)) return super.getHeaders(name);
+
+            String header = getHeader(name);
+            return (header == null) ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singletonList(header));
+        }
+
+        // A list of ETags in several headers is equivalent to the same list in one header
+        private String joined(String name) {
+            List<String> values = Collections.list(super.getHeaders(name));
+            return values.isEmpty() ? null : String.join(", ", values);
+        }
+    }
+
+    /**
+     * Appends the variant to the ETag, and keeps the Vary header in one line, since the CompressionFilter and the
+     * StudyResponseCacheFilter add and set it as well
+     */
+    private static class VariantResponse extends HttpServletResponseWrapper {
+
+        private final String variant;
+        private final Set<String> vary = new LinkedHashSet<>();
+        private boolean negotiated;
+
+        VariantResponse(HttpServletResponse response, String variant) {
+            super(response);
+            this.variant = variant;
+        }
+
+        @Override
+        public void setContentType(String type) {
+            super.setContentType(type);
+            if (isNegotiated(type)) negotiated();
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (HttpHeaders.VARY.equalsIgnoreCase(name)) {
+                vary.clear();
+                vary(value);
+                return;
+            }
+            super.setHeader(name, header(name, value));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (HttpHeaders.VARY.equalsIgnoreCase(name)) {
+                vary(value);
+                return;
+            }
+            super.addHeader(name, header(name, value));
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            vary.clear();
+            negotiated = false;
+        }
+
+        private String header(String name, String value) {
+            if (HttpHeaders.ETAG.equalsIgnoreCase(name)) {
+                negotiated();
+                return ETags.ofVariant(value, variant);
+            }
+            if (HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(name) && isNegotiated(value)) negotiated();
+            return value;
+        }
+
+        private void negotiated() {
+            if (negotiated) return;
+            negotiated = true;
+            vary(null);
+        }
+
+        private void vary(String value) {
+            if (value != null) {
+                for (String header : value.split(",")) {
+                    if (!header.trim().isEmpty() && vary.stream().noneMatch(header.trim()::equalsIgnoreCase)) vary.add(header.trim());
+                }
+            }
+            if (negotiated && vary.stream().noneMatch(HttpHeaders.ACCEPT::equalsIgnoreCase)) vary.add(HttpHeaders.ACCEPT);
+
+            if (!vary.isEmpty()) super.setHeader(HttpHeaders.VARY, String.join(", ", vary));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.az.ip.api;
+
+import com.az.ip.api.services.util.HttpNotFoundException;
+import com.az.ip.api.services.util.HttpUnprocessableEntityException;
+import com.az.ip.api.services.util.IdParameters;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Answers requests with a malformed id in the path with 404, and a malformed after id with 422, before they reach the
+ * controllers of the Spring MVC API, see IdParameters.
+ */
+@Configuration
+public class IdParameterConfig extends WebMvcConfigurerAdapter {
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new IdParameterInterceptor()).addPathPatterns("/api/**");
+    }
+
+    private static class IdParameterInterceptor extends HandlerInterceptorAdapter {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            Map<String, String> pathParameters = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+            if (pathParameters == null) pathParameters = Collections.emptyMap();
+
+            String malformedId = IdParameters.findMalformedId(pathParameters);
+            if (malformedId != null) {
+                throw new HttpNotFoundException("Entity with id: " + malformedId + " was not found, not a valid id");
+            }
+
+            String after = request.getParameter("after");
+            if (IdParameters.isMalformedAfterId(pathParameters, after)) {
+                throw new HttpUnprocessableEntityException("Id [" + after + "] of the after parameter is invalid");
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.az.ip.api;
+
+import com.az.ip.api.services.util.HttpBadRequestException;
+import com.az.ip.api.services.util.PagingParameters;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers requests with an invalid page, size or limit with 400, before they reach the controllers of the Spring MVC
+ * API, see PagingParameters.
+ */
+@Configuration
+public class PagingParameterConfig extends WebMvcConfigurerAdapter {
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new PagingParameterInterceptor()).addPathPatterns("/api/**");
+    }
+
+    private static class PagingParameterInterceptor extends HandlerInterceptorAdapter {
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            Map<String, String> queryParameters = new HashMap<>();
+            request.getParameterMap().forEach((name, values) -> queryParameters.put(name, values[0]));
+
+            String errMsg = PagingParameters.findInvalidParameter(queryParameters);
+            if (errMsg != null) throw new HttpBadRequestException(errMsg);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.az.ip.api;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.CacheControl;
+import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistration;
+import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.resource.GzipResourceResolver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the API console and the RAML files from public/, with the .gz variants generated by the build if the request
+ * accepts gzip.
+ *
+ * The bundled scripts, styles and fonts of the console only change with a new release of the console and are cached
+ * for a year without revalidation. The index page and the RAML files change with the API and are revalidated, i.e.
+ * answered with 304 until they are modified.
+ */
+@Configuration
+public class StaticResourceConfig extends WebMvcConfigurerAdapter {
+
+    private static final String[] IMMUTABLE_CONSOLE_DIRS = {"scripts", "styles", "fonts", "img"};
+
+    private static final CacheControl IMMUTABLE = new ImmutableCacheControl(TimeUnit.DAYS.toSeconds(365));
+
+    @Override
+    public void addResourceHandlers(ResourceHandlerRegistry registry) {
+        for (String dir : IMMUTABLE_CONSOLE_DIRS) {
+            precompressed(registry.addResourceHandler("/console/" + dir + "/**")
+                .addResourceLocations("classpath:/public/console/" + dir + "/")
+                .setCacheControl(IMMUTABLE));
+        }
+
+        precompressed(registry.addResourceHandler("/console/**")
+            .addResourceLocations("classpath:/public/console/")
+            .setCacheControl(CacheControl.noCache()));
+
+        precompressed(registry.addResourceHandler("/raml/**")
+            .addResourceLocations("classpath:/public/raml/")
+            .setCacheControl(CacheControl.noCache()));
+    }
+
+    // No caching of resolved resources, since the cached resource of a path doesn't depend on the Accept-Encoding
+    private void precompressed(ResourceHandlerRegistration registration) {
+        registration.resourceChain(false).addResolver(new GzipResourceResolver());
+    }
+
+    /**
+     * Spring's CacheControl has no immutable directive, i.e. no way to tell browsers not to revalidate on reload
+     */
+    private static class ImmutableCacheControl extends CacheControl {
+
+        private final long maxAge;
+
+        ImmutableCacheControl(long maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        @Override
+        public String getHeaderValue() {
+            return "max-age=" + maxAge + ", public, immutable";
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.az.ip.api;
+
+import com.az.ip.api.persistence.routing.PrimaryReads;
+import com.az.ip.api.services.core.ETags;
+import com.az.ip.api.services.core.StudyResponseCache;
+import com.az.ip.api.services.core.StudyResponseCache.CachedResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.inject.Inject;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves GET /studies and GET /studies/{id} of both APIs from the StudyResponseCache, i.e. without reading the
+ * database or serializing the studies, since they are requested by every app at startup and rarely change.
+ *
+ * A miss is handled by the API as usual while the headers and bytes of the body are recorded, and a successful
+ * response is cached. A miss reads from the primary database, since a response read from a lagging replica would stay
+ * in the cache after the write. A response of a study is cached with the version in its ETag, which is validated on
+ * each hit. Each Accept header and content encoding is cached as its own response. The filter runs before the
+ * CompressionFilter, i.e. the compressed body is cached and not compressed again on a hit. A hit with a matching
+ * If-None-Match header is answered with 304.
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE - 10)
+public class StudyResponseCacheFilter extends OncePerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StudyResponseCacheFilter.class);
+
+    private static final Pattern STUDIES_PATH = Pattern.compile("/(?:raml-api|api)/studies(?:/([^/]+))?");
+
+    @Inject
+    private StudyResponseCache cache;
+
+    @Value("${studies.response-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${studies.response-cache.max-entry-size:1048576}")
+    private int maxEntrySize;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+
+        Matcher matcher = STUDIES_PATH.matcher(request.getRequestURI().substring(request.getContextPath().length()));
+        if (!enabled || !"GET".equals(request.getMethod()) || !matcher.matches()) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String query = request.getQueryString();
+        String key = request.getRequestURI() + ((query == null) ? "" : "?" + query) +
+            " " + request.getHeader(HttpHeaders.ACCEPT) + " " + CompressionFilter.negotiate(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+
+        CachedResponse cached = cache.get(key);
+        if (cached != null) {
+            LOG.debug("Write cached response of {}", key);
+            write(cached, request, response);
+            return;
+        }
+
+        long generation = cache.getGeneration();
+        RecordingResponse recording = new RecordingResponse(response);
+
+        try (PrimaryReads ignored = PrimaryReads.begin()) {
+            chain.doFilter(request, recording);
+        }
+
+        String studyId = matcher.group(1);
+        Integer version = (studyId == null) ? null : ETags.versionOf(studyId, recording.headers.getETag());
+        byte[] body = recording.getBody();
+        if (recording.getStatus() == SC_OK && recording.cacheable && body != null && (studyId == null || version != null)) {
+            cache.put(key, new CachedResponse(studyId, version, recording.getContentType(), recording.headers, body), generation);
+        }
+    }
+
+    private void write(CachedResponse cached, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<String> etag = cached.getHeaders().get(HttpHeaders.ETAG);
+        boolean notModified = etag != null && ETags.isNotModified(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag.get(0));
+
+        for (Map.Entry<String, List<String>> header : cached.getHeaders().entrySet()) {
+            if (notModified && header.getKey().equalsIgnoreCase(HttpHeaders.CONTENT_ENCODING)) continue;
+
+            response.setHeader(header.getKey(), header.getValue().get(0));
+            for (String value : header.getValue().subList(1, header.getValue().size())) response.addHeader(header.getKey(), value);
+        }
+
+        if (notModified) {
+            response.setStatus(SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType(cached.getContentType());
+        response.setContentLength(cached.getBody().length);
+        response.getOutputStream().write(cached.getBody());
+    }
+
+    /**
+     * Records the headers set by the API and the filters after this one, and the bytes of the body up to max-entry-size
+     */
+    private class RecordingResponse extends HttpServletResponseWrapper {
+
+        private final HttpHeaders headers = new HttpHeaders();
+        private boolean cacheable = true;
+        private RecordingOutputStream out;
+        private PrintWriter writer;
+
+        RecordingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) throw new IllegalStateException("getWriter() has already been called");
+            if (out == null) out = new RecordingOutputStream(super.getOutputStream());
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (out != null) throw new IllegalStateException("getOutputStream() has already been called");
+                out = new RecordingOutputStream(super.getOutputStream());
+                writer = new PrintWriter(new OutputStreamWriter(out, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            super.setHeader(name, value);
+            if (isRecorded(name)) headers.set(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            super.addHeader(name, value);
+            if (isRecorded(name)) headers.add(name, value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            addHeader(name, Integer.toString(value));
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            super.setDateHeader(name, date);
+            if (isRecorded(name)) headers.setDate(name, date);
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            super.addDateHeader(name, date);
+            cacheable = false;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            headers.clear();
+            if (out != null) out.discard();
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (out != null) out.discard();
+        }
+
+        /**
+         * @return the body, or null if it is larger than max-entry-size or has been reset
+         */
+        byte[] getBody() {
+            if (writer != null) writer.flush();
+            if (out == null) return new byte[0];
+            return (out.recorded == null) ? null : out.recorded.toByteArray();
+        }
+
+        // The content type and length are written separately on a hit
+        private boolean isRecorded(String name) {
+            if (name.equalsIgnoreCase("Set-Cookie")) cacheable = false;
+            return !name.equalsIgnoreCase(HttpHeaders.CONTENT_TYPE) && !name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH);
+        }
+    }
+
+    private class RecordingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream target;
+        private ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+
+        RecordingOutputStream(ServletOutputStream target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+
+            if (recorded != null) {
+                if (recorded.size() + len > maxEntrySize) {
+                    recorded = null;
+                } else {
+                    recorded.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return target.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            target.setWriteListener(writeListener);
+        }
+
+        void discard() {
+            recorded = null;
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.az.ip.api;
 
+import com.az.ip.api.persistence.MeasurementStore;
 import com.az.ip.api.persistence.jpa.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.annotation.Profile;
 
 import javax.inject.Inject;
@@ -20,7 +22,7 @@ public class TestDataConfig {
     private static final Logger LOG = LoggerFactory.getLogger(TestDataConfig.class);
 
     @Inject
-    MeasurementRepository measurementRepository;
+    MeasurementStore measurementStore;
 
     @Inject
     PatientDoctorStudyRepository pdsRepository;
@@ -34,7 +36,9 @@ public class TestDataConfig {
     @Inject
     DoctorRepository doctorRepository;
 
+    // The rollup tracker has to listen before the measurements are stored
     @Bean
+    @DependsOn("stepRollupTracker")
     public String setupTestData() {
 
         LOG.info("Load some test data into the db...");
@@ -87,9 +91,7 @@ public class TestDataConfig {
     }
 
     private void createAndStoreMeasurement(PatientDoctorStudyEntity relationEntity, int steps1) {
-        MeasurementEntity m1 = createTestDbMeasurementEntity(relationEntity, steps1);
-        measurementRepository.save(m1);
-        relationEntity.getMeasurements().add(m1);
+        measurementStore.insert(createTestMeasurement(relationEntity, steps1));
     }
 
     private PatientEntity createTestDbPatientEntity(String username) {
@@ -104,8 +106,8 @@ public class TestDataConfig {
         return new DoctorEntity(username, "F1", "L1");
     }
 
-    private MeasurementEntity createTestDbMeasurementEntity(PatientDoctorStudyEntity pds, int steps) {
-        return new MeasurementEntity(pds, "descr", new Date(), steps);
+    private NewMeasurement createTestMeasurement(PatientDoctorStudyEntity pds, int steps) {
+        return new NewMeasurement(pds.getId(), pds.getPatient().getId(), pds.getStudy().getId(), "descr", new Date(), steps);
     }
 
 
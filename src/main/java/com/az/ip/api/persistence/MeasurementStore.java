@@ -0,0 +1,96 @@
+package com.az.ip.api.persistence;
+
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.RowHandler;
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.TimeBucket;
+import com.az.ip.api.persistence.jpa.NewMeasurement;
+import com.az.ip.api.persistence.jpa.StepAggregateRow;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Storage of the measurements, while the patients, doctors, studies and their relations are always stored by JPA.
+ *
+ * The JPA implementation is used by default, the MongoDB implementation with the profile {@link #MONGO_PROFILE}.
+ */
+public interface MeasurementStore {
+
+    String MONGO_PROFILE = "mongo";
+
+    /**
+     * Inserts one measurement, typically within the transaction that looked up its relation
+     *
+     * @param measurement
+     * @return the id of the new measurement
+     * @throws org.springframework.dao.DataIntegrityViolationException if the relation already has a measurement with
+     * the idempotency key of the measurement, possibly not until the transaction commits
+     */
+    String insert(NewMeasurement measurement);
+
+    /**
+     * @return the id of the measurement stored with the idempotency key for the relation, null if there is none
+     */
+    String findIdByIdempotencyKey(String relationId, String idempotencyKey);
+
+    /**
+     * Inserts many measurements at once
+     *
+     * @param measurements
+     * @return the id's of the new measurements, in the same order as the measurements
+     */
+    List<String> insertAll(List<NewMeasurement> measurements);
+
+    /**
+     * Hands over the measurements of a study, or of a patient in a study, one row at the time to the handler
+     *
+     * @param studyId
+     * @param patientId limits the measurements to one patient in the study, null for all patients
+     * @param handler
+     */
+    void find(String studyId, String patientId, RowHandler handler);
+
+    /**
+     * Scrolls through all measurements in a study ordered by timestamp, with a memory usage that is independent of the
+     * number of measurements in the study
+     *
+     * @param studyId
+     * @param handler
+     */
+    void scrollByStudyId(String studyId, RowHandler handler);
+
+    /**
+     * Removes a measurement, relies on that the measurement id is unique
+     *
+     * @param measurementId
+     */
+    void delete(String measurementId);
+
+    /**
+     * Removes a chunk of the measurements of a relation in one transaction, e.g. before the relation itself is removed.
+     * Called repeatedly until it returns 0, to not lock the measurements of a large study for the whole removal. The
+     * step rollups of the relation and its study are updated by the last call, i.e. they are stale until then.
+     *
+     * @param relationId
+     * @param limit the max number of measurements to remove, the MongoDB implementation removes whole days
+     * @param studyRemoved true if the study of the relation is removed as well, i.e. its rollups aren't recomputed
+     * @return the number of removed measurements, 0 once the relation has no measurements left
+     */
+    int deleteChunkByRelationId(String relationId, int limit, boolean studyRemoved);
+
+    /**
+     * Aggregates the steps of the measurements in a study per time bucket
+     *
+     * @param studyId
+     * @param patientId limits the aggregation to one patient in the study, null for all patients
+     * @param bucket
+     * @param from the first timestamp to include, null for no lower limit
+     * @param to the timestamp to stop before, i.e. exclusive, null for no upper limit
+     * @return one aggregate per non-empty bucket, ordered by bucket
+     */
+    List<StepAggregateRow> aggregateSteps(String studyId, String patientId, TimeBucket bucket, Date from, Date to);
+
+    /**
+     * @return true if the step rollups are kept up to date with the measurements in this store
+     */
+    boolean maintainsStepRollups();
+}
@@ -1,18 +1,22 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.hibernate.annotations.Type;
 import org.springframework.util.Assert;
 
+import javax.persistence.Column;
 import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
 import javax.persistence.Version;
-import java.util.UUID;
 
 @MappedSuperclass
 public abstract class AbstractEntity {
 
+    private static volatile IdGenerator idGenerator = new TimeOrderedIdGenerator();
+
     // Use UUID as primary key to avoid OAWASP A4-Insecure Direct Object References
     // See: https://www.owasp.org/index.php/Top_10_2013-A4-Insecure_Direct_Object_References
     // See: http://blog.xebia.com/2009/06/03/jpa-implementation-patterns-using-uuids-as-primary-keys/
+    // The default id's are time-ordered, to append to the indexes, but still have 74 random bits, see TimeOrderedIdGenerator
 
     // Replaced with UUID:     @GeneratedValue
     // Replaced with a String: private Long id;
@@ -22,6 +26,10 @@ public abstract class AbstractEntity {
     //    @GeneratedValue(generator = "uuid")
     //    @GenericGenerator(name = "uuid", strategy = "uuid")
 
+    // Kept in the canonical string form in the entities and the APIs, but stored as 16 bytes instead of a 36 character
+    // string to keep the primary key, foreign key and join table indexes small, see UuidBinaryType
+    @Type(type = UuidBinaryType.NAME)
+    @Column(length = Uuids.LENGTH)
     private String id;
 
     // Adopt version based optimistic concurrency control
@@ -30,7 +38,24 @@ public abstract class AbstractEntity {
     private int version;
 
     public AbstractEntity() {
-        this.id = UUID.randomUUID().toString();
+        this.id = nextId();
+    }
+
+    /**
+     * @return a new id, for rows inserted without an entity, e.g. by native SQL, or measurements stored outside JPA
+     */
+    public static String nextId() {
+        return idGenerator.nextId();
+    }
+
+    /**
+     * Replaces the generator of the id's of new entities, by default time-ordered UUID's, see {@link TimeOrderedIdGenerator}
+     *
+     * @param generator
+     */
+    public static void useIdGenerator(IdGenerator generator) {
+        Assert.notNull(generator);
+        idGenerator = generator;
     }
 
     public void setIdAndVersionForExistingEntity(String id, int version) {
@@ -1,5 +1,7 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.springframework.util.Assert;
 
 import javax.persistence.*;
@@ -7,15 +9,30 @@ import java.util.ArrayList;
 import java.util.List;
 
 @Entity
+// The sortable name columns, with the id as the tie-breaker used by the keyset paging
+@Table(indexes = {
+    @Index(name = "doctor_firstname_idx", columnList = "firstname, id"),
+    @Index(name = "doctor_lastname_idx",  columnList = "lastname, id")
+})
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NamedEntityGraph(name = DoctorEntity.WITH_STUDIES, attributeNodes = @NamedAttributeNode("studies"))
 public class DoctorEntity extends AbstractEntity {
 
+    /**
+     * Entity graph that loads the studies the doctor is assigned to together with the doctor
+     */
+    public static final String WITH_STUDIES = "DoctorEntity.withStudies";
+
     @Column(unique=true)
     private String username;
 
     private String firstname;
     private String lastname;
 
-    @ManyToMany(mappedBy="doctors", fetch = FetchType.EAGER)
+    // The inverse side, i.e. its cache is evicted by the InverseCollectionCacheEvictor when the doctors of a study change
+    @ManyToMany(mappedBy="doctors", fetch = FetchType.LAZY)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private List<StudyEntity> studies = new ArrayList<>();
 
     /**
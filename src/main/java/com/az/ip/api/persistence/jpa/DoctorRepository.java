@@ -1,7 +1,47 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
+import javax.persistence.QueryHint;
+import java.util.List;
+
 public interface DoctorRepository extends PagingAndSortingRepository<DoctorEntity, String> {
+    // The lists and lookups by name are served from the query cache until a doctor is changed
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    Iterable<DoctorEntity> findAll(Sort sort);
+
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    Page<DoctorEntity> findAll(Pageable pageable);
+
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     DoctorEntity findByUsername(String username);
+
+    @EntityGraph(DoctorEntity.WITH_STUDIES)
+    DoctorEntity findWithStudiesByUsername(String username);
+
+    /**
+     * Id's of the studies that a doctor is assigned to, ordered by id and starting after the given id
+     *
+     * @param doctorId
+     * @param afterStudyId use {@link Uuids#NIL} to start from the first study
+     * @param pageable limits the number of id's, null for all
+     * @return
+     */
+    @Query("select s.id from StudyEntity s join s.doctors d where d.id = ?1 and s.id > ?2 order by s.id")
+    List<String> findStudyIdsByDoctorId(String doctorId, String afterStudyId, Pageable pageable);
+
+    /**
+     * The version of a doctor without loading it, used by conditional requests
+     *
+     * @return null if not found
+     */
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    @Query("select e.version from DoctorEntity e where e.id = ?1")
+    Integer findVersionById(String id);
 }
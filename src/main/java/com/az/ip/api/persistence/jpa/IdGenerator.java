@@ -0,0 +1,12 @@
+package com.az.ip.api.persistence.jpa;
+
+/**
+ * Creates the id's of new entities, see {@link AbstractEntity#useIdGenerator(IdGenerator)}
+ */
+public interface IdGenerator {
+
+    /**
+     * @return a new unique id in the canonical UUID string form, since the id's are stored as UUID's, see {@link Uuids}
+     */
+    String nextId();
+}
@@ -0,0 +1,81 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Evicts the second-level cache of the studies of the doctors when the doctors of a study change.
+ *
+ * Hibernate only maintains the cache of the owning side of an association, i.e. {@link StudyEntity#getAssigendDoctors()},
+ * while the cached inverse side {@link DoctorEntity#getAssigendInStudies()} would be stale until it expires. The eviction is done
+ * after the transaction completes, so that a concurrent read can't put back the old state before the change is committed.
+ */
+@Component
+public class InverseCollectionCacheEvictor implements PostCollectionRecreateEventListener, PostCollectionUpdateEventListener, PreCollectionRemoveEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InverseCollectionCacheEvictor.class);
+
+    static final String STUDY_DOCTORS_ROLE = StudyEntity.class.getName() + ".doctors";
+    static final String DOCTOR_STUDIES_ROLE = DoctorEntity.class.getName() + ".studies";
+
+    @Inject
+    private EntityManagerFactory emf;
+
+    @PostConstruct
+    public void registerListeners() {
+        EventListenerRegistry registry = emf.unwrap(SessionFactoryImplementor.class).getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COLLECTION_RECREATE, this);
+        registry.appendListeners(EventType.POST_COLLECTION_UPDATE, this);
+        registry.appendListeners(EventType.PRE_COLLECTION_REMOVE, this);
+    }
+
+    @Override
+    public void onPostRecreateCollection(PostCollectionRecreateEvent event) {
+        evictIfStudyDoctors(event);
+    }
+
+    @Override
+    public void onPostUpdateCollection(PostCollectionUpdateEvent event) {
+        evictIfStudyDoctors(event);
+    }
+
+    @Override
+    public void onPreRemoveCollection(PreCollectionRemoveEvent event) {
+        evictIfStudyDoctors(event);
+    }
+
+    private void evictIfStudyDoctors(AbstractCollectionEvent event) {
+        if (!STUDY_DOCTORS_ROLE.equals(event.getCollection().getRole())) return;
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evict();
+
+        } else if (TransactionSynchronizationManager.getResource(this) == null) {
+            // Once per transaction
+            TransactionSynchronizationManager.bindResource(this, Boolean.TRUE);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(InverseCollectionCacheEvictor.this);
+                    evict();
+                }
+            });
+        }
+    }
+
+    private void evict() {
+        LOG.debug("Evict the second-level cache region {}", DOCTOR_STUDIES_ROLE);
+        emf.unwrap(SessionFactory.class).getCache().evictCollectionRegion(DOCTOR_STUDIES_ROLE);
+    }
+}
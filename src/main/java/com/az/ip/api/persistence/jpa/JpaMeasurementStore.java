@@ -0,0 +1,92 @@
+package com.az.ip.api.persistence.jpa;
+
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.RowHandler;
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.TimeBucket;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import java.util.*;
+
+/**
+ * Stores the measurements as {@link MeasurementEntity} rows, one per measurement, with step rollups maintained by the
+ * {@link StepRollupTracker}
+ */
+@Component
+@Profile("!" + MeasurementStore.MONGO_PROFILE)
+public class JpaMeasurementStore implements MeasurementStore {
+
+    @Inject
+    private MeasurementRepository measurementRepository;
+
+    @Inject
+    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+
+    @Inject
+    private StepRollupRepository stepRollupRepository;
+
+    @Override
+    public String insert(NewMeasurement m) {
+        // Inserted without first selecting the measurement by its id, as a merge would, i.e. a duplicate idempotency
+        // key is only found by the unique constraint
+        return measurementRepository.insertAll(Collections.singletonList(m)).get(0);
+    }
+
+    @Override
+    public String findIdByIdempotencyKey(String relationId, String idempotencyKey) {
+        return measurementRepository.findIdByRelationIdAndIdempotencyKey(relationId, idempotencyKey);
+    }
+
+    @Override
+    public List<String> insertAll(List<NewMeasurement> measurements) {
+        return measurementRepository.insertAll(measurements);
+    }
+
+    @Override
+    public void find(String studyId, String patientId, RowHandler handler) {
+        List<PatientDoctorStudyEntity> relations = (patientId == null)
+            ? patientDoctorStudyRepository.findWithMeasurementsByStudyId(studyId)
+            : patientDoctorStudyRepository.findWithMeasurementsByPatientIdAndStudyId(patientId, studyId);
+
+        relations.stream()
+            .flatMap(pds -> pds.getMeasurements().stream())
+            .forEach(m -> handler.handle(m.getId(), m.getVersion(), m.getDescription(), m.getTimestamp(), m.getSteps()));
+    }
+
+    @Override
+    public void scrollByStudyId(String studyId, RowHandler handler) {
+        measurementRepository.scrollByStudyId(studyId, handler);
+    }
+
+    @Override
+    public void delete(String measurementId) {
+        measurementRepository.delete(measurementId);
+    }
+
+    @Override
+    @Transactional
+    public int deleteChunkByRelationId(String relationId, int limit, boolean studyRemoved) {
+        List<String> ids = measurementRepository.findIdsByRelationId(relationId, new PageRequest(0, limit));
+
+        // The bulk delete bypasses the StepRollupTracker, i.e. the rollups are recomputed here instead, once the relation
+        // has no measurements left instead of once per chunk
+        if (ids.isEmpty()) {
+            stepRollupRepository.removeByRelationId(relationId, studyRemoved);
+            return 0;
+        }
+        return measurementRepository.deleteByIdIn(ids);
+    }
+
+    @Override
+    public List<StepAggregateRow> aggregateSteps(String studyId, String patientId, TimeBucket bucket, Date from, Date to) {
+        return measurementRepository.aggregateSteps(studyId, patientId, bucket, from, to);
+    }
+
+    @Override
+    public boolean maintainsStepRollups() {
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.springframework.util.Assert;
+
+import java.io.*;
+import java.util.Base64;
+
+/**
+ * Opaque cursor used for keyset (seek) paging, i.e. "give me the next page after this row".
+ *
+ * The cursor holds the order field and direction together with the sort key and id of the last row of the previous page,
+ * encoded as a url-safe base64 string so that clients can treat it as an opaque token. A null sort key is encoded as
+ * such, i.e. it is distinct from the string "null".
+ */
+public class KeysetCursor {
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private final String orderBy;
+    private final boolean ascending;
+    private final String value;
+    private final String id;
+
+    /**
+     * @param orderBy
+     * @param ascending
+     * @param value null if the order field of the last row is null
+     * @param id
+     */
+    public KeysetCursor(String orderBy, boolean ascending, String value, String id) {
+        Assert.hasText(orderBy);
+        Assert.hasText(id);
+
+        this.orderBy = orderBy;
+        this.ascending = ascending;
+        this.value = value;
+        this.id = id;
+    }
+
+    /**
+     * Decodes a cursor previously created by {@link #encode()}
+     *
+     * @param encoded
+     * @return the decoded cursor
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static KeysetCursor decode(String encoded) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(encoded)))) {
+            String orderBy = in.readUTF();
+            boolean ascending = in.readBoolean();
+            String value = in.readBoolean() ? in.readUTF() : null;
+            String id = in.readUTF();
+            if (!Uuids.isValid(id)) throw new IllegalArgumentException("Not a UUID: " + id);
+            return new KeysetCursor(orderBy, ascending, value, id);
+
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid cursor [" + encoded + "]", ex);
+        }
+    }
+
+    public String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(orderBy);
+            out.writeBoolean(ascending);
+            out.writeBoolean(value != null);
+            if (value != null) out.writeUTF(value);
+            out.writeUTF(id);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * The order field as given in the API, e.g. firstName
+     */
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * The value of the order field of the last row in the previous page, null if it is null
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * The id of the last row in the previous page, used as tie-breaker for rows with the same value in the order field
+     */
+    public String getId() {
+        return id;
+    }
+}
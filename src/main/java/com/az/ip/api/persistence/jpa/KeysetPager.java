@@ -0,0 +1,138 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.*;
+import java.util.List;
+
+/**
+ * Keyset (seek) paging over a single entity type.
+ *
+ * Instead of skipping over page * size rows with an offset the query seeks directly to the row after the last row of
+ * the previous page, i.e. WHERE (orderField, id) > (lastValue, lastId) ORDER BY orderField, id.
+ * The cost of a page is therefore independent of how deep into the result set it is and rows inserted concurrently
+ * do not cause rows to be skipped or repeated between pages.
+ *
+ * Rows with null in the order field are sorted as HSQLDB sorts them, i.e. as if null were the lowest value, and the
+ * seek compares them with IS NULL and IS NOT NULL, since a comparison with null is never true.
+ */
+@Component
+public class KeysetPager {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    /**
+     * Find the page following the row given by the cursor, using the order field and direction of the cursor
+     *
+     * @param type
+     * @param after
+     * @param size the size of the page, -1 to get all elements
+     * @return
+     */
+    public <T extends AbstractEntity> List<T> findNextPage(Class<T> type, KeysetCursor after, int size) {
+        return find(type, after.getOrderBy(), after.isAscending(), after, size);
+    }
+
+    /**
+     * Creates the cursor for the page that follows a page
+     *
+     * @param page
+     * @param orderBy
+     * @param ascending
+     * @param size the requested size of the page
+     * @return the encoded cursor, or null if the page isn't full, i.e. if it is the last page
+     */
+    public <T extends AbstractEntity> String nextCursor(List<T> page, String orderBy, boolean ascending, long size) {
+        if (size == -1 || page.isEmpty() || page.size() < size) return null;
+
+        T last = page.get(page.size() - 1);
+        Object value = PropertyAccessorFactory.forBeanPropertyAccess(last).getPropertyValue(toAttributeName(orderBy));
+        return new KeysetCursor(orderBy, ascending, (value == null) ? null : value.toString(), last.getId()).encode();
+    }
+
+    /**
+     * Limits an id projection query to a number of id's
+     *
+     * @param limit the max number of id's, -1 to get all id's
+     * @return
+     */
+    public Pageable limitIds(long limit) {
+        return (limit == -1) ? null : new PageRequest(0, (int)limit);
+    }
+
+    /**
+     * Id projection queries seek on the id itself, i.e. the cursor is the last id of the previous page
+     *
+     * @param after the id to start after, or null to start from the beginning
+     * @return
+     */
+    public String afterId(String after) {
+        return (after == null) ? Uuids.NIL : after;
+    }
+
+    /**
+     * Creates the cursor for the page of id's that follows a page of id's
+     *
+     * @param ids
+     * @param limit the requested max number of id's
+     * @return the last id, or null if the page isn't full, i.e. if it is the last page
+     */
+    public String nextIdCursor(List<String> ids, long limit) {
+        if (limit == -1 || ids.isEmpty() || ids.size() < limit) return null;
+        return ids.get(ids.size() - 1);
+    }
+
+    private <T extends AbstractEntity> List<T> find(Class<T> type, String orderBy, boolean ascending, KeysetCursor after, int size) {
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<T> query = cb.createQuery(type);
+        Root<T> root = query.from(type);
+
+        Path<String> sortKey = root.get(toAttributeName(orderBy));
+        Path<String> id = root.get("id");
+
+        if (after != null) query.where(seek(cb, sortKey, id, after, ascending));
+
+        // The id is used as a tie-breaker to get a total order, required to not skip rows with the same value in the order field
+        query.orderBy(
+            ascending ? cb.asc(sortKey) : cb.desc(sortKey),
+            ascending ? cb.asc(id)      : cb.desc(id));
+
+        TypedQuery<T> typedQuery = em.createQuery(query);
+        if (size != -1) typedQuery.setMaxResults(size);
+
+        return typedQuery.getResultList();
+    }
+
+    /**
+     * (sortKey, id) > (value, id) expanded, since row value comparison is not part of JPQL, with nulls sorted first in
+     * ascending order and last in descending order
+     */
+    private Predicate seek(CriteriaBuilder cb, Path<String> sortKey, Path<String> id, KeysetCursor after, boolean ascending) {
+        String value = after.getValue();
+
+        if (value == null) {
+            Predicate sameValue = cb.and(cb.isNull(sortKey), ascending ? cb.greaterThan(id, after.getId()) : cb.lessThan(id, after.getId()));
+            return ascending ? cb.or(sameValue, cb.isNotNull(sortKey)) : sameValue;
+        }
+
+        Predicate seek = ascending ?
+            cb.or(cb.greaterThan(sortKey, value), cb.and(cb.equal(sortKey, value), cb.greaterThan(id, after.getId()))) :
+            cb.or(cb.lessThan   (sortKey, value), cb.and(cb.equal(sortKey, value), cb.lessThan   (id, after.getId())));
+        return ascending ? seek : cb.or(seek, cb.isNull(sortKey));
+    }
+
+    /**
+     * Order fields in the API are camel cased, e.g. firstName, while the attributes of the entities are not, e.g. firstname
+     */
+    private String toAttributeName(String orderBy) {
+        return orderBy.toLowerCase();
+    }
+}
@@ -3,22 +3,37 @@ package com.az.ip.api.persistence.jpa;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.Index;
 import javax.persistence.ManyToOne;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
+import javax.persistence.UniqueConstraint;
 import java.util.Date;
 
 import static javax.persistence.TemporalType.DATE;
 import static javax.persistence.TemporalType.TIMESTAMP;
 
 @Entity
+// Measurements of a relation in time order, e.g. for the measurements of a patient in a study and for the rollups, and
+// at most one measurement per idempotency key and relation
+@Table(
+    indexes = @Index(name = "measurement_patient_timestamp_idx", columnList = "patient_id, timestamp"),
+    uniqueConstraints = @UniqueConstraint(name = "measurement_idempotency_key_uk", columnNames = {"patient_id", "idempotency_key"}))
 public class MeasurementEntity extends AbstractEntity {
 
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 64;
+
     private String description;
     @Temporal(TIMESTAMP)
     private Date timestamp;
     private int steps;
 
+    // The Idempotency-Key of the request that stored the measurement, if any
+    @Column(length = MAX_IDEMPOTENCY_KEY_LENGTH)
+    private String idempotencyKey;
+
     @ManyToOne
     private PatientDoctorStudyEntity patient;
 
@@ -90,4 +105,12 @@ public class MeasurementEntity extends AbstractEntity {
     public void setSteps(int steps) {
         this.steps = steps;
     }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
 }
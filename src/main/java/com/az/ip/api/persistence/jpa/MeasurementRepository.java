@@ -1,6 +1,36 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.transaction.annotation.Transactional;
 
-public interface MeasurementRepository extends PagingAndSortingRepository<MeasurementEntity, String> {
+import java.util.Collection;
+import java.util.List;
+
+public interface MeasurementRepository extends PagingAndSortingRepository<MeasurementEntity, String>, MeasurementRepositoryCustom {
+
+    /**
+     * @return the id of the measurement of a relation stored with an idempotency key, null if there is none
+     */
+    @Query("select m.id from MeasurementEntity m where m.patient.id = ?1 and m.idempotencyKey = ?2")
+    String findIdByRelationIdAndIdempotencyKey(String relationId, String idempotencyKey);
+
+    /**
+     * @param pageable limits the number of measurements
+     * @return the ids of measurements of the relation
+     */
+    @Query("select m.id from MeasurementEntity m where m.patient.id = ?1")
+    List<String> findIdsByRelationId(String relationId, Pageable pageable);
+
+    /**
+     * Removes measurements using a single delete statement, i.e. bypassing the {@link StepRollupTracker}
+     *
+     * @return the number of removed measurements
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from MeasurementEntity m where m.id in ?1")
+    int deleteByIdIn(Collection<String> ids);
 }
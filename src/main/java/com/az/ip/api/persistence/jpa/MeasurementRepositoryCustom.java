@@ -0,0 +1,84 @@
+package com.az.ip.api.persistence.jpa;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjuster;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Operations on measurements that can't be expressed as Spring Data query methods
+ */
+public interface MeasurementRepositoryCustom {
+
+    /**
+     * Time buckets for aggregation of measurements, with the format used to truncate a timestamp to the start of its bucket
+     */
+    enum TimeBucket {
+        DAY("DD", day -> day),
+        /** ISO weeks, i.e. starting on mondays */
+        WEEK("IW", TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)),
+        MONTH("MM", TemporalAdjusters.firstDayOfMonth());
+
+        private final String truncFormat;
+        private final TemporalAdjuster firstDay;
+
+        TimeBucket(String truncFormat, TemporalAdjuster firstDay) {
+            this.truncFormat = truncFormat;
+            this.firstDay = firstDay;
+        }
+
+        /**
+         * @return the start of the bucket of the timestamp in the default time zone, the same as TRUNC in the database
+         */
+        public Date truncate(Date timestamp) {
+            LocalDate day = timestamp.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+            return Date.from(day.with(firstDay).atStartOfDay(ZoneId.systemDefault()).toInstant());
+        }
+
+        public String getTruncFormat() {
+            return truncFormat;
+        }
+    }
+
+    /**
+     * Callback for one row at the time when scrolling through measurements
+     */
+    interface RowHandler {
+        void handle(String id, int version, String description, Date timestamp, int steps);
+    }
+
+    /**
+     * Scrolls through all measurements in a study, ordered by timestamp, and hands over one row at the time to the handler.
+     *
+     * The rows are read from a forward only database cursor and no entities are created, i.e. the memory used is
+     * independent of the number of measurements in the study.
+     *
+     * @param studyId
+     * @param handler
+     */
+    void scrollByStudyId(String studyId, RowHandler handler);
+
+    /**
+     * Inserts measurements in one transaction using JDBC batching, without loading their patient-doctor-study relations.
+     *
+     * @param measurements
+     * @return the id's of the new measurements, in the same order as the measurements
+     */
+    List<String> insertAll(List<NewMeasurement> measurements);
+
+    /**
+     * Aggregates the steps of the measurements in a study per time bucket, computed in the database so that only one row
+     * per bucket is read.
+     *
+     * @param studyId
+     * @param patientId limits the aggregation to one patient in the study, null for all patients
+     * @param bucket
+     * @param from the first timestamp to include, null for no lower limit
+     * @param to the timestamp to stop before, i.e. exclusive, null for no upper limit
+     * @return one aggregate per non-empty bucket, ordered by bucket
+     */
+    List<StepAggregateRow> aggregateSteps(String studyId, String patientId, TimeBucket bucket, Date from, Date to);
+}
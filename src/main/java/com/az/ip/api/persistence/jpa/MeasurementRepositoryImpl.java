@@ -0,0 +1,112 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Implementation of the custom operations in {@link MeasurementRepositoryCustom}, picked up by Spring Data by its name
+ */
+public class MeasurementRepositoryImpl implements MeasurementRepositoryCustom {
+
+    private static final int FETCH_SIZE = 500;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:50}")
+    private int batchSize;
+
+    @Override
+    @Transactional(readOnly = true)
+    public void scrollByStudyId(String studyId, RowHandler handler) {
+
+        // Select the columns only, to avoid building up entities (and their eager relations) in the persistence context
+        ScrollableResults rows = em.unwrap(Session.class)
+            .createQuery("select m.id, m.version, m.description, m.timestamp, m.steps from MeasurementEntity m where m.patient.study.id = :studyId order by m.timestamp")
+            .setParameter("studyId", studyId)
+            .setReadOnly(true)
+            .setFetchSize(FETCH_SIZE)
+            .scroll(ScrollMode.FORWARD_ONLY);
+
+        try {
+            while (rows.next()) {
+                handler.handle((String)rows.get(0), (Integer)rows.get(1), (String)rows.get(2), (Date)rows.get(3), (Integer)rows.get(4));
+            }
+        } finally {
+            rows.close();
+        }
+    }
+
+    @Override
+    @Transactional
+    public List<String> insertAll(List<NewMeasurement> measurements) {
+
+        Session session = em.unwrap(Session.class);
+        List<String> ids = new ArrayList<>(measurements.size());
+
+        for (NewMeasurement m : measurements) {
+            PatientDoctorStudyEntity relation = (m.getRelationId() == null) ? null : em.getReference(PatientDoctorStudyEntity.class, m.getRelationId());
+            MeasurementEntity entity = new MeasurementEntity(relation, m.getDescription(), m.getTimestamp(), m.getSteps());
+            entity.setIdempotencyKey(m.getIdempotencyKey());
+
+            // Save, since a persist of an entity with an assigned id first selects it to see if it already exists
+            session.save(entity);
+            ids.add(entity.getId());
+
+            // Send a full JDBC batch and release the saved entities to keep the persistence context small
+            if (ids.size() % batchSize == 0) {
+                session.flush();
+                session.clear();
+            }
+        }
+
+        return ids;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<StepAggregateRow> aggregateSteps(String studyId, String patientId, TimeBucket bucket, Date from, Date to) {
+
+        // Native SQL, since JPQL can't group by a truncated timestamp. TRUNC(timestamp, format) is supported by HSQLDB and Oracle
+        String truncated = "trunc(m.timestamp, '" + bucket.getTruncFormat() + "')";
+
+        StringBuilder sql = new StringBuilder()
+            .append("select ").append(truncated).append(", count(*), sum(m.steps), avg(cast(m.steps as double)), min(m.steps), max(m.steps)")
+            .append(" from measurement_entity m join patient_doctor_study_entity pds on m.patient_id = pds.id")
+            .append(" where pds.study_id = :studyId");
+        if (patientId != null) sql.append(" and pds.patient_id = :patientId");
+        if (from != null)      sql.append(" and m.timestamp >= :from");
+        if (to != null)        sql.append(" and m.timestamp < :to");
+        sql.append(" group by ").append(truncated).append(" order by 1");
+
+        // Native queries are not aware of the id type, i.e. the id's are bound in their binary form
+        Query query = em.createNativeQuery(sql.toString()).setParameter("studyId", Uuids.toBytes(studyId));
+        if (patientId != null) query.setParameter("patientId", Uuids.toBytes(patientId));
+        if (from != null)      query.setParameter("from", from, TemporalType.TIMESTAMP);
+        if (to != null)        query.setParameter("to", to, TemporalType.TIMESTAMP);
+
+        List<StepAggregateRow> aggregates = new ArrayList<>();
+        for (Object row : query.getResultList()) {
+            Object[] columns = (Object[])row;
+            aggregates.add(new StepAggregateRow(
+                (Date)columns[0],
+                ((Number)columns[1]).longValue(),
+                ((Number)columns[2]).longValue(),
+                ((Number)columns[3]).doubleValue(),
+                ((Number)columns[4]).intValue(),
+                ((Number)columns[5]).intValue()));
+        }
+        return aggregates;
+    }
+}
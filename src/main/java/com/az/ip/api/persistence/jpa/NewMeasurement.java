@@ -0,0 +1,69 @@
+package com.az.ip.api.persistence.jpa;
+
+import java.util.Date;
+
+/**
+ * A measurement to be inserted, where the patient-doctor-study relation is given by its id only.
+ *
+ * The patient and study of the relation are only required by measurement stores that keep them with the measurements,
+ * see {@link com.az.ip.api.persistence.MeasurementStore}.
+ */
+public class NewMeasurement {
+
+    private final String relationId;
+    private final String patientId;
+    private final String studyId;
+    private final String description;
+    private final Date timestamp;
+    private final int steps;
+    private final String idempotencyKey;
+
+    public NewMeasurement(String relationId, String description, Date timestamp, int steps) {
+        this(relationId, null, null, description, timestamp, steps);
+    }
+
+    public NewMeasurement(String relationId, String patientId, String studyId, String description, Date timestamp, int steps) {
+        this(relationId, patientId, studyId, description, timestamp, steps, null);
+    }
+
+    /**
+     * @param idempotencyKey the client supplied key of the measurement, unique per relation, null if none
+     */
+    public NewMeasurement(String relationId, String patientId, String studyId, String description, Date timestamp, int steps, String idempotencyKey) {
+        this.relationId = relationId;
+        this.patientId = patientId;
+        this.studyId = studyId;
+        this.description = description;
+        this.timestamp = timestamp;
+        this.steps = steps;
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getRelationId() {
+        return relationId;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public String getStudyId() {
+        return studyId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+}
@@ -5,8 +5,25 @@ import java.util.ArrayList;
 import java.util.List;
 
 @Entity
+@Table(indexes = {
+    // Relations of a patient in a study, e.g. when storing measurements
+    @Index(name = "pds_patient_study_idx", columnList = "patient_id, study_id"),
+    // Patients of a doctor in a study, and all relations of a study
+    @Index(name = "pds_study_doctor_idx", columnList = "study_id, doctor_id")
+})
+@NamedEntityGraph(name = PatientDoctorStudyEntity.WITH_MEASUREMENTS, attributeNodes = {
+    @NamedAttributeNode("patient"),
+    @NamedAttributeNode("doctor"),
+    @NamedAttributeNode("study"),
+    @NamedAttributeNode("measurements")
+})
 public class PatientDoctorStudyEntity extends AbstractEntity {
 
+    /**
+     * Entity graph that loads the measurements, and the patient, doctor and study, together with the relation
+     */
+    public static final String WITH_MEASUREMENTS = "PatientDoctorStudyEntity.withMeasurements";
+
     @ManyToOne
     private PatientEntity patient;
 
@@ -16,7 +33,7 @@ public class PatientDoctorStudyEntity extends AbstractEntity {
     @ManyToOne
     private StudyEntity study;
 
-    @OneToMany(mappedBy="patient", fetch = FetchType.EAGER)
+    @OneToMany(mappedBy="patient", fetch = FetchType.LAZY)
     private List<MeasurementEntity> measurements = new ArrayList<>();
 
     /**
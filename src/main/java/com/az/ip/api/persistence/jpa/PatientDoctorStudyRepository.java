@@ -1,15 +1,17 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
-public interface PatientDoctorStudyRepository extends PagingAndSortingRepository<PatientDoctorStudyEntity, String> {
+public interface PatientDoctorStudyRepository extends PagingAndSortingRepository<PatientDoctorStudyEntity, String>, PatientDoctorStudyRepositoryCustom {
 
-    // FIXME: Can these find methods be performed on ID's insted of entities???
-
-    // FIXME: How to perform a lookup of a single entity and not a list?
     List<PatientDoctorStudyEntity> findByPatientAndDoctorAndStudy(PatientEntity patient, DoctorEntity doctorId, StudyEntity studyId);
 
     List<PatientDoctorStudyEntity> findByStudyAndDoctor(StudyEntity studyId, DoctorEntity doctorId);
@@ -25,4 +27,94 @@ public interface PatientDoctorStudyRepository extends PagingAndSortingRepository
 
     @Query("select pds from PatientDoctorStudyEntity pds where pds.patient.id = ? and pds.study.id = ?")
     List<PatientDoctorStudyEntity> findByPatientIdAndStudyId(String patientId, String studyId);
+
+    /**
+     * Id's of the relations for a number of patients and studies, for resolving many patient and study pairs in one query.
+     *
+     * Note that the result is the relations for all combinations of the given patients and studies, i.e. a superset of the pairs.
+     *
+     * @param patientIds
+     * @param studyIds
+     * @return rows of relation id, patient id and study id
+     */
+    @Query("select pds.id, pds.patient.id, pds.study.id from PatientDoctorStudyEntity pds where pds.patient.id in ?1 and pds.study.id in ?2")
+    List<Object[]> findIdsByPatientIdsAndStudyIds(Collection<String> patientIds, Collection<String> studyIds);
+
+    /**
+     * Removes the relation between a patient, a doctor and a study, given their id's only, using a single delete statement
+     *
+     * @param patientId
+     * @param doctorId
+     * @param studyId
+     * @return the number of removed relations, 0 if the patient wasn't assigned to the study by the doctor
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from PatientDoctorStudyEntity pds where pds.patient.id = ?1 and pds.doctor.id = ?2 and pds.study.id = ?3")
+    int deleteByPatientIdAndDoctorIdAndStudyId(String patientId, String doctorId, String studyId);
+
+    /**
+     * Id's of the relations of a patient, a doctor or a study, e.g. for removing their measurements before they are removed
+     */
+    @Query("select pds.id from PatientDoctorStudyEntity pds where pds.patient.id = ?1")
+    List<String> findIdsByPatientId(String patientId);
+
+    @Query("select pds.id from PatientDoctorStudyEntity pds where pds.doctor.id = ?1")
+    List<String> findIdsByDoctorId(String doctorId);
+
+    @Query("select pds.id from PatientDoctorStudyEntity pds where pds.study.id = ?1")
+    List<String> findIdsByStudyId(String studyId);
+
+    /**
+     * Removes all relations of a patient, a doctor or a study using a single delete statement, their measurements have
+     * to be removed first
+     *
+     * @return the number of removed relations
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from PatientDoctorStudyEntity pds where pds.patient.id = ?1")
+    int deleteByPatientId(String patientId);
+
+    @Modifying
+    @Transactional
+    @Query("delete from PatientDoctorStudyEntity pds where pds.doctor.id = ?1")
+    int deleteByDoctorId(String doctorId);
+
+    @Modifying
+    @Transactional
+    @Query("delete from PatientDoctorStudyEntity pds where pds.study.id = ?1")
+    int deleteByStudyId(String studyId);
+
+    // Distinct is required since the measurements are fetched using a join, i.e. one row per measurement
+    @EntityGraph(PatientDoctorStudyEntity.WITH_MEASUREMENTS)
+    @Query("select distinct pds from PatientDoctorStudyEntity pds where pds.patient.id = ?1 and pds.study.id = ?2")
+    List<PatientDoctorStudyEntity> findWithMeasurementsByPatientIdAndStudyId(String patientId, String studyId);
+
+    @EntityGraph(PatientDoctorStudyEntity.WITH_MEASUREMENTS)
+    @Query("select distinct pds from PatientDoctorStudyEntity pds where pds.study.id = ?1")
+    List<PatientDoctorStudyEntity> findWithMeasurementsByStudyId(String studyId);
+
+    /**
+     * Id's of the studies that a patient is part of, ordered by id and starting after the given id
+     *
+     * @param patientId
+     * @param afterStudyId use {@link Uuids#NIL} to start from the first study
+     * @param pageable limits the number of id's, null for all
+     * @return
+     */
+    @Query("select distinct pds.study.id from PatientDoctorStudyEntity pds where pds.patient.id = ?1 and pds.study.id > ?2 order by pds.study.id")
+    List<String> findStudyIdsByPatientId(String patientId, String afterStudyId, Pageable pageable);
+
+    /**
+     * Id's of the patients that a doctor has assigned to a study, ordered by id and starting after the given id
+     *
+     * @param studyId
+     * @param doctorId
+     * @param afterPatientId use {@link Uuids#NIL} to start from the first patient
+     * @param pageable limits the number of id's, null for all
+     * @return
+     */
+    @Query("select pds.patient.id from PatientDoctorStudyEntity pds where pds.study.id = ?1 and pds.doctor.id = ?2 and pds.patient.id > ?3 order by pds.patient.id")
+    List<String> findPatientIdsByStudyIdAndDoctorId(String studyId, String doctorId, String afterPatientId, Pageable pageable);
 }
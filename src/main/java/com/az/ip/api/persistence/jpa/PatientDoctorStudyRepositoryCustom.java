@@ -0,0 +1,19 @@
+package com.az.ip.api.persistence.jpa;
+
+/**
+ * Operations on the patient-doctor-study relation that can't be expressed as Spring Data query methods
+ */
+public interface PatientDoctorStudyRepositoryCustom {
+
+    /**
+     * Creates the relation between a patient, a doctor and a study, given their id's only.
+     *
+     * The patient, doctor and study are not loaded, i.e. a single insert statement is executed.
+     *
+     * @param patientId
+     * @param doctorId
+     * @param studyId
+     * @return the new relation
+     */
+    PatientDoctorStudyEntity assign(String patientId, String doctorId, String studyId);
+}
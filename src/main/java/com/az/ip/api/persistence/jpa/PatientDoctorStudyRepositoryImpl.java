@@ -0,0 +1,32 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Implementation of the custom operations in {@link PatientDoctorStudyRepositoryCustom}, picked up by Spring Data by its name
+ */
+public class PatientDoctorStudyRepositoryImpl implements PatientDoctorStudyRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Override
+    @Transactional
+    public PatientDoctorStudyEntity assign(String patientId, String doctorId, String studyId) {
+
+        // References are uninitialized proxies, i.e. they don't hit the database
+        PatientDoctorStudyEntity relation = new PatientDoctorStudyEntity(
+            em.getReference(PatientEntity.class, patientId),
+            em.getReference(DoctorEntity.class, doctorId),
+            em.getReference(StudyEntity.class, studyId));
+
+        // Save, since a persist (or a merge) of an entity with an assigned id first selects it to see if it already exists
+        em.unwrap(Session.class).save(relation);
+
+        return relation;
+    }
+}
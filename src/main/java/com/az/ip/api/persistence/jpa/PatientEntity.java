@@ -5,11 +5,18 @@ import org.springframework.util.Assert;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
+import javax.persistence.Index;
 import javax.persistence.OneToMany;
+import javax.persistence.Table;
 import java.util.ArrayList;
 import java.util.List;
 
 @Entity
+// The sortable name columns, with the id as the tie-breaker used by the keyset paging
+@Table(indexes = {
+    @Index(name = "patient_firstname_idx", columnList = "firstname, id"),
+    @Index(name = "patient_lastname_idx",  columnList = "lastname, id")
+})
 public class PatientEntity extends AbstractEntity {
 
     @Column(unique=true)
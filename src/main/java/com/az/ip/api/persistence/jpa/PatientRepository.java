@@ -1,7 +1,16 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
 public interface PatientRepository extends PagingAndSortingRepository<PatientEntity, String> {
     PatientEntity findByUsername(String username);
+
+    /**
+     * The version of a patient without loading it, used by conditional requests
+     *
+     * @return null if not found
+     */
+    @Query("select e.version from PatientEntity e where e.id = ?1")
+    Integer findVersionById(String id);
 }
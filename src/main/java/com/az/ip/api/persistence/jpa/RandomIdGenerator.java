@@ -0,0 +1,17 @@
+package com.az.ip.api.persistence.jpa;
+
+import java.util.UUID;
+
+/**
+ * Random (version 4) UUID's from the shared SecureRandom of {@link UUID#randomUUID()}.
+ *
+ * Spreads inserts over the whole primary key index and contends on the shared SecureRandom at high insert rates, see
+ * {@link TimeOrderedIdGenerator}.
+ */
+public class RandomIdGenerator implements IdGenerator {
+
+    @Override
+    public String nextId() {
+        return UUID.randomUUID().toString();
+    }
+}
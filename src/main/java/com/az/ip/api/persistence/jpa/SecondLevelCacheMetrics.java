@@ -0,0 +1,55 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exposes the hit, miss and put counts of the Hibernate second-level and query caches in the actuator metrics endpoint,
+ * in total and per cache region, e.g. hibernate.cache.StudyEntity.hit
+ */
+@Component
+public class SecondLevelCacheMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "hibernate.cache.";
+    private static final String ENTITY_PACKAGE = SecondLevelCacheMetrics.class.getPackage().getName() + ".";
+
+    @Inject
+    private EntityManagerFactory emf;
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        List<Metric<?>> metrics = new ArrayList<>();
+
+        metrics.add(new Metric<>(PREFIX + "hit",  statistics.getSecondLevelCacheHitCount()));
+        metrics.add(new Metric<>(PREFIX + "miss", statistics.getSecondLevelCacheMissCount()));
+        metrics.add(new Metric<>(PREFIX + "put",  statistics.getSecondLevelCachePutCount()));
+
+        metrics.add(new Metric<>(PREFIX + "query.hit",  statistics.getQueryCacheHitCount()));
+        metrics.add(new Metric<>(PREFIX + "query.miss", statistics.getQueryCacheMissCount()));
+        metrics.add(new Metric<>(PREFIX + "query.put",  statistics.getQueryCachePutCount()));
+
+        for (String region : statistics.getSecondLevelCacheRegionNames()) {
+            SecondLevelCacheStatistics regionStatistics = statistics.getSecondLevelCacheStatistics(region);
+            if (regionStatistics == null) continue;
+
+            String name = PREFIX + region.replace(ENTITY_PACKAGE, "") + ".";
+            metrics.add(new Metric<>(name + "hit",  regionStatistics.getHitCount()));
+            metrics.add(new Metric<>(name + "miss", regionStatistics.getMissCount()));
+            metrics.add(new Metric<>(name + "put",  regionStatistics.getPutCount()));
+            metrics.add(new Metric<>(name + "size", regionStatistics.getElementCountInMemory()));
+        }
+
+        return metrics;
+    }
+}
@@ -0,0 +1,52 @@
+package com.az.ip.api.persistence.jpa;
+
+import java.util.Date;
+
+/**
+ * Aggregated steps of the measurements within one time bucket, as read from the database
+ */
+public class StepAggregateRow {
+
+    private final Date bucket;
+    private final long count;
+    private final long sum;
+    private final double avg;
+    private final int min;
+    private final int max;
+
+    public StepAggregateRow(Date bucket, long count, long sum, double avg, int min, int max) {
+        this.bucket = bucket;
+        this.count = count;
+        this.sum = sum;
+        this.avg = avg;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return the start of the time bucket
+     */
+    public Date getBucket() {
+        return bucket;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public double getAvg() {
+        return avg;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+}
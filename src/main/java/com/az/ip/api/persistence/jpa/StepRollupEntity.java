@@ -0,0 +1,122 @@
+package com.az.ip.api.persistence.jpa;
+
+import javax.persistence.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+
+import static javax.persistence.TemporalType.TIMESTAMP;
+
+/**
+ * Pre-aggregated steps of the measurements within one hour or day, for a patient-doctor-study relation or for a study.
+ *
+ * Maintained incrementally by the {@link StepRollupTracker} when measurements are stored or removed, and recomputed from
+ * the measurements by {@link StepRollupRepositoryCustom#rebuild()}.
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"scope", "scopeId", "resolution", "bucketStart"}))
+public class StepRollupEntity extends AbstractEntity {
+
+    public enum Scope {
+        /** The measurements of one patient-doctor-study relation, the scope id is the id of the relation */
+        RELATION,
+        /** The measurements of all patients in a study, the scope id is the id of the study */
+        STUDY
+    }
+
+    public enum Resolution {
+        HOUR("HH", ChronoUnit.HOURS),
+        DAY("DD", ChronoUnit.DAYS);
+
+        private final String truncFormat;
+        private final ChronoUnit unit;
+
+        Resolution(String truncFormat, ChronoUnit unit) {
+            this.truncFormat = truncFormat;
+            this.unit = unit;
+        }
+
+        /**
+         * @return the start of the bucket of the timestamp, in the local time zone as TRUNC in SQL
+         */
+        public Date truncate(Date timestamp) {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp.getTime()), ZoneId.systemDefault());
+            return Date.from(time.truncatedTo(unit).atZone(ZoneId.systemDefault()).toInstant());
+        }
+
+        /**
+         * @return the start of the following bucket
+         */
+        public Date next(Date bucketStart) {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(bucketStart.getTime()), ZoneId.systemDefault());
+            return Date.from(time.plus(1, unit).atZone(ZoneId.systemDefault()).toInstant());
+        }
+
+        /**
+         * @return the format used to truncate a timestamp to the start of its bucket in SQL
+         */
+        public String getTruncFormat() {
+            return truncFormat;
+        }
+    }
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16, nullable = false)
+    private Scope scope;
+
+    @Convert(converter = UuidConverter.class)
+    @Column(length = Uuids.LENGTH, nullable = false)
+    private String scopeId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16, nullable = false)
+    private Resolution resolution;
+
+    @Temporal(TIMESTAMP)
+    @Column(nullable = false)
+    private Date bucketStart;
+
+    private long measurementCount;
+    private long stepSum;
+    private int stepMin;
+    private int stepMax;
+
+    /**
+     * The default constructor is required by the JPA implementation, rollups are only created by SQL in the repository
+     */
+    protected StepRollupEntity() {}
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public String getScopeId() {
+        return scopeId;
+    }
+
+    public Resolution getResolution() {
+        return resolution;
+    }
+
+    public Date getBucketStart() {
+        return bucketStart;
+    }
+
+    public long getMeasurementCount() {
+        return measurementCount;
+    }
+
+    public long getStepSum() {
+        return stepSum;
+    }
+
+    public int getStepMin() {
+        return stepMin;
+    }
+
+    public int getStepMax() {
+        return stepMax;
+    }
+}
@@ -0,0 +1,12 @@
+package com.az.ip.api.persistence.jpa;
+
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Resolution;
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Scope;
+import org.springframework.data.repository.PagingAndSortingRepository;
+
+import java.util.Date;
+
+public interface StepRollupRepository extends PagingAndSortingRepository<StepRollupEntity, String>, StepRollupRepositoryCustom {
+
+    StepRollupEntity findByScopeAndScopeIdAndResolutionAndBucketStart(Scope scope, String scopeId, Resolution resolution, Date bucketStart);
+}
@@ -0,0 +1,141 @@
+package com.az.ip.api.persistence.jpa;
+
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.TimeBucket;
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Resolution;
+
+import java.util.*;
+
+/**
+ * Maintenance and reads of the step rollups that can't be expressed as Spring Data query methods
+ */
+public interface StepRollupRepositoryCustom {
+
+    /**
+     * One hour or day of the measurements in a patient-doctor-study relation
+     */
+    final class RollupBucket {
+
+        private final String relationId;
+        private final Resolution resolution;
+        private final Date start;
+
+        public RollupBucket(String relationId, Resolution resolution, Date start) {
+            this.relationId = relationId;
+            this.resolution = resolution;
+            this.start = start;
+        }
+
+        public String getRelationId() {
+            return relationId;
+        }
+
+        public Resolution getResolution() {
+            return resolution;
+        }
+
+        public Date getStart() {
+            return start;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof RollupBucket)) return false;
+            RollupBucket other = (RollupBucket) obj;
+            return relationId.equals(other.relationId) && resolution == other.resolution && start.getTime() == other.start.getTime();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(relationId, resolution, start.getTime());
+        }
+    }
+
+    /**
+     * Steps added to a bucket
+     */
+    final class RollupDelta {
+
+        private long count;
+        private long sum;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+
+        public void add(int steps) {
+            count++;
+            sum += steps;
+            min = Math.min(min, steps);
+            max = Math.max(max, steps);
+        }
+
+        public void add(RollupDelta other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Adds steps to the rollups of the relations, and of their studies, creating the rollups that don't exist yet. A
+     * rollup created by a concurrent transaction fails with a DataIntegrityViolationException, i.e. retry to add to it.
+     *
+     * @param additions
+     */
+    void addAll(Map<RollupBucket, RollupDelta> additions);
+
+    /**
+     * Recomputes the rollups of the relations, and of their studies, from the measurements, e.g. after measurements are
+     * removed since the min and max of a bucket can't be maintained incrementally
+     *
+     * @param buckets
+     */
+    void recomputeAll(Set<RollupBucket> buckets);
+
+    /**
+     * Removes the rollups of a relation that has no measurements left, and recomputes the rollups of its study for the
+     * same buckets, i.e. once per removed relation instead of once per removed chunk of its measurements
+     *
+     * @param relationId
+     * @param studyRemoved true if the study is removed as well, its rollups are then removed instead of recomputed
+     */
+    void removeByRelationId(String relationId, boolean studyRemoved);
+
+    /**
+     * Recomputes all rollups from the measurements
+     *
+     * @return the number of rollups
+     */
+    int rebuild();
+
+    /**
+     * Aggregates the steps in a study per time bucket from the rollups, i.e. reading one row per hour or day instead of
+     * one per measurement. The result is the same as {@link MeasurementRepositoryCustom#aggregateSteps} given that from and
+     * to are aligned to the resolution.
+     *
+     * @param studyId
+     * @param patientId limits the aggregation to one patient in the study, null for all patients
+     * @param resolution the rollups to read, has to be at most as long as the bucket
+     * @param bucket
+     * @param from the first timestamp to include, null for no lower limit
+     * @param to the timestamp to stop before, i.e. exclusive, null for no upper limit
+     * @return one aggregate per non-empty bucket, ordered by bucket
+     */
+    List<StepAggregateRow> aggregateSteps(String studyId, String patientId, Resolution resolution, TimeBucket bucket, Date from, Date to);
+}
@@ -0,0 +1,292 @@
+package com.az.ip.api.persistence.jpa;
+
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.TimeBucket;
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Resolution;
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Scope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import java.util.*;
+
+/**
+ * Implementation of the custom operations in {@link StepRollupRepositoryCustom}, picked up by Spring Data by its name.
+ *
+ * Uses native SQL for upserts and grouping by truncated timestamps. MERGE and TRUNC(timestamp, format) are supported by
+ * HSQLDB and Oracle. Id's are bound in their binary form, see {@link Uuids}, since native queries are not aware of the id type.
+ * New rollups get their id's from {@link AbstractEntity#nextId()}, except in a rebuild that inserts them with one
+ * statement per scope and resolution, and takes random id's from the uuid() function of HSQLDB instead.
+ */
+public class StepRollupRepositoryImpl implements StepRollupRepositoryCustom {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StepRollupRepositoryImpl.class);
+
+    private static final String COLUMNS = "id, version, scope, scope_id, resolution, bucket_start, measurement_count, step_sum, step_min, step_max";
+
+    private static final String MERGE =
+        "merge into step_rollup_entity r using (values(0)) as d(x)" +
+        " on r.scope = :scope and r.scope_id = :scopeId and r.resolution = :resolution and r.bucket_start = :bucketStart" +
+        " when matched then update set r.measurement_count = r.measurement_count + :count, r.step_sum = r.step_sum + :sum," +
+        " r.step_min = least(r.step_min, :min), r.step_max = greatest(r.step_max, :max)" +
+        " when not matched then insert (" + COLUMNS + ")" +
+        " values (:id, 0, :scope, :scopeId, :resolution, :bucketStart, :count, :sum, :min, :max)";
+
+    private static final String DELETE =
+        "delete from step_rollup_entity where scope = :scope and scope_id = :scopeId and resolution = :resolution and bucket_start = :bucketStart";
+
+    private static final String BUCKETS =
+        "select resolution, bucket_start from step_rollup_entity where scope = :scope and scope_id = :scopeId";
+
+    private static final String DELETE_SCOPE =
+        "delete from step_rollup_entity where scope = :scope and scope_id = :scopeId";
+
+    // The scope column of the relation is pds.id or pds.study_id
+    private static final String RECOMPUTE =
+        "insert into step_rollup_entity (" + COLUMNS + ")" +
+        " select cast(:id as binary(16)), 0, cast(:scope as varchar(16)), pds.%1$s, cast(:resolution as varchar(16)), cast(:bucketStart as timestamp)," +
+        " count(*), sum(m.steps), min(m.steps), max(m.steps)" +
+        " from measurement_entity m join patient_doctor_study_entity pds on m.patient_id = pds.id" +
+        " where pds.%1$s = :scopeId and m.timestamp >= :bucketStart and m.timestamp < :bucketEnd" +
+        " group by pds.%1$s";
+
+    private static final String REBUILD =
+        "insert into step_rollup_entity (" + COLUMNS + ")" +
+        " select uuid(), 0, '%2$s', g.scope_id, '%3$s', g.bucket_start, g.measurement_count, g.step_sum, g.step_min, g.step_max from (" +
+        "  select pds.%1$s as scope_id, trunc(m.timestamp, '%4$s') as bucket_start," +
+        "  count(*) as measurement_count, sum(m.steps) as step_sum, min(m.steps) as step_min, max(m.steps) as step_max" +
+        "  from measurement_entity m join patient_doctor_study_entity pds on m.patient_id = pds.id" +
+        "  group by pds.%1$s, trunc(m.timestamp, '%4$s')) g";
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Override
+    @Transactional
+    public void addAll(Map<RollupBucket, RollupDelta> additions) {
+
+        // Sum up the additions per rollup, i.e. once per relation and once per study. Sorted, so that concurrent
+        // transactions lock the rollups in the same order instead of deadlocking
+        Map<String, String> studyIds = findStudyIds(additions.keySet());
+        Map<Target, RollupDelta> targets = new TreeMap<>();
+
+        additions.forEach((bucket, delta) -> {
+            for (Target target : targetsOf(bucket, studyIds)) {
+                targets.computeIfAbsent(target, t -> new RollupDelta()).add(delta);
+            }
+        });
+
+        targets.forEach((target, delta) ->
+            target.bind(em.createNativeQuery(MERGE))
+                .setParameter("id",    Uuids.toBytes(AbstractEntity.nextId()))
+                .setParameter("count", delta.getCount())
+                .setParameter("sum",   delta.getSum())
+                .setParameter("min",   delta.getMin())
+                .setParameter("max",   delta.getMax())
+                .executeUpdate());
+
+        LOG.debug("Added steps to #{} rollups", targets.size());
+    }
+
+    @Override
+    @Transactional
+    public void recomputeAll(Set<RollupBucket> buckets) {
+
+        Map<String, String> studyIds = findStudyIds(buckets);
+        Set<Target> targets = new TreeSet<>();
+        buckets.forEach(bucket -> targets.addAll(targetsOf(bucket, studyIds)));
+
+        for (Target target : targets) {
+            target.bind(em.createNativeQuery(DELETE)).executeUpdate();
+            target.bind(em.createNativeQuery(String.format(RECOMPUTE, target.scopeColumn())))
+                .setParameter("id", Uuids.toBytes(AbstractEntity.nextId()))
+                .setParameter("bucketEnd", target.end(), TemporalType.TIMESTAMP)
+                .executeUpdate();
+        }
+
+        LOG.debug("Recomputed #{} rollups", targets.size());
+    }
+
+    @Override
+    @Transactional
+    public void removeByRelationId(String relationId, boolean studyRemoved) {
+
+        Set<RollupBucket> buckets = new HashSet<>();
+        List<?> rows = em.createNativeQuery(BUCKETS)
+            .setParameter("scope", Scope.RELATION.name())
+            .setParameter("scopeId", Uuids.toBytes(relationId))
+            .getResultList();
+        for (Object row : rows) {
+            Object[] columns = (Object[])row;
+            buckets.add(new RollupBucket(relationId, Resolution.valueOf((String)columns[0]), (Date)columns[1]));
+        }
+        if (!studyRemoved) {
+            recomputeAll(buckets);
+            return;
+        }
+
+        // No need to recompute the rollups of a study that is removed
+        deleteScope(Scope.RELATION, relationId);
+        String studyId = findStudyIds(buckets).get(relationId);
+        if (studyId != null) deleteScope(Scope.STUDY, studyId);
+
+        LOG.debug("Removed the rollups of relation {} and study {}", relationId, studyId);
+    }
+
+    @Override
+    @Transactional
+    public int rebuild() {
+
+        em.createNativeQuery("delete from step_rollup_entity").executeUpdate();
+
+        int count = 0;
+        for (Scope scope : Scope.values()) {
+            for (Resolution resolution : Resolution.values()) {
+                count += em.createNativeQuery(String.format(REBUILD, scopeColumn(scope), scope, resolution, resolution.getTruncFormat())).executeUpdate();
+            }
+        }
+
+        LOG.debug("Rebuilt #{} rollups", count);
+        return count;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<StepAggregateRow> aggregateSteps(String studyId, String patientId, Resolution resolution, TimeBucket bucket, Date from, Date to) {
+
+        String truncated = "trunc(r.bucket_start, '" + bucket.getTruncFormat() + "')";
+
+        StringBuilder sql = new StringBuilder()
+            .append("select ").append(truncated).append(", sum(r.measurement_count), sum(r.step_sum), min(r.step_min), max(r.step_max)")
+            .append(" from step_rollup_entity r")
+            .append(" where r.resolution = :resolution");
+        if (patientId == null) {
+            sql.append(" and r.scope = 'STUDY' and r.scope_id = :studyId");
+        } else {
+            sql.append(" and r.scope = 'RELATION' and r.scope_id in (select pds.id from patient_doctor_study_entity pds where pds.study_id = :studyId and pds.patient_id = :patientId)");
+        }
+        if (from != null) sql.append(" and r.bucket_start >= :from");
+        if (to != null)   sql.append(" and r.bucket_start < :to");
+        sql.append(" group by ").append(truncated).append(" order by 1");
+
+        Query query = em.createNativeQuery(sql.toString())
+            .setParameter("resolution", resolution.name())
+            .setParameter("studyId", Uuids.toBytes(studyId));
+        if (patientId != null) query.setParameter("patientId", Uuids.toBytes(patientId));
+        if (from != null)      query.setParameter("from", from, TemporalType.TIMESTAMP);
+        if (to != null)        query.setParameter("to", to, TemporalType.TIMESTAMP);
+
+        List<StepAggregateRow> aggregates = new ArrayList<>();
+        for (Object row : query.getResultList()) {
+            Object[] columns = (Object[])row;
+            long count = ((Number)columns[1]).longValue();
+            long sum = ((Number)columns[2]).longValue();
+            aggregates.add(new StepAggregateRow(
+                (Date)columns[0], count, sum, (double)sum / count, ((Number)columns[3]).intValue(), ((Number)columns[4]).intValue()));
+        }
+        return aggregates;
+    }
+
+    /**
+     * The study of each relation. Relations removed in the current transaction are missing, i.e. their study rollups are
+     * left as is until the next rebuild
+     */
+    private Map<String, String> findStudyIds(Set<RollupBucket> buckets) {
+        Set<String> relationIds = new HashSet<>();
+        buckets.forEach(bucket -> relationIds.add(bucket.getRelationId()));
+
+        Map<String, String> studyIds = new HashMap<>();
+        if (relationIds.isEmpty()) return studyIds;
+
+        List<?> rows = em.createQuery("select pds.id, pds.study.id from PatientDoctorStudyEntity pds where pds.id in :ids")
+            .setParameter("ids", relationIds)
+            .getResultList();
+        for (Object row : rows) {
+            Object[] columns = (Object[])row;
+            studyIds.put((String)columns[0], (String)columns[1]);
+        }
+        return studyIds;
+    }
+
+    private void deleteScope(Scope scope, String scopeId) {
+        em.createNativeQuery(DELETE_SCOPE)
+            .setParameter("scope", scope.name())
+            .setParameter("scopeId", Uuids.toBytes(scopeId))
+            .executeUpdate();
+    }
+
+    private List<Target> targetsOf(RollupBucket bucket, Map<String, String> studyIds) {
+        List<Target> targets = new ArrayList<>(2);
+        targets.add(new Target(Scope.RELATION, bucket.getRelationId(), bucket.getResolution(), bucket.getStart()));
+
+        String studyId = studyIds.get(bucket.getRelationId());
+        if (studyId != null) targets.add(new Target(Scope.STUDY, studyId, bucket.getResolution(), bucket.getStart()));
+
+        return targets;
+    }
+
+    private static String scopeColumn(Scope scope) {
+        return (scope == Scope.RELATION) ? "id" : "study_id";
+    }
+
+    /**
+     * One rollup, i.e. a relation or a study and a bucket, ordered by its unique key
+     */
+    private static final class Target implements Comparable<Target> {
+
+        private static final Comparator<Target> ORDER = Comparator
+            .comparing((Target target) -> target.scope)
+            .thenComparing(target -> target.scopeId)
+            .thenComparing(target -> target.resolution)
+            .thenComparingLong(target -> target.start.getTime());
+
+        private final Scope scope;
+        private final String scopeId;
+        private final Resolution resolution;
+        private final Date start;
+
+        Target(Scope scope, String scopeId, Resolution resolution, Date start) {
+            this.scope = scope;
+            this.scopeId = scopeId;
+            this.resolution = resolution;
+            this.start = start;
+        }
+
+        Query bind(Query query) {
+            return query
+                .setParameter("scope",       scope.name())
+                .setParameter("scopeId",     Uuids.toBytes(scopeId))
+                .setParameter("resolution",  resolution.name())
+                .setParameter("bucketStart", start, TemporalType.TIMESTAMP);
+        }
+
+        String scopeColumn() {
+            return StepRollupRepositoryImpl.scopeColumn(scope);
+        }
+
+        Date end() {
+            return resolution.next(start);
+        }
+
+        @Override
+        public int compareTo(Target other) {
+            return ORDER.compare(this, other);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Target)) return false;
+            Target other = (Target) obj;
+            return scope == other.scope && scopeId.equals(other.scopeId) && resolution == other.resolution && start.getTime() == other.start.getTime();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(scope, scopeId, resolution, start.getTime());
+        }
+    }
+}
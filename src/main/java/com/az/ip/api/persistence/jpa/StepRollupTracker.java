@@ -0,0 +1,219 @@
+package com.az.ip.api.persistence.jpa;
+
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Resolution;
+import com.az.ip.api.persistence.jpa.StepRollupRepositoryCustom.RollupBucket;
+import com.az.ip.api.persistence.jpa.StepRollupRepositoryCustom.RollupDelta;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import java.util.*;
+
+/**
+ * Keeps the step rollups up to date when measurements are stored, updated or removed, regardless if it is done through
+ * {@link MeasurementRepository} or through the entity manager.
+ *
+ * The changes are collected by Hibernate event listeners during the transaction and applied to the rollups once it has
+ * committed, i.e. once per hour and day bucket instead of once per measurement. Since the min and max of a bucket can't
+ * be maintained when measurements are removed, those buckets are recomputed from the measurements instead.
+ *
+ * The inserts and deletes of measurements with assigned id's are queued by Hibernate until the flush of the commit, i.e.
+ * the listeners may see the changes only in the commit. The rollups are therefore updated after it, in a transaction
+ * of their own: the rollup rows, e.g. the day of a study, are locked only briefly instead of for the whole transaction
+ * of the measurements, and a failed rollup update doesn't fail the request that already stored its measurements. A
+ * rollup created concurrently by another transaction is retried once as an update. If the rollups still can't be
+ * updated they are left stale, see the log, and have to be rebuilt.
+ *
+ * Bulk updates and deletes in JPQL or SQL bypass the listeners, use {@link StepRollupRepositoryCustom#rebuild()} afterwards.
+ */
+@Component
+public class StepRollupTracker implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StepRollupTracker.class);
+
+    @Inject
+    private EntityManagerFactory emf;
+
+    @Inject
+    private StepRollupRepository stepRollupRepository;
+
+    @Inject
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate newTransaction;
+
+    @PostConstruct
+    public void registerListeners() {
+        newTransaction = new TransactionTemplate(transactionManager);
+        newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        EventListenerRegistry registry = emf.unwrap(SessionFactoryImplementor.class).getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (!(event.getEntity() instanceof MeasurementEntity)) return;
+
+        MeasurementEntity m = (MeasurementEntity) event.getEntity();
+        Changes changes = currentChanges();
+        if (changes != null) changes.add(relationId(m.getPatient()), m.getTimestamp(), m.getSteps());
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (!(event.getEntity() instanceof MeasurementEntity)) return;
+
+        MeasurementEntity m = (MeasurementEntity) event.getEntity();
+        Changes changes = currentChanges();
+        if (changes == null) return;
+
+        // Recompute both the buckets that the measurement is moved from and to
+        if (event.getOldState() != null) {
+            String[] properties = event.getPersister().getPropertyNames();
+            Object[] oldState = event.getOldState();
+            changes.remove(relationId(oldState[indexOf(properties, "patient")]), (Date) oldState[indexOf(properties, "timestamp")]);
+        }
+        changes.remove(relationId(m.getPatient()), m.getTimestamp());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        if (!(event.getEntity() instanceof MeasurementEntity)) return;
+
+        MeasurementEntity m = (MeasurementEntity) event.getEntity();
+        Changes changes = currentChanges();
+        if (changes != null) changes.remove(relationId(m.getPatient()), m.getTimestamp());
+    }
+
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return false;
+    }
+
+    /**
+     * The changes of the current transaction, registered for being applied after it commits the first time it is used.
+     * Changes first seen in the flush of the commit are registered in time, since the synchronizations are looked up
+     * again after the commit
+     */
+    private Changes currentChanges() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            LOG.warn("Measurements changed outside of a transaction, the step rollups have to be rebuilt");
+            return null;
+        }
+
+        Changes changes = (Changes) TransactionSynchronizationManager.getResource(this);
+        if (changes == null) {
+            changes = new Changes();
+            TransactionSynchronizationManager.bindResource(this, changes);
+            TransactionSynchronizationManager.registerSynchronization(new ApplyChangesAfterCommit(changes));
+        }
+        return changes;
+    }
+
+    /**
+     * The id of the relation, without initializing it if it is a proxy
+     */
+    private String relationId(Object relation) {
+        if (relation instanceof HibernateProxy) {
+            return (String) ((HibernateProxy) relation).getHibernateLazyInitializer().getIdentifier();
+        }
+        return ((PatientDoctorStudyEntity) relation).getId();
+    }
+
+    private int indexOf(String[] properties, String property) {
+        return Arrays.asList(properties).indexOf(property);
+    }
+
+    private class ApplyChangesAfterCommit extends TransactionSynchronizationAdapter {
+
+        private final Changes changes;
+
+        ApplyChangesAfterCommit(Changes changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        public void afterCommit() {
+            if (changes.isEmpty()) return;
+
+            Changes batch = changes.drain();
+            try {
+                try {
+                    apply(batch);
+                } catch (DataIntegrityViolationException ex) {
+                    // A rollup created by a concurrent transaction, merged into on the second attempt
+                    LOG.debug("Rollup created concurrently, retrying: {}", ex.getMessage());
+                    apply(batch);
+                }
+            } catch (RuntimeException ex) {
+                LOG.error("Failed to update the step rollups, they have to be rebuilt", ex);
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(StepRollupTracker.this);
+        }
+
+        private void apply(Changes batch) {
+            newTransaction.execute(status -> {
+                if (!batch.additions.isEmpty()) stepRollupRepository.addAll(batch.additions);
+                if (!batch.recomputes.isEmpty()) stepRollupRepository.recomputeAll(batch.recomputes);
+                return null;
+            });
+        }
+    }
+
+    private static class Changes {
+
+        private Map<RollupBucket, RollupDelta> additions = new HashMap<>();
+        private Set<RollupBucket> recomputes = new HashSet<>();
+
+        void add(String relationId, Date timestamp, int steps) {
+            for (Resolution resolution : Resolution.values()) {
+                additions.computeIfAbsent(new RollupBucket(relationId, resolution, resolution.truncate(timestamp)), b -> new RollupDelta()).add(steps);
+            }
+        }
+
+        void remove(String relationId, Date timestamp) {
+            for (Resolution resolution : Resolution.values()) {
+                recomputes.add(new RollupBucket(relationId, resolution, resolution.truncate(timestamp)));
+            }
+        }
+
+        boolean isEmpty() {
+            return additions.isEmpty() && recomputes.isEmpty();
+        }
+
+        /**
+         * Hands over the changes so far, recomputed buckets include the measurements added to them
+         */
+        Changes drain() {
+            Changes batch = new Changes();
+            batch.recomputes = recomputes;
+            batch.additions = additions;
+            batch.additions.keySet().removeAll(recomputes);
+
+            recomputes = new HashSet<>();
+            additions = new HashMap<>();
+            return batch;
+        }
+    }
+}
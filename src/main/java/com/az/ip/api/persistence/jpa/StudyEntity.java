@@ -1,5 +1,7 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.springframework.util.Assert;
 
 import javax.persistence.*;
@@ -10,8 +12,21 @@ import java.util.List;
 import static javax.persistence.TemporalType.DATE;
 
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NamedEntityGraph(name = StudyEntity.WITH_DOCTORS, attributeNodes = @NamedAttributeNode("doctors"))
 public class StudyEntity extends AbstractEntity {
 
+    /**
+     * Entity graph that loads the assigned doctors together with the study
+     */
+    public static final String WITH_DOCTORS = "StudyEntity.withDoctors";
+
+    /**
+     * The join table of the doctors, assignments are inserted and deleted directly by the {@link StudyRepositoryImpl}
+     */
+    public static final String DOCTORS_TABLE = "study_entity_doctors";
+
     @Column(unique=true)
     private String name;
 
@@ -23,10 +38,13 @@ public class StudyEntity extends AbstractEntity {
     @Temporal(DATE)
     private Date enddate;
 
-    @ManyToMany(cascade = {CascadeType.ALL}, fetch = FetchType.EAGER)
+    @ManyToMany(cascade = {CascadeType.ALL}, fetch = FetchType.LAZY)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @JoinTable(
+        name=DOCTORS_TABLE,
         joinColumns={@JoinColumn(name="STUDY_ID")},
-        inverseJoinColumns={@JoinColumn(name="DOCTOR_ID")}
+        inverseJoinColumns={@JoinColumn(name="DOCTOR_ID")},
+        uniqueConstraints={@UniqueConstraint(name="study_doctor_uk", columnNames={"STUDY_ID", "DOCTOR_ID"})}
     )
     private List<DoctorEntity> doctors = new ArrayList<>();
 
@@ -1,7 +1,59 @@
 package com.az.ip.api.persistence.jpa;
 
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
-public interface StudyRepository extends PagingAndSortingRepository<StudyEntity, String> {
+import javax.persistence.QueryHint;
+import java.util.List;
+
+public interface StudyRepository extends PagingAndSortingRepository<StudyEntity, String>, StudyRepositoryCustom {
+    // The lists and lookups by name are served from the query cache until a study is changed
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    Iterable<StudyEntity> findAll(Sort sort);
+
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    Page<StudyEntity> findAll(Pageable pageable);
+
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     StudyEntity findByName(String name);
+
+    @EntityGraph(StudyEntity.WITH_DOCTORS)
+    StudyEntity findWithDoctorsById(String id);
+
+    @EntityGraph(StudyEntity.WITH_DOCTORS)
+    StudyEntity findWithDoctorsByName(String name);
+
+    /**
+     * Id's of the doctors assigned to a study, ordered by id and starting after the given id
+     *
+     * @param studyId
+     * @param afterDoctorId use {@link Uuids#NIL} to start from the first doctor
+     * @param pageable limits the number of id's, null for all
+     * @return
+     */
+    @Query("select d.id from StudyEntity s join s.doctors d where s.id = ?1 and d.id > ?2 order by d.id")
+    List<String> findDoctorIdsByStudyId(String studyId, String afterDoctorId, Pageable pageable);
+
+    /**
+     * The version of a study without loading it, used by conditional requests
+     *
+     * @return null if not found
+     */
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
+    @Query("select e.version from StudyEntity e where e.id = ?1")
+    Integer findVersionById(String id);
+
+    /**
+     * The version of a study as in the database, i.e. not from the query cache, used to validate the cached responses
+     * of the study, see StudyResponseCache
+     *
+     * @return null if not found
+     */
+    @Query("select e.version from StudyEntity e where e.id = ?1")
+    Integer findUncachedVersionById(String id);
 }
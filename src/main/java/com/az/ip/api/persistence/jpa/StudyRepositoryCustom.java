@@ -0,0 +1,57 @@
+package com.az.ip.api.persistence.jpa;
+
+/**
+ * Operations on the doctors of a study that can't be expressed as Spring Data query methods
+ */
+public interface StudyRepositoryCustom {
+
+    /**
+     * Assigns a doctor to a study, unless already assigned.
+     *
+     * Inserts the row in the join table only, i.e. neither the study nor its doctors are loaded and the version of the
+     * study is left as is. Concurrent assignments to the same study don't conflict, but concurrent assignments of the
+     * same doctor may both try to insert the row, i.e. the second one fails on the unique key of the join table.
+     *
+     * @param studyId
+     * @param doctorId
+     * @return true if assigned, false if the doctor already was assigned
+     * @throws org.springframework.dao.DataIntegrityViolationException if the doctor was assigned concurrently
+     */
+    boolean assignDoctor(String studyId, String doctorId);
+
+    /**
+     * @param studyId
+     * @param doctorId
+     * @return true if the doctor is assigned to the study
+     */
+    boolean isDoctorAssigned(String studyId, String doctorId);
+
+    /**
+     * Removes a doctor from a study, if assigned.
+     *
+     * Deletes the row in the join table only, see {@link #assignDoctor(String, String)}.
+     *
+     * @param studyId
+     * @param doctorId
+     * @return true if removed, false if the doctor wasn't assigned
+     */
+    boolean removeDoctor(String studyId, String doctorId);
+
+    /**
+     * Removes a doctor from all studies, e.g. before the doctor is removed since the doctors of a study are owned by the
+     * study, i.e. not removed together with the doctor
+     *
+     * @param doctorId
+     * @return the number of studies the doctor was removed from
+     */
+    int removeDoctorFromAllStudies(String doctorId);
+
+    /**
+     * Removes all doctors from a study, e.g. before the study is removed since the removal of a study is cascaded to
+     * its doctors
+     *
+     * @param studyId
+     * @return the number of doctors removed from the study
+     */
+    int removeAllDoctorsFromStudy(String studyId);
+}
@@ -0,0 +1,95 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.hibernate.SQLQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+/**
+ * Implementation of the custom operations in {@link StudyRepositoryCustom}, picked up by Spring Data by its name.
+ *
+ * Uses native SQL on the join table. The MERGE is written in the HSQLDB dialect, i.e. the single row source
+ * "(values(0)) as d(x)" has to be replaced by e.g. "dual" on Oracle. The join table is declared as the query space of
+ * the statements, so that Hibernate evicts the cached doctors of the studies and studies of the doctors, but nothing
+ * else, see {@link InverseCollectionCacheEvictor} for changes made through the entities.
+ */
+public class StudyRepositoryImpl implements StudyRepositoryCustom {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StudyRepositoryImpl.class);
+
+    private static final String MERGE =
+        "merge into " + StudyEntity.DOCTORS_TABLE + " sd using (values(0)) as d(x)" +
+        " on sd.study_id = :studyId and sd.doctor_id = :doctorId" +
+        " when not matched then insert (study_id, doctor_id) values (:studyId, :doctorId)";
+
+    private static final String COUNT =
+        "select count(*) from " + StudyEntity.DOCTORS_TABLE + " where study_id = :studyId and doctor_id = :doctorId";
+
+    private static final String DELETE =
+        "delete from " + StudyEntity.DOCTORS_TABLE + " where study_id = :studyId and doctor_id = :doctorId";
+
+    private static final String DELETE_DOCTOR =
+        "delete from " + StudyEntity.DOCTORS_TABLE + " where doctor_id = :doctorId";
+
+    private static final String DELETE_STUDY =
+        "delete from " + StudyEntity.DOCTORS_TABLE + " where study_id = :studyId";
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Override
+    @Transactional
+    public boolean assignDoctor(String studyId, String doctorId) {
+        int count = bind(MERGE, studyId, doctorId).executeUpdate();
+        LOG.debug("Assigned doctor {} to study {}: {}", doctorId, studyId, count > 0);
+        return count > 0;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public boolean isDoctorAssigned(String studyId, String doctorId) {
+        return ((Number) bind(COUNT, studyId, doctorId).getSingleResult()).longValue() > 0;
+    }
+
+    @Override
+    @Transactional
+    public boolean removeDoctor(String studyId, String doctorId) {
+        int count = bind(DELETE, studyId, doctorId).executeUpdate();
+        LOG.debug("Removed doctor {} from study {}: {}", doctorId, studyId, count > 0);
+        return count > 0;
+    }
+
+    @Override
+    @Transactional
+    public int removeDoctorFromAllStudies(String doctorId) {
+        int count = joinTableQuery(DELETE_DOCTOR).setParameter("doctorId", Uuids.toBytes(doctorId)).executeUpdate();
+        LOG.debug("Removed doctor {} from #{} studies", doctorId, count);
+        return count;
+    }
+
+    @Override
+    @Transactional
+    public int removeAllDoctorsFromStudy(String studyId) {
+        int count = joinTableQuery(DELETE_STUDY).setParameter("studyId", Uuids.toBytes(studyId)).executeUpdate();
+        LOG.debug("Removed #{} doctors from study {}", count, studyId);
+        return count;
+    }
+
+    private Query bind(String sql, String studyId, String doctorId) {
+        return joinTableQuery(sql)
+            .setParameter("studyId",  Uuids.toBytes(studyId))
+            .setParameter("doctorId", Uuids.toBytes(doctorId));
+    }
+
+    private Query joinTableQuery(String sql) {
+        Query query = em.createNativeQuery(sql);
+
+        // Without a query space Hibernate evicts all of the second-level cache
+        query.unwrap(SQLQuery.class).addSynchronizedQuerySpace(StudyEntity.DOCTORS_TABLE);
+        return query;
+    }
+}
@@ -0,0 +1,42 @@
+package com.az.ip.api.persistence.jpa;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Time-ordered (version 7 style) UUID's: 48 bits of milliseconds since the epoch followed by 74 random bits.
+ *
+ * New id's are larger than the id's created before them, i.e. inserts go to the end of the primary key index instead of
+ * splitting pages all over it. The random bits keep the id's unguessable (OWASP A4), and the string form is the
+ * canonical UUID form, i.e. URL safe.
+ *
+ * Each thread has its own SecureRandom, to not contend on the shared SecureRandom of {@link UUID#randomUUID()}. SHA1PRNG
+ * is used since the default NativePRNG on Linux synchronizes all instances on one lock. It seeds itself on first use,
+ * i.e. without generateSeed() that may block waiting for entropy.
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(TimeOrderedIdGenerator::newRandom);
+
+    private static final long VERSION = 0x7000L;
+    private static final long VARIANT = 0x8000000000000000L;
+
+    @Override
+    public String nextId() {
+        SecureRandom random = RANDOM.get();
+
+        long mostSigBits  = (System.currentTimeMillis() << 16) | VERSION | (random.nextInt() & 0x0fffL);
+        long leastSigBits = (random.nextLong() & 0x3fffffffffffffffL) | VARIANT;
+
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+
+    private static SecureRandom newRandom() {
+        try {
+            return SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
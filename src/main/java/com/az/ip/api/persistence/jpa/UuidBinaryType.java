@@ -0,0 +1,83 @@
+package com.az.ip.api.persistence.jpa;
+
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Objects;
+
+/**
+ * Maps an id in its canonical string form to a BINARY(16) column, see {@link Uuids}.
+ *
+ * A Hibernate type rather than a JPA AttributeConverter since converters are not applied to id attributes. Foreign key
+ * and join table columns get the type of the id they refer to, i.e. they are BINARY(16) as well, and query parameters
+ * compared with an id are bound as bytes.
+ */
+public class UuidBinaryType implements UserType {
+
+    public static final String NAME = "com.az.ip.api.persistence.jpa.UuidBinaryType";
+
+    @Override
+    public int[] sqlTypes() {
+        return new int[] {Types.BINARY};
+    }
+
+    @Override
+    public Class returnedClass() {
+        return String.class;
+    }
+
+    @Override
+    public boolean equals(Object x, Object y) {
+        return Objects.equals(x, y);
+    }
+
+    @Override
+    public int hashCode(Object x) {
+        return x.hashCode();
+    }
+
+    @Override
+    public Object nullSafeGet(ResultSet rs, String[] names, SessionImplementor session, Object owner) throws SQLException {
+        byte[] bytes = rs.getBytes(names[0]);
+        return rs.wasNull() ? null : Uuids.toString(bytes);
+    }
+
+    @Override
+    public void nullSafeSet(PreparedStatement st, Object value, int index, SessionImplementor session) throws SQLException {
+        if (value == null) {
+            st.setNull(index, Types.BINARY);
+        } else {
+            st.setBytes(index, Uuids.toBytes((String) value));
+        }
+    }
+
+    @Override
+    public Object deepCopy(Object value) {
+        return value;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public Serializable disassemble(Object value) {
+        return (Serializable) value;
+    }
+
+    @Override
+    public Object assemble(Serializable cached, Object owner) {
+        return cached;
+    }
+
+    @Override
+    public Object replace(Object original, Object target, Object owner) {
+        return original;
+    }
+}
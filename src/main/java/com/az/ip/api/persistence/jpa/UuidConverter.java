@@ -0,0 +1,22 @@
+package com.az.ip.api.persistence.jpa;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+
+/**
+ * Stores a UUID attribute that is not an id, e.g. the id of the relation or study of a rollup, in its 16 byte form.
+ * Id attributes use the {@link UuidBinaryType} instead.
+ */
+@Converter
+public class UuidConverter implements AttributeConverter<String, byte[]> {
+
+    @Override
+    public byte[] convertToDatabaseColumn(String attribute) {
+        return Uuids.toBytes(attribute);
+    }
+
+    @Override
+    public String convertToEntityAttribute(byte[] dbData) {
+        return Uuids.toString(dbData);
+    }
+}
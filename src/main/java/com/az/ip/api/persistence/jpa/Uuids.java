@@ -0,0 +1,64 @@
+package com.az.ip.api.persistence.jpa;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Conversion between the canonical string form of the UUID id's, used by the entities and the APIs, and the 16 byte
+ * form stored in the database.
+ *
+ * The bytes are the most significant bits followed by the least significant bits, i.e. the same order as the hex digits
+ * of the string form. Ordering by the binary column is therefore the same as ordering by the string form, as required
+ * by the keyset paging.
+ */
+public final class Uuids {
+
+    public static final int LENGTH = 16;
+
+    /**
+     * The nil UUID, sorts first and is never the id of an entity, e.g. to start from the first id in a keyset page
+     */
+    public static final String NIL = "00000000-0000-0000-0000-000000000000";
+
+    private static final Pattern CANONICAL = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private Uuids() {}
+
+    /**
+     * @param uuid
+     * @return true if the string is the canonical form of a UUID, i.e. can be the id of an entity
+     */
+    public static boolean isValid(String uuid) {
+        return uuid != null && CANONICAL.matcher(uuid).matches();
+    }
+
+    /**
+     * @param uuid the canonical string form of a UUID
+     * @return the 16 bytes of the UUID
+     * @throws IllegalArgumentException if the string is not a UUID, ids from requests are checked before they reach
+     * the database, see {@link com.az.ip.api.services.util.IdParameters}
+     */
+    public static byte[] toBytes(String uuid) {
+        if (uuid == null) return null;
+        if (!isValid(uuid)) throw new IllegalArgumentException("Not a UUID: " + uuid);
+
+        UUID parsed = UUID.fromString(uuid);
+        return ByteBuffer.allocate(LENGTH)
+            .putLong(parsed.getMostSignificantBits())
+            .putLong(parsed.getLeastSignificantBits())
+            .array();
+    }
+
+    /**
+     * @param bytes the 16 bytes of a UUID
+     * @return the canonical string form of the UUID
+     */
+    public static String toString(byte[] bytes) {
+        if (bytes == null) return null;
+        if (bytes.length != LENGTH) throw new IllegalArgumentException("A UUID is " + LENGTH + " bytes, got " + bytes.length);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+}
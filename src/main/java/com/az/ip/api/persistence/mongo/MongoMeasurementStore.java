@@ -0,0 +1,309 @@
+package com.az.ip.api.persistence.mongo;
+
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.AbstractEntity;
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.RowHandler;
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.TimeBucket;
+import com.az.ip.api.persistence.jpa.NewMeasurement;
+import com.az.ip.api.persistence.jpa.StepAggregateRow;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.DocumentCallbackHandler;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.domain.Sort.Direction.ASC;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Stores the measurements in MongoDB, bucketed per patient-doctor-study relation and day, i.e. one document per relation
+ * and day holding the measurements of that day:
+ *
+ *   { relationId, studyId, patientId, day, measurements: [ { id, description, timestamp, steps }, ... ] }
+ *
+ * A study is read as one document per relation and day instead of one row per measurement, and an insert appends to
+ * the bucket of its day. The study and patient of the relation are kept in the buckets, since the relations are stored
+ * by JPA. The measurements of a bucket are kept in insert order and sorted by timestamp when read.
+ *
+ * Idempotency keys are kept in a collection of their own, with the relation and the key as the document id, i.e. unique.
+ *
+ * Selected with the profile {@link MeasurementStore#MONGO_PROFILE}. The step rollups are not maintained, the buckets are
+ * aggregated instead.
+ */
+@Component
+@Profile(MeasurementStore.MONGO_PROFILE)
+public class MongoMeasurementStore implements MeasurementStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MongoMeasurementStore.class);
+
+    static final String COLLECTION = "measurementBuckets";
+    static final String IDEMPOTENCY_KEYS = "measurementIdempotencyKeys";
+
+    static final String RELATION_ID  = "relationId";
+    static final String STUDY_ID     = "studyId";
+    static final String PATIENT_ID   = "patientId";
+    static final String DAY          = "day";
+    static final String MEASUREMENTS = "measurements";
+
+    static final String ID          = "id";
+    static final String DESCRIPTION = "description";
+    static final String TIMESTAMP   = "timestamp";
+    static final String STEPS       = "steps";
+
+    static final String MEASUREMENT_ID = "measurementId";
+
+    @Inject
+    private MongoTemplate mongoTemplate;
+
+    @PostConstruct
+    public void ensureIndexes() {
+        IndexOperations indexes = mongoTemplate.indexOps(COLLECTION);
+
+        // The bucket of an insert
+        indexes.ensureIndex(new Index().on(RELATION_ID, ASC).on(DAY, ASC).unique());
+        // The buckets of a study, or of a patient in a study, in time order
+        indexes.ensureIndex(new Index().on(STUDY_ID, ASC).on(DAY, ASC));
+        indexes.ensureIndex(new Index().on(STUDY_ID, ASC).on(PATIENT_ID, ASC).on(DAY, ASC));
+        // The bucket of a measurement to delete
+        indexes.ensureIndex(new Index().on(MEASUREMENTS + "." + ID, ASC));
+    }
+
+    @Override
+    public String insert(NewMeasurement measurement) {
+        return insertAll(Collections.singletonList(measurement)).get(0);
+    }
+
+    @Override
+    public List<String> insertAll(List<NewMeasurement> measurements) {
+
+        List<String> ids = new ArrayList<>(measurements.size());
+
+        // The new measurements per bucket, to append them with one update per bucket
+        Map<List<Object>, List<DBObject>> buckets = new LinkedHashMap<>();
+        Map<List<Object>, NewMeasurement> firstInBucket = new HashMap<>();
+
+        for (NewMeasurement m : measurements) {
+            String id = AbstractEntity.nextId();
+            ids.add(id);
+
+            // Claimed before any measurement is appended, fails with a DuplicateKeyException if already claimed
+            if (m.getIdempotencyKey() != null) {
+                mongoTemplate.insert(new BasicDBObject("_id", idempotencyKeyId(m.getRelationId(), m.getIdempotencyKey())).append(MEASUREMENT_ID, id), IDEMPOTENCY_KEYS);
+            }
+
+            List<Object> bucket = Arrays.asList(m.getRelationId(), TimeBucket.DAY.truncate(m.getTimestamp()));
+            buckets.computeIfAbsent(bucket, key -> new ArrayList<>()).add(new BasicDBObject(ID, id)
+                .append(DESCRIPTION, m.getDescription())
+                .append(TIMESTAMP,   m.getTimestamp())
+                .append(STEPS,       m.getSteps()));
+            firstInBucket.putIfAbsent(bucket, m);
+        }
+
+        buckets.forEach((bucket, entries) -> append(firstInBucket.get(bucket), (Date)bucket.get(1), entries));
+
+        LOG.debug("Inserted #{} measurements into #{} buckets", ids.size(), buckets.size());
+        return ids;
+    }
+
+    @Override
+    public String findIdByIdempotencyKey(String relationId, String idempotencyKey) {
+        DBObject key = mongoTemplate.findById(idempotencyKeyId(relationId, idempotencyKey), DBObject.class, IDEMPOTENCY_KEYS);
+        return (key == null) ? null : (String)key.get(MEASUREMENT_ID);
+    }
+
+    @Override
+    public void find(String studyId, String patientId, RowHandler handler) {
+        Query query = query(where(STUDY_ID).is(studyId));
+        if (patientId != null) query.addCriteria(where(PATIENT_ID).is(patientId));
+
+        scroll(query, handler);
+    }
+
+    @Override
+    public void scrollByStudyId(String studyId, RowHandler handler) {
+        scroll(query(where(STUDY_ID).is(studyId)), handler);
+    }
+
+    @Override
+    public void delete(String measurementId) {
+        Query bucketOfMeasurement = query(where(MEASUREMENTS + "." + ID).is(measurementId));
+        Update pull = new Update().pull(MEASUREMENTS, new BasicDBObject(ID, measurementId));
+
+        DBObject bucket = mongoTemplate.findAndModify(bucketOfMeasurement, pull, FindAndModifyOptions.options().returnNew(true), DBObject.class, COLLECTION);
+
+        // Remove the bucket if it became empty, unless a measurement was added to it meanwhile
+        if (bucket != null && measurements(bucket).isEmpty()) {
+            mongoTemplate.remove(query(where("_id").is(bucket.get("_id")).and(MEASUREMENTS).size(0)), COLLECTION);
+        }
+    }
+
+    @Override
+    public int deleteChunkByRelationId(String relationId, int limit, boolean studyRemoved) {
+
+        // Whole days, until the limit is reached
+        Query days = query(where(RELATION_ID).is(relationId)).with(new Sort(ASC, DAY));
+        days.fields().include(MEASUREMENTS + "." + ID);
+
+        List<Object> bucketIds = new ArrayList<>();
+        int count = 0;
+        for (DBObject bucket : mongoTemplate.find(days.limit(limit), DBObject.class, COLLECTION)) {
+            bucketIds.add(bucket.get("_id"));
+            count += measurements(bucket).size();
+            if (count >= limit) break;
+        }
+
+        // The idempotency keys go with the last chunk
+        if (bucketIds.isEmpty()) {
+            mongoTemplate.remove(query(where("_id").regex("^" + relationId + "/")), IDEMPOTENCY_KEYS);
+            return 0;
+        }
+
+        mongoTemplate.remove(query(where("_id").in(bucketIds)), COLLECTION);
+        LOG.debug("Removed #{} measurements in #{} buckets of relation {}", count, bucketIds.size(), relationId);
+        return count;
+    }
+
+    @Override
+    public List<StepAggregateRow> aggregateSteps(String studyId, String patientId, TimeBucket bucket, Date from, Date to) {
+
+        Query query = query(where(STUDY_ID).is(studyId));
+        if (patientId != null) query.addCriteria(where(PATIENT_ID).is(patientId));
+
+        // The days that may hold measurements in the range, the measurements are then filtered by their timestamps
+        if (from != null || to != null) {
+            Criteria day = where(DAY);
+            if (from != null) day.gte(TimeBucket.DAY.truncate(from));
+            if (to != null)   day.lt(to);
+            query.addCriteria(day);
+        }
+
+        SortedMap<Date, Aggregate> aggregates = new TreeMap<>();
+        mongoTemplate.executeQuery(query, COLLECTION, document -> {
+            for (DBObject m : measurements(document)) {
+                Date timestamp = (Date)m.get(TIMESTAMP);
+                if ((from != null && timestamp.before(from)) || (to != null && !timestamp.before(to))) continue;
+
+                aggregates.computeIfAbsent(bucket.truncate(timestamp), key -> new Aggregate()).add((Integer)m.get(STEPS));
+            }
+        });
+
+        return aggregates.entrySet().stream()
+            .map(e -> e.getValue().toRow(e.getKey()))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public boolean maintainsStepRollups() {
+        return false;
+    }
+
+    /**
+     * Appends measurements to a bucket, creating the bucket if it doesn't exist
+     */
+    private void append(NewMeasurement first, Date day, List<DBObject> entries) {
+        Query bucket = query(where(RELATION_ID).is(first.getRelationId()).and(DAY).is(day));
+        Update update = new Update()
+            .setOnInsert(STUDY_ID,   first.getStudyId())
+            .setOnInsert(PATIENT_ID, first.getPatientId())
+            .push(MEASUREMENTS).each(entries.toArray());
+
+        try {
+            mongoTemplate.upsert(bucket, update, COLLECTION);
+        } catch (DuplicateKeyException ex) {
+            // A concurrent insert created the bucket first, append to it instead
+            mongoTemplate.upsert(bucket, update, COLLECTION);
+        }
+    }
+
+    private String idempotencyKeyId(String relationId, String idempotencyKey) {
+        return relationId + '/' + idempotencyKey;
+    }
+
+    /**
+     * Hands over the measurements of the buckets in timestamp order, collecting one day at the time, i.e. the memory
+     * used is independent of the number of days
+     */
+    private void scroll(Query query, RowHandler handler) {
+        DayCollector collector = new DayCollector(handler);
+        mongoTemplate.executeQuery(query.with(new Sort(ASC, DAY)), COLLECTION, collector);
+        collector.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<DBObject> measurements(DBObject bucket) {
+        Object measurements = bucket.get(MEASUREMENTS);
+        return (measurements == null) ? Collections.emptyList() : (List<DBObject>)measurements;
+    }
+
+    /**
+     * Collects the measurements of the buckets of one day, and hands them over sorted by timestamp when the next day starts
+     */
+    private static class DayCollector implements DocumentCallbackHandler {
+
+        private final RowHandler handler;
+        private final List<DBObject> dayMeasurements = new ArrayList<>();
+        private Date day;
+
+        DayCollector(RowHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void processDocument(DBObject bucket) {
+            Date bucketDay = (Date)bucket.get(DAY);
+            if (!bucketDay.equals(day)) {
+                flush();
+                day = bucketDay;
+            }
+            dayMeasurements.addAll(measurements(bucket));
+        }
+
+        void flush() {
+            dayMeasurements.sort(Comparator.comparing(m -> (Date)m.get(TIMESTAMP)));
+            for (DBObject m : dayMeasurements) {
+                // The measurements are not versioned in the buckets
+                handler.handle((String)m.get(ID), 0, (String)m.get(DESCRIPTION), (Date)m.get(TIMESTAMP), (Integer)m.get(STEPS));
+            }
+            dayMeasurements.clear();
+        }
+    }
+
+    /**
+     * The steps of the measurements in one time bucket
+     */
+    private static class Aggregate {
+
+        private long count;
+        private long sum;
+        private int min = Integer.MAX_VALUE;
+        private int max = Integer.MIN_VALUE;
+
+        void add(int steps) {
+            count++;
+            sum += steps;
+            min = Math.min(min, steps);
+            max = Math.max(max, steps);
+        }
+
+        StepAggregateRow toRow(Date bucket) {
+            return new StepAggregateRow(bucket, count, sum, (double)sum / count, min, max);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.az.ip.api.persistence.routing;
+
+/**
+ * Sends the read-only transactions begun by the current thread to the primary, until closed. Used for reads that fill
+ * a cache, since a value read from a lagging replica would otherwise stay in the cache after the write that
+ * invalidated it, for the lifetime of the entry rather than the replication lag.
+ *
+ *   try (PrimaryReads ignored = PrimaryReads.begin()) {
+ *       value = loader.get();
+ *   }
+ *
+ * Only affects transactions that get their connection within the scope, and has no effect without replicas, see
+ * {@link ReplicaRoutingDataSource}.
+ */
+public final class PrimaryReads implements AutoCloseable {
+
+    private static final ThreadLocal<PrimaryReads> CURRENT = new ThreadLocal<>();
+
+    private final PrimaryReads outer;
+
+    private PrimaryReads(PrimaryReads outer) {
+        this.outer = outer;
+    }
+
+    public static PrimaryReads begin() {
+        PrimaryReads scope = new PrimaryReads(CURRENT.get());
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * @return true if the current thread reads from the primary
+     */
+    public static boolean isActive() {
+        return CURRENT.get() != null;
+    }
+
+    @Override
+    public void close() {
+        if (outer == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(outer);
+        }
+    }
+}
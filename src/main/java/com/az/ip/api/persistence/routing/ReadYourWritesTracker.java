@@ -0,0 +1,98 @@
+package com.az.ip.api.persistence.routing;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Keeps track of when the client of a request last wrote to the primary, so that the reads of a client that just wrote
+ * are sent to the primary until the replicas have caught up, i.e. the client reads its own writes.
+ *
+ * The time until which the client reads from the primary is kept by the client itself, in a cookie set on the response
+ * of each request that wrote to the primary. It is therefore honored by every instance behind a load balancer and not
+ * shared by the clients behind one address, and nothing is kept per client in the server. The request of the current
+ * thread is set by the {@link ReplicaRoutingConfig}. Work outside of a request, e.g. at startup, is never sticky.
+ */
+public class ReadYourWritesTracker {
+
+    public static final String COOKIE = "read-primary-until";
+
+    private static class CurrentRequest {
+        private final HttpServletResponse response;
+        private long primaryUntil;
+        private boolean cookieSet = false;
+
+        CurrentRequest(HttpServletResponse response, long primaryUntil) {
+            this.response = response;
+            this.primaryUntil = primaryUntil;
+        }
+    }
+
+    private final ThreadLocal<CurrentRequest> currentRequest = new ThreadLocal<>();
+    private final long maxLagMillis;
+
+    /**
+     * @param maxLagMillis the replication lag tolerated, i.e. how long the reads of a client stick to the primary after a write
+     */
+    public ReadYourWritesTracker(long maxLagMillis) {
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    public void setCurrentRequest(HttpServletRequest request, HttpServletResponse response) {
+        currentRequest.set(new CurrentRequest(response, primaryUntil(request)));
+    }
+
+    public void clearCurrentRequest() {
+        currentRequest.remove();
+    }
+
+    /**
+     * Records a write to the primary by the client of the current thread, if any
+     */
+    public void recordWrite() {
+        CurrentRequest request = currentRequest.get();
+        if (request == null) return;
+
+        request.primaryUntil = System.currentTimeMillis() + maxLagMillis;
+
+        // Once per request, a response that is already written has no client to read its writes anyway
+        if (!request.cookieSet && !request.response.isCommitted()) {
+            Cookie cookie = new Cookie(COOKIE, Long.toString(request.primaryUntil));
+            cookie.setPath("/");
+            cookie.setMaxAge((int) Math.max(1, (maxLagMillis + 999) / 1000));
+            cookie.setHttpOnly(true);
+            request.response.addCookie(cookie);
+            request.cookieSet = true;
+        }
+    }
+
+    /**
+     * @return true if the client of the current thread wrote to the primary within the tolerated replication lag
+     */
+    public boolean mustReadFromPrimary() {
+        CurrentRequest request = currentRequest.get();
+        return request != null && System.currentTimeMillis() < request.primaryUntil;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    /**
+     * @return the time of the cookie, at most the tolerated lag from now, or 0 if the request has no valid cookie
+     */
+    private long primaryUntil(HttpServletRequest request) {
+        if (request.getCookies() == null) return 0;
+
+        for (Cookie cookie : request.getCookies()) {
+            if (COOKIE.equals(cookie.getName())) {
+                try {
+                    return Math.min(Long.parseLong(cookie.getValue()), System.currentTimeMillis() + maxLagMillis);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
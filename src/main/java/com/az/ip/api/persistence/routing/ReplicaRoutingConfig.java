@@ -0,0 +1,126 @@
+package com.az.ip.api.persistence.routing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.bind.PropertySourcesPropertyValues;
+import org.springframework.boot.bind.RelaxedDataBinder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.inject.Inject;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes read-only transactions, i.e. the queries of the service layer, to read replicas and all other work to the
+ * primary given by the ordinary spring.datasource properties.
+ *
+ * Enabled by giving the replicas as a comma separated list of JDBC urls, e.g. two embedded databases locally:
+ *
+ *   spring.datasource.url: jdbc:hsqldb:mem:primary
+ *   datasource.replicas.urls: jdbc:hsqldb:mem:replica
+ *
+ * A client reads from the primary for datasource.replicas.max-lag-millis after each of its writes, the replication lag
+ * tolerated, see {@link ReadYourWritesTracker}. The primary and the replicas are pools configured by the same
+ * spring.datasource properties as the single data source without replicas, e.g. spring.datasource.max-active.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "datasource.replicas", name = "urls")
+public class ReplicaRoutingConfig {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaRoutingConfig.class);
+
+    @Value("${datasource.replicas.urls}")
+    private String[] urls;
+
+    @Value("${datasource.replicas.username:}")
+    private String username;
+
+    @Value("${datasource.replicas.password:}")
+    private String password;
+
+    @Value("${datasource.replicas.max-lag-millis:1000}")
+    private long maxLagMillis;
+
+    @Inject
+    private ConfigurableEnvironment environment;
+
+    @Bean
+    public ReadYourWritesTracker readYourWritesTracker() {
+        return new ReadYourWritesTracker(maxLagMillis);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(DataSourceProperties properties) {
+
+        DataSource primary = build(properties, properties.getUrl(), properties.getUsername(), properties.getPassword());
+
+        // Replicas use the credentials of the primary unless they have their own
+        List<DataSource> replicas = new ArrayList<>();
+        for (String url : urls) {
+            replicas.add(build(properties, url.trim(),
+                username.isEmpty() ? properties.getUsername() : username,
+                username.isEmpty() ? properties.getPassword() : password));
+        }
+        LOG.info("Routing read-only transactions to #{} replicas, max replication lag: {} ms", replicas.size(), maxLagMillis);
+
+        ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, replicas, readYourWritesTracker());
+        routing.afterPropertiesSet();
+
+        return new LazyConnectionDataSourceProxy(routing);
+    }
+
+    /**
+     * Sets the request of the current thread, i.e. the client that reads its own writes
+     */
+    @Bean
+    public FilterRegistrationBean readYourWritesFilter() {
+        ReadYourWritesTracker tracker = readYourWritesTracker();
+
+        FilterRegistrationBean registration = new FilterRegistrationBean(new OncePerRequestFilter() {
+            @Override
+            protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+                tracker.setCurrentRequest(request, response);
+                try {
+                    chain.doFilter(request, response);
+                } finally {
+                    tracker.clearCurrentRequest();
+                }
+            }
+        });
+        registration.setOrder(Ordered.LOWEST_PRECEDENCE);
+        return registration;
+    }
+
+    private DataSource build(DataSourceProperties properties, String url, String username, String password) {
+        DataSource dataSource = DataSourceBuilder.create(properties.getClassLoader())
+            .driverClassName(properties.getDriverClassName())
+            .url(url)
+            .username(username)
+            .password(password)
+            .build();
+
+        // The pool settings, as bound by Spring Boot to its own data source, but not the url and credentials
+        RelaxedDataBinder binder = new RelaxedDataBinder(dataSource, "spring.datasource");
+        binder.setDisallowedFields("url", "username", "password", "driverClassName");
+        binder.bind(new PropertySourcesPropertyValues(environment.getPropertySources()));
+        return dataSource;
+    }
+}
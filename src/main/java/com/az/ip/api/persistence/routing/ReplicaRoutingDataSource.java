@@ -0,0 +1,113 @@
+package com.az.ip.api.persistence.routing;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends read-only transactions to the replicas, round-robin, and everything else to the primary.
+ *
+ * Reads of a client that recently wrote go to the primary as well, see {@link ReadYourWritesTracker}, and so do the
+ * reads that fill a cache, see {@link PrimaryReads}. A transaction on a replica reads from the second-level and query
+ * caches but doesn't put anything in them, i.e. the caches are only filled from the primary, and a replica that lags
+ * behind a write can't put back what the write evicted.
+ *
+ * The connection has to be looked up when the transaction is known to be read-only, i.e. after it has begun. Wrap this
+ * data source in a LazyConnectionDataSourceProxy, which gets the connection on the first statement.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    static final String PRIMARY = "primary";
+    static final String REPLICA = "replica-";
+
+    private final ReadYourWritesTracker tracker;
+    private final int replicaCount;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, ReadYourWritesTracker tracker) {
+        this.tracker = tracker;
+        this.replicaCount = replicas.size();
+
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (int i = 0; i < replicas.size(); i++) {
+            targets.put(REPLICA + i, replicas.get(i));
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            recordWriteOnCommit();
+            return PRIMARY;
+        }
+
+        if (replicaCount == 0 || tracker.mustReadFromPrimary() || PrimaryReads.isActive()) {
+            return PRIMARY;
+        }
+
+        String key = REPLICA + Math.floorMod(nextReplica.getAndIncrement(), replicaCount);
+        LOG.trace("Read-only transaction routed to {}", key);
+        readCachesWithoutPut();
+        return key;
+    }
+
+    /**
+     * Sets the cache mode of the session of the transaction to GET until the transaction completes
+     */
+    private void readCachesWithoutPut() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) return;
+
+        for (Object resource : TransactionSynchronizationManager.getResourceMap().values()) {
+            if (resource instanceof EntityManagerHolder) {
+                Session session = ((EntityManagerHolder) resource).getEntityManager().unwrap(Session.class);
+                CacheMode cacheMode = session.getCacheMode();
+                session.setCacheMode(CacheMode.GET);
+
+                // The session outlives the transaction if it is opened per request, i.e. open in view
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        session.setCacheMode(cacheMode);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Makes the reads of the client stick to the primary once the transaction has committed, once per transaction
+     */
+    private void recordWriteOnCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive() || TransactionSynchronizationManager.hasResource(tracker)) return;
+
+        TransactionSynchronizationManager.bindResource(tracker, Boolean.TRUE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                tracker.recordWrite();
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(tracker);
+            }
+        });
+    }
+}
@@ -0,0 +1,82 @@
+package com.az.ip.api.raml;
+
+import com.az.ip.api.services.core.BinaryFormats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Negotiates the CBOR and Smile representations of the RAML API, see BinaryFormats.
+ *
+ * The resources are generated from the RAML and declare application/json only. A binary Content-Type or a preferred
+ * binary Accept header is replaced by application/json before the request is matched to a resource. The body of the
+ * request is then read, and the entity of the response written, by the Jackson provider of the original media type.
+ * Streamed responses are left as JSON.
+ */
+@PreMatching
+@Priority(Priorities.HEADER_DECORATOR)
+public class BinaryFormatFilter implements ContainerRequestFilter, ContainerResponseFilter, ReaderInterceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BinaryFormatFilter.class);
+
+    private static final String CONTENT_TYPE_PROPERTY = BinaryFormatFilter.class.getName() + ".contentType";
+    private static final String ACCEPT_PROPERTY = BinaryFormatFilter.class.getName() + ".accept";
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+
+        MediaType contentType = request.getMediaType();
+        if (contentType != null && isBinary(contentType)) {
+            request.setProperty(CONTENT_TYPE_PROPERTY, contentType);
+            request.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+        }
+
+        // Sorted by quality, i.e. the first one is the preferred one
+        List<MediaType> acceptable = request.getAcceptableMediaTypes();
+        if (!acceptable.isEmpty() && isBinary(acceptable.get(0))) {
+            LOG.debug("Respond with {} instead of JSON", acceptable.get(0));
+            request.setProperty(ACCEPT_PROPERTY, withoutParameters(acceptable.get(0)));
+            request.getHeaders().putSingle(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON);
+        }
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+        MediaType contentType = (MediaType) context.getProperty(CONTENT_TYPE_PROPERTY);
+        if (contentType != null) context.setMediaType(contentType);
+
+        return context.proceed();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+        MediaType accept = (MediaType) request.getProperty(ACCEPT_PROPERTY);
+
+        if (accept != null && response.hasEntity() && !(response.getEntity() instanceof StreamingOutput) &&
+            MediaType.APPLICATION_JSON_TYPE.isCompatible(response.getMediaType())) {
+            response.getHeaders().putSingle(HttpHeaders.CONTENT_TYPE, accept);
+        }
+    }
+
+    private static boolean isBinary(MediaType mediaType) {
+        return BinaryFormats.isBinary(mediaType.getType() + "/" + mediaType.getSubtype());
+    }
+
+    private static MediaType withoutParameters(MediaType mediaType) {
+        return new MediaType(mediaType.getType(), mediaType.getSubtype());
+    }
+}
@@ -0,0 +1,41 @@
+package com.az.ip.api.raml;
+
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * The progress of removals running in the background, see {@link CascadingDeleter}.
+ *
+ * Not declared in the RAML, since the jobs aren't part of the domain model.
+ */
+@Path("deletionJobs")
+public class DeletionJobsResourceImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeletionJobsResourceImpl.class);
+
+    @Inject
+    private CascadingDeleter cascadingDeleter;
+
+    @GET
+    @Path("{jobId}")
+    @Produces("application/json")
+    public Response getDeletionJobsByJobId(@PathParam("jobId") String jobId) {
+        DeletionJob job = cascadingDeleter.findJob(jobId);
+
+        if (job == null) {
+            LOG.debug("Job with id: {} was not found", jobId);
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        return Response.ok(job).build();
+    }
+}
@@ -5,18 +5,24 @@ import com.az.ip.api.gen.model.Error;
 import com.az.ip.api.gen.model.Id;
 import com.az.ip.api.gen.resource.DoctorsResource;
 import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import com.az.ip.api.services.core.DoctorService;
+import com.az.ip.api.services.core.ETags;
+import com.az.ip.api.services.core.KeysetPage;
+import com.az.ip.api.services.core.NaturalKeyCaches;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 
@@ -32,10 +38,19 @@ public class DoctorsResourceImpl implements DoctorsResource {
     private static final String DEFAULT_ORDER_FIELD = "username";
 
     @Inject
-    private DoctorRepository repository;
+    private DoctorService service;
 
     @Inject
-    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+    private NaturalKeyCaches naturalKeyCaches;
+
+    @Inject
+    private CascadingDeleter cascadingDeleter;
+
+    @Context
+    private HttpServletRequest servletRequest;
+
+    @Context
+    private HttpServletResponse servletResponse;
 
     /**
      * Search doctors
@@ -51,6 +66,8 @@ public class DoctorsResourceImpl implements DoctorsResource {
      *     Skip over a number of pages by specifying the first page for the query, specify 0 for the start page e.g. 0
      * @param size
      *     Specify the size of each page, i.e. the number of elements per page, specify -1 to get all elements (i.e. disable paging) e.g. 20
+     * @param after
+     *     Cursor returned in the X-Next-Cursor header of the previous page, replaces orderBy, order and page
      * @return
      */
     @Override
@@ -61,13 +78,28 @@ public class DoctorsResourceImpl implements DoctorsResource {
         @QueryParam("orderBy")                    String orderBy,
         @QueryParam("order") @DefaultValue("asc") Order order,
         @QueryParam("page")  @DefaultValue("0")   long page,
-        @QueryParam("size")  @DefaultValue("10")  long size) {
+        @QueryParam("size")  @DefaultValue("10")  long size,
+        @QueryParam("after")                      String after) {
 
         // Find by name?
         if (username != null) {
             LOG.debug("findByName, name: {}", username);
-            DoctorEntity entity = repository.findByUsername(username);
-            return GetDoctorsResponse.withJsonOK((entity == null) ? new ArrayList<>() : singletonList(toApiEntity(entity)));
+            Doctor doctor = naturalKeyCaches.doctors().get(username, () -> service.findByUsername(username));
+            return toListResponse((doctor == null) ? new ArrayList<>() : singletonList(doctor));
+        }
+
+        // Seek to the page after the cursor?
+        if (after != null) {
+            LOG.debug("find, after: {}, size: {}", after, size);
+            KeysetCursor cursor = decodeCursor(after);
+
+            if (cursor == null) {
+                String errMsg = "Cursor [" + after + "] is invalid";
+                LOG.error("getDoctors request failed: " + errMsg);
+                return GetDoctorsResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(errMsg));
+            }
+
+            return toListResponse(withNextCursorHeader(service.findAfter(cursor, size)));
         }
 
         LOG.debug("find, orderBy: {}, order: {}, page: {}, size: {}", orderBy, order, page, size);
@@ -82,7 +114,7 @@ public class DoctorsResourceImpl implements DoctorsResource {
             return GetDoctorsResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(errMsg));
         }
 
-        return GetDoctorsResponse.withJsonOK(findAll(orderBy, order, page, size));
+        return toListResponse(withNextCursorHeader(service.findAll(orderBy, order == Order.asc, page, size)));
     }
 
     /**
@@ -103,8 +135,7 @@ public class DoctorsResourceImpl implements DoctorsResource {
     @Override
     public PostDoctorsResponse postDoctors(String accessToken, Doctor entity) {
         try {
-            DoctorEntity newDoctor = repository.save(toNewDbEntity(entity));
-            return PostDoctorsResponse.withJsonOK(toApiEntity(newDoctor));
+            return PostDoctorsResponse.withJsonOK(service.create(entity));
 
         } catch (RuntimeException ex) {
             // TODO: Add checks for common erros such as duplicate detectien and improve error message!
@@ -123,7 +154,15 @@ public class DoctorsResourceImpl implements DoctorsResource {
     @Override
     public GetDoctorsByDoctorIdResponse getDoctorsByDoctorId(String doctorId) {
         LOG.debug("Get by id: {}", doctorId);
-        DoctorEntity entity = repository.findOne(doctorId);
+
+        // Compare the version with the If-None-Match header before loading the entity
+        String ifNoneMatch = servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && isNotModified(ETags.of(doctorId, service.findVersion(doctorId)))) {
+            LOG.debug("Entity with id: {} is not modified", doctorId);
+            return GetDoctorsByDoctorIdResponse.withNotModified();
+        }
+
+        Doctor entity = service.findOne(doctorId);
 
         if (entity == null) {
             LOG.debug("Entity with id: {} was not found", doctorId);
@@ -131,7 +170,8 @@ public class DoctorsResourceImpl implements DoctorsResource {
 
         } else {
             LOG.debug("Found entity with id: {} and username: {}", entity.getId(), entity.getUsername());
-            return GetDoctorsByDoctorIdResponse.withJsonOK(toApiEntity(entity));
+            servletResponse.setHeader(HttpHeaders.ETAG, ETags.of(entity.getId(), entity.getVersion()));
+            return GetDoctorsByDoctorIdResponse.withJsonOK(entity);
         }
     }
 
@@ -158,8 +198,17 @@ public class DoctorsResourceImpl implements DoctorsResource {
 
         // TODO #2: Do we need to move the id over from the uri-parameter?
         entity.setId(doctorId);
+
+        // A stale If-Match header fails the update before anything is written
+        String ifMatch = servletRequest.getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null && ETags.isPreconditionFailed(ifMatch, ETags.of(doctorId, service.findVersion(doctorId)))) {
+            String errMsg = "Entity with id: " + doctorId + " does not match If-Match: " + ifMatch;
+            LOG.debug(errMsg);
+            return PutDoctorsByDoctorIdResponse.withJsonPreconditionFailed(new Error().withCode(-1).withMessage(errMsg));
+        }
+
         LOG.debug("Update entity: {}, {}, {}", entity.getId(), entity.getVersion(), entity.getUsername());
-        repository.save(toExistingDbEntity(entity));
+        service.update(entity);
 
         return PutDoctorsByDoctorIdResponse.withOK();
     }
@@ -176,8 +225,16 @@ public class DoctorsResourceImpl implements DoctorsResource {
     @Override
     public DeleteDoctorsByDoctorIdResponse deleteDoctorsByDoctorId(String doctorId, String accessToken) {
 
+        // Not declared in the RAML, to keep the generated interface
+        if (CascadingDeleter.isAsyncPreferred(servletRequest.getHeader(CascadingDeleter.PREFER_HEADER))) {
+            DeletionJob job = cascadingDeleter.submit(CascadingDeleter.Target.DOCTOR, doctorId);
+            servletResponse.setHeader(HttpHeaders.LOCATION, "/raml-api" + CascadingDeleter.JOBS_PATH + "/" + job.getId());
+            servletResponse.setHeader(CascadingDeleter.PREFERENCE_APPLIED_HEADER, CascadingDeleter.RESPOND_ASYNC);
+            return DeleteDoctorsByDoctorIdResponse.withAccepted();
+        }
+
         // If not found just return ok to behave idempotent...
-        repository.delete(doctorId);
+        cascadingDeleter.delete(CascadingDeleter.Target.DOCTOR, doctorId);
 
         return DeleteDoctorsByDoctorIdResponse.withOK();
     }
@@ -186,14 +243,15 @@ public class DoctorsResourceImpl implements DoctorsResource {
      * Return study id's for studies that this doctor is assigned to
      *
      * @param doctorId
+     * @param limit
+     * @param after
      * @return
      * @throws Exception
      */
     @Override
-    public GetDoctorsByDoctorIdAssignedInStudiesResponse getDoctorsByDoctorIdAssignedInStudies(String doctorId) {
-        DoctorEntity entity = repository.findOne(doctorId);
-        List<Id> studyIds = entity.getAssigendInStudies().stream().map(s -> new Id().withId(s.getId())).collect(Collectors.toList());
-        return GetDoctorsByDoctorIdAssignedInStudiesResponse.withJsonOK(studyIds);
+    public GetDoctorsByDoctorIdAssignedInStudiesResponse getDoctorsByDoctorIdAssignedInStudies(String doctorId, long limit, String after) {
+        List<Id> ids = withNextCursorHeader(service.findStudyIds(doctorId, limit, after));
+        return isNotModified(ETags.ofIds(ids)) ? GetDoctorsByDoctorIdAssignedInStudiesResponse.withNotModified() : GetDoctorsByDoctorIdAssignedInStudiesResponse.withJsonOK(ids);
     }
 
     /**
@@ -211,14 +269,8 @@ public class DoctorsResourceImpl implements DoctorsResource {
     public PostDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsResponse postDoctorsByDoctorIdAssignedInStudiesByStudyIdPatients(String studyId, String doctorId, Id entity) {
         String patientId = entity.getId();
 
-        // FIXME. No optimal way to create the mapping entity...
-        patientDoctorStudyRepository.save(
-            new PatientDoctorStudyEntity(
-                new PatientEntity(patientId, 0, ".", null, ".", ".", null, null),
-                new DoctorEntity(doctorId, 0, ".", ".", "."),
-                new StudyEntity(studyId, 0, ".", null, null, null)
-            )
-        );
+        LOG.debug("Assign patient with id {} by doctor with id {} to study with id: {}", patientId, doctorId, studyId);
+        service.assignPatient(patientId, doctorId, studyId);
 
         return PostDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsResponse.withOK();
     }
@@ -228,21 +280,17 @@ public class DoctorsResourceImpl implements DoctorsResource {
      *
      * @param studyId
      * @param doctorId
+     * @param limit
+     * @param after
      *
      * @return
      * @throws Exception
      */
     @Override
-    public GetDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsResponse getDoctorsByDoctorIdAssignedInStudiesByStudyIdPatients(String studyId, String doctorId) {
-
-        // FIXME. No optimal way to find mapping entities...
-        List<PatientDoctorStudyEntity> relationList = patientDoctorStudyRepository.findByStudyAndDoctor(
-            new StudyEntity(studyId, 0, ".", null, null, null),
-            new DoctorEntity(doctorId, 0, ".", ".", ".")
-        );
+    public GetDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsResponse getDoctorsByDoctorIdAssignedInStudiesByStudyIdPatients(String studyId, String doctorId, long limit, String after) {
 
-        List<Id> patientIds = relationList.stream().map(r -> new Id().withId(r.getPatient().getId())).collect(Collectors.toList());
-        return GetDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsResponse.withJsonOK(patientIds);
+        List<Id> ids = withNextCursorHeader(service.findPatientIds(doctorId, studyId, limit, after));
+        return isNotModified(ETags.ofIds(ids)) ? GetDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsResponse.withNotModified() : GetDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsResponse.withJsonOK(ids);
     }
 
     /**
@@ -250,57 +298,41 @@ public class DoctorsResourceImpl implements DoctorsResource {
      */
     @Override
     public DeleteDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsByPatientIdResponse deleteDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsByPatientId(String patientId, String studyId, String doctorId) {
-
-        // FIXME. No optimal way to delete a patient from a study...
-
-        List<PatientDoctorStudyEntity> relationList = patientDoctorStudyRepository.findByPatientAndDoctorAndStudy(
-            new PatientEntity(patientId, 0, ".", null, ".", ".", null, null),
-            new DoctorEntity(doctorId, 0, ".", ".", "."),
-            new StudyEntity(studyId, 0, ".", null, null, null)
-        );
-
-        if (relationList.size() > 1) throw new RuntimeException("Inconsistenct detected, expecte 0 or 1 bug found: " + relationList.size());
-
-        if (relationList.size() == 1) {
-            patientDoctorStudyRepository.delete(relationList.get(0));
-        }
+        // If not found just return ok to behave idempotent...
+        LOG.debug("Remove patient with id {} assigned by doctor with id {} from study with id: {}", patientId, doctorId, studyId);
+        service.removePatient(patientId, doctorId, studyId);
 
         return DeleteDoctorsByDoctorIdAssignedInStudiesByStudyIdPatientsByPatientIdResponse.withOK();
     }
 
-    private List<Doctor> findAll(String orderBy, Order order, long page, long size) {
-
-        Sort.Direction sortOrder = (order == Order.asc) ? Sort.Direction.ASC : Sort.Direction.DESC;
-        Sort sort = new Sort(new Sort.Order(sortOrder, orderBy));
-
-        Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
-
-        // TODO. Would be nice to be able to use Java 8 streams here!
-        // See https://spring.io/blog/2015/03/26/what-s-new-in-spring-data-fowler
-        List<Doctor> elements = new ArrayList<>();
-        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(e -> elements.add(toApiEntity(e)));
-
-        return elements;
+    private GetDoctorsResponse toListResponse(List<Doctor> doctors) {
+        return isNotModified(ETags.ofEntities(doctors, Doctor::getId, Doctor::getVersion)) ? GetDoctorsResponse.withNotModified() : GetDoctorsResponse.withJsonOK(doctors);
     }
 
-    private Doctor toApiEntity(DoctorEntity p) {
-        return new Doctor()
-            .withId       (p.getId())
-            .withVersion  (p.getVersion())
-            .withUsername (p.getUsername())
-            .withFirstname(p.getFirstname())
-            .withLastname (p.getLastname());
+    /**
+     * Sets the ETag of the response
+     *
+     * @return true if the ETag matches the If-None-Match header of the request
+     */
+    private boolean isNotModified(String etag) {
+        if (etag != null) servletResponse.setHeader(HttpHeaders.ETAG, etag);
+        return ETags.isNotModified(servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH), etag);
     }
 
-    private DoctorEntity toNewDbEntity(Doctor p) {
-        return new DoctorEntity(
-            p.getUsername(), p.getFirstname(), p.getLastname()
-        );
+    private <T> List<T> withNextCursorHeader(KeysetPage<T> page) {
+        if (page.getNextCursor() != null) servletResponse.setHeader(KeysetCursor.NEXT_CURSOR_HEADER, page.getNextCursor());
+        return page.getElements();
     }
 
-    private DoctorEntity toExistingDbEntity(Doctor p) {
-        return new DoctorEntity(
-            p.getId(), p.getVersion(), p.getUsername(), p.getFirstname(), p.getLastname()
-        );
+    /**
+     * Returns null if the cursor is malformed or refers to an order field that isn't allowed
+     */
+    private KeysetCursor decodeCursor(String after) {
+        try {
+            KeysetCursor cursor = KeysetCursor.decode(after);
+            return ORDER_FIELDS.contains(cursor.getOrderBy()) ? cursor : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,49 @@
+package com.az.ip.api.raml;
+
+import com.az.ip.api.gen.model.Error;
+import com.az.ip.api.services.util.IdParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers requests with a malformed id in the path with 404, and a malformed after id with 422, before they reach the
+ * resources of the RAML API, see IdParameters.
+ */
+@Priority(Priorities.USER)
+public class IdParameterFilter implements ContainerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdParameterFilter.class);
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+        UriInfo uriInfo = request.getUriInfo();
+
+        Map<String, String> pathParameters = new HashMap<>();
+        uriInfo.getPathParameters().forEach((name, values) -> pathParameters.put(name, values.get(0)));
+
+        String malformedId = IdParameters.findMalformedId(pathParameters);
+        if (malformedId != null) {
+            LOG.debug("Entity with id: {} was not found, not a valid id", malformedId);
+            request.abortWith(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+
+        String after = uriInfo.getQueryParameters().getFirst("after");
+        if (IdParameters.isMalformedAfterId(pathParameters, after)) {
+            String errMsg = "Id [" + after + "] of the after parameter is invalid";
+            LOG.debug(errMsg);
+            request.abortWith(Response.status(422).type(MediaType.APPLICATION_JSON_TYPE).entity(new Error().withCode(-1).withMessage(errMsg)).build());
+        }
+    }
+}
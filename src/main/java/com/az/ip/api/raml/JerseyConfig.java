@@ -1,5 +1,11 @@
 package com.az.ip.api.raml;
 
+import com.az.ip.api.gen.json.ModelSerializersModule;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.jaxrs.cbor.JacksonCBORProvider;
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
 import org.glassfish.jersey.filter.LoggingFilter;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.slf4j.Logger;
@@ -20,9 +26,23 @@ public class JerseyConfig extends ResourceConfig {
             register(new LoggingFilter(java.util.logging.Logger.getLogger(jaxRsLoggerName), jaxRsLogger.isDebugEnabled()));
         }
 
+        register(ObjectMapperResolver.class);
+
+        // CBOR and Smile, as alternatives to JSON
+        register(new JacksonCBORProvider(new ObjectMapper(new CBORFactory()).registerModule(new ModelSerializersModule())));
+        register(new JacksonSmileProvider(new ObjectMapper(new SmileFactory()).registerModule(new ModelSerializersModule())));
+        register(BinaryFormatFilter.class);
+
+        // Only UUID's are id's, see IdParameters
+        register(IdParameterFilter.class);
+
+        // Page sizes of 0 and negative pages are rejected, see PagingParameters
+        register(PagingParameterFilter.class);
+
         register(StudiesResourceImpl.class);
         register(DoctorsResourceImpl.class);
         register(PatientsResourceImpl.class);
+        register(DeletionJobsResourceImpl.class);
     }
 
 }
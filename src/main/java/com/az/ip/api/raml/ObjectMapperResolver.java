@@ -0,0 +1,22 @@
+package com.az.ip.api.raml;
+
+import com.az.ip.api.gen.json.ModelSerializersModule;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.ContextResolver;
+
+/**
+ * The object mapper of the JSON provider, with the serializers of the models generated by the build
+ */
+@Produces(MediaType.APPLICATION_JSON)
+public class ObjectMapperResolver implements ContextResolver<ObjectMapper> {
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new ModelSerializersModule());
+
+    @Override
+    public ObjectMapper getContext(Class<?> type) {
+        return mapper;
+    }
+}
@@ -0,0 +1,38 @@
+package com.az.ip.api.raml;
+
+import com.az.ip.api.gen.model.Error;
+import com.az.ip.api.services.util.PagingParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Answers requests with an invalid page, size or limit with 400, before they reach the resources of the RAML API, see
+ * PagingParameters.
+ */
+@Priority(Priorities.USER)
+public class PagingParameterFilter implements ContainerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PagingParameterFilter.class);
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+        Map<String, String> queryParameters = new HashMap<>();
+        request.getUriInfo().getQueryParameters().forEach((name, values) -> queryParameters.put(name, values.get(0)));
+
+        String errMsg = PagingParameters.findInvalidParameter(queryParameters);
+        if (errMsg != null) {
+            LOG.debug(errMsg);
+            request.abortWith(Response.status(Response.Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON_TYPE).entity(new Error().withCode(-1).withMessage(errMsg)).build());
+        }
+    }
+}
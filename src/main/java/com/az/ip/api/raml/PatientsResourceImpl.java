@@ -1,23 +1,36 @@
 package com.az.ip.api.raml;
 
+import com.az.ip.api.gen.model.BulkMeasurement;
 import com.az.ip.api.gen.model.Error;
 import com.az.ip.api.gen.model.Id;
 import com.az.ip.api.gen.model.Measurement;
 import com.az.ip.api.gen.model.Patient;
 import com.az.ip.api.gen.resource.PatientsResource;
 import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import com.az.ip.api.services.core.ETags;
+import com.az.ip.api.services.core.KeysetPage;
+import com.az.ip.api.services.core.MeasurementAggregator;
+import com.az.ip.api.services.core.MeasurementExporter;
+import com.az.ip.api.services.core.MeasurementIdempotency;
+import com.az.ip.api.services.core.MeasurementIngester;
+import com.az.ip.api.services.core.MeasurementWriteBehind;
+import com.az.ip.api.services.core.NaturalKeyCaches;
+import com.az.ip.api.services.core.PatientService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 
@@ -33,16 +46,31 @@ public class PatientsResourceImpl implements PatientsResource {
     private static final String DEFAULT_ORDER_FIELD = "username";
 
     @Inject
-    private PatientRepository repository;
+    private PatientService service;
 
     @Inject
-    private StudyRepository studyRepository;
+    private NaturalKeyCaches naturalKeyCaches;
 
     @Inject
-    private MeasurementRepository measurementRepository;
+    private CascadingDeleter cascadingDeleter;
 
     @Inject
-    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+    private MeasurementIngester measurementIngester;
+
+    @Inject
+    private MeasurementAggregator measurementAggregator;
+
+    @Inject
+    private MeasurementWriteBehind measurementWriteBehind;
+
+    @Inject
+    private MeasurementIdempotency measurementIdempotency;
+
+    @Context
+    private HttpServletRequest servletRequest;
+
+    @Context
+    private HttpServletResponse servletResponse;
 
     /**
      * Search patients
@@ -58,6 +86,8 @@ public class PatientsResourceImpl implements PatientsResource {
      *     Skip over a number of pages by specifying the first page for the query, specify 0 for the start page e.g. 0
      * @param size
      *     Specify the size of each page, i.e. the number of elements per page, specify -1 to get all elements (i.e. disable paging) e.g. 20
+     * @param after
+     *     Cursor returned in the X-Next-Cursor header of the previous page, replaces orderBy, order and page
      * @return
      */
     @Override
@@ -68,13 +98,28 @@ public class PatientsResourceImpl implements PatientsResource {
         @QueryParam("orderBy")                    String orderBy,
         @QueryParam("order") @DefaultValue("asc") Order order,
         @QueryParam("page")  @DefaultValue("0")   long page,
-        @QueryParam("size")  @DefaultValue("10")  long size) {
+        @QueryParam("size")  @DefaultValue("10")  long size,
+        @QueryParam("after")                      String after) {
 
         // Find by name?
         if (username != null) {
             LOG.debug("findByName, name: {}", username);
-            PatientEntity entity = repository.findByUsername(username);
-            return GetPatientsResponse.withJsonOK((entity == null) ? new ArrayList<>() : singletonList(toApiEntity(entity)));
+            Patient patient = naturalKeyCaches.patients().get(username, () -> service.findByUsername(username));
+            return toListResponse((patient == null) ? new ArrayList<>() : singletonList(patient));
+        }
+
+        // Seek to the page after the cursor?
+        if (after != null) {
+            LOG.debug("find, after: {}, size: {}", after, size);
+            KeysetCursor cursor = decodeCursor(after);
+
+            if (cursor == null) {
+                String errMsg = "Cursor [" + after + "] is invalid";
+                LOG.error("getPatients request failed: " + errMsg);
+                return GetPatientsResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(errMsg));
+            }
+
+            return toListResponse(withNextCursorHeader(service.findAfter(cursor, size)));
         }
 
         LOG.debug("find, orderBy: {}, order: {}, page: {}, size: {}", orderBy, order, page, size);
@@ -89,7 +134,7 @@ public class PatientsResourceImpl implements PatientsResource {
             return GetPatientsResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(errMsg));
         }
 
-        return GetPatientsResponse.withJsonOK(findAll(orderBy, order, page, size));
+        return toListResponse(withNextCursorHeader(service.findAll(orderBy, order == Order.asc, page, size)));
     }
 
     /**
@@ -111,8 +156,7 @@ public class PatientsResourceImpl implements PatientsResource {
     @Override
     public PostPatientsResponse postPatients(String accessToken, Patient entity) throws Exception {
         try {
-            PatientEntity newPatient = repository.save(toNewDbEntity(entity));
-            return PostPatientsResponse.withJsonOK(toApiEntity(newPatient));
+            return PostPatientsResponse.withJsonOK(service.create(entity));
 
         } catch (RuntimeException ex) {
             // TODO: Add checks for common erros such as duplicate detectien and improve error message!
@@ -124,7 +168,15 @@ public class PatientsResourceImpl implements PatientsResource {
     @Override
     public GetPatientsByPatientIdResponse getPatientsByPatientId(String patientId) throws Exception {
         LOG.debug("Get by id: {}", patientId);
-        PatientEntity entity = repository.findOne(patientId);
+
+        // Compare the version with the If-None-Match header before loading the entity
+        String ifNoneMatch = servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && isNotModified(ETags.of(patientId, service.findVersion(patientId)))) {
+            LOG.debug("Entity with id: {} is not modified", patientId);
+            return GetPatientsByPatientIdResponse.withNotModified();
+        }
+
+        Patient entity = service.findOne(patientId);
 
         if (entity == null) {
             LOG.debug("Entity with id: {} was not found", patientId);
@@ -132,7 +184,8 @@ public class PatientsResourceImpl implements PatientsResource {
 
         } else {
             LOG.debug("Found entity with id: {} and username: {}", entity.getId(), entity.getUsername());
-            return GetPatientsByPatientIdResponse.withJsonOK(toApiEntity(entity));
+            servletResponse.setHeader(HttpHeaders.ETAG, ETags.of(entity.getId(), entity.getVersion()));
+            return GetPatientsByPatientIdResponse.withJsonOK(entity);
         }
     }
 
@@ -144,8 +197,17 @@ public class PatientsResourceImpl implements PatientsResource {
         // TODO #2: Do we need to move the id over from the uri-parameter?
         entity.setId(patientId);
 
+
+        // A stale If-Match header fails the update before anything is written
+        String ifMatch = servletRequest.getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null && ETags.isPreconditionFailed(ifMatch, ETags.of(patientId, service.findVersion(patientId)))) {
+            String errMsg = "Entity with id: " + patientId + " does not match If-Match: " + ifMatch;
+            LOG.debug(errMsg);
+            return PutPatientsByPatientIdResponse.withJsonPreconditionFailed(new Error().withCode(-1).withMessage(errMsg));
+        }
+
         LOG.debug("Update entity: {}, {}, {}", entity.getId(), entity.getVersion(), entity.getUsername());
-        repository.save(toExistingDbEntity(entity));
+        service.update(entity);
 
         return PutPatientsByPatientIdResponse.withOK();
     }
@@ -153,8 +215,16 @@ public class PatientsResourceImpl implements PatientsResource {
     @Override
     public DeletePatientsByPatientIdResponse deletePatientsByPatientId(String patientId, String accessToken) throws Exception {
 
+        // Not declared in the RAML, to keep the generated interface
+        if (CascadingDeleter.isAsyncPreferred(servletRequest.getHeader(CascadingDeleter.PREFER_HEADER))) {
+            DeletionJob job = cascadingDeleter.submit(CascadingDeleter.Target.PATIENT, patientId);
+            servletResponse.setHeader(HttpHeaders.LOCATION, "/raml-api" + CascadingDeleter.JOBS_PATH + "/" + job.getId());
+            servletResponse.setHeader(CascadingDeleter.PREFERENCE_APPLIED_HEADER, CascadingDeleter.RESPOND_ASYNC);
+            return DeletePatientsByPatientIdResponse.withAccepted();
+        }
+
         // If not found just return ok to behave idempotent...
-        repository.delete(patientId);
+        cascadingDeleter.delete(CascadingDeleter.Target.PATIENT, patientId);
 
         return DeletePatientsByPatientIdResponse.withOK();
     }
@@ -163,20 +233,51 @@ public class PatientsResourceImpl implements PatientsResource {
      * Return the id's of the studies that the patient is part of
      *
      * @param patientId
+     * @param limit
+     * @param after
      * @return
      * @throws Exception
      */
     @Override
-    public GetPatientsByPatientIdStudiesResponse getPatientsByPatientIdStudies(String patientId) throws Exception {
+    public GetPatientsByPatientIdStudiesResponse getPatientsByPatientIdStudies(String patientId, long limit, String after) throws Exception {
+
+        List<Id> ids = withNextCursorHeader(service.findStudyIds(patientId, limit, after));
+        return isNotModified(ETags.ofIds(ids)) ? GetPatientsByPatientIdStudiesResponse.withNotModified() : GetPatientsByPatientIdStudiesResponse.withJsonOK(ids);
+    }
+
+    /**
+     * Add measurements for one or many patients and studies
+     *
+     * @param entity
+     * @return the result of each measurement, in the same order as in the request
+     * @throws Exception
+     */
+    @Override
+    public PostPatientsMeasurementsResponse postPatientsMeasurements(List<BulkMeasurement> entity) throws Exception {
+        LOG.debug("Add #{} measurements", entity.size());
+        return PostPatientsMeasurementsResponse.withJsonOK(measurementIngester.ingest(entity));
+    }
 
-        List<Id> studyIds = patientDoctorStudyRepository.findByPatientId(patientId).stream()
-            .map(s -> new Id().withId(s.getStudy().getId()))
-            .collect(Collectors.toList());
-        return GetPatientsByPatientIdStudiesResponse.withJsonOK(studyIds);
+    /**
+     * Add measurements for one or many patients and studies given as newline delimited JSON, one measurement per line
+     *
+     * @param ndjson
+     * @return the result of each measurement, in the same order as in the request
+     * @throws Exception
+     */
+    @POST
+    @Path("measurements")
+    @Consumes(MeasurementExporter.NDJSON)
+    @Produces("application/json")
+    public PostPatientsMeasurementsResponse postPatientsMeasurementsAsNdjson(InputStream ndjson) throws Exception {
+        return PostPatientsMeasurementsResponse.withJsonOK(measurementIngester.ingest(ndjson));
     }
 
     /**
-     * Store a new measurement for the patient
+     * Store a new measurement for the patient, or queue it for a write-behind insert if enabled.
+     *
+     * A measurement with an Idempotency-Key header is always stored right away, and stored only once per key. The id
+     * of the stored measurement is returned in the X-Measurement-Id header, also for a replay.
      *
      * @param studyId
      *
@@ -189,7 +290,27 @@ public class PatientsResourceImpl implements PatientsResource {
     @Override
     public PostPatientsByPatientIdStudiesByStudyIdMeasurementsResponse postPatientsByPatientIdStudiesByStudyIdMeasurements(String studyId, String patientId, Measurement measurement) throws Exception {
 
-        measurementRepository.save(toNewDbMeasurementEntity(findByPatientIdAndStudyId(patientId, studyId), measurement));
+        // Not declared in the RAML, to keep the generated interface
+        String idempotencyKey = servletRequest.getHeader(MeasurementIdempotency.IDEMPOTENCY_KEY_HEADER);
+
+        // A replay has to return the stored measurement, i.e. measurements with a key are not queued
+        if (measurementWriteBehind.isEnabled() && idempotencyKey == null) {
+            if (!measurementWriteBehind.offer(patientId, studyId, measurement)) {
+                String errMsg = "The measurement queue is full, retry later";
+                LOG.warn("postPatientsByPatientIdStudiesByStudyIdMeasurements request rejected: " + errMsg);
+                return PostPatientsByPatientIdStudiesByStudyIdMeasurementsResponse.withJsonServiceUnavailable(new Error().withCode(-1).withMessage(errMsg));
+            }
+            return PostPatientsByPatientIdStudiesByStudyIdMeasurementsResponse.withAccepted();
+        }
+
+        try {
+            MeasurementIdempotency.Result result = measurementIdempotency.addMeasurement(patientId, studyId, measurement, idempotencyKey);
+            servletResponse.setHeader(MeasurementIdempotency.MEASUREMENT_ID_HEADER, result.getMeasurementId());
+
+        } catch (IllegalArgumentException ex) {
+            LOG.error("postPatientsByPatientIdStudiesByStudyIdMeasurements request failed: " + ex.getMessage());
+            return PostPatientsByPatientIdStudiesByStudyIdMeasurementsResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(ex.getMessage()));
+        }
 
         // TODO: Shouldn't we return the new measurement entity here???
         return PostPatientsByPatientIdStudiesByStudyIdMeasurementsResponse.withOK();
@@ -207,12 +328,31 @@ public class PatientsResourceImpl implements PatientsResource {
     @Override
     public GetPatientsByPatientIdStudiesByStudyIdMeasurementsResponse getPatientsByPatientIdStudiesByStudyIdMeasurements(String studyId, String patientId) throws Exception {
 
-        List<Measurement> measurements = findByPatientIdAndStudyId(patientId, studyId).getMeasurements().stream()
-            .map(m -> toApiMeasurementEntity(m))
-            .collect(Collectors.toList());
+        List<Measurement> measurements = service.findMeasurements(patientId, studyId);
         return GetPatientsByPatientIdStudiesByStudyIdMeasurementsResponse.withJsonOK(measurements);
     }
 
+    /**
+     * Return the steps of a patient's measurements in a study aggregated per time bucket
+     *
+     * @param studyId
+     * @param patientId
+     * @param bucket
+     * @param from
+     * @param to
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public GetPatientsByPatientIdStudiesByStudyIdMeasurementsAggregateResponse getPatientsByPatientIdStudiesByStudyIdMeasurementsAggregate(String studyId, String patientId, Bucket bucket, String from, String to) throws Exception {
+        try {
+            return GetPatientsByPatientIdStudiesByStudyIdMeasurementsAggregateResponse.withJsonOK(measurementAggregator.aggregate(studyId, patientId, bucket.name(), from, to));
+        } catch (IllegalArgumentException ex) {
+            LOG.error("getPatientsByPatientIdStudiesByStudyIdMeasurementsAggregate request failed: " + ex.getMessage());
+            return GetPatientsByPatientIdStudiesByStudyIdMeasurementsAggregateResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(ex.getMessage()));
+        }
+    }
+
     /**
      * Deletes a measurement
      *
@@ -236,71 +376,39 @@ public class PatientsResourceImpl implements PatientsResource {
 //        measurementRepository.delete(measurement);
 
         // Simplified version that relies on that the measurementId is unique...
-        measurementRepository.delete(measurementId);
+        service.deleteMeasurement(measurementId);
 
         return DeletePatientsByPatientIdStudiesByStudyIdMeasurementsByMeasurementIdResponse.withOK();
     }
 
-    private PatientDoctorStudyEntity findByPatientIdAndStudyId(String patientId, String studyId) {
-        // FIXME. What to do if there are >1 study assigned to one and the same patient? (indicates inconsistent data...)
-        List<PatientDoctorStudyEntity> list = patientDoctorStudyRepository.findByPatientIdAndStudyId(patientId, studyId);
-        return (list.size() == 0) ? null : list.get(0);
-    }
-
-
-    private List<Patient> findAll(String orderBy, Order order, long page, long size) {
-
-        Sort.Direction sortOrder = (order == Order.asc) ? Sort.Direction.ASC : Sort.Direction.DESC;
-        Sort sort = new Sort(new Sort.Order(sortOrder, orderBy));
-
-        Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
-
-        // TODO. Would be nice to be able to use Java 8 streams here!
-        // See https://spring.io/blog/2015/03/26/what-s-new-in-spring-data-fowler
-        List<Patient> elements = new ArrayList<>();
-        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(e -> elements.add(toApiEntity(e)));
-
-        return elements;
-    }
-
-    private Patient toApiEntity(PatientEntity p) {
-        return new Patient()
-            .withId       (p.getId())
-            .withVersion  (p.getVersion())
-            .withUsername (p.getUsername())
-            .withPatientID(p.getPatientID())
-            .withFirstname(p.getFirstname())
-            .withLastname (p.getLastname())
-            .withWeight   (p.getWeight())
-            .withHeight   (p.getHeight());
-    }
-
-    private PatientEntity toNewDbEntity(Patient p) {
-        return new PatientEntity(
-            p.getUsername(), p.getPatientID(), p.getFirstname(), p.getLastname(), p.getWeight(), p.getHeight()
-        );
+    private GetPatientsResponse toListResponse(List<Patient> patients) {
+        return isNotModified(ETags.ofEntities(patients, Patient::getId, Patient::getVersion)) ? GetPatientsResponse.withNotModified() : GetPatientsResponse.withJsonOK(patients);
     }
 
-    private PatientEntity toExistingDbEntity(Patient p) {
-        return new PatientEntity(
-            p.getId(), p.getVersion(), p.getUsername(), p.getPatientID(), p.getFirstname(), p.getLastname(), p.getWeight(), p.getHeight()
-        );
+    /**
+     * Sets the ETag of the response
+     *
+     * @return true if the ETag matches the If-None-Match header of the request
+     */
+    private boolean isNotModified(String etag) {
+        if (etag != null) servletResponse.setHeader(HttpHeaders.ETAG, etag);
+        return ETags.isNotModified(servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH), etag);
     }
 
-    private Measurement toApiMeasurementEntity(MeasurementEntity m) {
-        return new Measurement()
-            .withId         (m.getId())
-            .withVersion    (m.getVersion())
-            .withDescription(m.getDescription())
-            .withTimestamp  (m.getTimestamp())
-            .withSteps      (m.getSteps());
+    private <T> List<T> withNextCursorHeader(KeysetPage<T> page) {
+        if (page.getNextCursor() != null) servletResponse.setHeader(KeysetCursor.NEXT_CURSOR_HEADER, page.getNextCursor());
+        return page.getElements();
     }
 
-    private MeasurementEntity toNewDbMeasurementEntity(PatientDoctorStudyEntity p, Measurement m) {
-        return new MeasurementEntity(
-            p, m.getDescription(), m.getTimestamp(), m.getSteps()
-        );
+    /**
+     * Returns null if the cursor is malformed or refers to an order field that isn't allowed
+     */
+    private KeysetCursor decodeCursor(String after) {
+        try {
+            KeysetCursor cursor = KeysetCursor.decode(after);
+            return ORDER_FIELDS.contains(cursor.getOrderBy()) ? cursor : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
     }
-
-
 }
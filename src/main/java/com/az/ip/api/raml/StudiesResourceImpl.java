@@ -6,18 +6,28 @@ import com.az.ip.api.gen.model.Measurement;
 import com.az.ip.api.gen.model.Study;
 import com.az.ip.api.gen.resource.StudiesResource;
 import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import com.az.ip.api.services.core.ETags;
+import com.az.ip.api.services.core.KeysetPage;
+import com.az.ip.api.services.core.MeasurementAggregator;
+import com.az.ip.api.services.core.MeasurementExporter;
+import com.az.ip.api.services.core.NaturalKeyCaches;
+import com.az.ip.api.services.core.StudyService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 
@@ -33,13 +43,25 @@ public class StudiesResourceImpl implements StudiesResource {
     private static final String DEFAULT_ORDER_FIELD = "name";
 
     @Inject
-    private StudyRepository repository;
+    private StudyService service;
 
     @Inject
-    private DoctorRepository doctorRepository;
+    private NaturalKeyCaches naturalKeyCaches;
 
     @Inject
-    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+    private CascadingDeleter cascadingDeleter;
+
+    @Inject
+    private MeasurementExporter measurementExporter;
+
+    @Inject
+    private MeasurementAggregator measurementAggregator;
+
+    @Context
+    private HttpServletRequest servletRequest;
+
+    @Context
+    private HttpServletResponse servletResponse;
 
     @Override
     @GET
@@ -51,13 +73,28 @@ public class StudiesResourceImpl implements StudiesResource {
             @QueryParam("orderBy")                    String orderBy,
             @QueryParam("order") @DefaultValue("asc") Order order,
             @QueryParam("page")  @DefaultValue("0")   long page,
-            @QueryParam("size")  @DefaultValue("20")  long size) {
+            @QueryParam("size")  @DefaultValue("20")  long size,
+            @QueryParam("after")                      String after) {
 
         // Find by name?
         if (name != null) {
             LOG.debug("findByName, name: {}", name);
-            StudyEntity entity = repository.findByName(name);
-            return GetStudiesResponse.withJsonOK((entity == null) ? new ArrayList<>() : singletonList(toApiEntity(entity)));
+            Study study = naturalKeyCaches.studies().get(name, () -> service.findByName(name));
+            return toListResponse((study == null) ? new ArrayList<>() : singletonList(study));
+        }
+
+        // Seek to the page after the cursor?
+        if (after != null) {
+            LOG.debug("find, after: {}, size: {}", after, size);
+            KeysetCursor cursor = decodeCursor(after);
+
+            if (cursor == null) {
+                String errMsg = "Cursor [" + after + "] is invalid";
+                LOG.error("getStudies request failed: " + errMsg);
+                return GetStudiesResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(errMsg));
+            }
+
+            return toListResponse(withNextCursorHeader(service.findAfter(cursor, size)));
         }
 
         // Ordinary find...
@@ -74,14 +111,13 @@ public class StudiesResourceImpl implements StudiesResource {
             return GetStudiesResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(errMsg));
         }
 
-        return GetStudiesResponse.withJsonOK(findAll(orderBy, order, page, size));
+        return toListResponse(withNextCursorHeader(service.findAll(orderBy, order == Order.asc, page, size)));
     }
 
     @Override
     public PostStudiesResponse postStudies(String accessToken, Study entity) throws Exception {
         try {
-            StudyEntity newStudy = repository.save(toNewDbEntity(entity));
-            return PostStudiesResponse.withJsonOK(toApiEntity(newStudy));
+            return PostStudiesResponse.withJsonOK(service.create(entity));
         } catch (RuntimeException ex) {
             // TODO: Add checks for common erros such as duplicate detectien and improve error message!
             LOG.error("postPatient request failed, exception: [{}], cause: []{}", ex, ex.getCause());
@@ -92,7 +128,15 @@ public class StudiesResourceImpl implements StudiesResource {
     @Override
     public GetStudiesByStudyIdResponse getStudiesByStudyId(String studyId) throws Exception {
         LOG.debug("Get by id: {}", studyId);
-        StudyEntity entity = repository.findOne(studyId);
+
+        // Compare the version with the If-None-Match header before loading the entity
+        String ifNoneMatch = servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && isNotModified(ETags.of(studyId, service.findVersion(studyId)))) {
+            LOG.debug("Entity with id: {} is not modified", studyId);
+            return GetStudiesByStudyIdResponse.withNotModified();
+        }
+
+        Study entity = service.findOne(studyId);
 
         if (entity == null) {
             LOG.debug("Entity with id: {} was not found", studyId);
@@ -100,7 +144,8 @@ public class StudiesResourceImpl implements StudiesResource {
 
         } else {
             LOG.debug("Found entity with id: {} and name: {}", entity.getId(), entity.getName());
-            return GetStudiesByStudyIdResponse.withJsonOK(toApiEntity(entity));
+            servletResponse.setHeader(HttpHeaders.ETAG, ETags.of(entity.getId(), entity.getVersion()));
+            return GetStudiesByStudyIdResponse.withJsonOK(entity);
         }
     }
 
@@ -112,8 +157,16 @@ public class StudiesResourceImpl implements StudiesResource {
         // TODO #2: Do we need to move the id over from the uri-parameter?
         entity.setId(studyId);
 
+        // A stale If-Match header fails the update before anything is written
+        String ifMatch = servletRequest.getHeader(HttpHeaders.IF_MATCH);
+        if (ifMatch != null && ETags.isPreconditionFailed(ifMatch, ETags.of(studyId, service.findVersion(studyId)))) {
+            String errMsg = "Entity with id: " + studyId + " does not match If-Match: " + ifMatch;
+            LOG.debug(errMsg);
+            return PutStudiesByStudyIdResponse.withJsonPreconditionFailed(new Error().withCode(-1).withMessage(errMsg));
+        }
+
         LOG.debug("Update entity: {}, {}, {}", entity.getId(), entity.getVersion(), entity.getName());
-        repository.save(toExistingDbEntity(entity));
+        service.update(entity);
 
         return PutStudiesByStudyIdResponse.withOK();
     }
@@ -121,8 +174,16 @@ public class StudiesResourceImpl implements StudiesResource {
     @Override
     public DeleteStudiesByStudyIdResponse deleteStudiesByStudyId(String studyId, String accessToken) throws Exception {
 
+        // Not declared in the RAML, to keep the generated interface
+        if (CascadingDeleter.isAsyncPreferred(servletRequest.getHeader(CascadingDeleter.PREFER_HEADER))) {
+            DeletionJob job = cascadingDeleter.submit(CascadingDeleter.Target.STUDY, studyId);
+            servletResponse.setHeader(HttpHeaders.LOCATION, "/raml-api" + CascadingDeleter.JOBS_PATH + "/" + job.getId());
+            servletResponse.setHeader(CascadingDeleter.PREFERENCE_APPLIED_HEADER, CascadingDeleter.RESPOND_ASYNC);
+            return DeleteStudiesByStudyIdResponse.withAccepted();
+        }
+
         // If not found just return ok to behave idempotent...
-        repository.delete(studyId);
+        cascadingDeleter.delete(CascadingDeleter.Target.STUDY, studyId);
 
         return DeleteStudiesByStudyIdResponse.withOK();
     }
@@ -130,14 +191,60 @@ public class StudiesResourceImpl implements StudiesResource {
     @Override
     public GetStudiesByStudyIdMeasurementsResponse getStudiesByStudyIdMeasurements(String studyId) throws Exception {
 
-        StudyEntity study = repository.findOne(studyId);
-        List<Measurement> list = patientDoctorStudyRepository.findByStudy(study).stream()
-            .flatMap(m -> m.getMeasurements().stream())
-            .map(m -> toApiMeasurementEntity(m))
-            .collect(Collectors.toList());
+        List<Measurement> list = service.findMeasurements(studyId);
         return GetStudiesByStudyIdMeasurementsResponse.withJsonOK(list);
     }
 
+    /**
+     * Get the steps of all measurements in the study aggregated per time bucket
+     *
+     * @param studyId
+     * @param bucket
+     * @param from
+     * @param to
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public GetStudiesByStudyIdMeasurementsAggregateResponse getStudiesByStudyIdMeasurementsAggregate(String studyId, Bucket bucket, String from, String to) throws Exception {
+        try {
+            return GetStudiesByStudyIdMeasurementsAggregateResponse.withJsonOK(measurementAggregator.aggregate(studyId, null, bucket.name(), from, to));
+        } catch (IllegalArgumentException ex) {
+            LOG.error("getStudiesByStudyIdMeasurementsAggregate request failed: " + ex.getMessage());
+            return GetStudiesByStudyIdMeasurementsAggregateResponse.withJsonUnprocessableEntity(new Error().withCode(-1).withMessage(ex.getMessage()));
+        }
+    }
+
+    /**
+     * Streams all measurements in the study as newline delimited JSON, selected by the Accept header
+     *
+     * @param studyId
+     * @return
+     */
+    @GET
+    @Path("{studyId}/measurements")
+    @Produces(MeasurementExporter.NDJSON)
+    public Response getStudiesByStudyIdMeasurementsAsNdjson(@PathParam("studyId") String studyId) {
+        StreamingOutput body = out -> measurementExporter.export(studyId, MeasurementExporter.Format.NDJSON, out);
+        return Response.ok(body).build();
+    }
+
+    /**
+     * Streams all measurements in the study as a chunked JSON array.
+     *
+     * Has its own path since the generated response of the ordinary measurements resource only accepts a list.
+     *
+     * @param studyId
+     * @return
+     */
+    @GET
+    @Path("{studyId}/measurements/stream")
+    @Produces("application/json")
+    public Response getStudiesByStudyIdMeasurementsStream(@PathParam("studyId") String studyId) {
+        StreamingOutput body = out -> measurementExporter.export(studyId, MeasurementExporter.Format.JSON_ARRAY, out);
+        return Response.ok(body).build();
+    }
+
     /**
      * Add a doctor to this study
      *
@@ -151,11 +258,7 @@ public class StudiesResourceImpl implements StudiesResource {
     public PostStudiesByStudyIdAssignedDoctorsResponse postStudiesByStudyIdAssignedDoctors(String studyId, Id entity) throws Exception {
         String doctorId = entity.getId();
 
-        StudyEntity study = repository.findOne(studyId);
-        DoctorEntity doctor = doctorRepository.findOne(doctorId);
-        study.getAssigendDoctors().add(doctor);
-
-        repository.save(study);
+        service.assignDoctor(studyId, doctorId);
 
         return PostStudiesByStudyIdAssignedDoctorsResponse.withOK();
     }
@@ -164,82 +267,53 @@ public class StudiesResourceImpl implements StudiesResource {
      * Get doctors assigned to this study
      *
      * @param studyId
+     * @param limit
+     * @param after
      * @return
      * @throws Exception
      */
     @Override
-    public GetStudiesByStudyIdAssignedDoctorsResponse getStudiesByStudyIdAssignedDoctors(String studyId) throws Exception {
-        StudyEntity entity = repository.findOne(studyId);
-        List<Id> doctorIds = entity.getAssigendDoctors().stream().map(d -> new Id().withId(d.getId())).collect(Collectors.toList());
-        return GetStudiesByStudyIdAssignedDoctorsResponse.withJsonOK(doctorIds);
+    public GetStudiesByStudyIdAssignedDoctorsResponse getStudiesByStudyIdAssignedDoctors(String studyId, long limit, String after) throws Exception {
+        List<Id> ids = withNextCursorHeader(service.findDoctorIds(studyId, limit, after));
+        return isNotModified(ETags.ofIds(ids)) ? GetStudiesByStudyIdAssignedDoctorsResponse.withNotModified() : GetStudiesByStudyIdAssignedDoctorsResponse.withJsonOK(ids);
     }
 
     @Override
     public DeleteStudiesByStudyIdAssignedDoctorsByDoctorIdResponse deleteStudiesByStudyIdAssignedDoctorsByDoctorId(String doctorId, String studyId) throws Exception {
 
-        StudyEntity study = repository.findOne(studyId);
-        DoctorEntity doctor = doctorRepository.findOne(doctorId);
-        study.getAssigendDoctors().remove(doctor);
-
-        repository.save(study);
+        service.removeDoctor(studyId, doctorId);
 
         return DeleteStudiesByStudyIdAssignedDoctorsByDoctorIdResponse.withOK();
     }
 
-    // TODO: Extract Common code!
-    private List<Study> findAll(String orderBy, Order order, long page, long size) {
-
-        Sort.Direction sortOrder = (order == Order.asc) ? Sort.Direction.ASC : Sort.Direction.DESC;
-        Sort sort = new Sort(new Sort.Order(sortOrder, orderBy));
-
-        Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
-
-        // TODO. Would be nice to be able to use Java 8 streams here!
-        // See https://spring.io/blog/2015/03/26/what-s-new-in-spring-data-fowler
-        List<Study> elements = new ArrayList<>();
-        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(e -> elements.add(toApiEntity(e)));
-
-        return elements;
-    }
-
-    private Study toApiEntity(StudyEntity entity) {
-        return new Study()
-            .withId(entity.getId())
-            .withVersion(entity.getVersion())
-            .withName(entity.getName())
-            .withDescription(entity.getDescription())
-            .withStartdate(entity.getStartdate())
-            .withEnddate(entity.getEnddate());
+    private GetStudiesResponse toListResponse(List<Study> studies) {
+        return isNotModified(ETags.ofEntities(studies, Study::getId, Study::getVersion)) ? GetStudiesResponse.withNotModified() : GetStudiesResponse.withJsonOK(studies);
     }
 
-    private StudyEntity toNewDbEntity(Study entity) {
-        return new StudyEntity(
-            entity.getName(),
-            entity.getDescription(),
-            entity.getStartdate(),
-            entity.getEnddate()
-        );
+    /**
+     * Sets the ETag of the response
+     *
+     * @return true if the ETag matches the If-None-Match header of the request
+     */
+    private boolean isNotModified(String etag) {
+        if (etag != null) servletResponse.setHeader(HttpHeaders.ETAG, etag);
+        return ETags.isNotModified(servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH), etag);
     }
 
-    private StudyEntity toExistingDbEntity(Study entity) {
-        return new StudyEntity(
-            entity.getId(),
-            entity.getVersion(),
-            entity.getName(),
-            entity.getDescription(),
-            entity.getStartdate(),
-            entity.getEnddate()
-        );
+    private <T> List<T> withNextCursorHeader(KeysetPage<T> page) {
+        if (page.getNextCursor() != null) servletResponse.setHeader(KeysetCursor.NEXT_CURSOR_HEADER, page.getNextCursor());
+        return page.getElements();
     }
 
-    // TODO: Move to a common library with static methods that resourceImpl classesa (and other) can import?
-    private Measurement toApiMeasurementEntity(MeasurementEntity m) {
-        return new Measurement()
-            .withId         (m.getId())
-            .withVersion    (m.getVersion())
-            .withDescription(m.getDescription())
-            .withTimestamp  (m.getTimestamp())
-            .withSteps      (m.getSteps());
+    /**
+     * Returns null if the cursor is malformed or refers to an order field that isn't allowed
+     */
+    private KeysetCursor decodeCursor(String after) {
+        try {
+            KeysetCursor cursor = KeysetCursor.decode(after);
+            return ORDER_FIELDS.contains(cursor.getOrderBy()) ? cursor : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
     }
-
 }
@@ -0,0 +1,41 @@
+package com.az.ip.api.services.api;
+
+import com.az.ip.api.services.core.BinaryFormats;
+import com.az.ip.api.services.core.DeletionJob;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import static org.springframework.web.bind.annotation.RequestMethod.*;
+
+/**
+ * The progress of removals of patients, doctors and studies running in the background
+ */
+@RequestMapping("/api/deletionJobs")
+@Api(
+    value       = "deletionJobs",
+    description = "Progress of removals running in the background")
+public interface DeletionJobsResource {
+
+    /**
+     * Get the progress of a removal
+     *
+     * @param jobId
+     * @return
+     */
+    @RequestMapping(
+        value    = "/{jobId}",
+        method   = GET,
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    @ApiOperation(
+        value    = "Get the progress of a removal",
+        notes    = "Refered to by the Location header of a DELETE with the header Prefer: respond-async. Finished jobs are kept for deletes.async.retention-minutes",
+        response = DeletionJob.class)
+    @ApiResponses(value = {
+        @ApiResponse(code = 404, message = "The job was not found, or has expired")
+    })
+    ResponseEntity<DeletionJob> getDeletionJob(@PathVariable String jobId);
+}
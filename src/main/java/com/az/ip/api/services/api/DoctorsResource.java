@@ -3,12 +3,15 @@ package com.az.ip.api.services.api;
 import com.az.ip.api.gen.model.Doctor;
 import com.az.ip.api.gen.model.Id;
 import com.az.ip.api.gen.model.Study;
+import com.az.ip.api.services.core.BinaryFormats;
+import com.az.ip.api.services.core.CascadingDeleter;
 import com.az.ip.api.services.model.Pageable;
 import com.az.ip.api.services.model.Sortable;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -35,18 +38,20 @@ public interface DoctorsResource {
      */
     @RequestMapping(
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Find doctors, optionally filter by username",
-        notes    = "Support standard paging and sorting, orderBy fields: username, firstName, lastName",
+        notes    = "Support standard paging and sorting, orderBy fields: username, firstName, lastName. Keyset paging is supported by passing the X-Next-Cursor response header of the previous page as the after parameter",
         response = Doctor[].class)
     @ApiResponses(value = {
+        @ApiResponse(code = 304, message = "Not modified, the ETag of the list matches the If-None-Match header"),
         @ApiResponse(code = 422, message = "Invalid parameters in request, see error message in body for more information")
     })
     ResponseEntity<List<Doctor>> findDoctors(
         @RequestParam   String   username,
         @ModelAttribute Sortable sort,
-        @ModelAttribute Pageable page);
+        @ModelAttribute Pageable page,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -57,8 +62,8 @@ public interface DoctorsResource {
      */
     @RequestMapping(
         method   = POST,
-        consumes = "application/json",
-        produces = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE},
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Creates a new doctor",
         notes    = "Returns the new entity with its id and version set",
@@ -78,15 +83,18 @@ public interface DoctorsResource {
     @RequestMapping(
         value    = "/{doctorId}",
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Get doctor by Id",
         notes    = "",
         response = Doctor.class)
     @ApiResponses(value = {
+        @ApiResponse(code = 304, message = "Not modified, the ETag of the entity matches the If-None-Match header"),
         @ApiResponse(code = 404, message = "The entity was not found")
     })
-    ResponseEntity<Doctor> getDoctor(@PathVariable String doctorId);
+    ResponseEntity<Doctor> getDoctor(
+        @PathVariable String doctorId,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -98,44 +106,59 @@ public interface DoctorsResource {
     @RequestMapping(
         value    = "/{doctorId}",
         method   = PUT,
-        consumes = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Updates a doctor",
         notes    = "The version number is used for optimistic locking, i.e. to detect if a concurrent update has been performed, returns a 422 error if the version field is old",
         response = Study.class)
     @ApiResponses(value = {
+        @ApiResponse(code = 412, message = "The If-Match header doesn't match the ETag of the entity, it has been updated by someone else"),
         @ApiResponse(code = 422, message = "Unprocessable entity, the entity has been updated by someone else.")
     })
     void updateDoctor(
         @PathVariable String doctorId,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
         @RequestBody  Doctor entity);
 
     /**
      * Deletes a doctor
      *
      * @param doctorId
-     * @return
+     * @param prefer respond-async to remove the doctor in the background
+     * @return 200 if removed, 202 if the removal runs in the background
      */
     @RequestMapping(
         value    = "/{doctorId}",
         method   = DELETE)
     @ApiOperation(
         value    = "Deletes a doctor",
-        notes    = "The delete is idempotent, i.e. if the entity already is deleted no error will be thrown",
+        notes    = "Removes the relations and measurements of the doctor as well. The delete is idempotent, i.e. if the entity already is deleted no error will be thrown. " +
+                   "With the header Prefer: respond-async the removal runs in the background, the Location header refers to its progress",
         response = Doctor.class)
-    void deleteDoctor(@PathVariable String doctorId);
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "The removal runs in the background, see the Location header")
+    })
+    ResponseEntity<Void> deleteDoctor(
+        @PathVariable String doctorId,
+        @RequestHeader(value = CascadingDeleter.PREFER_HEADER, required = false) String prefer);
 
     /**
      * Get a ref to each study that this doctor is assigned to
      *
      * @param doctorId
+     * @param limit max number of refs, -1 for all
+     * @param after the id to start after, i.e. the X-Next-Cursor response header of the previous page
      * @return a list of studyId-refs
      */
     @RequestMapping(
         value    = "/{doctorId}/assignedInStudies",
         method   = GET,
-        produces = "application/json")
-    ResponseEntity<List<Id>> getAssignedInStudies(@PathVariable String doctorId);
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    ResponseEntity<List<Id>> getAssignedInStudies(
+        @PathVariable String doctorId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
     /**
      * Assigns a patient to this doctor in this study
@@ -149,7 +172,7 @@ public interface DoctorsResource {
     @RequestMapping(
         value    = "/{doctorId}/assignedInStudies/{studyId}/patients",
         method   = POST,
-        consumes = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     void assignPatientByDoctorToStudy(
         @PathVariable String doctorId,
         @PathVariable String studyId,
@@ -160,15 +183,20 @@ public interface DoctorsResource {
      *
      * @param doctorId
      * @param studyId
+     * @param limit max number of refs, -1 for all
+     * @param after the id to start after, i.e. the X-Next-Cursor response header of the previous page
      * @return a list of patientId-refs
      */
     @RequestMapping(
         value    = "/{doctorId}/assignedInStudies/{studyId}/patients",
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     ResponseEntity<List<Id>> getPatientsAssignedByDoctorInStudy(
         @PathVariable String doctorId,
-        @PathVariable String studyId);
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -1,15 +1,23 @@
 package com.az.ip.api.services.api;
 
 import com.az.ip.api.gen.model.*;
+import com.az.ip.api.services.core.BinaryFormats;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.MeasurementAggregator;
+import com.az.ip.api.services.core.MeasurementExporter;
+import com.az.ip.api.services.core.MeasurementIdempotency;
 import com.az.ip.api.services.model.Pageable;
 import com.az.ip.api.services.model.Sortable;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 import static org.springframework.web.bind.annotation.RequestMethod.*;
@@ -33,18 +41,20 @@ public interface PatientsResource {
      */
     @RequestMapping(
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Find patients, optionally filter by username",
-        notes    = "Support standard paging and sorting, orderBy fields: username, firstName, lastName",
+        notes    = "Support standard paging and sorting, orderBy fields: username, firstName, lastName. Keyset paging is supported by passing the X-Next-Cursor response header of the previous page as the after parameter",
         response = Patient[].class)
     @ApiResponses(value = {
+        @ApiResponse(code = 304, message = "Not modified, the ETag of the list matches the If-None-Match header"),
         @ApiResponse(code = 422, message = "Invalid parameters in request, see error message in body for more information")
     })
     ResponseEntity<List<Patient>> findPatients(
         @RequestParam String username,
         @ModelAttribute Sortable sort,
-        @ModelAttribute Pageable page);
+        @ModelAttribute Pageable page,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -55,8 +65,8 @@ public interface PatientsResource {
      */
     @RequestMapping(
         method   = POST,
-        consumes = "application/json",
-        produces = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE},
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Creates a new patient",
         notes    = "Returns the new entity with its id and version set",
@@ -76,15 +86,18 @@ public interface PatientsResource {
     @RequestMapping(
         value    = "/{patientId}",
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Get patient by Id",
         notes    = "",
         response = Patient.class)
     @ApiResponses(value = {
+        @ApiResponse(code = 304, message = "Not modified, the ETag of the entity matches the If-None-Match header"),
         @ApiResponse(code = 404, message = "The entity was not found")
     })
-    ResponseEntity<Patient> getPatient(@PathVariable String patientId);
+    ResponseEntity<Patient> getPatient(
+        @PathVariable String patientId,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -96,32 +109,41 @@ public interface PatientsResource {
     @RequestMapping(
         value    = "/{patientId}",
         method   = PUT,
-        consumes = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Updates a Patient",
         notes    = "The version number is used for optimistic locking, i.e. to detect if a concurrent update has been performed, returns a 422 error if the version field is old",
         response = Patient.class)
     @ApiResponses(value = {
+        @ApiResponse(code = 412, message = "The If-Match header doesn't match the ETag of the entity, it has been updated by someone else"),
         @ApiResponse(code = 422, message = "Unprocessable entity, the entity has been updated by someone else.")
     })
     void updatePatient(
         @PathVariable String patientId,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
         @RequestBody Patient entity);
 
     /**
      * Deletes a Patient
      *
      * @param patientId
-     * @return
+     * @param prefer respond-async to remove the patient in the background
+     * @return 200 if removed, 202 if the removal runs in the background
      */
     @RequestMapping(
         value    = "/{patientId}",
         method   = DELETE)
     @ApiOperation(
         value    = "Deletes a patient",
-        notes    = "The delete is idempotent, i.e. if the entity already is deleted no error will be thrown",
+        notes    = "Removes the relations and measurements of the patient as well. The delete is idempotent, i.e. if the entity already is deleted no error will be thrown. " +
+                   "With the header Prefer: respond-async the removal runs in the background, the Location header refers to its progress",
         response = Patient.class)
-    void deletePatient(@PathVariable String patientId);
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "The removal runs in the background, see the Location header")
+    })
+    ResponseEntity<Void> deletePatient(
+        @PathVariable String patientId,
+        @RequestHeader(value = CascadingDeleter.PREFER_HEADER, required = false) String prefer);
 
 
     /* -------------- */
@@ -130,29 +152,78 @@ public interface PatientsResource {
      * Get a ref to each study that patient is assigned to
      *
      * @param patientId
+     * @param limit max number of refs, -1 for all
+     * @param after the id to start after, i.e. the X-Next-Cursor response header of the previous page
      * @return a list of studyId-refs
      */
     @RequestMapping(
         value    = "/{patientId}/studies",
         method   = GET,
-        produces = "application/json")
-    ResponseEntity<List<Id>> getAssignedInStudies(@PathVariable String patientId);
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    ResponseEntity<List<Id>> getAssignedInStudies(
+        @PathVariable String patientId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
+
+    /**
+     * Add measurements for one or many patients and studies
+     *
+     * @param measurements
+     * @return the result of each measurement, in the same order as in the request
+     */
+    @RequestMapping(
+        value    = "/measurements",
+        method   = POST,
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE},
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    @ApiOperation(
+        value    = "Add measurements for one or many patients and studies",
+        notes    = "Returns the result of each measurement, with status 200 and the id of the new measurement, 404 if the patient isn't assigned to the study, 422 if the measurement is invalid or 503 if it wasn't stored and has to be retried",
+        response = BulkMeasurementResult[].class)
+    ResponseEntity<List<BulkMeasurementResult>> addMeasurements(@RequestBody List<BulkMeasurement> measurements);
+
+
+    /**
+     * Add measurements for one or many patients and studies given as newline delimited JSON, one measurement per line
+     *
+     * @param ndjson
+     * @return the result of each measurement, in the same order as in the request
+     */
+    @RequestMapping(
+        value    = "/measurements",
+        method   = POST,
+        consumes = MeasurementExporter.NDJSON,
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    @ApiOperation(
+        value    = "Add measurements for one or many patients and studies as newline delimited JSON",
+        notes    = "Same as the application/json variant, but the measurements are read one by one from the request",
+        response = BulkMeasurementResult[].class)
+    ResponseEntity<List<BulkMeasurementResult>> addMeasurementsAsNdjson(InputStream ndjson) throws IOException;
+
 
     /**
-     * Add a measurement to a patient
+     * Add a measurement to a patient, or queue it for a write-behind insert if enabled
      *
      * @param patientId
      * @param studyId
+     * @param idempotencyKey stores the measurement only once per key, a replay returns the stored measurement
      * @param measurement
-     *
+     * @return 200 with the id of the stored measurement in the X-Measurement-Id header, 202 if queued
      */
     @RequestMapping(
         value    = "/{patientId}/studies/{studyId}/measurements",
         method   = POST,
-        consumes = "application/json")
-    void addMeasurementToPatientInStudy(
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "Queued for a write-behind insert, if measurements.write-behind.enabled and without an Idempotency-Key"),
+        @ApiResponse(code = 422, message = "The Idempotency-Key is too long"),
+        @ApiResponse(code = 503, message = "The write-behind queue is full or shutting down, retry later")
+    })
+    ResponseEntity<Void> addMeasurementToPatientInStudy(
         @PathVariable String patientId,
         @PathVariable String studyId,
+        @RequestHeader(value = MeasurementIdempotency.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
         @RequestBody Measurement measurement);
 
 
@@ -166,12 +237,41 @@ public interface PatientsResource {
     @RequestMapping(
         value    = "/{patientId}/studies/{studyId}/measurements",
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     ResponseEntity<List<Measurement>> getPatientInStudyMeasurements(
         @PathVariable String patientId,
         @PathVariable String studyId);
 
 
+    /**
+     * Get the steps of a patient's measurements in a study aggregated per time bucket
+     *
+     * @param patientId
+     * @param studyId
+     * @param bucket day, week or month
+     * @param from ISO-8601 timestamp, optional
+     * @param to ISO-8601 timestamp (exclusive), optional
+     * @return one aggregate per time bucket that has measurements
+     */
+    @RequestMapping(
+        value    = "/{patientId}/studies/{studyId}/measurements/aggregate",
+        method   = GET,
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    @ApiOperation(
+        value    = "Get the patient's steps in the study aggregated per day, week or month",
+        notes    = "Count, sum, average, min and max of the steps are computed by the database, weeks are ISO weeks starting on mondays",
+        response = StepAggregate[].class)
+    @ApiResponses(value = {
+        @ApiResponse(code = 422, message = "Invalid parameters in request, see error message in body for more information")
+    })
+    ResponseEntity<List<StepAggregate>> getPatientInStudyAggregatedSteps(
+        @PathVariable String patientId,
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = MeasurementAggregator.DEFAULT_BUCKET) String bucket,
+        @RequestParam(required = false) String from,
+        @RequestParam(required = false) String to);
+
+
 
     /**
      * Deletes a measurement from a patient in a study
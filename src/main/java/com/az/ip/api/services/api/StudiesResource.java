@@ -2,15 +2,22 @@ package com.az.ip.api.services.api;
 
 import com.az.ip.api.gen.model.Id;
 import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.gen.model.StepAggregate;
 import com.az.ip.api.gen.model.Study;
+import com.az.ip.api.services.core.BinaryFormats;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.MeasurementAggregator;
+import com.az.ip.api.services.core.MeasurementExporter;
 import com.az.ip.api.services.model.Pageable;
 import com.az.ip.api.services.model.Sortable;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
 
@@ -35,18 +42,20 @@ public interface StudiesResource {
      */
     @RequestMapping(
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Find studies, optionally filter by name",
-        notes    = "Support standard paging and sorting, orderBy fields: name",
+        notes    = "Support standard paging and sorting, orderBy fields: name. Keyset paging is supported by passing the X-Next-Cursor response header of the previous page as the after parameter",
         response = Study[].class)
     @ApiResponses(value = {
+        @ApiResponse(code = 304, message = "Not modified, the ETag of the list matches the If-None-Match header"),
         @ApiResponse(code = 422, message = "Invalid parameters in request, see error message in body for more information")
     })
     ResponseEntity<List<Study>> findStudies(
         @RequestParam String name,
         @ModelAttribute Sortable sort,
-        @ModelAttribute Pageable page);
+        @ModelAttribute Pageable page,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -57,8 +66,8 @@ public interface StudiesResource {
      */
     @RequestMapping(
         method   = POST,
-        consumes = "application/json",
-        produces = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE},
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Creates a new study",
         notes    = "Returns the new entity with its id and version set",
@@ -78,15 +87,18 @@ public interface StudiesResource {
     @RequestMapping(
         value    = "/{studyId}",
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Get study by Id",
         notes    = "",
         response = Study.class)
     @ApiResponses(value = {
+        @ApiResponse(code = 304, message = "Not modified, the ETag of the entity matches the If-None-Match header"),
         @ApiResponse(code = 404, message = "The entity was not found")
     })
-    ResponseEntity<Study> getStudy(@PathVariable String studyId);
+    ResponseEntity<Study> getStudy(
+        @PathVariable String studyId,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -98,16 +110,18 @@ public interface StudiesResource {
     @RequestMapping(
         value    = "/{studyId}",
         method   = PUT,
-        consumes = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     @ApiOperation(
         value    = "Updates a study",
         notes    = "The version number is used for optimistic locking, i.e. to detect if a concurrent update has been performed, returns a 422 error if the version field is old",
         response = Study.class)
     @ApiResponses(value = {
+        @ApiResponse(code = 412, message = "The If-Match header doesn't match the ETag of the entity, it has been updated by someone else"),
         @ApiResponse(code = 422, message = "Unprocessable entity, the entity has been updated by someone else.")
     })
     void updateStudy(
         @PathVariable String studyId,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
         @RequestBody Study entity);
 
 
@@ -116,29 +130,42 @@ public interface StudiesResource {
      * Deletes a study
      *
      * @param studyId
-     * @return
+     * @param prefer respond-async to remove the study in the background
+     * @return 200 if removed, 202 if the removal runs in the background
      */
     @RequestMapping(
         value    = "/{studyId}",
         method   = DELETE)
     @ApiOperation(
         value    = "Deletes a study",
-        notes    = "The delete is idempotent, i.e. if the entity already is deleted no error will be thrown",
+        notes    = "Removes the relations and measurements of the study as well. The delete is idempotent, i.e. if the entity already is deleted no error will be thrown. " +
+                   "With the header Prefer: respond-async the removal runs in the background, the Location header refers to its progress",
         response = Study.class)
-    void deleteStudy(@PathVariable String studyId);
+    @ApiResponses(value = {
+        @ApiResponse(code = 202, message = "The removal runs in the background, see the Location header")
+    })
+    ResponseEntity<Void> deleteStudy(
+        @PathVariable String studyId,
+        @RequestHeader(value = CascadingDeleter.PREFER_HEADER, required = false) String prefer);
 
 
     /**
      * Get a ref to each doctor that is assigned to this study
      *
      * @param studyId
+     * @param limit max number of refs, -1 for all
+     * @param after the id to start after, i.e. the X-Next-Cursor response header of the previous page
      * @return a list of doctorId-refs
      */
     @RequestMapping(
         value    = "/{studyId}/assignedDoctors",
         method   = GET,
-        produces = "application/json")
-    ResponseEntity<List<Id>> getAssignedDoctors(@PathVariable String studyId);
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    ResponseEntity<List<Id>> getAssignedDoctors(
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch);
 
 
     /**
@@ -153,7 +180,7 @@ public interface StudiesResource {
     @RequestMapping(
         value    = "/{studyId}/assignedDoctors",
         method   = POST,
-        consumes = "application/json")
+        consumes = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     void assignDoctorToStudy(
         @PathVariable String studyId,
         @RequestBody Id doctorIdRef);
@@ -186,7 +213,66 @@ public interface StudiesResource {
     @RequestMapping(
         value    = "/{studyId}/measurements",
         method   = GET,
-        produces = "application/json")
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
     ResponseEntity<List<Measurement>> getMeasurementsInStudy(@PathVariable String studyId);
 
+
+    /**
+     * Stream all measurements for this study as newline delimited JSON
+     *
+     * @param studyId
+     * @return
+     */
+    @RequestMapping(
+        value    = "/{studyId}/measurements",
+        method   = GET,
+        produces = MeasurementExporter.NDJSON)
+    @ApiOperation(
+        value    = "Streams all measurements for the study as newline delimited JSON",
+        notes    = "Selected by Accept: application/x-ndjson, the measurements are streamed from the database and memory usage is independent of the size of the study")
+    ResponseEntity<StreamingResponseBody> getMeasurementsInStudyAsNdjson(@PathVariable String studyId);
+
+
+    /**
+     * Stream all measurements for this study as a chunked JSON array
+     *
+     * @param studyId
+     * @return
+     */
+    @RequestMapping(
+        value    = "/{studyId}/measurements/stream",
+        method   = GET,
+        produces = "application/json")
+    @ApiOperation(
+        value    = "Streams all measurements for the study as a JSON array",
+        notes    = "Same content as the measurements resource, but streamed from the database using chunked transfer encoding")
+    ResponseEntity<StreamingResponseBody> streamMeasurementsInStudy(@PathVariable String studyId);
+
+
+    /**
+     * Get the steps of all measurements in the study aggregated per time bucket
+     *
+     * @param studyId
+     * @param bucket day, week or month
+     * @param from ISO-8601 timestamp, optional
+     * @param to ISO-8601 timestamp (exclusive), optional
+     * @return one aggregate per time bucket that has measurements
+     */
+    @RequestMapping(
+        value    = "/{studyId}/measurements/aggregate",
+        method   = GET,
+        produces = {"application/json", BinaryFormats.CBOR, BinaryFormats.SMILE})
+    @ApiOperation(
+        value    = "Get the steps of all patients in the study aggregated per day, week or month",
+        notes    = "Count, sum, average, min and max of the steps are computed by the database, weeks are ISO weeks starting on mondays",
+        response = StepAggregate[].class)
+    @ApiResponses(value = {
+        @ApiResponse(code = 422, message = "Invalid parameters in request, see error message in body for more information")
+    })
+    ResponseEntity<List<StepAggregate>> getAggregatedStepsInStudy(
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = MeasurementAggregator.DEFAULT_BUCKET) String bucket,
+        @RequestParam(required = false) String from,
+        @RequestParam(required = false) String to);
+
 }
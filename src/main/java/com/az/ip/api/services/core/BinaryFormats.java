@@ -0,0 +1,32 @@
+package com.az.ip.api.services.core;
+
+/**
+ * Media types of the binary encodings that are negotiated as alternatives to JSON.
+ *
+ * Both are encodings of the JSON data model, i.e. the same field names and types as the RAML JSON schemas, written by
+ * Jackson with the same mappings as the JSON representation. Streamed responses, e.g. the measurement exports, are
+ * JSON only.
+ */
+public final class BinaryFormats {
+
+    /**
+     * Concise Binary Object Representation, RFC 7049
+     */
+    public static final String CBOR = "application/cbor";
+
+    /**
+     * Jackson's binary JSON, with back references to repeated field names and short values
+     */
+    public static final String SMILE = "application/x-jackson-smile";
+
+    private BinaryFormats() {
+    }
+
+    /**
+     * @param mediaType a media type without parameters, may be null
+     * @return true if the media type is one of the binary formats
+     */
+    public static boolean isBinary(String mediaType) {
+        return CBOR.equalsIgnoreCase(mediaType) || SMILE.equalsIgnoreCase(mediaType);
+    }
+}
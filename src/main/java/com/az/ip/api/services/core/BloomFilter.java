@@ -0,0 +1,81 @@
+package com.az.ip.api.services.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings, i.e. a compact set that may answer that it contains a string that was never put (a false
+ * positive) but never that it doesn't contain a string that was put.
+ *
+ * Thread safe without locks, the bits are set atomically. The bit positions are derived from one 64 bit hash using
+ * double hashing, see Kirsch and Mitzenmacher, "Less Hashing, Same Performance: Building a Better Bloom Filter".
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions the number of strings the filter is sized for
+     * @param falsePositiveProbability the probability of a false positive once the expected number of strings are put
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveProbability) {
+        long optimalBits = (long)Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        int words = (int)Math.max(1, Math.min(Integer.MAX_VALUE, (optimalBits + 63) / 64));
+
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = words * 64L;
+        this.hashCount = Math.max(1, (int)Math.round((double)bitCount / expectedInsertions * Math.log(2)));
+    }
+
+    public void put(String value) {
+        long hash = hash(value);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = bitIndex(hash, i);
+            long mask = 1L << bit;
+            bits.getAndAccumulate((int)(bit >>> 6), mask, (word, m) -> word | m);
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash(value);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = bitIndex(hash, i);
+            if ((bits.get((int)(bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    private long bitIndex(long hash, int i) {
+        int hash1 = (int)hash;
+        int hash2 = (int)(hash >>> 32);
+        long combined = hash1 + (long)i * hash2;
+        return (combined < 0 ? ~combined : combined) % bitCount;
+    }
+
+    /**
+     * FNV-1a of the UTF-8 bytes, finished with the MurmurHash3 mix to spread the bits over both halves
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
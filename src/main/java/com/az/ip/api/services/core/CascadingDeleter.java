@@ -0,0 +1,183 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.PatientDoctorStudyRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Removes a patient, doctor or study together with its relations and their measurements.
+ *
+ * The measurements are removed relation by relation, in chunks of deletes.chunk-size measurements with one set-based
+ * delete and one transaction per chunk, i.e. without loading them and without locking all of them until the end. The
+ * relations and the patient, doctor or study are then removed in a final transaction. A removal that fails half-way
+ * leaves the remaining measurements and the patient, doctor or study in place, and can be repeated.
+ *
+ * A removal either runs in the calling thread or is submitted as a job to a pool of deletes.async.threads threads. The
+ * jobs report their progress, and are kept for deletes.async.retention-minutes after they finish.
+ */
+@Component
+public class CascadingDeleter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CascadingDeleter.class);
+
+    public static final String PREFER_HEADER = "Prefer";
+    public static final String PREFERENCE_APPLIED_HEADER = "Preference-Applied";
+    public static final String RESPOND_ASYNC = "respond-async";
+
+    /**
+     * The path of the jobs, relative to the base path of an API
+     */
+    public static final String JOBS_PATH = "/deletionJobs";
+
+    public enum Target { PATIENT, DOCTOR, STUDY }
+
+    @Value("${deletes.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${deletes.async.threads:1}")
+    private int threads;
+
+    @Value("${deletes.async.retention-minutes:60}")
+    private long retentionMinutes;
+
+    @Inject
+    private MeasurementStore measurementStore;
+
+    @Inject
+    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+
+    @Inject
+    private PatientService patientService;
+
+    @Inject
+    private DoctorService doctorService;
+
+    @Inject
+    private StudyService studyService;
+
+    private final Map<String, DeletionJob> jobs = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cascading-deleter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param prefer the Prefer header of the request, null if none
+     * @return true if the client prefers an asynchronous removal, see RFC 7240
+     */
+    public static boolean isAsyncPreferred(String prefer) {
+        return prefer != null && prefer.toLowerCase().contains(RESPOND_ASYNC);
+    }
+
+    /**
+     * Removes a patient, doctor or study in the calling thread, does nothing if it doesn't exist
+     *
+     * @return the completed job
+     */
+    public DeletionJob delete(Target target, String id) {
+        DeletionJob job = new DeletionJob(target, id);
+        run(job);
+        return job;
+    }
+
+    /**
+     * Submits the removal of a patient, doctor or study as a job
+     *
+     * @return the queued job, for following its progress by its id
+     */
+    public DeletionJob submit(Target target, String id) {
+        removeExpiredJobs();
+
+        DeletionJob job = new DeletionJob(target, id);
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(() -> {
+                try {
+                    run(job);
+                } catch (RuntimeException ex) {
+                    // Already logged and reported by the job
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            job.fail("Shutting down");
+        }
+
+        LOG.debug("Submitted job {} for the removal of {} {}", job.getId(), target, id);
+        return job;
+    }
+
+    /**
+     * @return the job, null if not found or expired
+     */
+    public DeletionJob findJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    private void run(DeletionJob job) {
+        String id = job.getTargetId();
+        try {
+            List<String> relationIds = findRelationIds(job.getTarget(), id);
+            job.start(relationIds.size());
+            boolean studyRemoved = job.getTarget() == Target.STUDY;
+
+            for (String relationId : relationIds) {
+                int count;
+                while ((count = measurementStore.deleteChunkByRelationId(relationId, chunkSize, studyRemoved)) > 0) {
+                    job.measurementsDeleted(count);
+                }
+                job.relationDeleted();
+            }
+
+            switch (job.getTarget()) {
+                case PATIENT: patientService.delete(id); break;
+                case DOCTOR:  doctorService.delete(id);  break;
+                case STUDY:   studyService.delete(id);   break;
+            }
+
+            job.complete();
+            LOG.info("Removed {} {} with #{} relations and #{} measurements", job.getTarget(), id, job.getDeletedRelations(), job.getDeletedMeasurements());
+
+        } catch (RuntimeException ex) {
+            LOG.error("Removal of " + job.getTarget() + " " + id + " failed", ex);
+            job.fail(ex.getMessage());
+            throw ex;
+        }
+    }
+
+    private List<String> findRelationIds(Target target, String id) {
+        switch (target) {
+            case PATIENT: return patientDoctorStudyRepository.findIdsByPatientId(id);
+            case DOCTOR:  return patientDoctorStudyRepository.findIdsByDoctorId(id);
+            default:      return patientDoctorStudyRepository.findIdsByStudyId(id);
+        }
+    }
+
+    private void removeExpiredJobs() {
+        long expired = System.currentTimeMillis() - retentionMinutes * 60 * 1000;
+        jobs.values().removeIf(job -> job.isFinished() && job.getFinished().getTime() < expired);
+    }
+}
@@ -0,0 +1,112 @@
+package com.az.ip.api.services.core;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of the removal of a patient, doctor or study with its relations and measurements, see
+ * {@link CascadingDeleter}. Returned as JSON by the deletion job resources of both APIs.
+ */
+public class DeletionJob {
+
+    public enum Status { QUEUED, RUNNING, COMPLETED, FAILED }
+
+    private final String id = UUID.randomUUID().toString();
+    private final CascadingDeleter.Target target;
+    private final String targetId;
+    private final Date created = new Date();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile int relationCount;
+    private final AtomicInteger deletedRelations = new AtomicInteger();
+    private final AtomicLong deletedMeasurements = new AtomicLong();
+    private volatile Date finished;
+    private volatile String message;
+
+    DeletionJob(CascadingDeleter.Target target, String targetId) {
+        this.target = target;
+        this.targetId = targetId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public CascadingDeleter.Target getTarget() {
+        return target;
+    }
+
+    public String getTargetId() {
+        return targetId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the number of relations of the patient, doctor or study, once running
+     */
+    public int getRelationCount() {
+        return relationCount;
+    }
+
+    /**
+     * @return the number of relations whose measurements are removed
+     */
+    public int getDeletedRelations() {
+        return deletedRelations.get();
+    }
+
+    public long getDeletedMeasurements() {
+        return deletedMeasurements.get();
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    /**
+     * @return when the job completed or failed, null while queued or running
+     */
+    public Date getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the error of a failed job, null otherwise
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    boolean isFinished() {
+        return finished != null;
+    }
+
+    void start(int relationCount) {
+        this.relationCount = relationCount;
+        this.status = Status.RUNNING;
+    }
+
+    void measurementsDeleted(int count) {
+        deletedMeasurements.addAndGet(count);
+    }
+
+    void relationDeleted() {
+        deletedRelations.incrementAndGet();
+    }
+
+    void complete() {
+        finished = new Date();
+        status = Status.COMPLETED;
+    }
+
+    void fail(String message) {
+        this.message = message;
+        finished = new Date();
+        status = Status.FAILED;
+    }
+}
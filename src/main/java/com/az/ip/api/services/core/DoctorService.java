@@ -0,0 +1,192 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.Doctor;
+import com.az.ip.api.gen.model.Id;
+import com.az.ip.api.persistence.jpa.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Doctors and the patients they assign to studies.
+ *
+ * Queries run in a read-only transaction and each change in a single transaction, see {@link PatientService}.
+ */
+@Component
+@Transactional(readOnly = true)
+public class DoctorService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DoctorService.class);
+
+    @Inject
+    private DoctorRepository repository;
+
+    @Inject
+    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+
+    @Inject
+    private StudyRepository studyRepository;
+
+    @Inject
+    private KeysetPager keysetPager;
+
+    /**
+     * @return the doctor, or null if there is no doctor with the username
+     */
+    public Doctor findByUsername(String username) {
+        DoctorEntity entity = repository.findByUsername(username);
+        return (entity == null) ? null : toApiEntity(entity);
+    }
+
+    /**
+     * @param orderBy the order field, one of the fields allowed by the API
+     * @param ascending
+     * @param page
+     * @param size the size of the page, -1 to get all doctors
+     * @return
+     */
+    public KeysetPage<Doctor> findAll(String orderBy, boolean ascending, long page, long size) {
+
+        // The id is the tie-breaker, as in the KeysetPager, i.e. the cursor of the page continues in the same order
+        Sort.Direction direction = ascending ? Sort.Direction.ASC : Sort.Direction.DESC;
+        Sort sort = new Sort(new Sort.Order(direction, orderBy), new Sort.Order(direction, "id"));
+        Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
+
+        List<DoctorEntity> entities = new ArrayList<>();
+        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(entities::add);
+
+        return toApiEntities(entities, orderBy, ascending, size);
+    }
+
+    public KeysetPage<Doctor> findAfter(KeysetCursor cursor, long size) {
+        List<DoctorEntity> entities = keysetPager.findNextPage(DoctorEntity.class, cursor, (int)size);
+        return toApiEntities(entities, cursor.getOrderBy(), cursor.isAscending(), size);
+    }
+
+    /**
+     * @return the doctor, or null if not found
+     */
+    public Doctor findOne(String doctorId) {
+        DoctorEntity entity = repository.findOne(doctorId);
+        return (entity == null) ? null : toApiEntity(entity);
+    }
+
+    /**
+     * Looks up the version without loading the doctor, i.e. for conditional requests, see {@link ETags}
+     *
+     * @return the version of the doctor, or null if not found
+     */
+    public Integer findVersion(String doctorId) {
+        return repository.findVersionById(doctorId);
+    }
+
+    @Transactional
+    public Doctor create(Doctor doctor) {
+        DoctorEntity newEntity = repository.save(toNewDbEntity(doctor));
+        LOG.debug("Created entity with id: {}", newEntity.getId());
+        return toApiEntity(newEntity);
+    }
+
+    @Transactional
+    public void update(Doctor doctor) {
+        repository.save(toExistingDbEntity(doctor));
+    }
+
+    /**
+     * Removes the doctor, its relations and its assignments to studies, the measurements of the relations have to be
+     * removed first, see {@link CascadingDeleter}. Does nothing if the doctor doesn't exist.
+     */
+    @Transactional
+    public void delete(String doctorId) {
+        int relations = patientDoctorStudyRepository.deleteByDoctorId(doctorId);
+        studyRepository.removeDoctorFromAllStudies(doctorId);
+
+        DoctorEntity entity = repository.findOne(doctorId);
+        if (entity != null) repository.delete(entity);
+        LOG.debug("Deleted doctor with id: {} and #{} relations", doctorId, relations);
+    }
+
+    /**
+     * Id's of the studies that the doctor is assigned to, ordered by id
+     *
+     * @param doctorId
+     * @param limit the max number of id's, -1 to get all id's
+     * @param after the id to start after, or null to start from the first study
+     * @return
+     */
+    public KeysetPage<Id> findStudyIds(String doctorId, long limit, String after) {
+        List<String> ids = repository.findStudyIdsByDoctorId(doctorId, keysetPager.afterId(after), keysetPager.limitIds(limit));
+        return toApiIds(ids, limit);
+    }
+
+    @Transactional
+    public void assignPatient(String patientId, String doctorId, String studyId) {
+        patientDoctorStudyRepository.assign(patientId, doctorId, studyId);
+    }
+
+    /**
+     * Id's of the patients that the doctor has assigned to a study, ordered by id
+     *
+     * @param doctorId
+     * @param studyId
+     * @param limit the max number of id's, -1 to get all id's
+     * @param after the id to start after, or null to start from the first patient
+     * @return
+     */
+    public KeysetPage<Id> findPatientIds(String doctorId, String studyId, long limit, String after) {
+        List<String> ids = patientDoctorStudyRepository.findPatientIdsByStudyIdAndDoctorId(studyId, doctorId, keysetPager.afterId(after), keysetPager.limitIds(limit));
+        return toApiIds(ids, limit);
+    }
+
+    /**
+     * @return the number of removed relations, 0 if the patient wasn't assigned to the study by the doctor
+     */
+    @Transactional
+    public int removePatient(String patientId, String doctorId, String studyId) {
+        int count = patientDoctorStudyRepository.deleteByPatientIdAndDoctorIdAndStudyId(patientId, doctorId, studyId);
+        if (count > 1) LOG.warn("Inconsistency detected, expected 0 or 1 relations but removed: {}", count);
+        return count;
+    }
+
+    private KeysetPage<Doctor> toApiEntities(List<DoctorEntity> page, String orderBy, boolean ascending, long size) {
+        return new KeysetPage<>(
+            page.stream().map(this::toApiEntity).collect(Collectors.toList()),
+            keysetPager.nextCursor(page, orderBy, ascending, size));
+    }
+
+    private KeysetPage<Id> toApiIds(List<String> ids, long limit) {
+        return new KeysetPage<>(
+            ids.stream().map(id -> new Id().withId(id)).collect(Collectors.toList()),
+            keysetPager.nextIdCursor(ids, limit));
+    }
+
+    private Doctor toApiEntity(DoctorEntity p) {
+        return new Doctor()
+            .withId       (p.getId())
+            .withVersion  (p.getVersion())
+            .withUsername (p.getUsername())
+            .withFirstname(p.getFirstname())
+            .withLastname (p.getLastname());
+    }
+
+    private DoctorEntity toNewDbEntity(Doctor p) {
+        return new DoctorEntity(
+            p.getUsername(), p.getFirstname(), p.getLastname()
+        );
+    }
+
+    private DoctorEntity toExistingDbEntity(Doctor p) {
+        return new DoctorEntity(
+            p.getId(), p.getVersion(), p.getUsername(), p.getFirstname(), p.getLastname()
+        );
+    }
+}
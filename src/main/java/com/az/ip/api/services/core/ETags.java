@@ -0,0 +1,152 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.Id;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Strong ETags of patients, doctors, studies and lists of them, used for conditional requests.
+ *
+ * The ETag of an entity is given by its id and version, i.e. it can be compared with the If-None-Match and If-Match
+ * headers of a request by only looking up the version. The ETag of a list is a hash of the id's and versions of its
+ * elements, or of the id's for a list of id-refs.
+ *
+ * The resources compare the ETags of the entities and lists. The responses carry the ETag of the variant, i.e. of the
+ * representation and content coding that the request negotiated, since the body of each variant is a different
+ * sequence of bytes. See ETagVariantFilter, which maps between the two.
+ */
+public final class ETags {
+
+    private static final char VARIANT_SEPARATOR = '+';
+
+    private ETags() {
+    }
+
+    /**
+     * @param version null if the entity doesn't exist
+     * @return the ETag, or null if the entity doesn't exist
+     */
+    public static String of(String id, Integer version) {
+        return (version == null) ? null : quote(id + "." + version);
+    }
+
+    /**
+     * The inverse of {@link #of(String, Integer)}
+     *
+     * @return the version, or null if the ETag isn't one of the entity
+     */
+    public static Integer versionOf(String id, String etag) {
+        String prefix = "\"" + id + ".";
+        if (etag == null || etag.length() <= prefix.length() || !etag.startsWith(prefix) || !etag.endsWith("\"")) return null;
+
+        try {
+            return Integer.valueOf(etag.substring(prefix.length(), etag.length() - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static <T> String ofEntities(List<T> entities, Function<T, String> id, Function<T, Integer> version) {
+        return ofList(entities.stream().map(e -> id.apply(e) + "." + version.apply(e)));
+    }
+
+    public static String ofIds(List<Id> ids) {
+        return ofList(ids.stream().map(Id::getId));
+    }
+
+    /**
+     * Uses the weak comparison of If-None-Match, i.e. W/ prefixes are ignored
+     *
+     * @param ifNoneMatch the If-None-Match header of the request, null if none
+     * @param etag the current ETag, null if the entity doesn't exist
+     * @return true if a GET can be answered with 304 Not Modified
+     */
+    public static boolean isNotModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) return false;
+
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Uses the strong comparison of If-Match, i.e. weak ETags never match
+     *
+     * @param ifMatch the If-Match header of the request, null if none
+     * @param etag the current ETag, null if the entity doesn't exist
+     * @return true if an update has to be rejected with 412 Precondition Failed
+     */
+    public static boolean isPreconditionFailed(String ifMatch, String etag) {
+        if (ifMatch == null) return false;
+        if (etag == null) return true;
+
+        for (String tag : ifMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param etag the ETag of an entity or list, null if none
+     * @param variant e.g. cbor-gzip, empty for the JSON representation without content coding
+     * @return the ETag of the variant, e.g. "id.version+cbor-gzip"
+     */
+    public static String ofVariant(String etag, String variant) {
+        if (etag == null || variant.isEmpty() || !etag.endsWith("\"")) return etag;
+        return etag.substring(0, etag.length() - 1) + VARIANT_SEPARATOR + variant + "\"";
+    }
+
+    /**
+     * Maps the ETags of a variant in an If-None-Match or If-Match header to the ETags of the entities and lists, i.e.
+     * the inverse of {@link #ofVariant(String, String)}. The ETags of other variants are mapped to tags that never
+     * match, since the ETags of the entities and lists don't contain the separator.
+     *
+     * @param header the If-None-Match or If-Match header of the request, null if none
+     * @param variant the variant to map, or null for any variant
+     * @return the header with the ETags of the entities and lists, null if none
+     */
+    public static String withoutVariant(String header, String variant) {
+        if (header == null) return null;
+
+        List<String> tags = new ArrayList<>();
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            String weak = tag.startsWith("W/") ? "W/" : "";
+            String opaque = tag.substring(weak.length());
+
+            if (opaque.length() < 2 || !opaque.startsWith("\"") || !opaque.endsWith("\"")) {
+                tags.add(tag);
+                continue;
+            }
+
+            opaque = opaque.substring(1, opaque.length() - 1);
+            int separator = opaque.lastIndexOf(VARIANT_SEPARATOR);
+            String tagVariant = (separator == -1) ? "" : opaque.substring(separator + 1);
+
+            if (variant == null || variant.equals(tagVariant)) {
+                tags.add(weak + quote((separator == -1) ? opaque : opaque.substring(0, separator)));
+            } else {
+                tags.add(weak + quote(opaque + ((separator == -1) ? String.valueOf(VARIANT_SEPARATOR) : "")));
+            }
+        }
+        return String.join(", ", tags);
+    }
+
+    private static String ofList(Stream<String> elements) {
+        String joined = elements.collect(Collectors.joining(","));
+        return quote(DigestUtils.md5DigestAsHex(joined.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String quote(String tag) {
+        return "\"" + tag + "\"";
+    }
+}
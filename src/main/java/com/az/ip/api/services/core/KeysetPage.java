@@ -0,0 +1,28 @@
+package com.az.ip.api.services.core;
+
+import java.util.List;
+
+/**
+ * A page of elements together with the cursor of the following page, returned to the clients in the X-Next-Cursor header
+ */
+public class KeysetPage<T> {
+
+    private final List<T> elements;
+    private final String nextCursor;
+
+    public KeysetPage(List<T> elements, String nextCursor) {
+        this.elements = elements;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getElements() {
+        return elements;
+    }
+
+    /**
+     * @return the cursor of the following page, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
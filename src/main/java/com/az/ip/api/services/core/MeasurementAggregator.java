@@ -0,0 +1,110 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.StepAggregate;
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.TimeBucket;
+import com.az.ip.api.persistence.jpa.StepAggregateRow;
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Resolution;
+import com.az.ip.api.persistence.jpa.StepRollupRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import javax.xml.bind.DatatypeConverter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Aggregates the steps of measurements per day, week or month, for a study or for a patient in a study.
+ *
+ * The aggregation is performed by the database, i.e. only one row per time bucket is read regardless of the number of
+ * measurements. The daily or hourly step rollups are read when the time range is aligned to them, otherwise the
+ * measurements. The rollups are skipped if the measurement store doesn't maintain them.
+ */
+@Component
+public class MeasurementAggregator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementAggregator.class);
+
+    public static final String DEFAULT_BUCKET = "day";
+
+    @Inject
+    private MeasurementStore measurementStore;
+
+    @Inject
+    private StepRollupRepository stepRollupRepository;
+
+    /**
+     * Aggregates the steps of the measurements in a study
+     *
+     * @param studyId
+     * @param patientId limits the aggregation to one patient, null for all patients in the study
+     * @param bucket day, week or month, null for day
+     * @param from ISO-8601 timestamp of the first measurement to include, null for no lower limit
+     * @param to ISO-8601 timestamp to stop before, null for no upper limit
+     * @return one aggregate per time bucket that has measurements, ordered by time
+     * @throws IllegalArgumentException if any of the parameters are invalid
+     */
+    public List<StepAggregate> aggregate(String studyId, String patientId, String bucket, String from, String to) {
+
+        TimeBucket timeBucket = parseBucket((bucket == null) ? DEFAULT_BUCKET : bucket);
+        Date fromDate = parseTimestamp("from", from);
+        Date toDate = parseTimestamp("to", to);
+
+        Resolution resolution = measurementStore.maintainsStepRollups() ? rollupResolution(fromDate, toDate) : null;
+        LOG.debug("Aggregate steps for study: {}, patient: {}, per {} from {} to {}, using rollups: {}", studyId, patientId, timeBucket, fromDate, toDate, resolution);
+
+        List<StepAggregateRow> rows = (resolution == null)
+            ? measurementStore.aggregateSteps(studyId, patientId, timeBucket, fromDate, toDate)
+            : stepRollupRepository.aggregateSteps(studyId, patientId, resolution, timeBucket, fromDate, toDate);
+
+        return rows.stream()
+            .map(this::toApiEntity)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * The longest rollup resolution that the time range is aligned to, null if it isn't aligned to any of them
+     */
+    private Resolution rollupResolution(Date from, Date to) {
+        for (Resolution resolution : Arrays.asList(Resolution.DAY, Resolution.HOUR)) {
+            if (isAligned(from, resolution) && isAligned(to, resolution)) return resolution;
+        }
+        return null;
+    }
+
+    private boolean isAligned(Date timestamp, Resolution resolution) {
+        return timestamp == null || resolution.truncate(timestamp).getTime() == timestamp.getTime();
+    }
+
+    private TimeBucket parseBucket(String bucket) {
+        try {
+            return TimeBucket.valueOf(bucket.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Bucket [" + bucket + "] must be one of: " + Arrays.toString(TimeBucket.values()).toLowerCase());
+        }
+    }
+
+    private Date parseTimestamp(String name, String timestamp) {
+        if (timestamp == null) return null;
+
+        try {
+            return DatatypeConverter.parseDateTime(timestamp).getTime();
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Parameter " + name + " [" + timestamp + "] is not an ISO-8601 timestamp");
+        }
+    }
+
+    private StepAggregate toApiEntity(StepAggregateRow row) {
+        return new StepAggregate()
+            .withBucket(row.getBucket())
+            .withCount (row.getCount())
+            .withSum   (row.getSum())
+            .withAvg   (row.getAvg())
+            .withMin   (row.getMin())
+            .withMax   (row.getMax());
+    }
+}
@@ -0,0 +1,100 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.persistence.MeasurementStore;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Streams all measurements in a study to an output stream, one row at the time, straight from a database cursor, i.e.
+ * studies of any size are exported with constant memory usage.
+ */
+@Component
+public class MeasurementExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementExporter.class);
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    public enum Format {
+        /**
+         * Newline delimited JSON, one measurement per line
+         */
+        NDJSON,
+
+        /**
+         * An ordinary JSON array, written element by element
+         */
+        JSON_ARRAY
+    }
+
+    @Inject
+    private MeasurementStore measurementStore;
+
+    @Inject
+    private ObjectMapper mapper;
+
+    /**
+     * Writes all measurements in a study to the output stream
+     *
+     * @param studyId
+     * @param format
+     * @param out
+     * @throws IOException
+     */
+    @Transactional(readOnly = true)
+    public void export(String studyId, Format format, OutputStream out) throws IOException {
+
+        LOG.debug("Export all measurements for study with id: {} as {}", studyId, format);
+
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+
+            // Don't close the response stream, that is up to the container
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(new SerializedString("\n"));
+
+            if (format == Format.JSON_ARRAY) generator.writeStartArray();
+
+            Measurement measurement = new Measurement();
+            int[] count = {0};
+
+            measurementStore.scrollByStudyId(studyId, (id, version, description, timestamp, steps) -> {
+                try {
+                    // The same instance is reused for every row since it is serialized immediately
+                    generator.writeObject(measurement
+                        .withId         (id)
+                        .withVersion    (version)
+                        .withDescription(description)
+                        .withTimestamp  (timestamp)
+                        .withSteps      (steps));
+                    count[0]++;
+
+                } catch (IOException ex) {
+                    // Typically the client has gone away, abort the scroll
+                    throw new UncheckedIOException(ex);
+                }
+            });
+
+            if (format == Format.JSON_ARRAY) {
+                generator.writeEndArray();
+            } else if (count[0] > 0) {
+                generator.writeRaw('\n');
+            }
+
+            LOG.debug("Exported #{} measurements for study with id: {}", count[0], studyId);
+
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+}
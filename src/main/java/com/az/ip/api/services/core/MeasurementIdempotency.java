@@ -0,0 +1,112 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.persistence.jpa.MeasurementEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+/**
+ * Stores single measurements at most once per client supplied idempotency key, e.g. the Idempotency-Key header of a
+ * retried upload, and answers a replay with the measurement stored by the first request.
+ *
+ * The keys are unique per patient and study in the measurement store. The keys seen by this instance are also put in
+ * an in-memory Bloom filter, checked before the insert: a key that the filter has never seen is inserted without first
+ * looking it up, only a possible duplicate is looked up. A duplicate the filter doesn't know of, e.g. after a restart or
+ * from another instance, is caught by the unique key of the store and then looked up.
+ */
+@Component
+public class MeasurementIdempotency {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementIdempotency.class);
+
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final String MEASUREMENT_ID_HEADER = "X-Measurement-Id";
+
+    /**
+     * A stored measurement, either new or stored earlier with the same idempotency key
+     */
+    public static class Result {
+        private final String measurementId;
+        private final boolean replay;
+
+        Result(String measurementId, boolean replay) {
+            this.measurementId = measurementId;
+            this.replay = replay;
+        }
+
+        public String getMeasurementId() {
+            return measurementId;
+        }
+
+        public boolean isReplay() {
+            return replay;
+        }
+    }
+
+    @Value("${measurements.idempotency.expected-keys:1000000}")
+    private long expectedKeys;
+
+    @Value("${measurements.idempotency.false-positive-probability:0.01}")
+    private double falsePositiveProbability;
+
+    @Inject
+    private PatientService patientService;
+
+    private BloomFilter seenKeys;
+
+    @PostConstruct
+    public void createFilter() {
+        seenKeys = new BloomFilter(expectedKeys, falsePositiveProbability);
+        LOG.debug("Idempotency key filter of {} bits and {} hashes", seenKeys.getBitCount(), seenKeys.getHashCount());
+    }
+
+    /**
+     * Stores a measurement of a patient in a study, unless already stored with the same idempotency key
+     *
+     * @param idempotencyKey null to always store the measurement
+     * @return the id of the stored measurement
+     * @throws IllegalArgumentException if the idempotency key is too long
+     */
+    public Result addMeasurement(String patientId, String studyId, Measurement measurement, String idempotencyKey) {
+
+        if (idempotencyKey == null) {
+            return new Result(patientService.addMeasurement(patientId, studyId, measurement, null), false);
+        }
+
+        if (idempotencyKey.length() > MeasurementEntity.MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new IllegalArgumentException(IDEMPOTENCY_KEY_HEADER + " must be at most " + MeasurementEntity.MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+        }
+
+        String filterKey = patientId + '/' + studyId + '/' + idempotencyKey;
+
+        // Only a key that may have been seen before is looked up
+        if (seenKeys.mightContain(filterKey)) {
+            String originalId = patientService.findMeasurementIdByIdempotencyKey(patientId, studyId, idempotencyKey);
+            if (originalId != null) {
+                LOG.debug("Replayed measurement with idempotency key: {}, id: {}", idempotencyKey, originalId);
+                return new Result(originalId, true);
+            }
+        }
+
+        try {
+            String id = patientService.addMeasurement(patientId, studyId, measurement, idempotencyKey);
+            seenKeys.put(filterKey);
+            return new Result(id, false);
+
+        } catch (DataIntegrityViolationException ex) {
+            // Stored by an earlier request that the filter doesn't know of, or by a concurrent request
+            String originalId = patientService.findMeasurementIdByIdempotencyKey(patientId, studyId, idempotencyKey);
+            if (originalId == null) throw ex;
+
+            seenKeys.put(filterKey);
+            LOG.debug("Replayed measurement with idempotency key: {}, id: {}, found by the unique key", idempotencyKey, originalId);
+            return new Result(originalId, true);
+        }
+    }
+}
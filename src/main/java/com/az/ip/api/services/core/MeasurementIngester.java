@@ -0,0 +1,177 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.BulkMeasurement;
+import com.az.ip.api.gen.model.BulkMeasurementResult;
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.NewMeasurement;
+import com.az.ip.api.persistence.jpa.PatientDoctorStudyRepository;
+import com.az.ip.api.persistence.jpa.Uuids;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Bulk ingestion of measurements for one or many patients and studies.
+ *
+ * The measurements are processed in chunks. For each chunk the patient-doctor-study relations not already known are
+ * resolved with one query, and the measurements are inserted at once, e.g. in one transaction using JDBC batching.
+ *
+ * A chunk that fails before any measurement in the request is stored fails the request, i.e. it can be retried as a
+ * whole. Once a chunk is stored, a failed chunk is instead reported with status 503 for each of its measurements, so
+ * that a client retries only those instead of storing the earlier chunks twice.
+ */
+@Component
+public class MeasurementIngester {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementIngester.class);
+
+    public static final int CHUNK_SIZE = 5000;
+
+    public static final int STATUS_OK = 200;
+    public static final int STATUS_NOT_FOUND = 404;
+    public static final int STATUS_UNPROCESSABLE_ENTITY = 422;
+    public static final int STATUS_SERVICE_UNAVAILABLE = 503;
+
+    @Inject
+    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+
+    @Inject
+    private MeasurementStore measurementStore;
+
+    @Inject
+    private ObjectMapper mapper;
+
+    /**
+     * Ingests a list of measurements
+     *
+     * @param measurements
+     * @return the result of each measurement, in the same order as the measurements
+     */
+    public List<BulkMeasurementResult> ingest(List<BulkMeasurement> measurements) {
+        return ingest(measurements.iterator());
+    }
+
+    /**
+     * Ingests newline delimited JSON, one measurement per line, without reading the whole stream into memory
+     *
+     * @param ndjson
+     * @return the result of each measurement, in the same order as the measurements
+     * @throws IOException
+     */
+    public List<BulkMeasurementResult> ingest(InputStream ndjson) throws IOException {
+        try (MappingIterator<BulkMeasurement> measurements = mapper.reader(BulkMeasurement.class).readValues(ndjson)) {
+            return ingest(measurements);
+        }
+    }
+
+    private List<BulkMeasurementResult> ingest(Iterator<BulkMeasurement> measurements) {
+
+        List<BulkMeasurementResult> results = new ArrayList<>();
+
+        // Relation id per patient and study, kept for all chunks in the request. Null if the patient isn't assigned to the study
+        Map<String, String> relationIds = new HashMap<>();
+
+        List<BulkMeasurement> chunk = new ArrayList<>(CHUNK_SIZE);
+        while (measurements.hasNext()) {
+            chunk.add(measurements.next());
+
+            if (chunk.size() == CHUNK_SIZE || !measurements.hasNext()) {
+                try {
+                    ingestChunk(chunk, results.size(), relationIds, results);
+                } catch (RuntimeException ex) {
+                    if (results.stream().noneMatch(result -> result.getStatus() == STATUS_OK)) throw ex;
+
+                    LOG.error("Failed to ingest a chunk of #" + chunk.size() + " measurements after #" + results.size() + " measurements", ex);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        results.add(new BulkMeasurementResult().withIndex(results.size()).withStatus(STATUS_SERVICE_UNAVAILABLE)
+                            .withMessage("Not stored, retry the measurement"));
+                    }
+                }
+                chunk.clear();
+            }
+        }
+
+        LOG.debug("Ingested #{} measurements", results.size());
+        return results;
+    }
+
+    private void ingestChunk(List<BulkMeasurement> chunk, int firstIndex, Map<String, String> relationIds, List<BulkMeasurementResult> results) {
+
+        resolveRelationIds(chunk, relationIds);
+
+        // Validate and collect the measurements to insert
+        BulkMeasurementResult[] chunkResults = new BulkMeasurementResult[chunk.size()];
+        List<NewMeasurement> inserts = new ArrayList<>(chunk.size());
+        List<Integer> insertPositions = new ArrayList<>(chunk.size());
+
+        for (int i = 0; i < chunk.size(); i++) {
+            BulkMeasurement m = chunk.get(i);
+            BulkMeasurementResult result = new BulkMeasurementResult().withIndex(firstIndex + i);
+            chunkResults[i] = result;
+
+            if (m.getPatientId() == null || m.getStudyId() == null || m.getTimestamp() == null || m.getSteps() == null) {
+                result.withStatus(STATUS_UNPROCESSABLE_ENTITY).withMessage("patientId, studyId, timestamp and steps are required");
+                continue;
+            }
+
+            String relationId = relationIds.get(key(m.getPatientId(), m.getStudyId()));
+            if (relationId == null) {
+                result.withStatus(STATUS_NOT_FOUND).withMessage("Patient " + m.getPatientId() + " is not assigned to study " + m.getStudyId());
+                continue;
+            }
+
+            inserts.add(new NewMeasurement(relationId, m.getPatientId(), m.getStudyId(), m.getDescription(), m.getTimestamp(), m.getSteps()));
+            insertPositions.add(i);
+        }
+
+        if (!inserts.isEmpty()) {
+            List<String> ids = measurementStore.insertAll(inserts);
+            for (int i = 0; i < ids.size(); i++) {
+                chunkResults[insertPositions.get(i)].withStatus(STATUS_OK).withId(ids.get(i));
+            }
+        }
+
+        results.addAll(Arrays.asList(chunkResults));
+    }
+
+    /**
+     * Looks up the relations of the patients and studies in the chunk that are not already known, using one query
+     */
+    private void resolveRelationIds(List<BulkMeasurement> chunk, Map<String, String> relationIds) {
+
+        Set<String> patientIds = new HashSet<>();
+        Set<String> studyIds = new HashSet<>();
+        for (BulkMeasurement m : chunk) {
+            // A malformed id can't be part of a relation, i.e. it isn't looked up and the measurement is not found
+            if (Uuids.isValid(m.getPatientId()) && Uuids.isValid(m.getStudyId()) && !relationIds.containsKey(key(m.getPatientId(), m.getStudyId()))) {
+                patientIds.add(m.getPatientId());
+                studyIds.add(m.getStudyId());
+            }
+        }
+
+        if (patientIds.isEmpty()) return;
+
+        for (Object[] row : patientDoctorStudyRepository.findIdsByPatientIdsAndStudyIds(patientIds, studyIds)) {
+            relationIds.putIfAbsent(key((String)row[1], (String)row[2]), (String)row[0]);
+        }
+
+        // Remember the pairs without a relation as well, to not look them up again in the following chunks
+        for (BulkMeasurement m : chunk) {
+            String key = key(m.getPatientId(), m.getStudyId());
+            if (m.getPatientId() != null && m.getStudyId() != null && !relationIds.containsKey(key)) {
+                relationIds.put(key, null);
+            }
+        }
+    }
+
+    private String key(String patientId, String studyId) {
+        return patientId + '/' + studyId;
+    }
+}
@@ -0,0 +1,241 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.BulkMeasurement;
+import com.az.ip.api.gen.model.BulkMeasurementResult;
+import com.az.ip.api.gen.model.Measurement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optional write-behind of single measurements, enabled by measurements.write-behind.enabled, trading a short delay
+ * before a measurement is stored for fewer and larger inserts.
+ *
+ * The measurements are put on a bounded, lock-free queue and inserted by a background flusher in batches, through the
+ * {@link MeasurementIngester}, every flush-interval-ms or as soon as flush-size measurements are queued. A full queue is
+ * rejected, i.e. the client is asked to retry later, instead of blocking the request. On shutdown no more measurements
+ * are accepted and the queue is drained, waiting at most drain-timeout-ms.
+ *
+ * The measurements have already been accepted, i.e. a batch that fails to be stored, e.g. by a lost connection to the
+ * database, is retried before any later measurements after retry-backoff-ms, doubled for each failed attempt. A batch
+ * that still fails after max-retries is logged and dropped. A batch is at most the chunk size of the ingester, i.e.
+ * stored in one insert, so a retry never stores a measurement twice.
+ *
+ * Measurements are accepted before their patient and study are checked, a measurement for a patient that isn't
+ * assigned to the study is logged and dropped when flushed. The queue depth and the flush latency are exposed in the
+ * actuator metrics endpoint, e.g. measurements.write-behind.queue.depth.
+ */
+@Component
+public class MeasurementWriteBehind implements PublicMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementWriteBehind.class);
+
+    private static final String PREFIX = "measurements.write-behind.";
+
+    @Value("${measurements.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${measurements.write-behind.capacity:10000}")
+    private int capacity;
+
+    @Value("${measurements.write-behind.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${measurements.write-behind.flush-size:500}")
+    private int flushSize;
+
+    @Value("${measurements.write-behind.drain-timeout-ms:10000}")
+    private long drainTimeoutMs;
+
+    @Value("${measurements.write-behind.max-retries:5}")
+    private int maxRetries;
+
+    @Value("${measurements.write-behind.retry-backoff-ms:1000}")
+    private long retryBackoffMs;
+
+    @Inject
+    private MeasurementIngester measurementIngester;
+
+    // The size is counted separately, since the size of a ConcurrentLinkedQueue is computed by traversing it. It
+    // includes the measurements being offered and the batch being stored, i.e. the flusher doesn't stop while it is > 0
+    private final Queue<BulkMeasurement> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile boolean stopped = false;
+    private Thread flusher;
+
+    // The batch to retry and its number of failed attempts, only used by the flusher
+    private List<BulkMeasurement> failedBatch;
+    private int failedAttempts;
+    private long retryAtNanos;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private volatile long lastFlushMillis;
+    private volatile long maxFlushMillis;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) return;
+
+        LOG.info("Write-behind of measurements, capacity: {}, flush every {} ms or {} measurements", capacity, flushIntervalMs, flushSize);
+        flusher = new Thread(this::flushUntilStoppedAndDrained, "measurement-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Stops accepting measurements and waits for the queued ones to be stored
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (flusher == null) return;
+
+        stopped = true;
+        LockSupport.unpark(flusher);
+        flusher.join(drainTimeoutMs);
+
+        if (flusher.isAlive()) {
+            LOG.error("Write-behind of measurements not drained within {} ms, #{} measurements are lost", drainTimeoutMs, size.get());
+        } else {
+            LOG.info("Write-behind of measurements drained, #{} measurements stored", flushed.get());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a measurement of a patient in a study
+     *
+     * @return false if the queue is full or shutting down, i.e. the measurement was not accepted
+     */
+    public boolean offer(String patientId, String studyId, Measurement measurement) {
+
+        // Counted before stopped is checked, i.e. a measurement accepted while shutting down is drained as well
+        if (size.incrementAndGet() > capacity || stopped) {
+            size.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        queue.offer(new BulkMeasurement()
+            .withPatientId  (patientId)
+            .withStudyId    (studyId)
+            .withDescription(measurement.getDescription())
+            .withTimestamp  (measurement.getTimestamp())
+            .withSteps      (measurement.getSteps()));
+
+        // Flush a full batch right away instead of waiting for the interval
+        if (size.get() >= flushSize) LockSupport.unpark(flusher);
+        return true;
+    }
+
+    private void flushUntilStoppedAndDrained() {
+        long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+
+        while (!stopped || size.get() > 0) {
+            if (failedBatch != null) {
+                // Not cut short by a full queue or the shutdown
+                for (long remaining; (remaining = retryAtNanos - System.nanoTime()) > 0; ) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+            } else if (!stopped && size.get() < flushSize) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Inserts the failed batch, if any, or else up to flush-size queued measurements
+     */
+    private void flush() {
+        List<BulkMeasurement> batch = failedBatch;
+        if (batch == null) {
+            int batchSize = Math.min(flushSize, MeasurementIngester.CHUNK_SIZE);
+            batch = new ArrayList<>(batchSize);
+            BulkMeasurement measurement;
+            while (batch.size() < batchSize && (measurement = queue.poll()) != null) {
+                batch.add(measurement);
+            }
+            if (batch.isEmpty()) return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<BulkMeasurementResult> results = measurementIngester.ingest(batch);
+
+            for (BulkMeasurementResult result : results) {
+                if (result.getStatus() != MeasurementIngester.STATUS_OK) {
+                    dropped.incrementAndGet();
+                    LOG.warn("Write-behind measurement dropped: {} {}", result.getStatus(), result.getMessage());
+                }
+            }
+            flushed.addAndGet(results.size());
+            done(batch);
+
+        } catch (RuntimeException ex) {
+            if (++failedAttempts > maxRetries) {
+                dropped.addAndGet(batch.size());
+                LOG.error("Write-behind flush of #" + batch.size() + " measurements failed " + failedAttempts + " times, the measurements are dropped", ex);
+                done(batch);
+            } else {
+                long backoffMs = retryBackoffMs << (failedAttempts - 1);
+                retries.incrementAndGet();
+                failedBatch = batch;
+                retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+                LOG.warn("Write-behind flush of #" + batch.size() + " measurements failed, retry #" + failedAttempts + " in " + backoffMs + " ms", ex);
+            }
+        }
+
+        lastFlushMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        maxFlushMillis = Math.max(maxFlushMillis, lastFlushMillis);
+        flushes.incrementAndGet();
+        LOG.debug("Write-behind flush of #{} measurements in {} ms", batch.size(), lastFlushMillis);
+    }
+
+    private void done(List<BulkMeasurement> batch) {
+        failedBatch = null;
+        failedAttempts = 0;
+        size.addAndGet(-batch.size());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        if (!enabled) return Collections.emptyList();
+
+        return Arrays.asList(
+            new Metric<>(PREFIX + "queue.depth",        size.get()),
+            new Metric<>(PREFIX + "queue.capacity",     capacity),
+            new Metric<>(PREFIX + "rejected",           rejected.get()),
+            new Metric<>(PREFIX + "flush.count",        flushes.get()),
+            new Metric<>(PREFIX + "flush.latency.last", lastFlushMillis),
+            new Metric<>(PREFIX + "flush.latency.max",  maxFlushMillis),
+            new Metric<>(PREFIX + "flushed",            flushed.get()),
+            new Metric<>(PREFIX + "dropped",            dropped.get()),
+            new Metric<>(PREFIX + "retries",            retries.get()));
+    }
+}
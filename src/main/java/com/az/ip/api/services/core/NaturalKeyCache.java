@@ -0,0 +1,114 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.persistence.routing.PrimaryReads;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A bounded, in-process cache from a natural key, e.g. a username, to a value, e.g. an API entity.
+ *
+ * Misses, i.e. keys without a value, are cached as well but for a shorter time since the key can be created at any time.
+ * The least recently used key is dropped when the cache is full. Values are loaded from the primary database, not a
+ * replica, see {@link PrimaryReads}.
+ *
+ * @param <T> the type of the values
+ */
+public class NaturalKeyCache<T> {
+
+    private static class Entry<T> {
+        private final T value;
+        private final long expires;
+
+        Entry(T value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final Map<String, Entry<T>> entries;
+
+    // Incremented by each invalidation, to not cache a value that was loaded before the invalidation
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxSize the max number of keys
+     * @param ttlMillis how long a found value is cached
+     * @param negativeTtlMillis how long a miss is cached
+     */
+    public NaturalKeyCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value of the key, or loads and caches it
+     *
+     * @param key
+     * @param loader returns the value of the key, or null if there is none
+     * @return the value, or null if there is none
+     */
+    public T get(String key, Supplier<T> loader) {
+        long loadGeneration;
+        synchronized (this) {
+            Entry<T> entry = entries.get(key);
+            if (entry != null && entry.expires > System.currentTimeMillis()) {
+                hits++;
+                return entry.value;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        T value;
+        try (PrimaryReads ignored = PrimaryReads.begin()) {
+            value = loader.get();
+        }
+
+        synchronized (this) {
+            if (loadGeneration == generation) {
+                entries.put(key, new Entry<>(value, System.currentTimeMillis() + ((value == null) ? negativeTtlMillis : ttlMillis)));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes the key, e.g. when its entity is created, updated or deleted
+     *
+     * @param key
+     */
+    public synchronized void invalidate(String key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,164 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.Doctor;
+import com.az.ip.api.gen.model.Patient;
+import com.az.ip.api.gen.model.Study;
+import com.az.ip.api.persistence.jpa.DoctorEntity;
+import com.az.ip.api.persistence.jpa.PatientEntity;
+import com.az.ip.api.persistence.jpa.StudyEntity;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import java.util.*;
+
+/**
+ * Caches of the patients and doctors by username and the studies by name, for the searches performed at every login.
+ *
+ * The caches are invalidated by Hibernate event listeners when a patient, doctor or study is created, updated or
+ * deleted, after the transaction completes so that a concurrent search can't cache the old state again. Hit and miss
+ * counts are exposed in the actuator metrics endpoint.
+ */
+@Component
+public class NaturalKeyCaches implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener, PublicMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NaturalKeyCaches.class);
+
+    @Inject
+    private EntityManagerFactory emf;
+
+    @Value("${naturalkey.cache.size:10000}")
+    private int size;
+
+    @Value("${naturalkey.cache.ttlSeconds:600}")
+    private long ttlSeconds;
+
+    @Value("${naturalkey.cache.negativeTtlSeconds:5}")
+    private long negativeTtlSeconds;
+
+    private NaturalKeyCache<Patient> patients;
+    private NaturalKeyCache<Doctor> doctors;
+    private NaturalKeyCache<Study> studies;
+
+    @PostConstruct
+    public void init() {
+        patients = new NaturalKeyCache<>(size, ttlSeconds * 1000, negativeTtlSeconds * 1000);
+        doctors  = new NaturalKeyCache<>(size, ttlSeconds * 1000, negativeTtlSeconds * 1000);
+        studies  = new NaturalKeyCache<>(size, ttlSeconds * 1000, negativeTtlSeconds * 1000);
+
+        EventListenerRegistry registry = emf.unwrap(SessionFactoryImplementor.class).getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+    }
+
+    /**
+     * @return patients by username
+     */
+    public NaturalKeyCache<Patient> patients() {
+        return patients;
+    }
+
+    /**
+     * @return doctors by username
+     */
+    public NaturalKeyCache<Doctor> doctors() {
+        return doctors;
+    }
+
+    /**
+     * @return studies by name
+     */
+    public NaturalKeyCache<Study> studies() {
+        return studies;
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        invalidate(event.getEntity(), null, null);
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        // The natural key itself may have been changed
+        invalidate(event.getEntity(), event.getPersister(), event.getOldState());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        invalidate(event.getEntity(), null, null);
+    }
+
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return false;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        addMetrics(metrics, "patients", patients);
+        addMetrics(metrics, "doctors", doctors);
+        addMetrics(metrics, "studies", studies);
+        return metrics;
+    }
+
+    private void addMetrics(List<Metric<?>> metrics, String name, NaturalKeyCache<?> cache) {
+        metrics.add(new Metric<>("naturalkey.cache." + name + ".hit",  cache.getHits()));
+        metrics.add(new Metric<>("naturalkey.cache." + name + ".miss", cache.getMisses()));
+        metrics.add(new Metric<>("naturalkey.cache." + name + ".size", cache.size()));
+    }
+
+    private void invalidate(Object entity, EntityPersister persister, Object[] oldState) {
+        NaturalKeyCache<?> cache;
+        String property;
+        String key;
+
+        if (entity instanceof PatientEntity) {
+            cache = patients;
+            property = "username";
+            key = ((PatientEntity) entity).getUsername();
+        } else if (entity instanceof DoctorEntity) {
+            cache = doctors;
+            property = "username";
+            key = ((DoctorEntity) entity).getUsername();
+        } else if (entity instanceof StudyEntity) {
+            cache = studies;
+            property = "name";
+            key = ((StudyEntity) entity).getName();
+        } else {
+            return;
+        }
+
+        Set<String> keys = new HashSet<>();
+        keys.add(key);
+        if (oldState != null) {
+            keys.add((String) oldState[Arrays.asList(persister.getPropertyNames()).indexOf(property)]);
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            keys.forEach(cache::invalidate);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                LOG.debug("Invalidate natural keys: {}", keys);
+                keys.forEach(cache::invalidate);
+            }
+        });
+    }
+}
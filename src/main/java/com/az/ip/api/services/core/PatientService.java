@@ -0,0 +1,224 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.Id;
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.gen.model.Patient;
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Patients and their measurements.
+ *
+ * Each method is the transaction of a request: queries run in a read-only transaction, i.e. with flush mode MANUAL and
+ * without dirty checking, and each change runs in a single transaction. The entities are mapped to the API model within
+ * the transaction, since the persistence context is closed before the response is written.
+ */
+@Component
+@Transactional(readOnly = true)
+public class PatientService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PatientService.class);
+
+    @Inject
+    private PatientRepository repository;
+
+    @Inject
+    private MeasurementStore measurementStore;
+
+    @Inject
+    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+
+    @Inject
+    private KeysetPager keysetPager;
+
+    /**
+     * @return the patient, or null if there is no patient with the username
+     */
+    public Patient findByUsername(String username) {
+        PatientEntity entity = repository.findByUsername(username);
+        return (entity == null) ? null : toApiEntity(entity);
+    }
+
+    /**
+     * @param orderBy the order field, one of the fields allowed by the API
+     * @param ascending
+     * @param page
+     * @param size the size of the page, -1 to get all patients
+     * @return
+     */
+    public KeysetPage<Patient> findAll(String orderBy, boolean ascending, long page, long size) {
+
+        // The id is the tie-breaker, as in the KeysetPager, i.e. the cursor of the page continues in the same order
+        Sort.Direction direction = ascending ? Sort.Direction.ASC : Sort.Direction.DESC;
+        Sort sort = new Sort(new Sort.Order(direction, orderBy), new Sort.Order(direction, "id"));
+        Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
+
+        List<PatientEntity> entities = new ArrayList<>();
+        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(entities::add);
+
+        return toApiEntities(entities, orderBy, ascending, size);
+    }
+
+    public KeysetPage<Patient> findAfter(KeysetCursor cursor, long size) {
+        List<PatientEntity> entities = keysetPager.findNextPage(PatientEntity.class, cursor, (int)size);
+        return toApiEntities(entities, cursor.getOrderBy(), cursor.isAscending(), size);
+    }
+
+    /**
+     * @return the patient, or null if not found
+     */
+    public Patient findOne(String patientId) {
+        PatientEntity entity = repository.findOne(patientId);
+        return (entity == null) ? null : toApiEntity(entity);
+    }
+
+    /**
+     * Looks up the version without loading the patient, i.e. for conditional requests, see {@link ETags}
+     *
+     * @return the version of the patient, or null if not found
+     */
+    public Integer findVersion(String patientId) {
+        return repository.findVersionById(patientId);
+    }
+
+    @Transactional
+    public Patient create(Patient patient) {
+        PatientEntity newEntity = repository.save(toNewDbEntity(patient));
+        LOG.debug("Created entity with id: {}", newEntity.getId());
+        return toApiEntity(newEntity);
+    }
+
+    @Transactional
+    public void update(Patient patient) {
+        repository.save(toExistingDbEntity(patient));
+    }
+
+    /**
+     * Removes the patient and its relations, the measurements of the relations have to be removed first, see
+     * {@link CascadingDeleter}. Does nothing if the patient doesn't exist.
+     */
+    @Transactional
+    public void delete(String patientId) {
+        int relations = patientDoctorStudyRepository.deleteByPatientId(patientId);
+
+        PatientEntity entity = repository.findOne(patientId);
+        if (entity != null) repository.delete(entity);
+        LOG.debug("Deleted patient with id: {} and #{} relations", patientId, relations);
+    }
+
+    /**
+     * Id's of the studies that the patient is part of, ordered by id
+     *
+     * @param patientId
+     * @param limit the max number of id's, -1 to get all id's
+     * @param after the id to start after, or null to start from the first study
+     * @return
+     */
+    public KeysetPage<Id> findStudyIds(String patientId, long limit, String after) {
+        List<String> ids = patientDoctorStudyRepository.findStudyIdsByPatientId(patientId, keysetPager.afterId(after), keysetPager.limitIds(limit));
+        return toApiIds(ids, limit);
+    }
+
+    /**
+     * Stores a measurement of a patient in a study, looking up the relation and inserting the measurement in one transaction
+     *
+     * @param idempotencyKey the client supplied key of the measurement, null if none
+     * @return the id of the new measurement
+     * @throws org.springframework.dao.DataIntegrityViolationException if a measurement with the idempotency key is already stored
+     */
+    @Transactional
+    public String addMeasurement(String patientId, String studyId, Measurement measurement, String idempotencyKey) {
+        return measurementStore.insert(toNewMeasurement(findByPatientIdAndStudyId(patientId, studyId), patientId, studyId, measurement, idempotencyKey));
+    }
+
+    /**
+     * @return the id of the measurement of the patient in the study stored with the idempotency key, null if there is none
+     */
+    public String findMeasurementIdByIdempotencyKey(String patientId, String studyId, String idempotencyKey) {
+        PatientDoctorStudyEntity relation = findByPatientIdAndStudyId(patientId, studyId);
+        return (relation == null) ? null : measurementStore.findIdByIdempotencyKey(relation.getId(), idempotencyKey);
+    }
+
+    public List<Measurement> findMeasurements(String patientId, String studyId) {
+        List<Measurement> measurements = new ArrayList<>();
+        measurementStore.find(studyId, patientId, (id, version, description, timestamp, steps) ->
+            measurements.add(toApiMeasurementEntity(id, version, description, timestamp, steps)));
+        return measurements;
+    }
+
+    @Transactional
+    public void deleteMeasurement(String measurementId) {
+        // Relies on that the measurementId is unique, i.e. not checked against the patient and study
+        measurementStore.delete(measurementId);
+    }
+
+    private PatientDoctorStudyEntity findByPatientIdAndStudyId(String patientId, String studyId) {
+        // FIXME. What to do if there are >1 study assigned to one and the same patient? (indicates inconsistent data...)
+        List<PatientDoctorStudyEntity> list = patientDoctorStudyRepository.findByPatientIdAndStudyId(patientId, studyId);
+        return (list.size() == 0) ? null : list.get(0);
+    }
+
+    private KeysetPage<Patient> toApiEntities(List<PatientEntity> page, String orderBy, boolean ascending, long size) {
+        return new KeysetPage<>(
+            page.stream().map(this::toApiEntity).collect(Collectors.toList()),
+            keysetPager.nextCursor(page, orderBy, ascending, size));
+    }
+
+    private KeysetPage<Id> toApiIds(List<String> ids, long limit) {
+        return new KeysetPage<>(
+            ids.stream().map(id -> new Id().withId(id)).collect(Collectors.toList()),
+            keysetPager.nextIdCursor(ids, limit));
+    }
+
+    private Patient toApiEntity(PatientEntity p) {
+        return new Patient()
+            .withId       (p.getId())
+            .withVersion  (p.getVersion())
+            .withUsername (p.getUsername())
+            .withPatientID(p.getPatientID())
+            .withFirstname(p.getFirstname())
+            .withLastname (p.getLastname())
+            .withWeight   (p.getWeight())
+            .withHeight   (p.getHeight());
+    }
+
+    private PatientEntity toNewDbEntity(Patient p) {
+        return new PatientEntity(
+            p.getUsername(), p.getPatientID(), p.getFirstname(), p.getLastname(), p.getWeight(), p.getHeight()
+        );
+    }
+
+    private PatientEntity toExistingDbEntity(Patient p) {
+        return new PatientEntity(
+            p.getId(), p.getVersion(), p.getUsername(), p.getPatientID(), p.getFirstname(), p.getLastname(), p.getWeight(), p.getHeight()
+        );
+    }
+
+    private Measurement toApiMeasurementEntity(String id, int version, String description, Date timestamp, int steps) {
+        return new Measurement()
+            .withId         (id)
+            .withVersion    (version)
+            .withDescription(description)
+            .withTimestamp  (timestamp)
+            .withSteps      (steps);
+    }
+
+    private NewMeasurement toNewMeasurement(PatientDoctorStudyEntity p, String patientId, String studyId, Measurement m, String idempotencyKey) {
+        return new NewMeasurement(
+            (p == null) ? null : p.getId(), patientId, studyId, m.getDescription(), m.getTimestamp(), m.getSteps(), idempotencyKey
+        );
+    }
+}
@@ -0,0 +1,31 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.persistence.jpa.StepRollupRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+
+/**
+ * Recomputes all step rollups from the measurements at startup, e.g. after bulk changes that bypassed the incremental
+ * maintenance. Activated by starting the server with --rollups.rebuild=true
+ */
+@Component
+@ConditionalOnProperty("rollups.rebuild")
+public class StepRollupRebuildCommand implements CommandLineRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StepRollupRebuildCommand.class);
+
+    @Inject
+    private StepRollupRepository stepRollupRepository;
+
+    @Override
+    public void run(String... args) throws Exception {
+        LOG.info("Rebuild the step rollups...");
+        int count = stepRollupRepository.rebuild();
+        LOG.info("Rebuilt #{} step rollups", count);
+    }
+}
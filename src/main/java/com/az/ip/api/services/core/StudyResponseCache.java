@@ -0,0 +1,245 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.persistence.jpa.StudyEntity;
+import com.az.ip.api.persistence.jpa.StudyRepository;
+import com.az.ip.api.persistence.routing.PrimaryReads;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.*;
+import org.hibernate.persister.entity.EntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The encoded responses of the studies and lists of studies, i.e. the headers and the bytes of the body as written by
+ * either API, in each representation and content encoding that has been requested. Filled and served by
+ * StudyResponseCacheFilter, a hit involves neither the database nor Jackson.
+ *
+ * A response of a study is invalidated when the study is updated or deleted, and all lists when any study is created,
+ * updated or deleted. The invalidation is done by Hibernate event listeners after the transaction completes, see
+ * {@link NaturalKeyCaches}. The listeners only see the writes of this instance, so a response of a study is also
+ * validated on each hit against the version of the study in the primary database, and every response expires after
+ * ttl-seconds, which bounds how long a list stays stale after a write by another instance. The least recently used
+ * response is dropped when the cache is full. Hit and miss counts are exposed in the actuator metrics endpoint.
+ */
+@Component
+public class StudyResponseCache implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener, PublicMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StudyResponseCache.class);
+
+    /**
+     * The headers and body of a response
+     */
+    public static class CachedResponse {
+        private final String studyId;
+        private final Integer version;
+        private final String contentType;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+
+        /**
+         * @param studyId the study of the response, or null for a list of studies
+         * @param version the version of the study in the response, or null for a list of studies
+         * @param contentType
+         * @param headers
+         * @param body
+         */
+        public CachedResponse(String studyId, Integer version, String contentType, Map<String, List<String>> headers, byte[] body) {
+            Assert.isTrue((studyId == null) == (version == null));
+
+            this.studyId = studyId;
+            this.version = version;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private static class Entry {
+        private final CachedResponse response;
+        private final long expiresAt;
+
+        Entry(CachedResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @Inject
+    private EntityManagerFactory emf;
+
+    @Inject
+    private StudyRepository repository;
+
+    @Value("${studies.response-cache.max-entries:1000}")
+    private int maxEntries;
+
+    @Value("${studies.response-cache.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    private Map<String, Entry> entries;
+
+    // Incremented by each invalidation, to not cache a response that was written before the invalidation
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    @PostConstruct
+    public void init() {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        EventListenerRegistry registry = emf.unwrap(SessionFactoryImplementor.class).getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        registry.appendListeners(EventType.POST_DELETE, this);
+    }
+
+    /**
+     * The response of a study is only returned if the study still has the same version in the primary database, i.e.
+     * a hit costs a lookup of the version by primary key but neither loading nor serializing the study.
+     *
+     * @param key the request, including its representation and content encoding
+     * @return the cached response, or null if none, expired or of another version of the study
+     */
+    public CachedResponse get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() < 0) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry != null && entry.response.studyId != null && !entry.response.version.equals(findCurrentVersion(entry.response.studyId))) {
+            LOG.debug("Drop cached response of study {} version {}", entry.response.studyId, entry.response.version);
+            synchronized (this) {
+                entries.remove(key, entry);
+            }
+            entry = null;
+        }
+
+        synchronized (this) {
+            if (entry == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        return (entry == null) ? null : entry.response;
+    }
+
+    /**
+     * @return to be passed to {@link #put(String, CachedResponse, long)} when the response has been written
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches the response, unless a study has been changed since the response was read from the database
+     *
+     * @param key
+     * @param response
+     * @param generation the generation before the response was read from the database
+     */
+    public synchronized void put(String key, CachedResponse response, long generation) {
+        if (generation == this.generation) entries.put(key, new Entry(response, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds)));
+    }
+
+    /**
+     * Removes the responses of the study and all lists of studies
+     *
+     * @param studyId
+     */
+    public synchronized void invalidate(String studyId) {
+        generation++;
+        entries.values().removeIf(entry -> entry.response.studyId == null || entry.response.studyId.equals(studyId));
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        invalidateAfterCompletion(event.getEntity());
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        invalidateAfterCompletion(event.getEntity());
+    }
+
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+        invalidateAfterCompletion(event.getEntity());
+    }
+
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return false;
+    }
+
+    @Override
+    public synchronized Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("studies.response-cache.hit",  hits));
+        metrics.add(new Metric<>("studies.response-cache.miss", misses));
+        metrics.add(new Metric<>("studies.response-cache.size", entries.size()));
+        return metrics;
+    }
+
+    // Not from the query cache nor a replica, since either may be behind the write that changed the version
+    private Integer findCurrentVersion(String studyId) {
+        try (PrimaryReads ignored = PrimaryReads.begin()) {
+            return repository.findUncachedVersionById(studyId);
+        }
+    }
+
+    private void invalidateAfterCompletion(Object entity) {
+        if (!(entity instanceof StudyEntity)) return;
+
+        String studyId = ((StudyEntity) entity).getId();
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidate(studyId);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                LOG.debug("Invalidate cached responses of study: {}", studyId);
+                invalidate(studyId);
+            }
+        });
+    }
+}
@@ -0,0 +1,224 @@
+package com.az.ip.api.services.core;
+
+import com.az.ip.api.gen.model.Id;
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.gen.model.Study;
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.persistence.routing.PrimaryReads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Studies, their doctors and their measurements.
+ *
+ * Queries run in a read-only transaction and each change in a single transaction, see {@link PatientService}.
+ */
+@Component
+@Transactional(readOnly = true)
+public class StudyService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StudyService.class);
+
+    @Inject
+    private StudyRepository repository;
+
+    @Inject
+    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+
+    @Inject
+    private MeasurementStore measurementStore;
+
+    @Inject
+    private KeysetPager keysetPager;
+
+    /**
+     * @return the study, or null if there is no study with the name
+     */
+    public Study findByName(String name) {
+        StudyEntity entity = repository.findByName(name);
+        return (entity == null) ? null : toApiEntity(entity);
+    }
+
+    /**
+     * @param orderBy the order field, one of the fields allowed by the API
+     * @param ascending
+     * @param page
+     * @param size the size of the page, -1 to get all studies
+     * @return
+     */
+    public KeysetPage<Study> findAll(String orderBy, boolean ascending, long page, long size) {
+
+        // The id is the tie-breaker, as in the KeysetPager, i.e. the cursor of the page continues in the same order
+        Sort.Direction direction = ascending ? Sort.Direction.ASC : Sort.Direction.DESC;
+        Sort sort = new Sort(new Sort.Order(direction, orderBy), new Sort.Order(direction, "id"));
+        Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
+
+        List<StudyEntity> entities = new ArrayList<>();
+        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(entities::add);
+
+        return toApiEntities(entities, orderBy, ascending, size);
+    }
+
+    public KeysetPage<Study> findAfter(KeysetCursor cursor, long size) {
+        List<StudyEntity> entities = keysetPager.findNextPage(StudyEntity.class, cursor, (int)size);
+        return toApiEntities(entities, cursor.getOrderBy(), cursor.isAscending(), size);
+    }
+
+    /**
+     * @return the study, or null if not found
+     */
+    public Study findOne(String studyId) {
+        StudyEntity entity = repository.findOne(studyId);
+        return (entity == null) ? null : toApiEntity(entity);
+    }
+
+    /**
+     * Looks up the version without loading the study, i.e. for conditional requests, see {@link ETags}
+     *
+     * @return the version of the study, or null if not found
+     */
+    public Integer findVersion(String studyId) {
+        return repository.findVersionById(studyId);
+    }
+
+    @Transactional
+    public Study create(Study study) {
+        StudyEntity newEntity = repository.save(toNewDbEntity(study));
+        LOG.debug("Created entity with id: {}", newEntity.getId());
+        return toApiEntity(newEntity);
+    }
+
+    @Transactional
+    public void update(Study study) {
+        repository.save(toExistingDbEntity(study));
+    }
+
+    /**
+     * Removes the study, its relations and its assignments of doctors, the measurements of the relations have to be
+     * removed first, see {@link CascadingDeleter}. Does nothing if the study doesn't exist.
+     */
+    @Transactional
+    public void delete(String studyId) {
+        int relations = patientDoctorStudyRepository.deleteByStudyId(studyId);
+
+        // Before the study is removed, since the removal would be cascaded to the doctors
+        repository.removeAllDoctorsFromStudy(studyId);
+
+        StudyEntity entity = repository.findOne(studyId);
+        if (entity != null) repository.delete(entity);
+        LOG.debug("Deleted study with id: {} and #{} relations", studyId, relations);
+    }
+
+    /**
+     * Id's of the doctors assigned to the study, ordered by id
+     *
+     * @param studyId
+     * @param limit the max number of id's, -1 to get all id's
+     * @param after the id to start after, or null to start from the first doctor
+     * @return
+     */
+    public KeysetPage<Id> findDoctorIds(String studyId, long limit, String after) {
+        List<String> ids = repository.findDoctorIdsByStudyId(studyId, keysetPager.afterId(after), keysetPager.limitIds(limit));
+        return toApiIds(ids, limit);
+    }
+
+    /**
+     * Assigns a doctor to the study, without loading or versioning the study, i.e. idempotent and free of conflicts
+     * with concurrent assignments.
+     *
+     * Runs the assignment in a transaction of its own, since a concurrent assignment of the same doctor makes it fail
+     * on the unique key of the join table and marks the transaction for rollback. The doctor is then already assigned.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void assignDoctor(String studyId, String doctorId) {
+        try {
+            repository.assignDoctor(studyId, doctorId);
+
+        } catch (DataIntegrityViolationException ex) {
+            boolean assigned;
+            try (PrimaryReads ignored = PrimaryReads.begin()) {
+                assigned = repository.isDoctorAssigned(studyId, doctorId);
+            }
+            if (!assigned) throw ex;
+
+            LOG.debug("Doctor {} was assigned to study {} concurrently", doctorId, studyId);
+        }
+    }
+
+    @Transactional
+    public void removeDoctor(String studyId, String doctorId) {
+        repository.removeDoctor(studyId, doctorId);
+    }
+
+    public List<Measurement> findMeasurements(String studyId) {
+        List<Measurement> measurements = new ArrayList<>();
+        measurementStore.find(studyId, null, (id, version, description, timestamp, steps) ->
+            measurements.add(toApiMeasurementEntity(id, version, description, timestamp, steps)));
+        return measurements;
+    }
+
+    private KeysetPage<Study> toApiEntities(List<StudyEntity> page, String orderBy, boolean ascending, long size) {
+        return new KeysetPage<>(
+            page.stream().map(this::toApiEntity).collect(Collectors.toList()),
+            keysetPager.nextCursor(page, orderBy, ascending, size));
+    }
+
+    private KeysetPage<Id> toApiIds(List<String> ids, long limit) {
+        return new KeysetPage<>(
+            ids.stream().map(id -> new Id().withId(id)).collect(Collectors.toList()),
+            keysetPager.nextIdCursor(ids, limit));
+    }
+
+    private Study toApiEntity(StudyEntity entity) {
+        return new Study()
+            .withId(entity.getId())
+            .withVersion(entity.getVersion())
+            .withName(entity.getName())
+            .withDescription(entity.getDescription())
+            .withStartdate(entity.getStartdate())
+            .withEnddate(entity.getEnddate());
+    }
+
+    private StudyEntity toNewDbEntity(Study entity) {
+        return new StudyEntity(
+            entity.getName(),
+            entity.getDescription(),
+            entity.getStartdate(),
+            entity.getEnddate()
+        );
+    }
+
+    private StudyEntity toExistingDbEntity(Study entity) {
+        return new StudyEntity(
+            entity.getId(),
+            entity.getVersion(),
+            entity.getName(),
+            entity.getDescription(),
+            entity.getStartdate(),
+            entity.getEnddate()
+        );
+    }
+
+    private Measurement toApiMeasurementEntity(String id, int version, String description, Date timestamp, int steps) {
+        return new Measurement()
+            .withId         (id)
+            .withVersion    (version)
+            .withDescription(description)
+            .withTimestamp  (timestamp)
+            .withSteps      (steps);
+    }
+}
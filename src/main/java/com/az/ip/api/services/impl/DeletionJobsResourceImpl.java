@@ -0,0 +1,39 @@
+package com.az.ip.api.services.impl;
+
+import com.az.ip.api.services.api.DeletionJobsResource;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import com.az.ip.api.services.util.HttpNotFoundException;
+import com.az.ip.api.services.util.SpringMvcUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import javax.inject.Inject;
+
+@RestController
+public class DeletionJobsResourceImpl implements DeletionJobsResource {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeletionJobsResourceImpl.class);
+
+    @Inject
+    SpringMvcUtil util;
+
+    @Inject
+    private CascadingDeleter cascadingDeleter;
+
+    @Override
+    public ResponseEntity<DeletionJob> getDeletionJob(@PathVariable String jobId) {
+        DeletionJob job = cascadingDeleter.findJob(jobId);
+
+        if (job == null) {
+            String errMsg = "Job with id: " + jobId + " was not found";
+            LOG.debug(errMsg);
+            throw new HttpNotFoundException(errMsg);
+        }
+
+        LOG.debug("Job with id: {} is {}", jobId, job.getStatus());
+        return util.createOkResponse(job);
+    }
+}
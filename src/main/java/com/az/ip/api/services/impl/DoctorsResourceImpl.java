@@ -3,25 +3,32 @@ package com.az.ip.api.services.impl;
 import com.az.ip.api.gen.model.*;
 import com.az.ip.api.persistence.jpa.*;
 import com.az.ip.api.services.api.DoctorsResource;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import com.az.ip.api.services.core.ETags;
+import com.az.ip.api.services.core.DoctorService;
+import com.az.ip.api.services.core.KeysetPage;
+import com.az.ip.api.services.core.NaturalKeyCaches;
 import com.az.ip.api.services.model.Pageable;
 import com.az.ip.api.services.model.Sortable;
 import com.az.ip.api.services.util.HttpConflictException;
 import com.az.ip.api.services.util.HttpNotFoundException;
+import com.az.ip.api.services.util.HttpPreconditionFailedException;
 import com.az.ip.api.services.util.HttpUnprocessableEntityException;
 import com.az.ip.api.services.util.SpringMvcUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Sort;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.web.bind.annotation.*;
 
 import javax.inject.Inject;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 
@@ -40,29 +47,41 @@ public class DoctorsResourceImpl implements DoctorsResource {
     SpringMvcUtil util;
 
     @Inject
-    private DoctorRepository repository;
+    private DoctorService service;
 
     @Inject
-    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+    private NaturalKeyCaches naturalKeyCaches;
 
+    @Inject
+    private CascadingDeleter cascadingDeleter;
 
     @Override
     public ResponseEntity<List<Doctor>> findDoctors(
         @RequestParam(required=false) String username,
         @ModelAttribute Sortable sort,
-        @ModelAttribute Pageable page) {
+        @ModelAttribute Pageable page,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
         // Find by name?
         if (username != null) {
             LOG.debug("findByName, username: {}", username);
-            DoctorEntity entity = repository.findByUsername(username);
+            Doctor doctor = naturalKeyCaches.doctors().get(username, () -> service.findByUsername(username));
 
-            List<Doctor> response = (entity == null) ? new ArrayList<>() : singletonList(toApiEntity(entity));
+            List<Doctor> response = (doctor == null) ? new ArrayList<>() : singletonList(doctor);
 
-            return util.createOkResponse(response);
+            return util.createConditionalOkResponse(response, etagOf(response), ifNoneMatch, new HttpHeaders());
 
         }
 
+        // Seek to the page after the cursor?
+        if (page.getAfter() != null) {
+            LOG.debug("find, after: {}, size: {}", page.getAfter(), page.getSize());
+            KeysetCursor cursor = decodeCursor(page.getAfter());
+
+            KeysetPage<Doctor> doctors = service.findAfter(cursor, page.getSize());
+            return toOkResponse(doctors, etagOf(doctors.getElements()), ifNoneMatch);
+        }
+
         // Ordinary find...
         LOG.debug("find, orderBy: {}, order: {}, page: {}, size: {}", sort.getOrderBy(), sort.getOrder(), page.getPage(), page.getSize());
 
@@ -77,15 +96,14 @@ public class DoctorsResourceImpl implements DoctorsResource {
             throw new HttpUnprocessableEntityException(errMsg);
         }
 
-        return util.createOkResponse(findAll(sort.getOrderBy(), sort.getOrder(), page.getPage(), page.getSize()));
+        KeysetPage<Doctor> doctors = service.findAll(sort.getOrderBy(), sort.getOrder() == Sortable.Order.asc, page.getPage(), page.getSize());
+        return toOkResponse(doctors, etagOf(doctors.getElements()), ifNoneMatch);
     }
 
     @Override
     public ResponseEntity<Doctor> createDoctor(@RequestBody Doctor entity) {
         try {
-            DoctorEntity newEntity = repository.save(toNewDbEntity(entity));
-            LOG.debug("Created entity with id: {}", newEntity.getId());
-            return util.createOkResponse(toApiEntity(newEntity));
+            return util.createOkResponse(service.create(entity));
 
         } catch (RuntimeException ex) {
             // TODO: Add checks for common erros such as duplicate detectien and improve error message!
@@ -95,9 +113,20 @@ public class DoctorsResourceImpl implements DoctorsResource {
     }
 
     @Override
-    public ResponseEntity<Doctor> getDoctor(@PathVariable String doctorId) {
+    public ResponseEntity<Doctor> getDoctor(
+        @PathVariable String doctorId,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+
         LOG.debug("Get by id: {}", doctorId);
-        DoctorEntity entity = repository.findOne(doctorId);
+
+        // Compare the version with the If-None-Match header before loading the entity
+        String etag = (ifNoneMatch == null) ? null : ETags.of(doctorId, service.findVersion(doctorId));
+        if (ETags.isNotModified(ifNoneMatch, etag)) {
+            LOG.debug("Entity with id: {} is not modified", doctorId);
+            return util.createNotModifiedResponse(etag);
+        }
+
+        Doctor entity = service.findOne(doctorId);
 
         if (entity == null) {
             String errMsg = "Entity with id: " + doctorId + " was not found";
@@ -106,123 +135,124 @@ public class DoctorsResourceImpl implements DoctorsResource {
 
         } else {
             LOG.debug("Found entity with id: {} and name: {}", entity.getId(), entity.getUsername());
-            return util.createOkResponse(toApiEntity(entity));
+            return util.createConditionalOkResponse(entity, ETags.of(entity.getId(), entity.getVersion()), ifNoneMatch, new HttpHeaders());
         }
     }
 
     @Override
-    public void updateDoctor(@PathVariable String doctorId, @RequestBody Doctor entity) {
+    public void updateDoctor(
+        @PathVariable String doctorId,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+        @RequestBody Doctor entity) {
+
         // TODO #1: What to do if not found??? Upsert or error???
 
         // TODO #2: Do we need to move the id over from the uri-parameter?
         entity.setId(doctorId);
 
+        // A stale If-Match header fails the update before anything is written
+        if (ifMatch != null && ETags.isPreconditionFailed(ifMatch, ETags.of(doctorId, service.findVersion(doctorId)))) {
+            String errMsg = "Entity with id: " + doctorId + " does not match If-Match: " + ifMatch;
+            LOG.debug(errMsg);
+            throw new HttpPreconditionFailedException(errMsg);
+        }
+
         LOG.debug("Update entity: {}, {}, {}", entity.getId(), entity.getVersion(), entity.getUsername());
         try {
-            repository.save(toExistingDbEntity(entity));
-        } catch (ObjectOptimisticLockingFailureException ex) {
+            service.update(entity);
+        } catch (OptimisticLockingFailureException ex) {
             throw new HttpConflictException(ex.getMessage());
         }
     }
 
     @Override
-    public void deleteDoctor(@PathVariable String doctorId) {
+    public ResponseEntity<Void> deleteDoctor(
+        @PathVariable String doctorId,
+        @RequestHeader(value = CascadingDeleter.PREFER_HEADER, required = false) String prefer) {
+
+        if (CascadingDeleter.isAsyncPreferred(prefer)) {
+            DeletionJob job = cascadingDeleter.submit(CascadingDeleter.Target.DOCTOR, doctorId);
+            LOG.debug("Delete by id: {}, job: {}", doctorId, job.getId());
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setLocation(URI.create("/api" + CascadingDeleter.JOBS_PATH + "/" + job.getId()));
+            headers.set(CascadingDeleter.PREFERENCE_APPLIED_HEADER, CascadingDeleter.RESPOND_ASYNC);
+            return new ResponseEntity<>(headers, HttpStatus.ACCEPTED);
+        }
+
         // If not found just return ok to behave idempotent...
         LOG.debug("Delete by id: {}", doctorId);
-        repository.delete(doctorId);
+        cascadingDeleter.delete(CascadingDeleter.Target.DOCTOR, doctorId);
+        return new ResponseEntity<>(HttpStatus.OK);
     }
 
     @Override
-    public ResponseEntity<List<Id>> getAssignedInStudies(@PathVariable String doctorId) {
-        LOG.debug("getAssignedInStudies, doctorIdd: {}", doctorId);
-        DoctorEntity entity = repository.findOne(doctorId);
-        List<Id> studyIds = entity.getAssigendInStudies().stream().map(s -> new Id().withId(s.getId())).collect(Collectors.toList());
+    public ResponseEntity<List<Id>> getAssignedInStudies(
+        @PathVariable String doctorId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
-        LOG.debug("getAssignedInStudies found: #{}", studyIds.size());
+        LOG.debug("getAssignedInStudies, doctorIdd: {}, limit: {}, after: {}", doctorId, limit, after);
+        KeysetPage<Id> ids = service.findStudyIds(doctorId, limit, after);
 
-        return util.createOkResponse(studyIds);
+        LOG.debug("getAssignedInStudies found: #{}", ids.getElements().size());
+
+        return toOkResponse(ids, ETags.ofIds(ids.getElements()), ifNoneMatch);
     }
 
     @Override
     public void assignPatientByDoctorToStudy(@PathVariable String doctorId, @PathVariable String studyId, @RequestBody Id patientIdRef) {
         String patientId = patientIdRef.getId();
 
-        // FIXME. No optimal way to create the mapping entity...
-        patientDoctorStudyRepository.save(
-            new PatientDoctorStudyEntity(
-                new PatientEntity(patientId, 0, ".", null, ".", ".", null, null),
-                new DoctorEntity(doctorId, 0, ".", ".", "."),
-                new StudyEntity(studyId, 0, ".", null, null, null)
-            )
-        );
+        LOG.debug("Assign patient with id {} by doctor with id {} to study with id: {}", patientId, doctorId, studyId);
+        service.assignPatient(patientId, doctorId, studyId);
     }
 
     @Override
-    public ResponseEntity<List<Id>> getPatientsAssignedByDoctorInStudy(@PathVariable String doctorId, @PathVariable String studyId) {
-
-        // FIXME. No optimal way to find mapping entities...
-        List<PatientDoctorStudyEntity> relationList = patientDoctorStudyRepository.findByStudyAndDoctor(
-            new StudyEntity(studyId, 0, ".", null, null, null),
-            new DoctorEntity(doctorId, 0, ".", ".", ".")
-        );
-
-        List<Id> patientIds = relationList.stream().map(r -> new Id().withId(r.getPatient().getId())).collect(Collectors.toList());
-
-        return util.createOkResponse(patientIds);
+    public ResponseEntity<List<Id>> getPatientsAssignedByDoctorInStudy(
+        @PathVariable String doctorId,
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+
+        KeysetPage<Id> ids = service.findPatientIds(doctorId, studyId, limit, after);
+        return toOkResponse(ids, ETags.ofIds(ids.getElements()), ifNoneMatch);
     }
 
     @Override
     public void removePatientAssignedByDoctorInStudy(@PathVariable String doctorId, @PathVariable String studyId, @PathVariable String patientId) {
-        // FIXME. No optimal way to delete a patient from a study...
-
-        List<PatientDoctorStudyEntity> relationList = patientDoctorStudyRepository.findByPatientAndDoctorAndStudy(
-            new PatientEntity(patientId, 0, ".", null, ".", ".", null, null),
-            new DoctorEntity(doctorId, 0, ".", ".", "."),
-            new StudyEntity(studyId, 0, ".", null, null, null)
-        );
-
-        if (relationList.size() > 1) throw new RuntimeException("Inconsistenct detected, expecte 0 or 1 bug found: " + relationList.size());
-
-        if (relationList.size() == 1) {
-            patientDoctorStudyRepository.delete(relationList.get(0));
-        }
+        // If not found just return ok to behave idempotent...
+        LOG.debug("Remove patient with id {} assigned by doctor with id {} from study with id: {}", patientId, doctorId, studyId);
+        service.removePatient(patientId, doctorId, studyId);
     }
 
-    // TODO: Extract Common code!
-    private List<Doctor> findAll(String orderBy, Sortable.Order order, long page, long size) {
-
-        Sort.Direction sortOrder = (order == Sortable.Order.asc) ? Sort.Direction.ASC : Sort.Direction.DESC;
-        Sort sort = new Sort(new Sort.Order(sortOrder, orderBy));
-
-        org.springframework.data.domain.Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
-
-        // TODO. Would be nice to be able to use Java 8 streams here!
-        // See https://spring.io/blog/2015/03/26/what-s-new-in-spring-data-fowler
-        List<Doctor> elements = new ArrayList<>();
-        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(e -> elements.add(toApiEntity(e)));
-
-        return elements;
+    private <T> ResponseEntity<List<T>> toOkResponse(KeysetPage<T> page, String etag, String ifNoneMatch) {
+        HttpHeaders headers = new HttpHeaders();
+        if (page.getNextCursor() != null) headers.set(KeysetCursor.NEXT_CURSOR_HEADER, page.getNextCursor());
+        return util.createConditionalOkResponse(page.getElements(), etag, ifNoneMatch, headers);
     }
 
-    private Doctor toApiEntity(DoctorEntity p) {
-        return new Doctor()
-            .withId       (p.getId())
-            .withVersion  (p.getVersion())
-            .withUsername (p.getUsername())
-            .withFirstname(p.getFirstname())
-            .withLastname (p.getLastname());
+    private String etagOf(List<Doctor> doctors) {
+        return ETags.ofEntities(doctors, Doctor::getId, Doctor::getVersion);
     }
 
-    private DoctorEntity toNewDbEntity(Doctor p) {
-        return new DoctorEntity(
-            p.getUsername(), p.getFirstname(), p.getLastname()
-        );
-    }
+    private KeysetCursor decodeCursor(String after) {
+        KeysetCursor cursor;
+        try {
+            cursor = KeysetCursor.decode(after);
+        } catch (IllegalArgumentException ex) {
+            cursor = null;
+        }
 
-    private DoctorEntity toExistingDbEntity(Doctor p) {
-        return new DoctorEntity(
-            p.getId(), p.getVersion(), p.getUsername(), p.getFirstname(), p.getLastname()
-        );
-    }
+        // The order field of the cursor has to be part of the list of allowed fields
+        if (cursor == null || !ORDER_FIELDS.contains(cursor.getOrderBy())) {
+            String errMsg = "Cursor [" + after + "] is invalid";
+            LOG.error("getDoctors request failed: " + errMsg);
 
+            throw new HttpUnprocessableEntityException(errMsg);
+        }
+        return cursor;
+    }
 }
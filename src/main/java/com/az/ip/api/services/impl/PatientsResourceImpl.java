@@ -3,25 +3,39 @@ package com.az.ip.api.services.impl;
 import com.az.ip.api.gen.model.*;
 import com.az.ip.api.persistence.jpa.*;
 import com.az.ip.api.services.api.PatientsResource;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import com.az.ip.api.services.core.ETags;
+import com.az.ip.api.services.core.KeysetPage;
+import com.az.ip.api.services.core.MeasurementAggregator;
+import com.az.ip.api.services.core.MeasurementIdempotency;
+import com.az.ip.api.services.core.MeasurementIngester;
+import com.az.ip.api.services.core.MeasurementWriteBehind;
+import com.az.ip.api.services.core.NaturalKeyCaches;
+import com.az.ip.api.services.core.PatientService;
 import com.az.ip.api.services.model.Pageable;
 import com.az.ip.api.services.model.Sortable;
 import com.az.ip.api.services.util.HttpConflictException;
 import com.az.ip.api.services.util.HttpNotFoundException;
+import com.az.ip.api.services.util.HttpPreconditionFailedException;
+import com.az.ip.api.services.util.HttpServiceUnavailableException;
 import com.az.ip.api.services.util.HttpUnprocessableEntityException;
 import com.az.ip.api.services.util.SpringMvcUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Sort;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.web.bind.annotation.*;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 
@@ -40,31 +54,50 @@ public class PatientsResourceImpl implements PatientsResource {
     SpringMvcUtil util;
 
     @Inject
-    private PatientRepository repository;
+    private PatientService service;
 
     @Inject
-    private StudyRepository studyRepository;
+    private NaturalKeyCaches naturalKeyCaches;
 
     @Inject
-    private MeasurementRepository measurementRepository;
+    private CascadingDeleter cascadingDeleter;
 
     @Inject
-    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+    private MeasurementIngester measurementIngester;
+
+    @Inject
+    private MeasurementAggregator measurementAggregator;
+
+    @Inject
+    private MeasurementWriteBehind measurementWriteBehind;
+
+    @Inject
+    private MeasurementIdempotency measurementIdempotency;
 
     @Override
     public ResponseEntity<List<Patient>> findPatients(
         @RequestParam(required=false) String username,
         @ModelAttribute Sortable sort,
-        @ModelAttribute Pageable page) {
+        @ModelAttribute Pageable page,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
         // Find by name?
         if (username != null) {
             LOG.debug("findByName, name: {}", username);
-            PatientEntity entity = repository.findByUsername(username);
+            Patient patient = naturalKeyCaches.patients().get(username, () -> service.findByUsername(username));
 
-            List<Patient> response = (entity == null) ? new ArrayList<>() : singletonList(toApiEntity(entity));
+            List<Patient> response = (patient == null) ? new ArrayList<>() : singletonList(patient);
 
-            return util.createOkResponse(response);
+            return util.createConditionalOkResponse(response, etagOf(response), ifNoneMatch, new HttpHeaders());
+        }
+
+        // Seek to the page after the cursor?
+        if (page.getAfter() != null) {
+            LOG.debug("find, after: {}, size: {}", page.getAfter(), page.getSize());
+            KeysetCursor cursor = decodeCursor(page.getAfter());
+
+            KeysetPage<Patient> patients = service.findAfter(cursor, page.getSize());
+            return toOkResponse(patients, etagOf(patients.getElements()), ifNoneMatch);
         }
 
         LOG.debug("find, orderBy: {}, order: {}, page: {}, size: {}", sort.getOrderBy(), sort.getOrder(), page.getPage(), page.getSize());
@@ -80,15 +113,14 @@ public class PatientsResourceImpl implements PatientsResource {
             throw new HttpUnprocessableEntityException(errMsg);
         }
 
-        return util.createOkResponse(findAll(sort.getOrderBy(), sort.getOrder(), page.getPage(), page.getSize()));
+        KeysetPage<Patient> patients = service.findAll(sort.getOrderBy(), sort.getOrder() == Sortable.Order.asc, page.getPage(), page.getSize());
+        return toOkResponse(patients, etagOf(patients.getElements()), ifNoneMatch);
     }
 
     @Override
     public ResponseEntity<Patient> createPatient(@RequestBody Patient entity) {
         try {
-            PatientEntity newEntity = repository.save(toNewDbEntity(entity));
-            LOG.debug("Created entity with id: {}", newEntity.getId());
-            return util.createOkResponse(toApiEntity(newEntity));
+            return util.createOkResponse(service.create(entity));
 
         } catch (RuntimeException ex) {
             // TODO: Add checks for common erros such as duplicate detectien and improve error message!
@@ -98,9 +130,20 @@ public class PatientsResourceImpl implements PatientsResource {
     }
 
     @Override
-    public ResponseEntity<Patient> getPatient(@PathVariable String patientId) {
+    public ResponseEntity<Patient> getPatient(
+        @PathVariable String patientId,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+
         LOG.debug("Get by id: {}", patientId);
-        PatientEntity entity = repository.findOne(patientId);
+
+        // Compare the version with the If-None-Match header before loading the entity
+        String etag = (ifNoneMatch == null) ? null : ETags.of(patientId, service.findVersion(patientId));
+        if (ETags.isNotModified(ifNoneMatch, etag)) {
+            LOG.debug("Entity with id: {} is not modified", patientId);
+            return util.createNotModifiedResponse(etag);
+        }
+
+        Patient entity = service.findOne(patientId);
 
         if (entity == null) {
             String errMsg = "Entity with id: " + patientId + " was not found";
@@ -109,130 +152,176 @@ public class PatientsResourceImpl implements PatientsResource {
 
         } else {
             LOG.debug("Found entity with id: {} and username: {}", entity.getId(), entity.getUsername());
-            return util.createOkResponse(toApiEntity(entity));
+            return util.createConditionalOkResponse(entity, ETags.of(entity.getId(), entity.getVersion()), ifNoneMatch, new HttpHeaders());
         }
     }
 
     @Override
-    public void updatePatient(@PathVariable String patientId, @RequestBody Patient entity) {
+    public void updatePatient(
+        @PathVariable String patientId,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+        @RequestBody Patient entity) {
+
         // TODO #1: What to do if not found??? Upsert or error???
 
         // TODO #2: Do we need to move the id over from the uri-parameter?
         entity.setId(patientId);
 
+        // A stale If-Match header fails the update before anything is written
+        if (ifMatch != null && ETags.isPreconditionFailed(ifMatch, ETags.of(patientId, service.findVersion(patientId)))) {
+            String errMsg = "Entity with id: " + patientId + " does not match If-Match: " + ifMatch;
+            LOG.debug(errMsg);
+            throw new HttpPreconditionFailedException(errMsg);
+        }
+
         LOG.debug("Update entity: {}, {}, {}", entity.getId(), entity.getVersion(), entity.getUsername());
         try {
-            repository.save(toExistingDbEntity(entity));
-        } catch (ObjectOptimisticLockingFailureException ex) {
+            service.update(entity);
+        } catch (OptimisticLockingFailureException ex) {
             throw new HttpConflictException(ex.getMessage());
         }
     }
 
     @Override
-    public void deletePatient(@PathVariable String patientId) {
+    public ResponseEntity<Void> deletePatient(
+        @PathVariable String patientId,
+        @RequestHeader(value = CascadingDeleter.PREFER_HEADER, required = false) String prefer) {
+
+        if (CascadingDeleter.isAsyncPreferred(prefer)) {
+            DeletionJob job = cascadingDeleter.submit(CascadingDeleter.Target.PATIENT, patientId);
+            LOG.debug("Delete by id: {}, job: {}", patientId, job.getId());
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setLocation(URI.create("/api" + CascadingDeleter.JOBS_PATH + "/" + job.getId()));
+            headers.set(CascadingDeleter.PREFERENCE_APPLIED_HEADER, CascadingDeleter.RESPOND_ASYNC);
+            return new ResponseEntity<>(headers, HttpStatus.ACCEPTED);
+        }
+
         // If not found just return ok to behave idempotent...
         LOG.debug("Delete by id: {}", patientId);
-        repository.delete(patientId);
+        cascadingDeleter.delete(CascadingDeleter.Target.PATIENT, patientId);
+        return new ResponseEntity<>(HttpStatus.OK);
     }
 
     @Override
-    public ResponseEntity<List<Id>> getAssignedInStudies(@PathVariable String patientId) {
+    public ResponseEntity<List<Id>> getAssignedInStudies(
+        @PathVariable String patientId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
-        LOG.debug("getAssignedDoctors to study with id: {}", patientId);
+        LOG.debug("getAssignedInStudies for patient with id: {}, limit: {}, after: {}", patientId, limit, after);
 
-        List<Id> studyIds = patientDoctorStudyRepository.findByPatientId(patientId).stream()
-            .map(s -> new Id().withId(s.getStudy().getId()))
-            .collect(Collectors.toList());
+        KeysetPage<Id> ids = service.findStudyIds(patientId, limit, after);
 
-        LOG.debug("getAssignedInStudies found: #{}", studyIds.size());
+        LOG.debug("getAssignedInStudies found: #{}", ids.getElements().size());
 
-        return util.createOkResponse(studyIds);
+        return toOkResponse(ids, ETags.ofIds(ids.getElements()), ifNoneMatch);
     }
 
     @Override
-    public void addMeasurementToPatientInStudy(@PathVariable String patientId, @PathVariable String studyId, @RequestBody Measurement measurement) {
-        LOG.debug("Add measurement to patient with id {} for study with id: {}", patientId, studyId);
-        measurementRepository.save(toNewDbMeasurementEntity(findByPatientIdAndStudyId(patientId, studyId), measurement));
+    public ResponseEntity<List<BulkMeasurementResult>> addMeasurements(@RequestBody List<BulkMeasurement> measurements) {
+        LOG.debug("Add #{} measurements", measurements.size());
+        return util.createOkResponse(measurementIngester.ingest(measurements));
     }
 
     @Override
-    public ResponseEntity<List<Measurement>> getPatientInStudyMeasurements(@PathVariable String patientId, @PathVariable String studyId) {
+    public ResponseEntity<List<BulkMeasurementResult>> addMeasurementsAsNdjson(InputStream ndjson) throws IOException {
+        return util.createOkResponse(measurementIngester.ingest(ndjson));
+    }
 
-        LOG.debug("getPatientInStudyMeasurements for patient with id {} for study with id: {}", patientId, studyId);
+    @Override
+    public ResponseEntity<Void> addMeasurementToPatientInStudy(
+        @PathVariable String patientId,
+        @PathVariable String studyId,
+        @RequestHeader(value = MeasurementIdempotency.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+        @RequestBody Measurement measurement) {
+
+        LOG.debug("Add measurement to patient with id {} for study with id: {}, idempotency key: {}", patientId, studyId, idempotencyKey);
+
+        // A replay has to return the stored measurement, i.e. measurements with a key are not queued
+        if (measurementWriteBehind.isEnabled() && idempotencyKey == null) {
+            if (!measurementWriteBehind.offer(patientId, studyId, measurement)) {
+                String errMsg = "The measurement queue is full, retry later";
+                LOG.warn("addMeasurementToPatientInStudy request rejected: " + errMsg);
+                throw new HttpServiceUnavailableException(errMsg);
+            }
+            return new ResponseEntity<>(HttpStatus.ACCEPTED);
+        }
 
-        List<Measurement> measurements = findByPatientIdAndStudyId(patientId, studyId).getMeasurements().stream()
-            .map(m -> toApiMeasurementEntity(m))
-            .collect(Collectors.toList());
+        try {
+            MeasurementIdempotency.Result result = measurementIdempotency.addMeasurement(patientId, studyId, measurement, idempotencyKey);
 
-        LOG.debug("getPatientInStudyMeasurements found: #{}", measurements.size());
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(MeasurementIdempotency.MEASUREMENT_ID_HEADER, result.getMeasurementId());
+            return new ResponseEntity<>(headers, HttpStatus.OK);
 
-        return util.createOkResponse(measurements);
+        } catch (IllegalArgumentException ex) {
+            LOG.error("addMeasurementToPatientInStudy request failed: " + ex.getMessage());
+            throw new HttpUnprocessableEntityException(ex.getMessage());
+        }
     }
 
     @Override
-    public void deleteMeasurmentFromPatientInStudy(@PathVariable String patientId, @PathVariable String studyId, @PathVariable String measurementId) {
-        LOG.debug("Delete measurement with id: #{}", measurementId);
-        measurementRepository.delete(measurementId);
-    }
-
-    private PatientDoctorStudyEntity findByPatientIdAndStudyId(String patientId, String studyId) {
-        // FIXME. What to do if there are >1 study assigned to one and the same patient? (indicates inconsistent data...)
-        List<PatientDoctorStudyEntity> list = patientDoctorStudyRepository.findByPatientIdAndStudyId(patientId, studyId);
-        return (list.size() == 0) ? null : list.get(0);
-    }
-
-    private List<Patient> findAll(String orderBy, Sortable.Order order, long page, long size) {
+    public ResponseEntity<List<Measurement>> getPatientInStudyMeasurements(@PathVariable String patientId, @PathVariable String studyId) {
 
-        Sort.Direction sortOrder = (order == Sortable.Order.asc) ? Sort.Direction.ASC : Sort.Direction.DESC;
-        Sort sort = new Sort(new Sort.Order(sortOrder, orderBy));
+        LOG.debug("getPatientInStudyMeasurements for patient with id {} for study with id: {}", patientId, studyId);
 
-        org.springframework.data.domain.Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
+        List<Measurement> measurements = service.findMeasurements(patientId, studyId);
 
-        // TODO. Would be nice to be able to use Java 8 streams here!
-        // See https://spring.io/blog/2015/03/26/what-s-new-in-spring-data-fowler
-        List<Patient> elements = new ArrayList<>();
-        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(e -> elements.add(toApiEntity(e)));
+        LOG.debug("getPatientInStudyMeasurements found: #{}", measurements.size());
 
-        return elements;
+        return util.createOkResponse(measurements);
     }
 
-    private Patient toApiEntity(PatientEntity p) {
-        return new Patient()
-            .withId       (p.getId())
-            .withVersion  (p.getVersion())
-            .withUsername (p.getUsername())
-            .withPatientID(p.getPatientID())
-            .withFirstname(p.getFirstname())
-            .withLastname (p.getLastname())
-            .withWeight   (p.getWeight())
-            .withHeight   (p.getHeight());
+    @Override
+    public ResponseEntity<List<StepAggregate>> getPatientInStudyAggregatedSteps(
+        @PathVariable String patientId,
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = MeasurementAggregator.DEFAULT_BUCKET) String bucket,
+        @RequestParam(required = false) String from,
+        @RequestParam(required = false) String to) {
+
+        LOG.debug("getPatientInStudyAggregatedSteps for patient with id {} for study with id: {}, bucket: {}", patientId, studyId, bucket);
+        try {
+            return util.createOkResponse(measurementAggregator.aggregate(studyId, patientId, bucket, from, to));
+        } catch (IllegalArgumentException ex) {
+            LOG.error("getPatientInStudyAggregatedSteps request failed: " + ex.getMessage());
+            throw new HttpUnprocessableEntityException(ex.getMessage());
+        }
     }
 
-    private PatientEntity toNewDbEntity(Patient p) {
-        return new PatientEntity(
-            p.getUsername(), p.getPatientID(), p.getFirstname(), p.getLastname(), p.getWeight(), p.getHeight()
-        );
+    @Override
+    public void deleteMeasurmentFromPatientInStudy(@PathVariable String patientId, @PathVariable String studyId, @PathVariable String measurementId) {
+        LOG.debug("Delete measurement with id: #{}", measurementId);
+        service.deleteMeasurement(measurementId);
     }
 
-    private PatientEntity toExistingDbEntity(Patient p) {
-        return new PatientEntity(
-            p.getId(), p.getVersion(), p.getUsername(), p.getPatientID(), p.getFirstname(), p.getLastname(), p.getWeight(), p.getHeight()
-        );
+    private <T> ResponseEntity<List<T>> toOkResponse(KeysetPage<T> page, String etag, String ifNoneMatch) {
+        HttpHeaders headers = new HttpHeaders();
+        if (page.getNextCursor() != null) headers.set(KeysetCursor.NEXT_CURSOR_HEADER, page.getNextCursor());
+        return util.createConditionalOkResponse(page.getElements(), etag, ifNoneMatch, headers);
     }
 
-    private Measurement toApiMeasurementEntity(MeasurementEntity m) {
-        return new Measurement()
-            .withId         (m.getId())
-            .withVersion    (m.getVersion())
-            .withDescription(m.getDescription())
-            .withTimestamp  (m.getTimestamp())
-            .withSteps      (m.getSteps());
+    private String etagOf(List<Patient> patients) {
+        return ETags.ofEntities(patients, Patient::getId, Patient::getVersion);
     }
 
-    private MeasurementEntity toNewDbMeasurementEntity(PatientDoctorStudyEntity p, Measurement m) {
-        return new MeasurementEntity(
-            p, m.getDescription(), m.getTimestamp(), m.getSteps()
-        );
-    }
+    private KeysetCursor decodeCursor(String after) {
+        KeysetCursor cursor;
+        try {
+            cursor = KeysetCursor.decode(after);
+        } catch (IllegalArgumentException ex) {
+            cursor = null;
+        }
+
+        // The order field of the cursor has to be part of the list of allowed fields
+        if (cursor == null || !ORDER_FIELDS.contains(cursor.getOrderBy())) {
+            String errMsg = "Cursor [" + after + "] is invalid";
+            LOG.error("getPatients request failed: " + errMsg);
 
+            throw new HttpUnprocessableEntityException(errMsg);
+        }
+        return cursor;
+    }
 }
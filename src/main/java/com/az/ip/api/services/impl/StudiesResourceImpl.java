@@ -3,26 +3,36 @@ package com.az.ip.api.services.impl;
 import com.az.ip.api.gen.model.*;
 import com.az.ip.api.persistence.jpa.*;
 import com.az.ip.api.services.api.StudiesResource;
+import com.az.ip.api.services.core.CascadingDeleter;
+import com.az.ip.api.services.core.DeletionJob;
+import com.az.ip.api.services.core.ETags;
+import com.az.ip.api.services.core.KeysetPage;
+import com.az.ip.api.services.core.MeasurementAggregator;
+import com.az.ip.api.services.core.MeasurementExporter;
+import com.az.ip.api.services.core.NaturalKeyCaches;
+import com.az.ip.api.services.core.StudyService;
 import com.az.ip.api.services.model.Pageable;
 import com.az.ip.api.services.model.Sortable;
 import com.az.ip.api.services.util.HttpConflictException;
 import com.az.ip.api.services.util.HttpNotFoundException;
+import com.az.ip.api.services.util.HttpPreconditionFailedException;
 import com.az.ip.api.services.util.HttpUnprocessableEntityException;
 import com.az.ip.api.services.util.SpringMvcUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Sort;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.annotation.ResponseStatusExceptionResolver;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.inject.Inject;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static java.util.Collections.singletonList;
 
@@ -41,27 +51,43 @@ public class StudiesResourceImpl implements StudiesResource {
     SpringMvcUtil util;
 
     @Inject
-    private StudyRepository repository;
+    private StudyService service;
 
     @Inject
-    private DoctorRepository doctorRepository;
+    private NaturalKeyCaches naturalKeyCaches;
 
     @Inject
-    private PatientDoctorStudyRepository patientDoctorStudyRepository;
+    private CascadingDeleter cascadingDeleter;
+
+    @Inject
+    private MeasurementExporter measurementExporter;
+
+    @Inject
+    private MeasurementAggregator measurementAggregator;
 
     @Override
     public ResponseEntity<List<Study>> findStudies(
         @RequestParam(required=false) String name,
         @ModelAttribute Sortable sort,
-        @ModelAttribute Pageable page) {
+        @ModelAttribute Pageable page,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
         // Find by name?
         if (name != null) {
             LOG.debug("findByName, name: {}", name);
-            StudyEntity entity = repository.findByName(name);
-            List<Study> response = (entity == null) ? new ArrayList<>() : singletonList(toApiEntity(entity));
+            Study study = naturalKeyCaches.studies().get(name, () -> service.findByName(name));
+            List<Study> response = (study == null) ? new ArrayList<>() : singletonList(study);
+
+            return util.createConditionalOkResponse(response, etagOf(response), ifNoneMatch, new HttpHeaders());
+        }
+
+        // Seek to the page after the cursor?
+        if (page.getAfter() != null) {
+            LOG.debug("find, after: {}, size: {}", page.getAfter(), page.getSize());
+            KeysetCursor cursor = decodeCursor(page.getAfter());
 
-            return util.createOkResponse(response);
+            KeysetPage<Study> studies = service.findAfter(cursor, page.getSize());
+            return toOkResponse(studies, etagOf(studies.getElements()), ifNoneMatch);
         }
 
         // Ordinary find...
@@ -79,15 +105,14 @@ public class StudiesResourceImpl implements StudiesResource {
             throw new HttpUnprocessableEntityException(errMsg);
         }
 
-        return util.createOkResponse(findAll(sort.getOrderBy(), sort.getOrder(), page.getPage(), page.getSize()));
+        KeysetPage<Study> studies = service.findAll(sort.getOrderBy(), sort.getOrder() == Sortable.Order.asc, page.getPage(), page.getSize());
+        return toOkResponse(studies, etagOf(studies.getElements()), ifNoneMatch);
     }
 
     @Override
     public ResponseEntity<Study> createStudy(@RequestBody Study entity) {
         try {
-            StudyEntity newEntity = repository.save(toNewDbEntity(entity));
-            LOG.debug("Created entity with id: {}", newEntity.getId());
-            return util.createOkResponse(toApiEntity(newEntity));
+            return util.createOkResponse(service.create(entity));
 
         } catch (RuntimeException ex) {
             // TODO: Add checks for common erros such as duplicate detectien and improve error message!
@@ -97,9 +122,20 @@ public class StudiesResourceImpl implements StudiesResource {
     }
 
     @Override
-    public ResponseEntity<Study> getStudy(@PathVariable String studyId) {
+    public ResponseEntity<Study> getStudy(
+        @PathVariable String studyId,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+
         LOG.debug("Get by id: {}", studyId);
-        StudyEntity entity = repository.findOne(studyId);
+
+        // Compare the version with the If-None-Match header before loading the entity
+        String etag = (ifNoneMatch == null) ? null : ETags.of(studyId, service.findVersion(studyId));
+        if (ETags.isNotModified(ifNoneMatch, etag)) {
+            LOG.debug("Entity with id: {} is not modified", studyId);
+            return util.createNotModifiedResponse(etag);
+        }
+
+        Study entity = service.findOne(studyId);
 
         if (entity == null) {
             String errMsg = "Entity with id: " + studyId + " was not found";
@@ -108,41 +144,70 @@ public class StudiesResourceImpl implements StudiesResource {
 
         } else {
             LOG.debug("Found entity with id: {} and name: {}", entity.getId(), entity.getName());
-            return util.createOkResponse(toApiEntity(entity));
+            return util.createConditionalOkResponse(entity, ETags.of(entity.getId(), entity.getVersion()), ifNoneMatch, new HttpHeaders());
         }
     }
 
     @Override
-    public void updateStudy(@PathVariable String studyId, @RequestBody Study entity) {
+    public void updateStudy(
+        @PathVariable String studyId,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+        @RequestBody Study entity) {
+
         // TODO #1: What to do if not found??? Upsert or error???
 
         // TODO #2: Do we need to move the id over from the uri-parameter?
         entity.setId(studyId);
 
+        // A stale If-Match header fails the update before anything is written
+        if (ifMatch != null && ETags.isPreconditionFailed(ifMatch, ETags.of(studyId, service.findVersion(studyId)))) {
+            String errMsg = "Entity with id: " + studyId + " does not match If-Match: " + ifMatch;
+            LOG.debug(errMsg);
+            throw new HttpPreconditionFailedException(errMsg);
+        }
+
         LOG.debug("Update entity: {}, {}, {}", entity.getId(), entity.getVersion(), entity.getName());
         try {
-            repository.save(toExistingDbEntity(entity));
-        } catch (ObjectOptimisticLockingFailureException ex) {
+            service.update(entity);
+        } catch (OptimisticLockingFailureException ex) {
             throw new HttpConflictException(ex.getMessage());
         }
     }
 
     @Override
-    public void deleteStudy(@PathVariable String studyId) {
+    public ResponseEntity<Void> deleteStudy(
+        @PathVariable String studyId,
+        @RequestHeader(value = CascadingDeleter.PREFER_HEADER, required = false) String prefer) {
+
+        if (CascadingDeleter.isAsyncPreferred(prefer)) {
+            DeletionJob job = cascadingDeleter.submit(CascadingDeleter.Target.STUDY, studyId);
+            LOG.debug("Delete by id: {}, job: {}", studyId, job.getId());
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setLocation(URI.create("/api" + CascadingDeleter.JOBS_PATH + "/" + job.getId()));
+            headers.set(CascadingDeleter.PREFERENCE_APPLIED_HEADER, CascadingDeleter.RESPOND_ASYNC);
+            return new ResponseEntity<>(headers, HttpStatus.ACCEPTED);
+        }
+
         // If not found just return ok to behave idempotent...
         LOG.debug("Delete by id: {}", studyId);
-        repository.delete(studyId);
+        cascadingDeleter.delete(CascadingDeleter.Target.STUDY, studyId);
+        return new ResponseEntity<>(HttpStatus.OK);
     }
 
     @Override
-    public ResponseEntity<List<Id>> getAssignedDoctors(@PathVariable String studyId) {
-        LOG.debug("getAssignedDoctors to study with id: {}", studyId);
-        StudyEntity entity = repository.findOne(studyId);
-        List<Id> doctorIds = entity.getAssigendDoctors().stream().map(d -> new Id().withId(d.getId())).collect(Collectors.toList());
+    public ResponseEntity<List<Id>> getAssignedDoctors(
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = "-1")  long   limit,
+        @RequestParam(required = false)     String after,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
-        LOG.debug("getAssignedDoctors found: #{}", doctorIds.size());
+        LOG.debug("getAssignedDoctors to study with id: {}, limit: {}, after: {}", studyId, limit, after);
+        KeysetPage<Id> ids = service.findDoctorIds(studyId, limit, after);
 
-        return util.createOkResponse(doctorIds);
+        LOG.debug("getAssignedDoctors found: #{}", ids.getElements().size());
+
+        return toOkResponse(ids, ETags.ofIds(ids.getElements()), ifNoneMatch);
     }
 
     @Override
@@ -151,22 +216,14 @@ public class StudiesResourceImpl implements StudiesResource {
 
         LOG.debug("Assign doctor with id {} to study with id: {}", doctorId, studyId);
 
-        StudyEntity  study  = repository.findOne(studyId);
-        DoctorEntity doctor = doctorRepository.findOne(doctorId);
-        study.getAssigendDoctors().add(doctor);
-
-        repository.save(study);
+        service.assignDoctor(studyId, doctorId);
     }
 
     @Override
     public void removeDoctorFromStudy(@PathVariable String studyId, @PathVariable String doctorId) {
         LOG.debug("Remove doctor with id {} from study with id: {}", doctorId, studyId);
 
-        StudyEntity  study  = repository.findOne(studyId);
-        DoctorEntity doctor = doctorRepository.findOne(doctorId);
-        study.getAssigendDoctors().remove(doctor);
-
-        repository.save(study);
+        service.removeDoctor(studyId, doctorId);
     }
 
     @Override
@@ -174,73 +231,65 @@ public class StudiesResourceImpl implements StudiesResource {
 
         LOG.debug("Find all measurements for study with id: {}", studyId);
 
-        StudyEntity study = repository.findOne(studyId);
-        List<Measurement> list = patientDoctorStudyRepository.findByStudy(study).stream()
-            .flatMap(m -> m.getMeasurements().stream())
-            .map(m -> toApiMeasurementEntity(m))
-            .collect(Collectors.toList());
+        List<Measurement> list = service.findMeasurements(studyId);
 
         LOG.debug("getMeasurementsInStudy found: #{}", list.size());
 
         return util.createOkResponse(list);
     }
 
+    @Override
+    public ResponseEntity<StreamingResponseBody> getMeasurementsInStudyAsNdjson(@PathVariable String studyId) {
+        return util.createOkResponse(out -> measurementExporter.export(studyId, MeasurementExporter.Format.NDJSON, out));
+    }
 
-    // TODO: Extract Common code!
-    private List<Study> findAll(String orderBy, Sortable.Order order, long page, long size) {
-
-        Sort.Direction sortOrder = (order == Sortable.Order.asc) ? Sort.Direction.ASC : Sort.Direction.DESC;
-        Sort sort = new Sort(new Sort.Order(sortOrder, orderBy));
-
-        org.springframework.data.domain.Pageable pageable = (size == -1) ? null : new PageRequest((int)page, (int)size, sort);
+    @Override
+    public ResponseEntity<StreamingResponseBody> streamMeasurementsInStudy(@PathVariable String studyId) {
+        return util.createOkResponse(out -> measurementExporter.export(studyId, MeasurementExporter.Format.JSON_ARRAY, out));
+    }
 
-        // TODO. Would be nice to be able to use Java 8 streams here!
-        // See https://spring.io/blog/2015/03/26/what-s-new-in-spring-data-fowler
-        List<Study> elements = new ArrayList<>();
-        ((pageable == null) ? repository.findAll(sort) : repository.findAll(pageable)).forEach(e -> elements.add(toApiEntity(e)));
+    @Override
+    public ResponseEntity<List<StepAggregate>> getAggregatedStepsInStudy(
+        @PathVariable String studyId,
+        @RequestParam(defaultValue = MeasurementAggregator.DEFAULT_BUCKET) String bucket,
+        @RequestParam(required = false) String from,
+        @RequestParam(required = false) String to) {
 
-        return elements;
+        LOG.debug("getAggregatedStepsInStudy for study with id: {}, bucket: {}", studyId, bucket);
+        try {
+            return util.createOkResponse(measurementAggregator.aggregate(studyId, null, bucket, from, to));
+        } catch (IllegalArgumentException ex) {
+            LOG.error("getAggregatedStepsInStudy request failed: " + ex.getMessage());
+            throw new HttpUnprocessableEntityException(ex.getMessage());
+        }
     }
 
-    private Study toApiEntity(StudyEntity entity) {
-        return new Study()
-            .withId(entity.getId())
-            .withVersion(entity.getVersion())
-            .withName(entity.getName())
-            .withDescription(entity.getDescription())
-            .withStartdate(entity.getStartdate())
-            .withEnddate(entity.getEnddate());
-    }
 
-    private StudyEntity toNewDbEntity(Study entity) {
-        return new StudyEntity(
-            entity.getName(),
-            entity.getDescription(),
-            entity.getStartdate(),
-            entity.getEnddate()
-        );
+    private <T> ResponseEntity<List<T>> toOkResponse(KeysetPage<T> page, String etag, String ifNoneMatch) {
+        HttpHeaders headers = new HttpHeaders();
+        if (page.getNextCursor() != null) headers.set(KeysetCursor.NEXT_CURSOR_HEADER, page.getNextCursor());
+        return util.createConditionalOkResponse(page.getElements(), etag, ifNoneMatch, headers);
     }
 
-    private StudyEntity toExistingDbEntity(Study entity) {
-        return new StudyEntity(
-            entity.getId(),
-            entity.getVersion(),
-            entity.getName(),
-            entity.getDescription(),
-            entity.getStartdate(),
-            entity.getEnddate()
-        );
+    private String etagOf(List<Study> studies) {
+        return ETags.ofEntities(studies, Study::getId, Study::getVersion);
     }
 
-    // TODO: Move to a common library with static methods that resourceImpl classesa (and other) can import?
-    private Measurement toApiMeasurementEntity(MeasurementEntity m) {
-        return new Measurement()
-            .withId         (m.getId())
-            .withVersion    (m.getVersion())
-            .withDescription(m.getDescription())
-            .withTimestamp  (m.getTimestamp())
-            .withSteps(m.getSteps());
-    }
+    private KeysetCursor decodeCursor(String after) {
+        KeysetCursor cursor;
+        try {
+            cursor = KeysetCursor.decode(after);
+        } catch (IllegalArgumentException ex) {
+            cursor = null;
+        }
 
+        // The order field of the cursor has to be part of the list of allowed fields
+        if (cursor == null || !ORDER_FIELDS.contains(cursor.getOrderBy())) {
+            String errMsg = "Cursor [" + after + "] is invalid";
+            LOG.error("find request failed: " + errMsg);
 
+            throw new HttpUnprocessableEntityException(errMsg);
+        }
+        return cursor;
+    }
 }
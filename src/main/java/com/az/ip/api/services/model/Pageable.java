@@ -6,6 +6,7 @@ package com.az.ip.api.services.model;
 public class Pageable {
     int page = 0;
     int size = 10;
+    String after = null;
 
     public int getPage() {
         return page;
@@ -22,4 +23,12 @@ public class Pageable {
     public void setSize(int size) {
         this.size = size;
     }
+
+    public String getAfter() {
+        return after;
+    }
+
+    public void setAfter(String after) {
+        this.after = after;
+    }
 }
@@ -0,0 +1,14 @@
+package com.az.ip.api.services.util;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception wrapper for 412, PRECONDITION_FAILED
+ */
+@ResponseStatus(value = HttpStatus.PRECONDITION_FAILED)
+public class HttpPreconditionFailedException extends RuntimeException {
+    public HttpPreconditionFailedException(String message) {
+        super(message);
+    }
+}
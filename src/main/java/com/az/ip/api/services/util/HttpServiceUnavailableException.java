@@ -0,0 +1,14 @@
+package com.az.ip.api.services.util;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception wrapper for 503, SERVICE_UNAVAILABLE
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class HttpServiceUnavailableException extends RuntimeException {
+    public HttpServiceUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,43 @@
+package com.az.ip.api.services.util;
+
+import com.az.ip.api.persistence.jpa.Uuids;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the id's in the path and the after parameter of a request before they reach the database, since only UUID's
+ * can be stored, see {@link Uuids}.
+ *
+ * A malformed id in the path can't be the id of any entity, i.e. the request is answered with 404. On the resources
+ * below an entity, e.g. /studies/{studyId}/assignedDoctors, the after parameter is the id to start after, and a
+ * malformed one is answered with 422, as an invalid cursor.
+ */
+public final class IdParameters {
+
+    private static final List<String> ID_PARAMETERS = Arrays.asList("patientId", "doctorId", "studyId", "measurementId");
+
+    private IdParameters() {}
+
+    /**
+     * @param pathParameters the path parameters of the matched resource, by name
+     * @return the first malformed id, or null if none
+     */
+    public static String findMalformedId(Map<String, String> pathParameters) {
+        for (String name : ID_PARAMETERS) {
+            String value = pathParameters.get(name);
+            if (value != null && !Uuids.isValid(value)) return value;
+        }
+        return null;
+    }
+
+    /**
+     * @param pathParameters the path parameters of the matched resource, by name
+     * @param after the after parameter of the request, null if none
+     * @return true if after is a malformed id on a resource below an entity
+     */
+    public static boolean isMalformedAfterId(Map<String, String> pathParameters, String after) {
+        return after != null && !Uuids.isValid(after) && ID_PARAMETERS.stream().anyMatch(pathParameters::containsKey);
+    }
+}
@@ -0,0 +1,51 @@
+package com.az.ip.api.services.util;
+
+import java.util.Map;
+
+/**
+ * Checks the paging parameters of a request before they reach the services, since e.g. a size of 0 can't be turned
+ * into a page request.
+ *
+ * The page has to be 0 or more, and the size of a page and the limit of a list of id's either -1, for all elements, or
+ * 1 or more. A request with another value is answered with 400. Values that aren't integers are left to the APIs.
+ */
+public final class PagingParameters {
+
+    private PagingParameters() {}
+
+    /**
+     * @param queryParameters the first value of each query parameter of the request, by name
+     * @return the error message of the first invalid paging parameter, or null if none
+     */
+    public static String findInvalidParameter(Map<String, String> queryParameters) {
+        Long page = parse(queryParameters.get("page"));
+        if (page != null && (page < 0 || page > Integer.MAX_VALUE)) {
+            return "Page [" + page + "] must be 0 or more";
+        }
+
+        Long size = parse(queryParameters.get("size"));
+        if (size != null && !isPageSize(size)) {
+            return "Size [" + size + "] must be -1 to get all elements, or 1 or more";
+        }
+
+        Long limit = parse(queryParameters.get("limit"));
+        if (limit != null && !isPageSize(limit)) {
+            return "Limit [" + limit + "] must be -1 to get all id's, or 1 or more";
+        }
+        return null;
+    }
+
+    private static boolean isPageSize(long value) {
+        return value == -1 || (value >= 1 && value <= Integer.MAX_VALUE);
+    }
+
+    private static Long parse(String value) {
+        if (value == null) return null;
+
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
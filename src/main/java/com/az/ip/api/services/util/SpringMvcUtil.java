@@ -1,5 +1,7 @@
 package com.az.ip.api.services.util;
 
+import com.az.ip.api.services.core.ETags;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
@@ -13,6 +15,26 @@ public class SpringMvcUtil {
         return this.createResponse(body, HttpStatus.OK);
     }
 
+    public <T> ResponseEntity<T> createOkResponse(T body, HttpHeaders headers) {
+        return new ResponseEntity(body, headers, HttpStatus.OK);
+    }
+
+    /**
+     * @return an ok response with the ETag, or a 304 without body if the ETag matches the If-None-Match header
+     */
+    public <T> ResponseEntity<T> createConditionalOkResponse(T body, String etag, String ifNoneMatch, HttpHeaders headers) {
+        if (ETags.isNotModified(ifNoneMatch, etag)) return createNotModifiedResponse(etag);
+
+        headers.setETag(etag);
+        return createOkResponse(body, headers);
+    }
+
+    public <T> ResponseEntity<T> createNotModifiedResponse(String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(etag);
+        return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+    }
+
     public <T> ResponseEntity<T> createResponse(ResponseEntity<T> result) {
         ResponseEntity response = this.createResponse(result.getBody(), result.getStatusCode());
         return response;
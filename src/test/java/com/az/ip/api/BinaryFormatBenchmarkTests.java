@@ -0,0 +1,106 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Measurement;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the payload size and the time to serialize and deserialize a list of measurements as JSON, CBOR and Smile,
+ * i.e. the representations of the measurement resources.
+ *
+ * Runs without the application. The number of measurements and iterations are given by -Dbenchmark.rows and
+ * -Dbenchmark.iterations and are kept small by default to keep the build fast. For a large dataset run e.g.
+ * mvn test -Dtest=BinaryFormatBenchmarkTests -Dbenchmark.rows=100000 -Dbenchmark.iterations=50
+ */
+public class BinaryFormatBenchmarkTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BinaryFormatBenchmarkTests.class);
+
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 10000);
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 10);
+    private static final int WARMUP_ITERATIONS = 5;
+
+    @Test
+    public void testSerialization() throws Exception {
+        List<Measurement> measurements = createMeasurements();
+
+        Result json  = run("JSON",  new JsonFactory(),  measurements);
+        Result cbor  = run("CBOR",  new CBORFactory(),  measurements);
+        Result smile = run("Smile", new SmileFactory(), measurements);
+
+        for (Result result : new Result[] {json, cbor, smile}) {
+            LOG.info("{} measurements as {}: {} bytes ({}% of JSON), serialize: {} ms, deserialize: {} ms",
+                ROWS, String.format("%-5s", result.name), result.size, 100 * result.size / json.size, result.serializeMillis, result.deserializeMillis);
+        }
+
+        assertTrue(cbor.size < json.size);
+        assertTrue(smile.size < json.size);
+    }
+
+    private Result run(String name, JsonFactory factory, List<Measurement> measurements) throws Exception {
+        ObjectMapper mapper = new ObjectMapper(factory);
+        JavaType type = mapper.getTypeFactory().constructCollectionType(List.class, Measurement.class);
+        Result result = new Result(name);
+
+        byte[] bytes = null;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            bytes = mapper.writeValueAsBytes(measurements);
+            mapper.readValue(bytes, type);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) bytes = mapper.writeValueAsBytes(measurements);
+        result.serializeMillis = (System.nanoTime() - start) / 1000000 / ITERATIONS;
+
+        List<Measurement> read = null;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) read = mapper.readValue(bytes, type);
+        result.deserializeMillis = (System.nanoTime() - start) / 1000000 / ITERATIONS;
+
+        result.size = bytes.length;
+
+        // The same fields and values in all formats
+        assertEquals(measurements.size(), read.size());
+        assertArrayEquals(mapper.writeValueAsBytes(measurements.get(0)), mapper.writeValueAsBytes(read.get(0)));
+        assertEquals(measurements.get(ROWS - 1).getTimestamp(), read.get(ROWS - 1).getTimestamp());
+        return result;
+    }
+
+    private List<Measurement> createMeasurements() {
+        List<Measurement> measurements = new ArrayList<>(ROWS);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROWS; i++) {
+            measurements.add(new Measurement()
+                .withId         (UUID.randomUUID().toString())
+                .withVersion    (0)
+                .withDescription("Steps during the day")
+                .withTimestamp  (new Date(now - i * 60000L))
+                .withSteps      (i % 20000));
+        }
+        return measurements;
+    }
+
+    private static class Result {
+        final String name;
+        long size;
+        long serializeMillis;
+        long deserializeMillis;
+
+        Result(String name) {
+            this.name = name;
+        }
+    }
+}
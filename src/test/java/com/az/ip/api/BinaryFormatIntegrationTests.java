@@ -0,0 +1,180 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Study;
+import com.az.ip.api.persistence.jpa.StudyEntity;
+import com.az.ip.api.persistence.jpa.StudyRepository;
+import com.az.ip.api.services.core.BinaryFormats;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.util.StreamUtils;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the CBOR and Smile representations are negotiated on both APIs, for requests as well as responses,
+ * and that they contain the same fields as the JSON representation but have ETags of their own.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0"})
+public class BinaryFormatIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String[] BINARY_FORMATS = {BinaryFormats.CBOR, BinaryFormats.SMILE};
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    private final ObjectMapper json = new ObjectMapper();
+
+    @After
+    public void cleanDb() {
+        studyRepository.deleteAll();
+    }
+
+    @Test
+    public void testGetInBinaryFormats() throws IOException {
+        StudyEntity study = studyRepository.save(new StudyEntity("S-1", "A study", new Date(), new Date()));
+
+        for (String baseUri : BASE_URIS) {
+            String uri = baseUri + "/studies/" + study.getId();
+            JsonNode expected = json.readTree(read(request("GET", uri, "application/json", null, null)));
+
+            for (String format : BINARY_FORMATS) {
+                HttpURLConnection connection = request("GET", uri, format, null, null);
+                assertEquals(200, connection.getResponseCode());
+                assertTrue(connection.getContentType(), connection.getContentType().startsWith(format));
+
+                // The same fields and values as the JSON representation
+                assertEquals(expected, mapper(format).readTree(read(connection)));
+
+                Study[] studies = mapper(format).readValue(read(request("GET", baseUri + "/studies?size=-1", format, null, null)), Study[].class);
+                assertEquals(1, studies.length);
+                assertEquals("S-1", studies[0].getName());
+            }
+        }
+    }
+
+    @Test
+    public void testPostInBinaryFormats() throws IOException {
+        for (String baseUri : BASE_URIS) {
+            for (String format : BINARY_FORMATS) {
+                String name = "S-" + baseUri + format;
+                byte[] body = mapper(format).writeValueAsBytes(new Study()
+                    .withName(name).withDescription("A study").withStartdate(new Date()).withEnddate(new Date()));
+
+                HttpURLConnection connection = request("POST", baseUri + "/studies", format, format, body);
+                assertEquals(200, connection.getResponseCode());
+
+                Study created = mapper(format).readValue(read(connection), Study.class);
+                assertNotNull(created.getId());
+                assertEquals(name, created.getName());
+                assertEquals(name, studyRepository.findOne(created.getId()).getName());
+
+                // Errors are negotiated as well
+                connection = request("POST", baseUri + "/studies", format, format, body);
+                assertEquals(409, connection.getResponseCode());
+                assertTrue(connection.getContentType(), connection.getContentType().startsWith(format));
+                assertTrue(mapper(format).readTree(readError(connection)).has("message"));
+            }
+        }
+    }
+
+    @Test
+    public void testETagsOfRepresentations() throws IOException {
+        StudyEntity study = studyRepository.save(new StudyEntity("S-1", "A study", new Date(), new Date()));
+
+        for (String baseUri : BASE_URIS) {
+            for (String uri : new String[] {baseUri + "/studies/" + study.getId(), baseUri + "/studies?size=-1"}) {
+                HttpURLConnection connection = request("GET", uri, "application/json", null, null);
+                String jsonETag = connection.getHeaderField("ETag");
+                assertTrue(connection.getHeaderField("Vary"), connection.getHeaderField("Vary").contains("Accept"));
+
+                for (String format : BINARY_FORMATS) {
+                    connection = request("GET", uri, format, null, null);
+                    String etag = connection.getHeaderField("ETag");
+                    assertNotEquals(jsonETag, etag);
+                    assertTrue(connection.getHeaderField("Vary"), connection.getHeaderField("Vary").contains("Accept"));
+
+                    connection = request("GET", uri, format, null, null);
+                    connection.setRequestProperty("If-None-Match", etag);
+                    assertEquals(304, connection.getResponseCode());
+                    assertEquals(etag, connection.getHeaderField("ETag"));
+                    assertTrue(connection.getHeaderField("Vary"), connection.getHeaderField("Vary").contains("Accept"));
+
+                    // The ETag of another representation doesn't match
+                    connection = request("GET", uri, "application/json", null, null);
+                    connection.setRequestProperty("If-None-Match", etag);
+                    assertEquals(200, connection.getResponseCode());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testJsonIsDefault() throws IOException {
+        studyRepository.save(new StudyEntity("S-1", "A study", new Date(), new Date()));
+
+        for (String baseUri : BASE_URIS) {
+            HttpURLConnection connection = request("GET", baseUri + "/studies", "*/*", null, null);
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType(), connection.getContentType().startsWith("application/json"));
+
+            // JSON is preferred by the quality of the Accept header
+            connection = request("GET", baseUri + "/studies", BinaryFormats.CBOR + ";q=0.5, application/json", null, null);
+            assertTrue(connection.getContentType(), connection.getContentType().startsWith("application/json"));
+        }
+    }
+
+    private ObjectMapper mapper(String format) {
+        return new ObjectMapper(format.equals(BinaryFormats.CBOR) ? new CBORFactory() : new SmileFactory());
+    }
+
+    private HttpURLConnection request(String method, String uri, String accept, String contentType, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + uri).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", accept);
+        if (body != null) {
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        return connection;
+    }
+
+    private byte[] read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+
+    private byte[] readError(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getErrorStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+}
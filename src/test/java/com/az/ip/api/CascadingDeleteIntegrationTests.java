@@ -0,0 +1,192 @@
+package com.az.ip.api;
+
+import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.CascadingDeleter;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that a patient, doctor or study is removed together with its relations and measurements, in chunks of two
+ * measurements, both in the request and as a job running in the background.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0", "deletes.chunk-size=2"})
+public class CascadingDeleteIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+    private static final int MEASUREMENTS = 5;
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    MeasurementRepository measurementRepository;
+
+    @Inject
+    StepRollupRepository stepRollupRepository;
+
+    @Inject
+    PatientDoctorStudyRepository pdsRepository;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private RestTemplate restTemplate = null;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupRestTemplate() {
+        restTemplate = new TestRestTemplate(user, pwd);
+    }
+
+    @After
+    public void cleanDb() {
+        measurementRepository.deleteAll();
+        stepRollupRepository.deleteAll();
+        pdsRepository.deleteAll();
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Test
+    public void testDeleteStudy() {
+        for (String baseUri : BASE_URIS) {
+            PatientDoctorStudyEntity relation = createRelationWithMeasurements(baseUri);
+            String studyId = relation.getStudy().getId();
+
+            assertEquals(HttpStatus.OK, delete(baseUri + "/studies/" + studyId, false).getStatusCode());
+
+            assertNull(studyRepository.findOne(studyId));
+            assertEquals(0, pdsRepository.count());
+            assertEquals(0, measurementRepository.count());
+            assertEquals(0, stepRollupRepository.count());
+
+            // The doctors of the study are left as is
+            assertNotNull(doctorRepository.findOne(relation.getDoctor().getId()));
+
+            // ...and a repeated delete is ok
+            assertEquals(HttpStatus.OK, delete(baseUri + "/studies/" + studyId, false).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testDeletePatient() {
+        for (String baseUri : BASE_URIS) {
+            PatientDoctorStudyEntity relation = createRelationWithMeasurements(baseUri);
+
+            assertEquals(HttpStatus.OK, delete(baseUri + "/patients/" + relation.getPatient().getId(), false).getStatusCode());
+
+            assertNull(patientRepository.findOne(relation.getPatient().getId()));
+            assertEquals(0, pdsRepository.count());
+            assertEquals(0, measurementRepository.count());
+
+            // The rollups of the study are recomputed without the measurements of the patient
+            assertEquals(0, stepRollupRepository.count());
+            assertNotNull(studyRepository.findOne(relation.getStudy().getId()));
+        }
+    }
+
+    @Test
+    public void testDeleteDoctor() {
+        for (String baseUri : BASE_URIS) {
+            PatientDoctorStudyEntity relation = createRelationWithMeasurements(baseUri);
+            String studyId = relation.getStudy().getId();
+
+            assertEquals(HttpStatus.OK, delete(baseUri + "/doctors/" + relation.getDoctor().getId(), false).getStatusCode());
+
+            assertNull(doctorRepository.findOne(relation.getDoctor().getId()));
+            assertEquals(0, pdsRepository.count());
+            assertEquals(0, measurementRepository.count());
+            assertEquals(0, studyRepository.findDoctorIdsByStudyId(studyId, Uuids.NIL, null).size());
+        }
+    }
+
+    @Test
+    public void testDeleteStudyInBackground() throws Exception {
+        for (String baseUri : BASE_URIS) {
+            PatientDoctorStudyEntity relation = createRelationWithMeasurements(baseUri);
+            String studyId = relation.getStudy().getId();
+
+            ResponseEntity<String> response = delete(baseUri + "/studies/" + studyId, true);
+            assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+            assertEquals(CascadingDeleter.RESPOND_ASYNC, response.getHeaders().getFirst(CascadingDeleter.PREFERENCE_APPLIED_HEADER));
+
+            String location = response.getHeaders().getLocation().toString();
+            assertTrue(location, location.startsWith(baseUri + CascadingDeleter.JOBS_PATH + "/"));
+
+            Map<?, ?> job = awaitJob(PROTOCOL + "://localhost:" + port + location);
+            assertEquals("COMPLETED", job.get("status"));
+            assertEquals(1, job.get("relationCount"));
+            assertEquals(MEASUREMENTS, ((Number)job.get("deletedMeasurements")).intValue());
+
+            assertNull(studyRepository.findOne(studyId));
+            assertEquals(0, measurementRepository.count());
+        }
+
+        assertEquals(HttpStatus.NOT_FOUND, restTemplate.getForEntity(PROTOCOL + "://localhost:" + port + "/api" + CascadingDeleter.JOBS_PATH + "/NON-EXISTING-ID", String.class).getStatusCode());
+    }
+
+    private PatientDoctorStudyEntity createRelationWithMeasurements(String suffix) {
+        PatientEntity patient = patientRepository.save(new PatientEntity("P-1" + suffix, "1234", "F1", "L1", 100, 200));
+        DoctorEntity doctor = doctorRepository.save(new DoctorEntity("D-1" + suffix, "F1", "L1"));
+        StudyEntity study = new StudyEntity("S-1" + suffix, "description", new Date(), new Date());
+        study.getAssigendDoctors().add(doctor);
+        study = studyRepository.save(study);
+
+        PatientDoctorStudyEntity relation = pdsRepository.save(new PatientDoctorStudyEntity(patient, doctor, study));
+        for (int i = 0; i < MEASUREMENTS; i++) {
+            measurementRepository.save(new MeasurementEntity(relation, "descr", new Date(), 100 * i));
+        }
+        assertTrue(stepRollupRepository.count() > 0);
+        return relation;
+    }
+
+    private ResponseEntity<String> delete(String uri, boolean async) {
+        HttpHeaders headers = new HttpHeaders();
+        if (async) headers.set(CascadingDeleter.PREFER_HEADER, CascadingDeleter.RESPOND_ASYNC);
+        return restTemplate.exchange(PROTOCOL + "://localhost:" + port + uri, HttpMethod.DELETE, new HttpEntity<>(headers), String.class);
+    }
+
+    private Map<?, ?> awaitJob(String url) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            Map<?, ?> job = restTemplate.getForObject(url, Map.class);
+            if (job.get("finished") != null) return job;
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Job " + url + " didn't finish");
+    }
+}
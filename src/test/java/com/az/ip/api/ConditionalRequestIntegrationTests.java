@@ -0,0 +1,210 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Id;
+import com.az.ip.api.gen.model.Patient;
+import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.ETags;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.*;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the ETags of entities and lists, that a GET with a matching If-None-Match header is answered with 304 and
+ * that a PUT with a stale If-Match header is rejected with 412 without updating the entity. The ETags of the gzip
+ * variant differ from those of the identity variant.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0"})
+public class ConditionalRequestIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private RestTemplate restTemplate = null;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupRestTemplate() {
+        restTemplate = new TestRestTemplate(user, pwd);
+    }
+
+    @After
+    public void cleanDb() {
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Test
+    public void testConditionalGetOfEntity() {
+        for (String baseUri : BASE_URIS) {
+            PatientEntity patient = patientRepository.save(new PatientEntity("P-1" + baseUri, "1234", "F1", "L1", 100, 200));
+            String uri = baseUri + "/patients/" + patient.getId();
+
+            ResponseEntity<String> response = get(uri, null);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            String etag = response.getHeaders().getETag();
+            assertEquals(ETags.of(patient.getId(), 0), etag);
+
+            response = get(uri, etag);
+            assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+            assertEquals(etag, response.getHeaders().getETag());
+            assertNull(response.getBody());
+
+            // An update changes the version, i.e. the ETag
+            patient.setFirstname("F2");
+            patientRepository.save(patient);
+
+            response = get(uri, etag);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            assertEquals(ETags.of(patient.getId(), 1), response.getHeaders().getETag());
+
+            assertEquals(HttpStatus.NOT_FOUND, get(baseUri + "/patients/NON-EXISTING-ID", etag).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testConditionalGetOfCachedEntity() {
+        for (String baseUri : BASE_URIS) {
+            StudyEntity study = studyRepository.save(new StudyEntity("S-1" + baseUri, "description", new Date(), new Date()));
+            String uri = baseUri + "/studies/" + study.getId();
+
+            String etag = get(uri, null).getHeaders().getETag();
+            assertEquals(HttpStatus.NOT_MODIFIED, get(uri, etag).getStatusCode());
+            assertEquals(HttpStatus.NOT_MODIFIED, get(uri, "W/" + etag).getStatusCode());
+
+            study.setDescription("changed");
+            studyRepository.save(study);
+
+            assertEquals(HttpStatus.OK, get(uri, etag).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testConditionalGetOfLists() {
+        for (String baseUri : BASE_URIS) {
+            StudyEntity study = studyRepository.save(new StudyEntity("S-1" + baseUri, "description", new Date(), new Date()));
+            DoctorEntity doctor = doctorRepository.save(new DoctorEntity("D-1" + baseUri, "F1", "L1"));
+
+            // A list of entities
+            String uri = baseUri + "/studies?size=-1";
+            String etag = get(uri, null).getHeaders().getETag();
+            assertNotNull(etag);
+            assertEquals(HttpStatus.NOT_MODIFIED, get(uri, etag).getStatusCode());
+
+            studyRepository.save(new StudyEntity("S-2" + baseUri, "description", new Date(), new Date()));
+            assertEquals(HttpStatus.OK, get(uri, etag).getStatusCode());
+
+            // A list of id-refs
+            uri = baseUri + "/studies/" + study.getId() + "/assignedDoctors";
+            etag = get(uri, null).getHeaders().getETag();
+            assertEquals(HttpStatus.NOT_MODIFIED, get(uri, etag).getStatusCode());
+
+            restTemplate.postForEntity(PROTOCOL + "://localhost:" + port + uri, new Id().withId(doctor.getId()), String.class);
+            ResponseEntity<String> response = get(uri, etag);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            assertEquals(HttpStatus.NOT_MODIFIED, get(uri, response.getHeaders().getETag()).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testETagsOfContentCodings() {
+        for (String baseUri : BASE_URIS) {
+            PatientEntity entity = patientRepository.save(new PatientEntity("P-1" + baseUri, "1234", "F1", "L1", 100, 200));
+            StudyEntity study = studyRepository.save(new StudyEntity("S-1" + baseUri, "description", new Date(), new Date()));
+
+            for (String uri : new String[] {baseUri + "/patients/" + entity.getId(), baseUri + "/studies/" + study.getId(), baseUri + "/studies?size=-1"}) {
+                String identity = get(uri, null, "identity").getHeaders().getETag();
+                String gzip = get(uri, null, "gzip").getHeaders().getETag();
+                assertNotEquals(identity, gzip);
+
+                assertEquals(HttpStatus.NOT_MODIFIED, get(uri, gzip, "gzip").getStatusCode());
+                assertEquals(gzip, get(uri, gzip, "gzip").getHeaders().getETag());
+                assertEquals(HttpStatus.OK, get(uri, identity, "gzip").getStatusCode());
+                assertEquals(HttpStatus.OK, get(uri, gzip, "identity").getStatusCode());
+                assertEquals(HttpStatus.NOT_MODIFIED, get(uri, identity + ", " + gzip, "gzip").getStatusCode());
+            }
+
+            // The state of the patient is the same in both variants
+            String uri = baseUri + "/patients/" + entity.getId();
+            Patient patient = new Patient().withId(entity.getId()).withVersion(0).withUsername(entity.getUsername())
+                .withPatientID("1234").withFirstname("F2").withLastname("L1").withWeight(100).withHeight(200);
+            assertEquals(HttpStatus.OK, put(uri, patient, get(uri, null, "gzip").getHeaders().getETag()).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testIfMatchOnPut() {
+        for (String baseUri : BASE_URIS) {
+            PatientEntity entity = patientRepository.save(new PatientEntity("P-1" + baseUri, "1234", "F1", "L1", 100, 200));
+            String uri = baseUri + "/patients/" + entity.getId();
+
+            Patient patient = new Patient().withId(entity.getId()).withVersion(0).withUsername(entity.getUsername())
+                .withPatientID("1234").withFirstname("F2").withLastname("L1").withWeight(100).withHeight(200);
+
+            // A stale ETag is rejected without updating the patient
+            assertEquals(HttpStatus.PRECONDITION_FAILED, put(uri, patient, ETags.of(entity.getId(), 1)).getStatusCode());
+            assertEquals("F1", patientRepository.findOne(entity.getId()).getFirstname());
+
+            assertEquals(HttpStatus.PRECONDITION_FAILED, put(baseUri + "/patients/NON-EXISTING-ID", patient, "*").getStatusCode());
+
+            // ...while the current ETag updates it
+            assertEquals(HttpStatus.OK, put(uri, patient, ETags.of(entity.getId(), 0)).getStatusCode());
+            assertEquals("F2", patientRepository.findOne(entity.getId()).getFirstname());
+        }
+    }
+
+    private ResponseEntity<String> get(String uri, String ifNoneMatch) {
+        return get(uri, ifNoneMatch, "identity");
+    }
+
+    private ResponseEntity<String> get(String uri, String ifNoneMatch, String acceptEncoding) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        if (ifNoneMatch != null) headers.set(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        return restTemplate.exchange(PROTOCOL + "://localhost:" + port + uri, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    }
+
+    private ResponseEntity<String> put(String uri, Patient patient, String ifMatch) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set(HttpHeaders.IF_MATCH, ifMatch);
+        return restTemplate.exchange(PROTOCOL + "://localhost:" + port + uri + "?access_token=AABBCCDD", HttpMethod.PUT, new HttpEntity<>(patient, headers), String.class);
+    }
+}
@@ -0,0 +1,158 @@
+package com.az.ip.api;
+
+import com.az.ip.api.persistence.jpa.IdGenerator;
+import com.az.ip.api.persistence.jpa.RandomIdGenerator;
+import com.az.ip.api.persistence.jpa.TimeOrderedIdGenerator;
+import com.az.ip.api.persistence.jpa.Uuids;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the time-ordered id's and compares the generators for concurrent inserts: the time to insert from a number
+ * of threads, and the size on disk of the table with its primary key index.
+ *
+ * Runs against its own file based HSQLDB databases, i.e. without the application. The number of rows and threads are
+ * given by -Dbenchmark.rows and -Dbenchmark.threads and are kept small by default to keep the build fast. For a large
+ * dataset run e.g. mvn test -Dtest=IdGeneratorBenchmarkTests -Dbenchmark.rows=2000000 -Dbenchmark.threads=16
+ */
+public class IdGeneratorBenchmarkTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdGeneratorBenchmarkTests.class);
+
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 20000);
+    private static final int THREADS = Integer.getInteger("benchmark.threads", 4);
+    private static final int BATCH_SIZE = 500;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = Files.createTempDirectory("id-generator").toFile();
+    }
+
+    @After
+    public void removeDir() {
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testTimeOrderedIds() throws Exception {
+        IdGenerator generator = new TimeOrderedIdGenerator();
+
+        String first = generator.nextId();
+        Thread.sleep(2);
+        String second = generator.nextId();
+
+        UUID uuid = UUID.fromString(first);
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        assertTrue(first + " should be before " + second, first.compareTo(second) < 0);
+        assertEquals(first, Uuids.toString(Uuids.toBytes(first)));
+    }
+
+    @Test
+    public void testUniqueIdsFromConcurrentThreads() throws Exception {
+        IdGenerator generator = new TimeOrderedIdGenerator();
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        runConcurrently(thread -> {
+            for (int i = 0; i < ROWS / THREADS; i++) ids.add(generator.nextId());
+        });
+
+        assertEquals(THREADS * (ROWS / THREADS), ids.size());
+    }
+
+    @Test
+    public void testConcurrentInserts() throws Exception {
+        Result random      = insertConcurrently("random",       new RandomIdGenerator());
+        Result timeOrdered = insertConcurrently("time-ordered", new TimeOrderedIdGenerator());
+
+        LOG.info("Concurrent inserts of {} rows from {} threads, random:       {} ms, {} bytes", ROWS, THREADS, random.millis, random.size);
+        LOG.info("Concurrent inserts of {} rows from {} threads, time-ordered: {} ms, {} bytes", ROWS, THREADS, timeOrdered.millis, timeOrdered.size);
+
+        assertEquals(random.rows, timeOrdered.rows);
+        assertEquals(THREADS * (ROWS / THREADS), timeOrdered.rows);
+    }
+
+    private Result insertConcurrently(String name, IdGenerator generator) throws Exception {
+        String url = "jdbc:hsqldb:file:" + new File(dir, name).getAbsolutePath() + ";hsqldb.tx=mvcc;shutdown=true";
+        Result result = new Result();
+
+        try (Connection c = DriverManager.getConnection(url, "SA", "")) {
+            try (Statement s = c.createStatement()) {
+                s.execute("create cached table measurement (id binary(16) primary key, steps int)");
+            }
+
+            long start = System.nanoTime();
+            runConcurrently(thread -> {
+                try (Connection tc = DriverManager.getConnection(url, "SA", "");
+                     PreparedStatement insert = tc.prepareStatement("insert into measurement values (?, ?)")) {
+                    tc.setAutoCommit(false);
+                    for (int i = 1; i <= ROWS / THREADS; i++) {
+                        insert.setBytes(1, Uuids.toBytes(generator.nextId()));
+                        insert.setInt(2, i);
+                        insert.addBatch();
+                        if (i % BATCH_SIZE == 0) {
+                            insert.executeBatch();
+                            tc.commit();
+                        }
+                    }
+                    insert.executeBatch();
+                    tc.commit();
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            result.millis = (System.nanoTime() - start) / 1000000;
+
+            try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("select count(*) from measurement")) {
+                rs.next();
+                result.rows = rs.getLong(1);
+            }
+
+            // Writes all rows and indexes to the data file
+            try (Statement s = c.createStatement()) {
+                s.execute("shutdown");
+            }
+        }
+
+        result.size = new File(dir, name + ".data").length();
+        return result;
+    }
+
+    private void runConcurrently(ThreadTask task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> task.run(thread)));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread);
+    }
+
+    private static class Result {
+        long millis;
+        long rows;
+        long size;
+    }
+}
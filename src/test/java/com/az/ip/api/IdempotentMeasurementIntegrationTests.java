@@ -0,0 +1,171 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.BloomFilter;
+import com.az.ip.api.services.core.MeasurementIdempotency;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that measurements posted with the same Idempotency-Key are stored once and that a replay returns the id of
+ * the stored measurement, both for a key seen by the Bloom filter and for a key only known by the database.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0"})
+public class IdempotentMeasurementIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    MeasurementRepository measurementRepository;
+
+    @Inject
+    PatientDoctorStudyRepository pdsRepository;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private RestTemplate restTemplate = null;
+
+    private PatientEntity patient;
+    private StudyEntity study;
+    private PatientDoctorStudyEntity relation;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupTestData() {
+        restTemplate = new TestRestTemplate(user, pwd);
+
+        patient = patientRepository.save(new PatientEntity("P-1", "1234", "F1", "L1", 100, 200));
+        DoctorEntity doctor = doctorRepository.save(new DoctorEntity("D-1", "F1", "L1"));
+        study = studyRepository.save(new StudyEntity("S-1", "description", new Date(), new Date()));
+        relation = pdsRepository.save(new PatientDoctorStudyEntity(patient, doctor, study));
+    }
+
+    @After
+    public void cleanDb() {
+        measurementRepository.deleteAll();
+        pdsRepository.deleteAll();
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Test
+    public void testReplayReturnsStoredMeasurement() {
+        for (String baseUri : BASE_URIS) {
+            String key = "upload-" + baseUri;
+
+            ResponseEntity<String> first = post(baseUri, key, 100);
+            ResponseEntity<String> retry = post(baseUri, key, 100);
+
+            assertEquals(HttpStatus.OK, first.getStatusCode());
+            assertEquals(HttpStatus.OK, retry.getStatusCode());
+            assertNotNull(measurementId(first));
+            assertEquals(measurementId(first), measurementId(retry));
+        }
+        assertEquals(2, measurementRepository.count());
+
+        // Another key is another measurement
+        for (String baseUri : BASE_URIS) {
+            assertEquals(HttpStatus.OK, post(baseUri, "another-" + baseUri, 200).getStatusCode());
+        }
+        assertEquals(4, measurementRepository.count());
+    }
+
+    @Test
+    public void testReplayOfKeyUnknownToTheFilter() {
+        // Stored e.g. before a restart, i.e. only the unique key knows of it
+        MeasurementEntity stored = new MeasurementEntity(relation, "descr", new Date(), 100);
+        stored.setIdempotencyKey("before-restart");
+        stored = measurementRepository.save(stored);
+
+        for (String baseUri : BASE_URIS) {
+            ResponseEntity<String> retry = post(baseUri, "before-restart", 100);
+            assertEquals(HttpStatus.OK, retry.getStatusCode());
+            assertEquals(stored.getId(), measurementId(retry));
+        }
+        assertEquals(1, measurementRepository.count());
+    }
+
+    @Test
+    public void testTooLongKeyIsRejected() {
+        String key = new String(new char[MeasurementEntity.MAX_IDEMPOTENCY_KEY_LENGTH + 1]).replace('\0', 'k');
+
+        for (String baseUri : BASE_URIS) {
+            assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, post(baseUri, key, 100).getStatusCode());
+        }
+        assertEquals(0, measurementRepository.count());
+    }
+
+    @Test
+    public void testBloomFilter() {
+        int n = 10000;
+        BloomFilter filter = new BloomFilter(n, 0.01);
+
+        for (int i = 0; i < n; i++) filter.put("key-" + i);
+
+        // No false negatives...
+        for (int i = 0; i < n; i++) assertTrue(filter.mightContain("key-" + i));
+
+        // ...and about the configured rate of false positives
+        int falsePositives = 0;
+        for (int i = 0; i < n; i++) {
+            if (filter.mightContain("other-" + i)) falsePositives++;
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < n * 0.03);
+    }
+
+    private ResponseEntity<String> post(String baseUri, String idempotencyKey, int steps) {
+        String url = PROTOCOL + "://localhost:" + port + baseUri + "/patients/" + patient.getId() + "/studies/" + study.getId() + "/measurements";
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(MeasurementIdempotency.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+        Measurement measurement = new Measurement().withDescription("descr").withTimestamp(new Date()).withSteps(steps);
+
+        return restTemplate.postForEntity(url, new HttpEntity<>(measurement, headers), String.class);
+    }
+
+    private String measurementId(ResponseEntity<String> response) {
+        return response.getHeaders().getFirst(MeasurementIdempotency.MEASUREMENT_ID_HEADER);
+    }
+}
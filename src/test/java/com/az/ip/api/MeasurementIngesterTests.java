@@ -0,0 +1,88 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.BulkMeasurement;
+import com.az.ip.api.gen.model.BulkMeasurementResult;
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.NewMeasurement;
+import com.az.ip.api.persistence.jpa.PatientDoctorStudyRepository;
+import com.az.ip.api.services.core.MeasurementIngester;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies that a chunk that fails after earlier chunks are stored is reported per measurement, and that a failure
+ * before anything is stored fails the whole ingestion, without a database.
+ */
+public class MeasurementIngesterTests {
+
+    private static final String PATIENT_ID = UUID.randomUUID().toString();
+    private static final String STUDY_ID = UUID.randomUUID().toString();
+
+    private final MeasurementStore measurementStore = mock(MeasurementStore.class);
+    private final MeasurementIngester ingester = new MeasurementIngester();
+
+    @Before
+    public void setupIngester() {
+        PatientDoctorStudyRepository pdsRepository = mock(PatientDoctorStudyRepository.class);
+        when(pdsRepository.findIdsByPatientIdsAndStudyIds(anyCollectionOf(String.class), anyCollectionOf(String.class)))
+            .thenReturn(Collections.singletonList(new Object[] {UUID.randomUUID().toString(), PATIENT_ID, STUDY_ID}));
+
+        ReflectionTestUtils.setField(ingester, "patientDoctorStudyRepository", pdsRepository);
+        ReflectionTestUtils.setField(ingester, "measurementStore", measurementStore);
+    }
+
+    @Test
+    public void testFailedChunkAfterStoredChunk() {
+        when(measurementStore.insertAll(anyListOf(NewMeasurement.class)))
+            .thenAnswer(invocation -> ids(((List<?>) invocation.getArguments()[0]).size()))
+            .thenThrow(new DataAccessResourceFailureException("Connection lost"));
+
+        List<BulkMeasurementResult> results = ingester.ingest(measurements(MeasurementIngester.CHUNK_SIZE + 10));
+
+        assertEquals(MeasurementIngester.CHUNK_SIZE + 10, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            BulkMeasurementResult result = results.get(i);
+            assertEquals(i, result.getIndex().intValue());
+            if (i < MeasurementIngester.CHUNK_SIZE) {
+                assertEquals(MeasurementIngester.STATUS_OK, result.getStatus().intValue());
+                assertNotNull(result.getId());
+            } else {
+                assertEquals(MeasurementIngester.STATUS_SERVICE_UNAVAILABLE, result.getStatus().intValue());
+                assertNull(result.getId());
+            }
+        }
+    }
+
+    @Test(expected = DataAccessException.class)
+    public void testFailedFirstChunk() {
+        when(measurementStore.insertAll(anyListOf(NewMeasurement.class)))
+            .thenThrow(new DataAccessResourceFailureException("Connection lost"));
+
+        ingester.ingest(measurements(10));
+    }
+
+    private static List<BulkMeasurement> measurements(int count) {
+        List<BulkMeasurement> measurements = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            measurements.add(new BulkMeasurement().withPatientId(PATIENT_ID).withStudyId(STUDY_ID).withDescription("descr").withTimestamp(new Date()).withSteps(i));
+        }
+        return measurements;
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) ids.add(UUID.randomUUID().toString());
+        return ids;
+    }
+}
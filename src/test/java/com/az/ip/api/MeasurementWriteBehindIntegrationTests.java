@@ -0,0 +1,133 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.MeasurementWriteBehind;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the write-behind of measurements: that they are accepted and queued, rejected when the queue is full and
+ * stored when the queue is drained on shutdown.
+ *
+ * The flush interval is long enough for the measurements to stay in the queue during the test, i.e. until the drain.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0",
+    "measurements.write-behind.enabled=true",
+    "measurements.write-behind.capacity=4",
+    "measurements.write-behind.flush-size=100",
+    "measurements.write-behind.flush-interval-ms=600000"})
+@DirtiesContext
+public class MeasurementWriteBehindIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    MeasurementWriteBehind measurementWriteBehind;
+
+    @Inject
+    MeasurementRepository measurementRepository;
+
+    @Inject
+    PatientDoctorStudyRepository pdsRepository;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private RestTemplate restTemplate = null;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupRestTemplate() {
+        restTemplate = new TestRestTemplate(user, pwd);
+    }
+
+    @After
+    public void cleanDb() {
+        measurementRepository.deleteAll();
+        pdsRepository.deleteAll();
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Test
+    public void testQueueRejectAndDrain() throws Exception {
+        PatientEntity patient = patientRepository.save(new PatientEntity("P-1", "1234", "F1", "L1", 100, 200));
+        DoctorEntity doctor = doctorRepository.save(new DoctorEntity("D-1", "F1", "L1"));
+        StudyEntity study = studyRepository.save(new StudyEntity("S-1", "description", new Date(), new Date()));
+        pdsRepository.save(new PatientDoctorStudyEntity(patient, doctor, study));
+
+        // Two measurements accepted by each API, i.e. the queue is full...
+        for (String baseUri : BASE_URIS) {
+            String measurementsUrl = PROTOCOL + "://localhost:" + port + baseUri + "/patients/" + patient.getId() + "/studies/" + study.getId() + "/measurements";
+            assertEquals(HttpStatus.ACCEPTED, post(measurementsUrl, 100));
+            assertEquals(HttpStatus.ACCEPTED, post(measurementsUrl, 200));
+        }
+        assertEquals(0, measurementRepository.count());
+        assertEquals(4, metric("measurements.write-behind.queue.depth"));
+
+        // ...and further measurements are rejected
+        for (String baseUri : BASE_URIS) {
+            String measurementsUrl = PROTOCOL + "://localhost:" + port + baseUri + "/patients/" + patient.getId() + "/studies/" + study.getId() + "/measurements";
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, post(measurementsUrl, 300));
+        }
+        assertEquals(2, metric("measurements.write-behind.rejected"));
+
+        // The queue is stored when drained, and nothing more is accepted
+        measurementWriteBehind.shutdown();
+        assertEquals(4, measurementRepository.count());
+        assertEquals(0, metric("measurements.write-behind.queue.depth"));
+        assertEquals(1, metric("measurements.write-behind.flush.count"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, post(PROTOCOL + "://localhost:" + port + "/api/patients/" + patient.getId() + "/studies/" + study.getId() + "/measurements", 400));
+    }
+
+    private HttpStatus post(String url, int steps) {
+        return restTemplate.postForEntity(url, new Measurement().withDescription("descr").withTimestamp(new Date()).withSteps(steps), String.class).getStatusCode();
+    }
+
+    private long metric(String name) {
+        for (Metric<?> metric : measurementWriteBehind.metrics()) {
+            if (metric.getName().equals(name)) return metric.getValue().longValue();
+        }
+        throw new AssertionError("No metric named " + name);
+    }
+}
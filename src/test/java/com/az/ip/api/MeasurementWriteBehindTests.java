@@ -0,0 +1,139 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.BulkMeasurement;
+import com.az.ip.api.gen.model.BulkMeasurementResult;
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.services.core.MeasurementIngester;
+import com.az.ip.api.services.core.MeasurementWriteBehind;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the write-behind of measurements retries a failed batch, drops it only after max-retries, and stores
+ * every measurement that was accepted while shutting down, without a database, i.e. with an ingester that counts the
+ * stored measurements and fails a given number of times.
+ */
+public class MeasurementWriteBehindTests {
+
+    @Test
+    public void testRetryFailedBatch() throws Exception {
+        CountingIngester ingester = new CountingIngester(2);
+        MeasurementWriteBehind writeBehind = start(ingester, 3);
+
+        for (int i = 0; i < 10; i++) assertTrue(writeBehind.offer("P-1", "S-1", measurement(i)));
+        writeBehind.shutdown();
+
+        assertEquals(10, ingester.stored.get());
+        assertEquals(2, metric(writeBehind, "measurements.write-behind.retries"));
+        assertEquals(0, metric(writeBehind, "measurements.write-behind.dropped"));
+        assertEquals(0, metric(writeBehind, "measurements.write-behind.queue.depth"));
+    }
+
+    @Test
+    public void testDropAfterMaxRetries() throws Exception {
+        CountingIngester ingester = new CountingIngester(Integer.MAX_VALUE);
+        MeasurementWriteBehind writeBehind = start(ingester, 2);
+
+        for (int i = 0; i < 10; i++) assertTrue(writeBehind.offer("P-1", "S-1", measurement(i)));
+        writeBehind.shutdown();
+
+        assertEquals(0, ingester.stored.get());
+        assertEquals(3, ingester.attempts.get());
+        assertEquals(2, metric(writeBehind, "measurements.write-behind.retries"));
+        assertEquals(10, metric(writeBehind, "measurements.write-behind.dropped"));
+        assertEquals(0, metric(writeBehind, "measurements.write-behind.queue.depth"));
+    }
+
+    @Test
+    public void testAcceptedDuringShutdownAreStored() throws Exception {
+        CountingIngester ingester = new CountingIngester(0);
+        MeasurementWriteBehind writeBehind = start(ingester, 0);
+
+        int threads = 8;
+        CountDownLatch started = new CountDownLatch(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> accepted = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            accepted.add(executor.submit(() -> {
+                int count = 0;
+                started.countDown();
+                for (int i = 0; i < 100000; i++) {
+                    if (writeBehind.offer("P-1", "S-1", measurement(i))) count++;
+                }
+                return count;
+            }));
+        }
+
+        started.await();
+        writeBehind.shutdown();
+
+        int total = 0;
+        for (Future<Integer> count : accepted) total += count.get();
+        executor.shutdown();
+
+        assertEquals(total, ingester.stored.get());
+    }
+
+    private MeasurementWriteBehind start(MeasurementIngester ingester, int maxRetries) {
+        MeasurementWriteBehind writeBehind = new MeasurementWriteBehind();
+        ReflectionTestUtils.setField(writeBehind, "measurementIngester", ingester);
+        ReflectionTestUtils.setField(writeBehind, "enabled", true);
+        ReflectionTestUtils.setField(writeBehind, "capacity", 10000);
+        ReflectionTestUtils.setField(writeBehind, "flushIntervalMs", 10L);
+        ReflectionTestUtils.setField(writeBehind, "flushSize", 500);
+        ReflectionTestUtils.setField(writeBehind, "drainTimeoutMs", 10000L);
+        ReflectionTestUtils.setField(writeBehind, "maxRetries", maxRetries);
+        ReflectionTestUtils.setField(writeBehind, "retryBackoffMs", 10L);
+        writeBehind.start();
+        return writeBehind;
+    }
+
+    private static Measurement measurement(int steps) {
+        return new Measurement().withDescription("descr").withTimestamp(new Date()).withSteps(steps);
+    }
+
+    private static long metric(MeasurementWriteBehind writeBehind, String name) {
+        for (Metric<?> metric : writeBehind.metrics()) {
+            if (metric.getName().equals(name)) return metric.getValue().longValue();
+        }
+        throw new AssertionError("No metric named " + name);
+    }
+
+    /**
+     * Fails the first number of calls, as a database that is temporarily unavailable
+     */
+    private static class CountingIngester extends MeasurementIngester {
+
+        private final int failures;
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final AtomicInteger stored = new AtomicInteger();
+
+        CountingIngester(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public List<BulkMeasurementResult> ingest(List<BulkMeasurement> measurements) {
+            if (attempts.incrementAndGet() <= failures) throw new DataAccessResourceFailureException("Connection lost");
+
+            stored.addAndGet(measurements.size());
+            return measurements.stream()
+                .map(m -> new BulkMeasurementResult().withStatus(MeasurementIngester.STATUS_OK))
+                .collect(Collectors.toList());
+        }
+    }
+}
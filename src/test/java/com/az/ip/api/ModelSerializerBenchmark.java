@@ -0,0 +1,114 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.json.ModelSerializersModule;
+import com.az.ip.api.gen.model.Measurement;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the serializers generated by the build with Jackson's reflective bean serializers, with a JMH benchmark of
+ * serializing and deserializing a list of measurements. That they write and read the same JSON is verified by
+ * ModelSerializerTests.
+ *
+ * Not part of the build, i.e. the name doesn't match the includes of surefire, and the classes generated by JMH are
+ * excluded. The benchmark runs in the JVM of the test, without forks. The number of measurements and iterations are
+ * given by -Dbenchmark.rows, -Dbenchmark.warmups and -Dbenchmark.iterations, e.g.
+ * mvn test -Dtest=ModelSerializerBenchmark -Dbenchmark.iterations=20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ModelSerializerBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ModelSerializerBenchmark.class);
+
+    private static final int WARMUPS = Integer.getInteger("benchmark.warmups", 3);
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 5);
+
+    @Param("10000")
+    public int rows;
+
+    private final ObjectMapper reflective = new ObjectMapper();
+    private final ObjectMapper generated = new ObjectMapper().registerModule(new ModelSerializersModule());
+    private final JavaType type = reflective.getTypeFactory().constructCollectionType(List.class, Measurement.class);
+
+    private List<Measurement> measurements;
+    private byte[] json;
+
+    @Setup
+    public void createMeasurements() throws IOException {
+        measurements = createMeasurements(rows);
+        json = reflective.writeValueAsBytes(measurements);
+    }
+
+    @Benchmark
+    public byte[] serializeReflective() throws IOException {
+        return reflective.writeValueAsBytes(measurements);
+    }
+
+    @Benchmark
+    public byte[] serializeGenerated() throws IOException {
+        return generated.writeValueAsBytes(measurements);
+    }
+
+    @Benchmark
+    public List<Measurement> deserializeReflective() throws IOException {
+        return reflective.readValue(json, type);
+    }
+
+    @Benchmark
+    public List<Measurement> deserializeGenerated() throws IOException {
+        return generated.readValue(json, type);
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        Options options = new OptionsBuilder()
+            .include(ModelSerializerBenchmark.class.getName() + "\\.")
+            .param("rows", System.getProperty("benchmark.rows", "10000"))
+            .forks(0)
+            .warmupIterations(WARMUPS)
+            .measurementIterations(ITERATIONS)
+            .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+
+        for (RunResult result : results) {
+            LOG.info("{} measurements, {}: {} ms/op", result.getParams().getParam("rows"),
+                String.format("%-21s", result.getParams().getBenchmark().replaceAll(".*\\.", "")), String.format("%.2f", result.getPrimaryResult().getScore()));
+        }
+        assertEquals(4, results.size());
+    }
+
+    static List<Measurement> createMeasurements(int rows) {
+        List<Measurement> measurements = new ArrayList<>(rows);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < rows; i++) {
+            measurements.add(new Measurement()
+                .withId         (UUID.randomUUID().toString())
+                .withVersion    (0)
+                .withDescription("Steps during the day")
+                .withTimestamp  (new Date(now - i * 60000L))
+                .withSteps      (i % 20000));
+        }
+        return measurements;
+    }
+}
@@ -0,0 +1,46 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.json.ModelSerializersModule;
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.gen.model.Study;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the serializers generated by the build write and read the same JSON as Jackson's reflective bean
+ * serializers, see ModelSerializerBenchmark for the difference in speed.
+ */
+public class ModelSerializerTests {
+
+    private final ObjectMapper reflective = new ObjectMapper();
+    private final ObjectMapper generated = new ObjectMapper().registerModule(new ModelSerializersModule());
+    private final JavaType type = reflective.getTypeFactory().constructCollectionType(List.class, Measurement.class);
+
+    @Test
+    public void testSameJsonAsReflective() throws IOException {
+        List<Measurement> measurements = ModelSerializerBenchmark.createMeasurements(10);
+        measurements.get(0).setDescription(null);
+
+        String json = reflective.writeValueAsString(measurements);
+        assertEquals(json, generated.writeValueAsString(measurements));
+        assertEquals(json, reflective.writeValueAsString(generated.readValue(json, type)));
+
+        Study study = new Study().withId("S-1").withVersion(1).withName("name").withDescription("descr").withStartdate(new Date()).withEnddate(new Date());
+        assertEquals(reflective.writeValueAsString(study), generated.writeValueAsString(study));
+
+        // Dates are written as configured in the object mapper
+        reflective.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        generated.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        json = reflective.writeValueAsString(study);
+        assertEquals(json, generated.writeValueAsString(study));
+        assertEquals(json, generated.writeValueAsString(generated.readValue(json, Study.class)));
+    }
+}
@@ -0,0 +1,205 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.BulkMeasurement;
+import com.az.ip.api.gen.model.BulkMeasurementResult;
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.gen.model.StepAggregate;
+import com.az.ip.api.persistence.MeasurementStore;
+import com.az.ip.api.persistence.jpa.*;
+import com.github.fakemongo.Fongo;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.context.annotation.Bean;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the measurement endpoints with the measurements stored in MongoDB, bucketed per relation and day, using an
+ * in-memory MongoDB (Fongo) instead of a MongoDB server.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = {Application.class, MongoMeasurementStoreIntegrationTests.FongoConfig.class})
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0"})
+@ActiveProfiles(MeasurementStore.MONGO_PROFILE)
+public class MongoMeasurementStoreIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+    private static final String COLLECTION = "measurementBuckets";
+
+    /**
+     * Replaces the MongoDB client of the auto-configuration. Not a @Configuration, to not be picked up by the component
+     * scan of the other tests.
+     */
+    public static class FongoConfig {
+        @Bean
+        public MongoClient mongo() {
+            return new Fongo("measurements").getMongo();
+        }
+    }
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    MongoTemplate mongoTemplate;
+
+    @Inject
+    MeasurementRepository measurementRepository;
+
+    @Inject
+    PatientDoctorStudyRepository pdsRepository;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private RestTemplate restTemplate = null;
+
+    private PatientEntity patient1;
+    private PatientEntity patient2;
+    private StudyEntity study;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupDb() {
+        cleanDb();
+
+        // Two patients in one study
+        patient1 = patientRepository.save(new PatientEntity("P-1", "1234", "F1", "L1", 100, 200));
+        patient2 = patientRepository.save(new PatientEntity("P-2", "1234", "F2", "L2", 100, 200));
+        DoctorEntity doctor = doctorRepository.save(new DoctorEntity("D-1", "F1", "L1"));
+        study = studyRepository.save(new StudyEntity("S-1", "description", new Date(), new Date()));
+
+        pdsRepository.save(new PatientDoctorStudyEntity(patient1, doctor, study));
+        pdsRepository.save(new PatientDoctorStudyEntity(patient2, doctor, study));
+
+        restTemplate = new TestRestTemplate(user, pwd);
+    }
+
+    @After
+    public void cleanDb() {
+        // Keeps the collection and its indexes
+        mongoTemplate.remove(new Query(), COLLECTION);
+        pdsRepository.deleteAll();
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Test
+    public void testMeasurementsInDayBuckets() {
+        for (String baseUri : BASE_URIS) {
+            mongoTemplate.remove(new Query(), COLLECTION);
+            String baseUrl = PROTOCOL + "://localhost:" + port + baseUri;
+            String patientUrl = baseUrl + "/patients/" + patient1.getId() + "/studies/" + study.getId() + "/measurements";
+            String studyUrl = baseUrl + "/studies/" + study.getId() + "/measurements";
+
+            // Two measurements of one patient on the same day, one on the next day...
+            post(patientUrl, "2015-08-03T14:00", 200);
+            post(patientUrl, "2015-08-03T10:00", 100);
+            post(patientUrl, "2015-08-04T10:00", 300);
+
+            // ...and bulk measurements of both patients
+            List<BulkMeasurement> bulk = Arrays.asList(
+                new BulkMeasurement().withPatientId(patient2.getId()).withStudyId(study.getId()).withDescription("descr").withTimestamp(toDate("2015-08-03T12:00")).withSteps(1000),
+                new BulkMeasurement().withPatientId(patient1.getId()).withStudyId(study.getId()).withDescription("descr").withTimestamp(toDate("2015-08-11T10:00")).withSteps(400));
+            BulkMeasurementResult[] results = restTemplate.postForEntity(baseUrl + "/patients/measurements", bulk, BulkMeasurementResult[].class).getBody();
+            assertEquals(200, (int)results[0].getStatus());
+            assertEquals(200, (int)results[1].getStatus());
+
+            // One bucket per patient and day, and nothing stored by JPA
+            assertEquals(4, mongoTemplate.getCollection(COLLECTION).count());
+            assertEquals(0, measurementRepository.count());
+            DBObject bucket = mongoTemplate.getCollection(COLLECTION).findOne(new BasicDBObject("day", toDate("2015-08-03T00:00")).append("patientId", patient1.getId()));
+            assertEquals(2, ((List<?>)bucket.get("measurements")).size());
+
+            // The measurements of the patient, and of the study in time order
+            Measurement[] patientMeasurements = restTemplate.getForObject(patientUrl, Measurement[].class);
+            assertEquals(4, patientMeasurements.length);
+            assertEquals(100, (int)patientMeasurements[0].getSteps());
+
+            Measurement[] studyMeasurements = restTemplate.getForObject(studyUrl, Measurement[].class);
+            assertEquals(5, studyMeasurements.length);
+            assertEquals(1000, (int)studyMeasurements[1].getSteps());
+
+            // Aggregated from the buckets
+            StepAggregate[] days = restTemplate.getForObject(studyUrl + "/aggregate", StepAggregate[].class);
+            assertEquals(3, days.length);
+            assertEquals(toDate("2015-08-03T00:00"), days[0].getBucket());
+            assertEquals(3, (long)days[0].getCount());
+            assertEquals(1300, (long)days[0].getSum());
+            assertEquals(100, (int)days[0].getMin());
+            assertEquals(1000, (int)days[0].getMax());
+
+            StepAggregate[] weeks = restTemplate.getForObject(studyUrl + "/aggregate?bucket=week&from=2015-08-03T11:00:00", StepAggregate[].class);
+            assertEquals(2, weeks.length);
+            assertEquals(3, (long)weeks[0].getCount());
+            assertEquals(1500, (long)weeks[0].getSum());
+
+            // Deleting the only measurement of a day removes its bucket
+            restTemplate.delete(patientUrl + "/" + patientMeasurements[3].getId());
+            assertEquals(3, mongoTemplate.getCollection(COLLECTION).count());
+            assertEquals(3, restTemplate.getForObject(patientUrl, Measurement[].class).length);
+        }
+    }
+
+    @Test
+    public void testIndexes() {
+        List<String> indexes = new ArrayList<>();
+        mongoTemplate.indexOps(COLLECTION).getIndexInfo().forEach(index -> indexes.add(index.getName()));
+
+        assertTrue(indexes.toString(), indexes.contains("relationId_1_day_1"));
+        assertTrue(indexes.toString(), indexes.contains("studyId_1_day_1"));
+        assertTrue(indexes.toString(), indexes.contains("studyId_1_patientId_1_day_1"));
+        assertTrue(indexes.toString(), indexes.contains("measurements.id_1"));
+    }
+
+    private void post(String url, String timestamp, int steps) {
+        ResponseEntity<String> response = restTemplate.postForEntity(url, new Measurement().withDescription("descr").withTimestamp(toDate(timestamp)).withSteps(steps), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    private Date toDate(String localDateTime) {
+        return Date.from(LocalDateTime.parse(localDateTime).atZone(ZoneId.systemDefault()).toInstant());
+    }
+}
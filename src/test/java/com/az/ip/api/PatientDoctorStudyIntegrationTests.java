@@ -10,16 +10,24 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.web.client.RestTemplate;
 
 import javax.inject.Inject;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
+import static java.util.Collections.singletonList;
 import static org.junit.Assert.*;
 
 /**
@@ -404,10 +412,10 @@ public class PatientDoctorStudyIntegrationTests {
         assertEquals(1, patientRepository.count());
         assertEquals(1, doctorRepository.count());
         assertEquals(1, studyRepository.count());
-        assertEquals(1, studyRepository.findByName(studyName).getAssigendDoctors().size());
-        assertEquals(1, doctorRepository.findByUsername(doctorUsername).getAssigendInStudies().size());
+        assertEquals(1, studyRepository.findWithDoctorsByName(studyName).getAssigendDoctors().size());
+        assertEquals(1, doctorRepository.findWithStudiesByUsername(doctorUsername).getAssigendInStudies().size());
         assertEquals(1, pdsRepository.count());
-        PatientDoctorStudyEntity mappingEntity = pdsRepository.findAll().iterator().next();
+        PatientDoctorStudyEntity mappingEntity = pdsRepository.findWithMeasurementsByPatientIdAndStudyId(patientId, studyId).get(0);
         assertEquals(patientId,  mappingEntity.getPatient().getId());
         assertEquals(doctorId,   mappingEntity.getDoctor().getId());
         assertEquals(studyId,    mappingEntity.getStudy().getId());
@@ -415,8 +423,8 @@ public class PatientDoctorStudyIntegrationTests {
 
 
         // Verify db response
-        assertEquals(1, studyRepository.findByName(studyName).getAssigendDoctors().size());
-        assertEquals(1, doctorRepository.findByUsername(doctorUsername).getAssigendInStudies().size());
+        assertEquals(1, studyRepository.findWithDoctorsByName(studyName).getAssigendDoctors().size());
+        assertEquals(1, doctorRepository.findWithStudiesByUsername(doctorUsername).getAssigendInStudies().size());
     }
 
     private Study getStudy(Id sId) {
@@ -426,6 +434,169 @@ public class PatientDoctorStudyIntegrationTests {
     }
 
 
+    @Test
+    public void testExportMeasurementsInStudyAPI() {
+
+        // Prepare the database for one patient assigned to one study by one doctor, with three measurements
+        PatientEntity patient = createTestDbPatientEntity("P-1");
+        DoctorEntity  doctor = createTestDbDoctorEntity("D-1");
+        StudyEntity   study = createTestDbStudyEntity("S-1");
+
+        patientRepository.save(patient);
+        doctorRepository.save(doctor);
+        studyRepository.save(study);
+
+        PatientDoctorStudyEntity relationEntity = new PatientDoctorStudyEntity(patient, doctor, study);
+        pdsRepository.save(relationEntity);
+
+        measurementRepository.save(createTestDbMeasurementEntity(relationEntity, 100));
+        measurementRepository.save(createTestDbMeasurementEntity(relationEntity, 200));
+        measurementRepository.save(createTestDbMeasurementEntity(relationEntity, 300));
+
+        // Verify both the RAML and the Spring MVC API
+        String[] measurementsUrls = {
+            baseUrlStudies + "/" + study.getId() + "/measurements",
+            PROTOCOL + "://localhost:" + port + "/api/studies/" + study.getId() + "/measurements"
+        };
+
+        for (String measurementsUrl : measurementsUrls) {
+
+            // Newline delimited JSON, one measurement per line
+            HttpHeaders headers = new HttpHeaders();
+            headers.setAccept(singletonList(MediaType.valueOf("application/x-ndjson")));
+            ResponseEntity<String> ndjson = restTemplate.exchange(measurementsUrl, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+
+            assertEquals(HttpStatus.OK, ndjson.getStatusCode());
+            String[] lines = ndjson.getBody().split("\n");
+            assertEquals(3, lines.length);
+            assertTrue(lines[0].startsWith("{") && lines[0].endsWith("}"));
+
+            // Chunked JSON array
+            ResponseEntity<Measurement[]> stream = restTemplate.getForEntity(measurementsUrl + "/stream", Measurement[].class);
+
+            assertEquals(HttpStatus.OK, stream.getStatusCode());
+            assertEquals(3, stream.getBody().length);
+            assertEquals(600, Arrays.stream(stream.getBody()).mapToInt(Measurement::getSteps).sum());
+        }
+    }
+
+    @Test
+    public void testAggregateMeasurementsAPI() {
+
+        // Two patients in one study, with measurements on three days in two weeks
+        PatientEntity patient1 = createTestDbPatientEntity("P-1");
+        PatientEntity patient2 = createTestDbPatientEntity("P-2");
+        DoctorEntity  doctor = createTestDbDoctorEntity("D-1");
+        StudyEntity   study = createTestDbStudyEntity("S-1");
+
+        patientRepository.save(patient1);
+        patientRepository.save(patient2);
+        doctorRepository.save(doctor);
+        studyRepository.save(study);
+
+        PatientDoctorStudyEntity relation1 = new PatientDoctorStudyEntity(patient1, doctor, study);
+        PatientDoctorStudyEntity relation2 = new PatientDoctorStudyEntity(patient2, doctor, study);
+        pdsRepository.save(relation1);
+        pdsRepository.save(relation2);
+
+        measurementRepository.save(new MeasurementEntity(relation1, "descr", toDate("2015-08-03T10:00"), 100));
+        measurementRepository.save(new MeasurementEntity(relation1, "descr", toDate("2015-08-03T14:00"), 200));
+        measurementRepository.save(new MeasurementEntity(relation2, "descr", toDate("2015-08-03T12:00"), 1000));
+        measurementRepository.save(new MeasurementEntity(relation1, "descr", toDate("2015-08-04T10:00"), 300));
+        measurementRepository.save(new MeasurementEntity(relation1, "descr", toDate("2015-08-11T10:00"), 400));
+
+        // Verify both the RAML and the Spring MVC API
+        String[] baseUrls = {
+            PROTOCOL + "://localhost:" + port + BASE_URI,
+            PROTOCOL + "://localhost:" + port + "/api"
+        };
+
+        for (String baseUrl : baseUrls) {
+            String studyUrl = baseUrl + "/studies/" + study.getId() + "/measurements/aggregate";
+            String patientUrl = baseUrl + "/patients/" + patient1.getId() + "/studies/" + study.getId() + "/measurements/aggregate";
+
+            // Per day, the default
+            StepAggregate[] days = restTemplate.getForEntity(studyUrl, StepAggregate[].class).getBody();
+            assertEquals(3, days.length);
+            assertEquals(toDate("2015-08-03T00:00"), days[0].getBucket());
+            assertEquals(3, (long)days[0].getCount());
+            assertEquals(1300, (long)days[0].getSum());
+            assertEquals(100, (int)days[0].getMin());
+            assertEquals(1000, (int)days[0].getMax());
+            assertEquals(300, (long)days[1].getSum());
+
+            // Per week
+            StepAggregate[] weeks = restTemplate.getForEntity(studyUrl + "?bucket=week", StepAggregate[].class).getBody();
+            assertEquals(2, weeks.length);
+            assertEquals(4, (long)weeks[0].getCount());
+            assertEquals(400.0, weeks[0].getAvg(), 0.001);
+            assertEquals(400, (long)weeks[1].getSum());
+
+            // One patient, from a date
+            StepAggregate[] patientDays = restTemplate.getForEntity(patientUrl + "?from=2015-08-04", StepAggregate[].class).getBody();
+            assertEquals(2, patientDays.length);
+            assertEquals(700, Arrays.stream(patientDays).mapToLong(StepAggregate::getSum).sum());
+
+            // Invalid parameters
+            ResponseEntity<String> invalid = restTemplate.getForEntity(patientUrl + "?from=yesterday", String.class);
+            assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, invalid.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testBulkMeasurementsAPI() {
+
+        // Two patients assigned to one study each
+        PatientEntity patient1 = createTestDbPatientEntity("P-1");
+        PatientEntity patient2 = createTestDbPatientEntity("P-2");
+        DoctorEntity  doctor = createTestDbDoctorEntity("D-1");
+        StudyEntity   study1 = createTestDbStudyEntity("S-1");
+        StudyEntity   study2 = createTestDbStudyEntity("S-2");
+
+        patientRepository.save(patient1);
+        patientRepository.save(patient2);
+        doctorRepository.save(doctor);
+        studyRepository.save(study1);
+        studyRepository.save(study2);
+
+        pdsRepository.save(new PatientDoctorStudyEntity(patient1, doctor, study1));
+        pdsRepository.save(new PatientDoctorStudyEntity(patient2, doctor, study2));
+
+        // Measurements for both patients, one for a study the patient isn't assigned to and one without steps
+        List<BulkMeasurement> measurements = Arrays.asList(
+            createTestApiBulkMeasurementEntity(patient1, study1, 100),
+            createTestApiBulkMeasurementEntity(patient2, study2, 200),
+            createTestApiBulkMeasurementEntity(patient1, study2, 300),
+            createTestApiBulkMeasurementEntity(patient1, study1, 400).withSteps(null));
+
+        ResponseEntity<BulkMeasurementResult[]> response = restTemplate.postForEntity(baseUrlPatients + "/measurements", measurements, BulkMeasurementResult[].class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        BulkMeasurementResult[] results = response.getBody();
+        assertEquals(4, results.length);
+        assertEquals(200, (int)results[0].getStatus());
+        assertEquals(200, (int)results[1].getStatus());
+        assertEquals(404, (int)results[2].getStatus());
+        assertEquals(422, (int)results[3].getStatus());
+        assertNotNull(measurementRepository.findOne(results[0].getId()));
+        assertEquals(2, measurementRepository.count());
+
+        // The same as newline delimited JSON using the Spring MVC API
+        String ndjson =
+            "{\"patientId\":\"" + patient1.getId() + "\",\"studyId\":\"" + study1.getId() + "\",\"timestamp\":1440000000000,\"steps\":500}\n" +
+            "{\"patientId\":\"" + patient2.getId() + "\",\"studyId\":\"" + study2.getId() + "\",\"timestamp\":1440000000000,\"steps\":600}\n";
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.valueOf("application/x-ndjson"));
+        ResponseEntity<BulkMeasurementResult[]> ndjsonResponse = restTemplate.postForEntity(
+            PROTOCOL + "://localhost:" + port + "/api/patients/measurements", new HttpEntity<>(ndjson, headers), BulkMeasurementResult[].class);
+
+        assertEquals(HttpStatus.OK, ndjsonResponse.getStatusCode());
+        assertEquals(2, ndjsonResponse.getBody().length);
+        assertEquals(200, (int)ndjsonResponse.getBody()[1].getStatus());
+        assertEquals(4, measurementRepository.count());
+    }
+
     @Test
     public void testDeletePatientFromStudyAPI() {
 
@@ -496,6 +667,14 @@ public class PatientDoctorStudyIntegrationTests {
         return new MeasurementEntity(pds, "descr", new Date(), steps);
     }
 
+    private Date toDate(String localDateTime) {
+        return Date.from(LocalDateTime.parse(localDateTime).atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    private BulkMeasurement createTestApiBulkMeasurementEntity(PatientEntity patient, StudyEntity study, int steps) {
+        return new BulkMeasurement().withPatientId(patient.getId()).withStudyId(study.getId()).withDescription("descr").withTimestamp(new Date()).withSteps(steps);
+    }
+
     private Measurement createTestApiMeasurementEntity(int steps) {
         return new Measurement().withDescription("descr").withTimestamp(new Date()).withSteps(steps);
     }
@@ -2,6 +2,7 @@ package com.az.ip.api;
 
 import com.az.ip.api.gen.model.Error;
 import com.az.ip.api.gen.model.Patient;
+import com.az.ip.api.persistence.jpa.KeysetCursor;
 import com.az.ip.api.persistence.jpa.PatientEntity;
 import com.az.ip.api.persistence.jpa.PatientRepository;
 import org.junit.Before;
@@ -14,6 +15,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -22,6 +25,8 @@ import org.springframework.web.client.RestTemplate;
 
 import javax.inject.Inject;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
@@ -229,6 +234,86 @@ public class PatientIntegrationTests {
         Arrays.stream(body).forEach(e -> assertEquals(getUsername(id.getAndDecrement()), e.getUsername()));
     }
 
+    @Test
+    public void testGetPatientsWithCursor() {
+
+        final int SIZE = 7;
+
+        // Walk through all patients page by page using the cursor returned with each page
+        final AtomicInteger id = new AtomicInteger(MIN_NO);
+        String url = baseUrl + "?size=" + SIZE + "&orderBy=username";
+        int noOfPages = 0;
+
+        while (url != null) {
+            ResponseEntity<Patient[]> entity = restTemplate.getForEntity(url, Patient[].class);
+            assertEquals(HttpStatus.OK, entity.getStatusCode());
+            noOfPages++;
+
+            // Verify that the page continues where the previous page ended
+            Arrays.stream(entity.getBody()).forEach(e -> assertEquals(getUsername(id.getAndIncrement()), e.getUsername()));
+
+            String nextCursor = entity.getHeaders().getFirst(KeysetCursor.NEXT_CURSOR_HEADER);
+            url = (nextCursor == null) ? null : baseUrl + "?size=" + SIZE + "&after=" + nextCursor;
+        }
+
+        // Verify that we got all patients, the last page is not full
+        assertEquals(MAX_NO + 1, id.get());
+        assertEquals(NO_OF_ENTITIES / SIZE + 1, noOfPages);
+    }
+
+    @Test
+    public void testGetPatientsWithCursorOverNullValues() {
+
+        final int SIZE = 4;
+
+        // Every third patient without a firstname, i.e. the cursor of some pages has a null value
+        for (int i = MIN_NO; i <= MAX_NO; i += 3) {
+            PatientEntity patient = repository.findByUsername(getUsername(i));
+            patient.setFirstname(null);
+            repository.save(patient);
+        }
+
+        for (String order : new String[] {"asc", "desc"}) {
+            Set<String> usernames = new HashSet<>();
+            String url = baseUrl + "?size=" + SIZE + "&orderBy=firstName&order=" + order;
+
+            while (url != null) {
+                ResponseEntity<Patient[]> entity = restTemplate.getForEntity(url, Patient[].class);
+                assertEquals(HttpStatus.OK, entity.getStatusCode());
+                Arrays.stream(entity.getBody()).forEach(e -> assertTrue(e.getUsername(), usernames.add(e.getUsername())));
+
+                String nextCursor = entity.getHeaders().getFirst(KeysetCursor.NEXT_CURSOR_HEADER);
+                url = (nextCursor == null) ? null : baseUrl + "?size=" + SIZE + "&after=" + nextCursor;
+            }
+
+            // Each patient exactly once
+            assertEquals(order, NO_OF_ENTITIES, usernames.size());
+        }
+    }
+
+    @Test
+    public void testGetPatientsWithInvalidCursorError() {
+
+        ResponseEntity<Error> entity = restTemplate.getForEntity(baseUrl + "?after=not-a-cursor", Error.class);
+
+        // Verify Rest response
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, entity.getStatusCode());
+        assertNotNull(entity.getBody());
+    }
+
+    @Test
+    public void testGetPatientsWithInvalidPagingError() {
+
+        // Rejected by both API's before a page request is created
+        for (String url : new String[] {baseUrl, baseUrl.replace("/raml-api/", "/api/")}) {
+            for (String query : new String[] {"?size=0", "?size=-2", "?page=-1", "?size=2147483648"}) {
+                ResponseEntity<String> entity = restTemplate.getForEntity(url + query, String.class);
+                assertEquals(query, HttpStatus.BAD_REQUEST, entity.getStatusCode());
+                assertNotNull(entity.getBody());
+            }
+        }
+    }
+
     @Test
     public void testGetPatientsNoFound() {
 
@@ -386,6 +471,20 @@ public class PatientIntegrationTests {
         assertEquals(NO_OF_ENTITIES, repository.count());
     }
 
+    @Test
+    public void testUpdateNotExistingPatientWithMalformedId() {
+
+        String idNotExisting = "NON-EXISTING-ID";
+        Patient entity = lookupEntityByUsername(getUsername(MIN_NO));
+
+        // A malformed id is not an id of any patient, i.e. the update is not stored under some other id
+        ResponseEntity<String> response = restTemplate.exchange(baseUrl + "/" + idNotExisting, HttpMethod.PUT, new HttpEntity<>(entity), String.class);
+
+        // Verify Rest response and state in db, i.e. no change
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+        assertEquals(NO_OF_ENTITIES, repository.count());
+    }
+
     private Patient lookupEntityByUsername(String username) {
 
         ResponseEntity<Patient[]> entities = restTemplate.getForEntity(baseUrl + "?username=" + username, Patient[].class);
@@ -0,0 +1,73 @@
+package com.az.ip.api;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Verifies that the hot queries are served by an index, i.e. that their query plans don't contain a full table scan.
+ *
+ * The queries have the shape of the SQL generated by Hibernate for the repository methods, e.g.
+ * PatientDoctorStudyRepository.findByPatientIdAndStudyId, with literals instead of parameters.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0"})
+public class QueryPlanIntegrationTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryPlanIntegrationTests.class);
+
+    private static final String ID = "X'0123456789abcdef0123456789abcdef'";
+
+    @Inject
+    DataSource dataSource;
+
+    @Test
+    public void testRelationQueries() {
+        // findByPatientIdAndStudyId, findIdsByPatientIdsAndStudyIds
+        assertNoFullScan("select * from patient_doctor_study_entity where patient_id = " + ID + " and study_id = " + ID);
+        // findByStudyAndDoctor, findPatientIdsByStudyIdAndDoctorId
+        assertNoFullScan("select * from patient_doctor_study_entity where study_id = " + ID + " and doctor_id = " + ID);
+        // findByStudy
+        assertNoFullScan("select * from patient_doctor_study_entity where study_id = " + ID);
+    }
+
+    @Test
+    public void testMeasurementQueries() {
+        // The measurements of a relation, and the rollup recomputes of a bucket
+        assertNoFullScan("select * from measurement_entity where patient_id = " + ID + " order by timestamp");
+        assertNoFullScan("select count(*), sum(steps) from measurement_entity where patient_id = " + ID +
+            " and timestamp >= timestamp'2015-08-01 00:00:00' and timestamp < timestamp'2015-08-02 00:00:00'");
+    }
+
+    @Test
+    public void testSortedNameQueries() {
+        // Pages of patients and doctors sorted by name, seeking to the first name of the page
+        for (String table : new String[] {"patient_entity", "doctor_entity"}) {
+            for (String column : new String[] {"firstname", "lastname"}) {
+                assertNoFullScan("select * from " + table + " where " + column + " > 'M' order by " + column + ", id");
+            }
+        }
+    }
+
+    private void assertNoFullScan(String sql) {
+        List<String> plan = new JdbcTemplate(dataSource).queryForList("explain plan for " + sql, String.class);
+        String text = String.join("\n", plan);
+        LOG.debug("Query plan of {}:\n{}", sql, text);
+
+        assertFalse("Full scan in the query plan of " + sql + ":\n" + text, text.contains("FULL SCAN"));
+    }
+}
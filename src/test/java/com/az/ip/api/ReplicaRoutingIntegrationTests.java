@@ -0,0 +1,157 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Patient;
+import com.az.ip.api.persistence.jpa.PatientEntity;
+import com.az.ip.api.persistence.jpa.PatientRepository;
+import com.az.ip.api.persistence.jpa.Uuids;
+import com.az.ip.api.persistence.routing.ReadYourWritesTracker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies that the reads go to the replica and the writes to the primary, that a client reads its own writes
+ * from the primary until the tolerated replication lag has passed, and that reads that fill a cache go to the primary.
+ *
+ * Runs with two embedded databases where the replica is a copy of the primary made by the test, i.e. without any
+ * replication, so the reads from the replica are told apart by data that only exists there.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0",
+    "spring.datasource.url=" + ReplicaRoutingIntegrationTests.PRIMARY_URL,
+    "datasource.replicas.urls=" + ReplicaRoutingIntegrationTests.REPLICA_URL,
+    "datasource.replicas.max-lag-millis=" + ReplicaRoutingIntegrationTests.MAX_LAG_MILLIS})
+public class ReplicaRoutingIntegrationTests {
+
+    static final String PRIMARY_URL = "jdbc:hsqldb:mem:primary";
+    static final String REPLICA_URL = "jdbc:hsqldb:mem:replica";
+    static final long MAX_LAG_MILLIS = 1000;
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    private RestTemplate restTemplate = null;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupRestTemplate() {
+        restTemplate = new TestRestTemplate(user, pwd);
+    }
+
+    @After
+    public void cleanDb() {
+        patientRepository.deleteAll();
+    }
+
+    @Test
+    public void testReadsFromReplicaAndOwnWritesFromPrimary() throws Exception {
+        for (String baseUri : BASE_URIS) {
+            PatientEntity patient = patientRepository.save(new PatientEntity("P-1" + baseUri, "1234", "F1", "L1", 100, 200));
+            String patientUrl = PROTOCOL + "://localhost:" + port + baseUri + "/patients/" + patient.getId();
+
+            // Only the replica has the patient named Replica
+            copyPrimaryToReplica();
+            execute(REPLICA_URL, "update patient_entity set firstname = 'Replica' where id = ?", Uuids.toBytes(patient.getId()));
+
+            Patient read = restTemplate.getForObject(patientUrl, Patient.class);
+            assertEquals("Replica", read.getFirstname());
+
+            // A lookup by username is cached, i.e. read from the primary
+            String usernameUrl = PROTOCOL + "://localhost:" + port + baseUri + "/patients?username=" + patient.getUsername();
+            assertEquals("F1", restTemplate.getForObject(usernameUrl, Patient[].class)[0].getFirstname());
+
+            // The update goes to the primary, and is read from there by the client that sends the cookie of the update...
+            ResponseEntity<String> update = restTemplate.exchange(patientUrl, HttpMethod.PUT, new HttpEntity<>(read.withFirstname("Updated")), String.class);
+            String cookie = update.getHeaders().getFirst(HttpHeaders.SET_COOKIE).split(";")[0];
+            assertTrue(cookie.startsWith(ReadYourWritesTracker.COOKIE + "="));
+            assertEquals("Updated", get(patientUrl, cookie).getFirstname());
+
+            // ...but not by other clients...
+            assertEquals("Replica", get(patientUrl, null).getFirstname());
+
+            // ...and only until the replica is expected to have caught up
+            Thread.sleep(MAX_LAG_MILLIS + 100);
+            assertEquals("Replica", get(patientUrl, cookie).getFirstname());
+        }
+    }
+
+    private Patient get(String url, String cookie) {
+        HttpHeaders headers = new HttpHeaders();
+        if (cookie != null) headers.set(HttpHeaders.COOKIE, cookie);
+        return restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<>(headers), Patient.class).getBody();
+    }
+
+    /**
+     * Replaces the replica with a snapshot of the tables of the primary
+     */
+    private void copyPrimaryToReplica() throws SQLException {
+        List<String> statements = new ArrayList<>();
+        statements.add("DROP SCHEMA PUBLIC CASCADE");
+        statements.add("SET DATABASE REFERENTIAL INTEGRITY FALSE");
+
+        try (Connection c = DriverManager.getConnection(PRIMARY_URL, "SA", "");
+             Statement s = c.createStatement();
+             ResultSet rs = s.executeQuery("SCRIPT")) {
+            while (rs.next()) {
+                String statement = rs.getString(1);
+                if (statement.startsWith("CREATE MEMORY TABLE") || statement.startsWith("ALTER TABLE") ||
+                    statement.contains(" INDEX ") || statement.startsWith("SET SCHEMA") || statement.startsWith("INSERT INTO")) {
+                    statements.add(statement);
+                }
+            }
+        }
+        statements.add("SET DATABASE REFERENTIAL INTEGRITY TRUE");
+
+        try (Connection c = DriverManager.getConnection(REPLICA_URL, "SA", "");
+             Statement s = c.createStatement()) {
+            for (String statement : statements) s.execute(statement);
+        }
+    }
+
+    private void execute(String url, String sql, Object... params) throws SQLException {
+        try (Connection c = DriverManager.getConnection(url, "SA", "");
+             PreparedStatement s = c.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) s.setObject(i + 1, params[i]);
+            s.executeUpdate();
+        }
+    }
+}
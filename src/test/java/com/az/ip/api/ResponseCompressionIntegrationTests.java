@@ -0,0 +1,157 @@
+package com.az.ip.api;
+
+import com.az.ip.api.persistence.jpa.*;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.util.StreamUtils;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the negotiated compression of API responses, including streamed responses, and the precompressed static
+ * resources with their cache headers.
+ *
+ * Uses HttpURLConnection since it, unlike the HTTP client of the RestTemplate, leaves the body compressed.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0", "compression.min-size=1024"})
+public class ResponseCompressionIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final int STUDIES = 50;
+    private static final int MEASUREMENTS = 200;
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Inject
+    MeasurementRepository measurementRepository;
+
+    @Inject
+    StepRollupRepository stepRollupRepository;
+
+    @Inject
+    PatientDoctorStudyRepository pdsRepository;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @After
+    public void cleanDb() {
+        measurementRepository.deleteAll();
+        stepRollupRepository.deleteAll();
+        pdsRepository.deleteAll();
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Test
+    public void testCompressedList() throws IOException {
+        for (int i = 0; i < STUDIES; i++) {
+            studyRepository.save(new StudyEntity("S-" + i, "A study with a description", new Date(), new Date()));
+        }
+
+        for (String baseUri : BASE_URIS) {
+            HttpURLConnection gzip = get(baseUri + "/studies?size=-1", "gzip, deflate");
+            assertEquals(200, gzip.getResponseCode());
+            assertEquals("gzip", gzip.getContentEncoding());
+            assertTrue(gzip.getHeaderField("Vary").contains("Accept-Encoding"));
+            assertEquals(STUDIES, readList(new GZIPInputStream(gzip.getInputStream())).size());
+
+            HttpURLConnection deflate = get(baseUri + "/studies?size=-1", "deflate, gzip;q=0");
+            assertEquals("deflate", deflate.getContentEncoding());
+            assertEquals(STUDIES, readList(new InflaterInputStream(deflate.getInputStream())).size());
+
+            HttpURLConnection identity = get(baseUri + "/studies?size=-1", null);
+            assertNull(identity.getContentEncoding());
+            assertEquals(STUDIES, readList(identity.getInputStream()).size());
+
+            // Too small to be compressed
+            HttpURLConnection small = get(baseUri + "/studies?size=1", "gzip");
+            assertNull(small.getContentEncoding());
+            assertEquals(1, readList(small.getInputStream()).size());
+        }
+    }
+
+    @Test
+    public void testCompressedStream() throws IOException {
+        PatientEntity patient = patientRepository.save(new PatientEntity("P-1", "1234", "F1", "L1", 100, 200));
+        DoctorEntity doctor = doctorRepository.save(new DoctorEntity("D-1", "F1", "L1"));
+        StudyEntity study = studyRepository.save(new StudyEntity("S-1", "description", new Date(), new Date()));
+        PatientDoctorStudyEntity relation = pdsRepository.save(new PatientDoctorStudyEntity(patient, doctor, study));
+        for (int i = 0; i < MEASUREMENTS; i++) {
+            measurementRepository.save(new MeasurementEntity(relation, "descr", new Date(), i));
+        }
+
+        for (String baseUri : BASE_URIS) {
+            HttpURLConnection gzip = get(baseUri + "/studies/" + study.getId() + "/measurements/stream", "gzip");
+            assertEquals(200, gzip.getResponseCode());
+            assertEquals("gzip", gzip.getContentEncoding());
+            assertEquals(MEASUREMENTS, readList(new GZIPInputStream(gzip.getInputStream())).size());
+        }
+    }
+
+    @Test
+    public void testPrecompressedStaticResources() throws IOException {
+        byte[] script = StreamUtils.copyToByteArray(new ClassPathResource("public/console/scripts/api-console.js").getInputStream());
+
+        HttpURLConnection gzip = get("/console/scripts/api-console.js", "gzip");
+        assertEquals(200, gzip.getResponseCode());
+        assertEquals("gzip", gzip.getContentEncoding());
+        assertTrue(gzip.getHeaderField("Cache-Control"), gzip.getHeaderField("Cache-Control").contains("immutable"));
+        assertArrayEquals(script, StreamUtils.copyToByteArray(new GZIPInputStream(gzip.getInputStream())));
+
+        HttpURLConnection identity = get("/console/scripts/api-console.js", null);
+        assertNull(identity.getContentEncoding());
+        assertArrayEquals(script, StreamUtils.copyToByteArray(identity.getInputStream()));
+
+        // The RAML files change with the API, i.e. they are revalidated
+        HttpURLConnection raml = get("/raml/az-ip-api.raml", "gzip");
+        assertEquals(200, raml.getResponseCode());
+        assertEquals("no-cache", raml.getHeaderField("Cache-Control"));
+    }
+
+    private HttpURLConnection get(String uri, String acceptEncoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + uri).openConnection();
+        if (acceptEncoding != null) connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        connection.setRequestProperty("Accept", "application/json, */*");
+        return connection;
+    }
+
+    private List<?> readList(InputStream in) throws IOException {
+        try {
+            return mapper.readValue(in, List.class);
+        } finally {
+            in.close();
+        }
+    }
+}
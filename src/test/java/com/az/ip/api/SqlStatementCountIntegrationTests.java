@@ -0,0 +1,317 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Id;
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.gen.model.Patient;
+import com.az.ip.api.gen.model.Study;
+import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.services.core.NaturalKeyCaches;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies the number of SQL statements executed by the endpoints, to catch regressions such as eager fetch
+ * cycles or N+1 selects in the JPA model, that the second-level cache is used and kept up to date, and that each
+ * request runs in a single transaction. The response cache of the studies is disabled, since a hit doesn't reach JPA.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0", "spring.jpa.properties.hibernate.generate_statistics=true",
+    "studies.response-cache.enabled=false"})
+public class SqlStatementCountIntegrationTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SqlStatementCountIntegrationTests.class);
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    EntityManagerFactory emf;
+
+    @Inject
+    PlatformTransactionManager transactionManager;
+
+    @Inject
+    NaturalKeyCaches naturalKeyCaches;
+
+    @Inject
+    MeasurementRepository measurementRepository;
+
+    @Inject
+    PatientDoctorStudyRepository pdsRepository;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private RestTemplate restTemplate = null;
+    private Statistics statistics = null;
+
+    private PatientEntity patient;
+    private DoctorEntity doctor;
+    private StudyEntity study;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupDb() {
+        cleanDb();
+
+        // Two studies sharing two doctors, i.e. a cycle between doctors and studies, and a patient with some measurements
+        patient = new PatientEntity("P-1", "1234", "F1", "L1", 100, 200);
+        doctor = new DoctorEntity("D-1", "F1", "L1");
+        DoctorEntity doctor2 = new DoctorEntity("D-2", "F2", "L2");
+        study = new StudyEntity("S-1", "description", new Date(), new Date());
+        StudyEntity study2 = new StudyEntity("S-2", "description", new Date(), new Date());
+
+        patientRepository.save(patient);
+        doctorRepository.save(doctor);
+        doctorRepository.save(doctor2);
+
+        study.getAssigendDoctors().add(doctor);
+        study.getAssigendDoctors().add(doctor2);
+        study2.getAssigendDoctors().add(doctor);
+        study2.getAssigendDoctors().add(doctor2);
+        studyRepository.save(study);
+        studyRepository.save(study2);
+
+        PatientDoctorStudyEntity pds = new PatientDoctorStudyEntity(patient, doctor, study);
+        pdsRepository.save(pds);
+        for (int steps = 100; steps <= 500; steps += 100) {
+            measurementRepository.save(new MeasurementEntity(pds, "descr", new Date(), steps));
+        }
+    }
+
+    @After
+    public void cleanDb() {
+        measurementRepository.deleteAll();
+        pdsRepository.deleteAll();
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Before
+    public void setupRestTemplateAndStatistics() {
+        restTemplate = new TestRestTemplate(user, pwd);
+        statistics = emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    public void testStudyEndpoints() {
+        for (String baseUri : BASE_URIS) {
+            assertStatementCount(1, baseUri + "/studies/" + study.getId());
+            assertStatementCount(1, baseUri + "/studies/" + study.getId() + "/assignedDoctors");
+            assertStatementCount(1, baseUri + "/studies/" + study.getId() + "/measurements");
+        }
+    }
+
+    @Test
+    public void testDoctorEndpoints() {
+        for (String baseUri : BASE_URIS) {
+            assertStatementCount(1, baseUri + "/doctors/" + doctor.getId());
+            assertStatementCount(1, baseUri + "/doctors/" + doctor.getId() + "/assignedInStudies");
+            assertStatementCount(1, baseUri + "/doctors/" + doctor.getId() + "/assignedInStudies/" + study.getId() + "/patients");
+        }
+    }
+
+    @Test
+    public void testPatientEndpoints() {
+        for (String baseUri : BASE_URIS) {
+            assertStatementCount(1, baseUri + "/patients/" + patient.getId());
+            assertStatementCount(1, baseUri + "/patients/" + patient.getId() + "/studies");
+            assertStatementCount(1, baseUri + "/patients/" + patient.getId() + "/studies/" + study.getId() + "/measurements");
+        }
+    }
+
+    @Test
+    public void testAssignAndRemovePatientEndpoints() {
+        PatientEntity patient2 = new PatientEntity("P-2", "1234", "F2", "L2", 100, 200);
+        patientRepository.save(patient2);
+
+        for (String baseUri : BASE_URIS) {
+            String patientsUrl = PROTOCOL + "://localhost:" + port + baseUri + "/doctors/" + doctor.getId() + "/assignedInStudies/" + study.getId() + "/patients";
+
+            // A single insert...
+            statistics.clear();
+            ResponseEntity<String> response = restTemplate.postForEntity(patientsUrl, new Id().withId(patient2.getId()), String.class);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            assertEquals(1, statistics.getPrepareStatementCount());
+            assertEquals(2, pdsRepository.findPatientIdsByStudyIdAndDoctorId(study.getId(), doctor.getId(), Uuids.NIL, null).size());
+
+            // ...and a single delete
+            statistics.clear();
+            restTemplate.delete(patientsUrl + "/" + patient2.getId());
+            assertEquals(1, statistics.getPrepareStatementCount());
+            assertEquals(1, pdsRepository.findPatientIdsByStudyIdAndDoctorId(study.getId(), doctor.getId(), Uuids.NIL, null).size());
+        }
+    }
+
+    @Test
+    public void testSecondLevelCache() {
+        DoctorEntity doctor3 = doctorRepository.save(new DoctorEntity("D-3", "F3", "L3"));
+
+        for (String baseUri : BASE_URIS) {
+            String baseUrl = PROTOCOL + "://localhost:" + port + baseUri;
+            StudyEntity study3 = studyRepository.save(new StudyEntity("S-3" + baseUri, "description", new Date(), new Date()));
+            String studyUrl = baseUrl + "/studies/" + study3.getId();
+
+            // Served from the cache after the first read...
+            emf.getCache().evictAll();
+            assertStatementCount(1, baseUri + "/studies/" + study3.getId(), false);
+            assertStatementCount(0, baseUri + "/studies/" + study3.getId(), false);
+            assertStatementCount(1, baseUri + "/doctors/" + doctor3.getId(), false);
+            assertStatementCount(0, baseUri + "/doctors/" + doctor3.getId(), false);
+
+            // ...and updated by a PUT
+            Study study = restTemplate.getForObject(studyUrl, Study.class);
+            restTemplate.put(studyUrl, study.withDescription("updated" + baseUri));
+            assertStatementCount(0, baseUri + "/studies/" + study3.getId(), false);
+            assertEquals("updated" + baseUri, restTemplate.getForObject(studyUrl, Study.class).getDescription());
+
+            // The cached studies of a doctor, i.e. the inverse side, follow the doctors of the study
+            assertEquals(0, countStudiesOfDoctor(doctor3.getId()));
+            restTemplate.postForEntity(studyUrl + "/assignedDoctors", new Id().withId(doctor3.getId()), String.class);
+            assertEquals(1, countStudiesOfDoctor(doctor3.getId()));
+            restTemplate.delete(studyUrl + "/assignedDoctors/" + doctor3.getId());
+            assertEquals(0, countStudiesOfDoctor(doctor3.getId()));
+
+            // ...and evicted by a DELETE
+            restTemplate.delete(studyUrl);
+            assertEquals(HttpStatus.NOT_FOUND, restTemplate.getForEntity(studyUrl, String.class).getStatusCode());
+        }
+    }
+
+    @Test
+    public void testAssignDoctorToStudy() {
+        DoctorEntity doctor3 = doctorRepository.save(new DoctorEntity("D-3", "F3", "L3"));
+        int version = studyRepository.findOne(study.getId()).getVersion();
+
+        for (String baseUri : BASE_URIS) {
+            String assignedDoctorsUrl = PROTOCOL + "://localhost:" + port + baseUri + "/studies/" + study.getId() + "/assignedDoctors";
+
+            // A single statement on the join table, also when repeated...
+            for (int i = 0; i < 2; i++) {
+                statistics.clear();
+                assertEquals(HttpStatus.OK, restTemplate.postForEntity(assignedDoctorsUrl, new Id().withId(doctor3.getId()), String.class).getStatusCode());
+                assertEquals(1, statistics.getPrepareStatementCount());
+            }
+            assertEquals(3, studyRepository.findDoctorIdsByStudyId(study.getId(), Uuids.NIL, null).size());
+            assertEquals(1, countStudiesOfDoctor(doctor3.getId()));
+
+            statistics.clear();
+            restTemplate.delete(assignedDoctorsUrl + "/" + doctor3.getId());
+            assertEquals(1, statistics.getPrepareStatementCount());
+            assertEquals(2, studyRepository.findDoctorIdsByStudyId(study.getId(), Uuids.NIL, null).size());
+            assertEquals(0, countStudiesOfDoctor(doctor3.getId()));
+        }
+
+        // ...that leaves the study as is
+        assertEquals(version, studyRepository.findOne(study.getId()).getVersion());
+    }
+
+    @Test
+    public void testNaturalKeyLookups() {
+        for (String baseUri : BASE_URIS) {
+            naturalKeyCaches.patients().clear();
+            String patientsUrl = PROTOCOL + "://localhost:" + port + baseUri + "/patients";
+            String username = "P-new" + baseUri;
+
+            // Logins skip the database after the first lookup, also for unknown usernames
+            assertStatementCount(1, baseUri + "/patients?username=" + patient.getUsername(), false);
+            assertStatementCount(0, baseUri + "/patients?username=" + patient.getUsername(), false);
+            assertStatementCount(1, baseUri + "/patients?username=" + username, false);
+            assertStatementCount(0, baseUri + "/patients?username=" + username, false);
+            assertEquals(0, restTemplate.getForObject(patientsUrl + "?username=" + username, Patient[].class).length);
+
+            // Create, update and delete invalidate the cached lookups
+            Patient created = restTemplate.postForObject(patientsUrl, new Patient().withUsername(username).withPatientID("1234").withFirstname("F1").withLastname("L1").withWeight(100).withHeight(200), Patient.class);
+            assertEquals(created.getId(), restTemplate.getForObject(patientsUrl + "?username=" + username, Patient[].class)[0].getId());
+
+            restTemplate.put(patientsUrl + "/" + created.getId(), created.withFirstname("F2"));
+            assertEquals("F2", restTemplate.getForObject(patientsUrl + "?username=" + username, Patient[].class)[0].getFirstname());
+
+            restTemplate.delete(patientsUrl + "/" + created.getId());
+            assertEquals(0, restTemplate.getForObject(patientsUrl + "?username=" + username, Patient[].class).length);
+        }
+    }
+
+    @Test
+    public void testOneTransactionPerRequest() {
+        for (String baseUri : BASE_URIS) {
+            String measurementsUrl = PROTOCOL + "://localhost:" + port + baseUri + "/patients/" + patient.getId() + "/studies/" + study.getId() + "/measurements";
+
+            // The lookup of the relation and the insert of the measurement...
+            statistics.clear();
+            ResponseEntity<String> response = restTemplate.postForEntity(measurementsUrl, new Measurement().withDescription("descr").withTimestamp(new Date()).withSteps(600), String.class);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            assertEquals(1, statistics.getTransactionCount());
+
+            // ...and the relation with its measurements
+            statistics.clear();
+            assertEquals(HttpStatus.OK, restTemplate.getForEntity(measurementsUrl, String.class).getStatusCode());
+            assertEquals(1, statistics.getTransactionCount());
+        }
+    }
+
+    private int countStudiesOfDoctor(String doctorId) {
+        return new TransactionTemplate(transactionManager).execute(status -> doctorRepository.findOne(doctorId).getAssigendInStudies().size());
+    }
+
+    private void assertStatementCount(long expected, String uri) {
+        assertStatementCount(expected, uri, true);
+    }
+
+    /**
+     * @param coldCache evicts the second-level cache before the request, i.e. counts the statements of a first read
+     */
+    private void assertStatementCount(long expected, String uri, boolean coldCache) {
+        if (coldCache) emf.getCache().evictAll();
+        statistics.clear();
+
+        ResponseEntity<String> response = restTemplate.getForEntity(PROTOCOL + "://localhost:" + port + uri, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        long count = statistics.getPrepareStatementCount();
+        LOG.debug("GET {} executed #{} SQL statements", uri, count);
+        assertEquals("Number of SQL statements for GET " + uri, expected, count);
+    }
+}
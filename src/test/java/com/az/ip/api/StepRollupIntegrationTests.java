@@ -0,0 +1,233 @@
+package com.az.ip.api;
+
+import com.az.ip.api.gen.model.Measurement;
+import com.az.ip.api.persistence.jpa.*;
+import com.az.ip.api.persistence.jpa.MeasurementRepositoryCustom.TimeBucket;
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Resolution;
+import com.az.ip.api.persistence.jpa.StepRollupEntity.Scope;
+import com.az.ip.api.services.core.MeasurementIdempotency;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.client.RestTemplate;
+
+import javax.inject.Inject;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that the step rollups are maintained when measurements are stored and removed, also through the APIs, and
+ * that they give the same aggregates as the measurements.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0"})
+public class StepRollupIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final String PROTOCOL = "http";
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Value("${mysuer:demo}")
+    String user;
+
+    @Value("${mypwd:omed.1}")
+    String pwd;
+
+    @Inject
+    MeasurementRepository measurementRepository;
+
+    @Inject
+    StepRollupRepository stepRollupRepository;
+
+    @Inject
+    PatientDoctorStudyRepository pdsRepository;
+
+    @Inject
+    PatientRepository patientRepository;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    DoctorRepository doctorRepository;
+
+    private PatientEntity patient1;
+    private StudyEntity study;
+    private PatientDoctorStudyEntity relation1;
+    private PatientDoctorStudyEntity relation2;
+
+    private RestTemplate restTemplate = null;
+
+    @BeforeClass
+    public static void setupSSL() {
+        SSLUtil.registerKeyStore("server.jks");
+    }
+
+    @Before
+    public void setupDb() {
+        cleanDb();
+        restTemplate = new TestRestTemplate(user, pwd);
+
+        patient1 = new PatientEntity("P-1", "1234", "F1", "L1", 100, 200);
+        PatientEntity patient2 = new PatientEntity("P-2", "1234", "F2", "L2", 100, 200);
+        DoctorEntity doctor = new DoctorEntity("D-1", "F1", "L1");
+        study = new StudyEntity("S-1", "description", new Date(), new Date());
+
+        patientRepository.save(patient1);
+        patientRepository.save(patient2);
+        doctorRepository.save(doctor);
+        studyRepository.save(study);
+
+        relation1 = pdsRepository.save(new PatientDoctorStudyEntity(patient1, doctor, study));
+        relation2 = pdsRepository.save(new PatientDoctorStudyEntity(patient2, doctor, study));
+    }
+
+    @After
+    public void cleanDb() {
+        measurementRepository.deleteAll();
+        stepRollupRepository.deleteAll();
+        pdsRepository.deleteAll();
+        patientRepository.deleteAll();
+        studyRepository.deleteAll();
+        doctorRepository.deleteAll();
+    }
+
+    @Test
+    public void testRollupsFollowSavesAndDeletes() {
+
+        measurementRepository.save(new MeasurementEntity(relation1, "descr", toDate("2015-08-03T10:15"), 100));
+        measurementRepository.save(new MeasurementEntity(relation1, "descr", toDate("2015-08-03T10:45"), 200));
+        MeasurementEntity max = measurementRepository.save(new MeasurementEntity(relation2, "descr", toDate("2015-08-03T14:00"), 1000));
+
+        StepRollupEntity relationHour = findRollup(Scope.RELATION, relation1.getId(), Resolution.HOUR, "2015-08-03T10:00");
+        assertEquals(2, relationHour.getMeasurementCount());
+        assertEquals(300, relationHour.getStepSum());
+        assertEquals(100, relationHour.getStepMin());
+        assertEquals(200, relationHour.getStepMax());
+
+        StepRollupEntity studyDay = findRollup(Scope.STUDY, study.getId(), Resolution.DAY, "2015-08-03T00:00");
+        assertEquals(3, studyDay.getMeasurementCount());
+        assertEquals(1300, studyDay.getStepSum());
+        assertEquals(1000, studyDay.getStepMax());
+
+        // Removing the max of the day recomputes the day, and removes the now empty hour
+        measurementRepository.delete(max.getId());
+
+        studyDay = findRollup(Scope.STUDY, study.getId(), Resolution.DAY, "2015-08-03T00:00");
+        assertEquals(2, studyDay.getMeasurementCount());
+        assertEquals(300, studyDay.getStepSum());
+        assertEquals(200, studyDay.getStepMax());
+        assertNull(findRollup(Scope.RELATION, relation2.getId(), Resolution.HOUR, "2015-08-03T14:00"));
+    }
+
+    @Test
+    public void testRollupsFollowBulkInserts() {
+
+        measurementRepository.insertAll(Arrays.asList(
+            new NewMeasurement(relation1.getId(), "descr", toDate("2015-08-03T10:00"), 100),
+            new NewMeasurement(relation1.getId(), "descr", toDate("2015-08-04T10:00"), 200),
+            new NewMeasurement(relation2.getId(), "descr", toDate("2015-08-04T11:00"), 300)));
+
+        assertEquals(1, findRollup(Scope.STUDY, study.getId(), Resolution.DAY, "2015-08-03T00:00").getMeasurementCount());
+        assertEquals(500, findRollup(Scope.STUDY, study.getId(), Resolution.DAY, "2015-08-04T00:00").getStepSum());
+    }
+
+    @Test
+    public void testRollupsFollowPostsAndDeletes() {
+
+        // Single measurements are inserted without a flush before the commit
+        int steps = 100;
+        String lastId = null;
+        for (String baseUri : BASE_URIS) {
+            assertEquals(HttpStatus.OK, post(baseUri, "2015-08-03T10:15", steps += 100).getStatusCode());
+            ResponseEntity<String> response = post(baseUri, "2015-08-03T10:45", steps += 100);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            lastId = response.getHeaders().getFirst(MeasurementIdempotency.MEASUREMENT_ID_HEADER);
+        }
+
+        StepRollupEntity relationHour = findRollup(Scope.RELATION, relation1.getId(), Resolution.HOUR, "2015-08-03T10:00");
+        assertEquals(4, relationHour.getMeasurementCount());
+        assertEquals(1400, relationHour.getStepSum());
+        assertEquals(500, relationHour.getStepMax());
+        assertEquals(4, findRollup(Scope.STUDY, study.getId(), Resolution.DAY, "2015-08-03T00:00").getMeasurementCount());
+
+        // Removing the max recomputes the buckets
+        String url = PROTOCOL + "://localhost:" + port + "/api/patients/" + patient1.getId() + "/studies/" + study.getId() + "/measurements/" + lastId;
+        restTemplate.delete(url);
+
+        StepRollupEntity studyDay = findRollup(Scope.STUDY, study.getId(), Resolution.DAY, "2015-08-03T00:00");
+        assertEquals(3, studyDay.getMeasurementCount());
+        assertEquals(900, studyDay.getStepSum());
+        assertEquals(400, studyDay.getStepMax());
+    }
+
+    @Test
+    public void testRollupsGiveSameAggregatesAsMeasurements() {
+
+        int steps = 100;
+        for (String timestamp : new String[] {"2015-08-03T10:00", "2015-08-03T23:30", "2015-08-09T12:00", "2015-08-10T00:00", "2015-09-01T08:00"}) {
+            measurementRepository.save(new MeasurementEntity(relation1, "descr", toDate(timestamp), steps += 100));
+            measurementRepository.save(new MeasurementEntity(relation2, "descr", toDate(timestamp), steps += 100));
+        }
+
+        Date from = toDate("2015-08-03T00:00");
+        for (TimeBucket bucket : TimeBucket.values()) {
+            assertSameAggregates(
+                measurementRepository.aggregateSteps(study.getId(), null, bucket, from, null),
+                stepRollupRepository.aggregateSteps(study.getId(), null, Resolution.DAY, bucket, from, null));
+            assertSameAggregates(
+                measurementRepository.aggregateSteps(study.getId(), patient1.getId(), bucket, null, null),
+                stepRollupRepository.aggregateSteps(study.getId(), patient1.getId(), Resolution.HOUR, bucket, null, null));
+        }
+
+        // A rebuild gives the same rollups
+        long rollups = stepRollupRepository.count();
+        assertEquals(rollups, stepRollupRepository.rebuild());
+        assertEquals(1, findRollup(Scope.RELATION, relation1.getId(), Resolution.DAY, "2015-08-10T00:00").getMeasurementCount());
+    }
+
+    private void assertSameAggregates(List<StepAggregateRow> expected, List<StepAggregateRow> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getBucket().getTime(), actual.get(i).getBucket().getTime());
+            assertEquals(expected.get(i).getCount(), actual.get(i).getCount());
+            assertEquals(expected.get(i).getSum(), actual.get(i).getSum());
+            assertEquals(expected.get(i).getAvg(), actual.get(i).getAvg(), 0.001);
+            assertEquals(expected.get(i).getMin(), actual.get(i).getMin());
+            assertEquals(expected.get(i).getMax(), actual.get(i).getMax());
+        }
+    }
+
+    private ResponseEntity<String> post(String baseUri, String timestamp, int steps) {
+        String url = PROTOCOL + "://localhost:" + port + baseUri + "/patients/" + patient1.getId() + "/studies/" + study.getId() + "/measurements";
+        Measurement measurement = new Measurement().withDescription("descr").withTimestamp(toDate(timestamp)).withSteps(steps);
+        return restTemplate.postForEntity(url, measurement, String.class);
+    }
+
+    private StepRollupEntity findRollup(Scope scope, String scopeId, Resolution resolution, String bucketStart) {
+        return stepRollupRepository.findByScopeAndScopeIdAndResolutionAndBucketStart(scope, scopeId, resolution, toDate(bucketStart));
+    }
+
+    private Date toDate(String localDateTime) {
+        return Date.from(LocalDateTime.parse(localDateTime).atZone(ZoneId.systemDefault()).toInstant());
+    }
+}
@@ -5,8 +5,11 @@ import com.az.ip.api.gen.model.Id;
 import com.az.ip.api.gen.model.Study;
 import com.az.ip.api.persistence.jpa.DoctorEntity;
 import com.az.ip.api.persistence.jpa.DoctorRepository;
+import com.az.ip.api.persistence.jpa.KeysetCursor;
 import com.az.ip.api.persistence.jpa.StudyEntity;
 import com.az.ip.api.persistence.jpa.StudyRepository;
+import com.az.ip.api.persistence.jpa.Uuids;
+import com.az.ip.api.services.core.StudyService;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
@@ -15,6 +18,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.boot.test.TestRestTemplate;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -22,8 +26,12 @@ import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.web.client.RestTemplate;
 
 import javax.inject.Inject;
-import java.util.Date;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static java.util.Collections.singletonList;
 import static org.junit.Assert.*;
 
 /**
@@ -40,6 +48,7 @@ public class StudyDoctorIntegrationTests {
     private static final String BASE_URI_STUDIES = "/studies";
     private static final String BASE_URI_DOCTORS = "/doctors";
     private static final String PROTOCOL = "http";
+    private static final int THREADS = 8;
 
     @Value("${local.server.port}")
     int port;
@@ -56,6 +65,9 @@ public class StudyDoctorIntegrationTests {
     @Inject
     DoctorRepository doctorRepository;
 
+    @Inject
+    StudyService studyService;
+
     private RestTemplate restTemplate = null;
     private String baseUrlStudies = null;
     private String baseUrldoctors = null;
@@ -93,7 +105,7 @@ public class StudyDoctorIntegrationTests {
         study.getAssigendDoctors().add(doctor);
         studyRepository.save(study);
 
-        DoctorEntity doctor2 = doctorRepository.findByUsername(doctorUsername);
+        DoctorEntity doctor2 = doctorRepository.findWithStudiesByUsername(doctorUsername);
 
         assertEquals(1, doctor2.getAssigendInStudies().size());
     }
@@ -130,13 +142,13 @@ public class StudyDoctorIntegrationTests {
         studyRepository.save(study3);
 
         // Reread the entities from the database
-        study1 = studyRepository.findByName(study1Name);
-        study2 = studyRepository.findByName(study2Name);
-        study3 = studyRepository.findByName(study3Name);
+        study1 = studyRepository.findWithDoctorsByName(study1Name);
+        study2 = studyRepository.findWithDoctorsByName(study2Name);
+        study3 = studyRepository.findWithDoctorsByName(study3Name);
 
-        doctor1 = doctorRepository.findByUsername(doctor1Username);
-        doctor2 = doctorRepository.findByUsername(doctor2Username);
-        doctor3 = doctorRepository.findByUsername(doctor3Username);
+        doctor1 = doctorRepository.findWithStudiesByUsername(doctor1Username);
+        doctor2 = doctorRepository.findWithStudiesByUsername(doctor2Username);
+        doctor3 = doctorRepository.findWithStudiesByUsername(doctor3Username);
 
         // Verify the expected result...
         assertEquals(0, study1.getAssigendDoctors().size());
@@ -189,8 +201,8 @@ public class StudyDoctorIntegrationTests {
         // Verify state in db
         assertEquals(1, studyRepository.count());
         assertEquals(1, doctorRepository.count());
-        assertEquals(0, studyRepository.findByName(studyName).getAssigendDoctors().size());
-        assertEquals(0, doctorRepository.findByUsername(doctorUsername).getAssigendInStudies().size());
+        assertEquals(0, studyRepository.findWithDoctorsByName(studyName).getAssigendDoctors().size());
+        assertEquals(0, doctorRepository.findWithStudiesByUsername(doctorUsername).getAssigendInStudies().size());
 
 
         // Assign doctor to the study
@@ -202,8 +214,8 @@ public class StudyDoctorIntegrationTests {
         assertNull(result.getBody());
 
         // Verify db result
-        assertEquals(1, studyRepository.findByName(studyName).getAssigendDoctors().size());
-        assertEquals(1, doctorRepository.findByUsername(doctorUsername).getAssigendInStudies().size());
+        assertEquals(1, studyRepository.findWithDoctorsByName(studyName).getAssigendDoctors().size());
+        assertEquals(1, doctorRepository.findWithStudiesByUsername(doctorUsername).getAssigendInStudies().size());
 
         // Assert one doctor assigned to the studie
         ResponseEntity<Id[]> listAssignedDoctors = restTemplate.getForEntity(assignedDoctorsUrl, Id[].class);
@@ -233,6 +245,70 @@ public class StudyDoctorIntegrationTests {
         assertEquals(0, listAssignedStudiesAfterDelete.getBody().length);
     }
 
+    @Test
+    public void testAssignedDoctorsIdPagingAPI() {
+
+        // One study with five assigned doctors
+        StudyEntity study = createTestDbStudyEntity("S-1");
+        List<String> doctorIds = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            DoctorEntity doctor = createTestDbDoctorEntity("D-" + i);
+            doctorRepository.save(doctor);
+            study.getAssigendDoctors().add(doctor);
+            doctorIds.add(doctor.getId());
+        }
+        studyRepository.save(study);
+        Collections.sort(doctorIds);
+
+        // Verify the projection query directly...
+        assertEquals(doctorIds, studyRepository.findDoctorIdsByStudyId(study.getId(), Uuids.NIL, null));
+        assertEquals(doctorIds.subList(2, 4), studyRepository.findDoctorIdsByStudyId(study.getId(), doctorIds.get(1), new PageRequest(0, 2)));
+        assertEquals(singletonList(study.getId()), doctorRepository.findStudyIdsByDoctorId(doctorIds.get(0), Uuids.NIL, null));
+
+        // ...and walk through the id's two at the time using the API
+        String assignedDoctorsUrl = baseUrlStudies + "/" + study.getId() + "/assignedDoctors?limit=2";
+        List<String> foundIds = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ResponseEntity<Id[]> response = restTemplate.getForEntity(assignedDoctorsUrl + (cursor == null ? "" : "&after=" + cursor), Id[].class);
+            assertEquals(HttpStatus.OK, response.getStatusCode());
+            Arrays.stream(response.getBody()).forEach(id -> foundIds.add(id.getId()));
+
+            cursor = response.getHeaders().getFirst(KeysetCursor.NEXT_CURSOR_HEADER);
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(3, pages);
+        assertEquals(doctorIds, foundIds);
+
+        // A limit of 0 can't return the next id
+        ResponseEntity<String> response = restTemplate.getForEntity(baseUrlStudies + "/" + study.getId() + "/assignedDoctors?limit=0", String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void testConcurrentAssignmentOfSameDoctor() throws Exception {
+        StudyEntity study = studyRepository.save(createTestDbStudyEntity("S-1"));
+        DoctorEntity doctor = doctorRepository.save(createTestDbDoctorEntity("D-1"));
+
+        // Each concurrent assignment either inserts the row or finds it inserted by another one
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> assignments = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                assignments.add(executor.submit(() -> studyService.assignDoctor(study.getId(), doctor.getId())));
+            }
+            for (Future<?> assignment : assignments) {
+                assignment.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(singletonList(doctor.getId()), studyRepository.findDoctorIdsByStudyId(study.getId(), Uuids.NIL, null));
+    }
+
     // FIXME
     @Ignore
     @Test
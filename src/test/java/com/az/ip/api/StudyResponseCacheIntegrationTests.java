@@ -0,0 +1,197 @@
+package com.az.ip.api;
+
+import com.az.ip.api.persistence.jpa.StudyEntity;
+import com.az.ip.api.persistence.jpa.StudyRepository;
+import com.az.ip.api.persistence.jpa.Uuids;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.util.StreamUtils;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Verifies that GET /studies is served from the response cache without any SQL statements and GET /studies/{id} with
+ * only the lookup of the version, with the same headers and body as the first response, and that the cached responses
+ * are invalidated by changes of studies, also by changes that bypass this instance.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest({"server.port=0", "management.port=0", "compression.min-size=1024",
+    "spring.jpa.properties.hibernate.generate_statistics=true"})
+public class StudyResponseCacheIntegrationTests {
+
+    private static final String[] BASE_URIS = {"/raml-api", "/api"};
+    private static final int STUDIES = 50;
+
+    @Value("${local.server.port}")
+    int port;
+
+    @Inject
+    StudyRepository studyRepository;
+
+    @Inject
+    EntityManagerFactory emf;
+
+    @Inject
+    DataSource dataSource;
+
+    private Statistics statistics;
+
+    @Before
+    public void setupStatistics() {
+        statistics = emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @After
+    public void cleanDb() {
+        studyRepository.deleteAll();
+    }
+
+    @Test
+    public void testCachedStudy() throws IOException {
+        StudyEntity study = studyRepository.save(new StudyEntity("S-1", "description", new Date(), new Date()));
+
+        for (String baseUri : BASE_URIS) {
+            String uri = baseUri + "/studies/" + study.getId();
+
+            HttpURLConnection first = request("GET", uri, null, null);
+            assertEquals(200, first.getResponseCode());
+            byte[] body = read(first);
+
+            // Served from the cache, i.e. with only the lookup of the version
+            statistics.clear();
+            HttpURLConnection cached = request("GET", uri, null, null);
+            assertEquals(200, cached.getResponseCode());
+            assertArrayEquals(body, read(cached));
+            assertEquals(1, statistics.getPrepareStatementCount());
+            assertEquals(first.getContentType(), cached.getContentType());
+            assertEquals(first.getHeaderField("ETag"), cached.getHeaderField("ETag"));
+
+            HttpURLConnection notModified = request("GET", uri, null, first.getHeaderField("ETag"));
+            assertEquals(304, notModified.getResponseCode());
+            assertEquals(first.getHeaderField("ETag"), notModified.getHeaderField("ETag"));
+        }
+
+        // An update of the study invalidates its responses in both APIs
+        study.setDescription("changed");
+        studyRepository.save(study);
+
+        for (String baseUri : BASE_URIS) {
+            HttpURLConnection updated = request("GET", baseUri + "/studies/" + study.getId(), null, null);
+            assertEquals(200, updated.getResponseCode());
+            assertTrue(new String(read(updated), "UTF-8").contains("changed"));
+        }
+
+        // ...and so does a delete
+        studyRepository.delete(study.getId());
+        for (String baseUri : BASE_URIS) {
+            assertEquals(404, request("GET", baseUri + "/studies/" + study.getId(), null, null).getResponseCode());
+        }
+    }
+
+    @Test
+    public void testStudyChangedByAnotherInstance() throws IOException {
+        StudyEntity study = studyRepository.save(new StudyEntity("S-1", "description", new Date(), new Date()));
+
+        for (String baseUri : BASE_URIS) {
+            String uri = baseUri + "/studies/" + study.getId();
+            assertEquals(200, request("GET", uri, null, null).getResponseCode());
+
+            // An update by another instance, i.e. not seen by the Hibernate listeners of this instance
+            new JdbcTemplate(dataSource).update("update study_entity set description = ?, version = version + 1 where id = ?",
+                "changed" + baseUri, Uuids.toBytes(study.getId()));
+            emf.getCache().evict(StudyEntity.class, study.getId());
+
+            assertTrue(new String(read(request("GET", uri, null, null)), "UTF-8").contains("changed" + baseUri));
+        }
+    }
+
+    @Test
+    public void testCachedList() throws IOException {
+        for (int i = 0; i < STUDIES; i++) {
+            studyRepository.save(new StudyEntity("S-" + i, "A study with a description", new Date(), new Date()));
+        }
+
+        for (String baseUri : BASE_URIS) {
+            String uri = baseUri + "/studies?size=-1";
+
+            // Each content encoding is cached as is, i.e. a hit isn't compressed again
+            byte[] gzip = read(request("GET", uri, "gzip", null));
+            byte[] identity = read(request("GET", uri, null, null));
+
+            statistics.clear();
+            HttpURLConnection cached = request("GET", uri, "gzip", null);
+            assertEquals("gzip", cached.getContentEncoding());
+            assertTrue(cached.getHeaderField("Vary").contains("Accept-Encoding"));
+            assertArrayEquals(gzip, read(cached));
+            assertArrayEquals(identity, StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+            assertArrayEquals(identity, read(request("GET", uri, null, null)));
+            assertEquals(0, statistics.getPrepareStatementCount());
+
+            // A new study invalidates the lists
+            studyRepository.save(new StudyEntity("S-NEW" + baseUri, "A study with a description", new Date(), new Date()));
+            assertFalse(new String(identity, "UTF-8").contains("S-NEW" + baseUri));
+            assertTrue(new String(read(request("GET", uri, null, null)), "UTF-8").contains("S-NEW" + baseUri));
+        }
+    }
+
+    @Test
+    public void testUpdateThroughApi() throws IOException {
+        StudyEntity study = studyRepository.save(new StudyEntity("S-1", "description", new Date(), new Date()));
+
+        for (String baseUri : BASE_URIS) {
+            String uri = baseUri + "/studies/" + study.getId();
+            String json = new String(read(request("GET", uri, null, null)), "UTF-8");
+
+            String description = "updated" + baseUri;
+            HttpURLConnection put = (HttpURLConnection) new URL("http://localhost:" + port + uri).openConnection();
+            put.setRequestMethod("PUT");
+            put.setRequestProperty("Content-Type", "application/json");
+            put.setDoOutput(true);
+            try (OutputStream out = put.getOutputStream()) {
+                out.write(json.replaceAll("\"description\":\"[^\"]*\"", "\"description\":\"" + description + "\"").getBytes("UTF-8"));
+            }
+            assertTrue(put.getResponseCode() / 100 == 2);
+
+            assertTrue(new String(read(request("GET", uri, null, null)), "UTF-8").contains(description));
+        }
+    }
+
+    private HttpURLConnection request(String method, String uri, String acceptEncoding, String ifNoneMatch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + uri).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        if (acceptEncoding != null) connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        if (ifNoneMatch != null) connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        return connection;
+    }
+
+    private byte[] read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.az.ip.api;
+
+import com.az.ip.api.persistence.jpa.Uuids;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares storing the UUID id's as 36 character strings with storing them as 16 bytes, using tables shaped like the
+ * patients, the patient-doctor-study relations and the measurements: the size on disk of the tables with their primary
+ * and foreign key indexes, and the time to join the measurements with their relations and patients.
+ *
+ * Runs against its own file based HSQLDB databases, i.e. without the application. The number of measurements is given
+ * by -Dbenchmark.rows and is kept small by default to keep the build fast. For a large dataset run e.g.
+ * mvn test -Dtest=UuidStorageBenchmarkTests -Dbenchmark.rows=2000000
+ */
+public class UuidStorageBenchmarkTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UuidStorageBenchmarkTests.class);
+
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 20000);
+    private static final int MEASUREMENTS_PER_RELATION = 10;
+    private static final int JOIN_RUNS = 3;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = Files.createTempDirectory("uuid-storage").toFile();
+    }
+
+    @After
+    public void removeDir() {
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testUuidConversion() {
+        String id = UUID.randomUUID().toString();
+        assertEquals(16, Uuids.toBytes(id).length);
+        assertEquals(id, Uuids.toString(Uuids.toBytes(id)));
+
+        // The start of a keyset page
+        assertArrayEquals(new byte[16], Uuids.toBytes(Uuids.NIL));
+
+        // Not an id, e.g. from an URL, is never mapped to a shared key
+        assertFalse(Uuids.isValid("NON-EXISTING-ID"));
+        try {
+            Uuids.toBytes("NON-EXISTING-ID");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testBinaryOrderIsStringOrder() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) ids.add(UUID.randomUUID().toString());
+
+        List<String> byBytes = new ArrayList<>(ids);
+        Collections.sort(ids);
+        byBytes.sort((a, b) -> compareUnsigned(Uuids.toBytes(a), Uuids.toBytes(b)));
+
+        assertEquals(ids, byBytes);
+    }
+
+    @Test
+    public void testStorageSizeAndJoinSpeed() throws Exception {
+        Result varchar = run("varchar", "varchar(36)", false);
+        Result binary  = run("binary",  "binary(16)",  true);
+
+        LOG.info("UUID storage of {} measurements, varchar(36): {} bytes, join {} ms", ROWS, varchar.size, varchar.joinMillis);
+        LOG.info("UUID storage of {} measurements, binary(16):  {} bytes, join {} ms", ROWS, binary.size, binary.joinMillis);
+
+        assertEquals(varchar.joinedSteps, binary.joinedSteps);
+        assertTrue("Expected binary id's to take less space, varchar: " + varchar.size + ", binary: " + binary.size, binary.size < varchar.size);
+    }
+
+    private Result run(String name, String idType, boolean binary) throws Exception {
+        String url = "jdbc:hsqldb:file:" + new File(dir, name).getAbsolutePath() + ";shutdown=true";
+        Result result = new Result();
+
+        try (Connection c = DriverManager.getConnection(url, "SA", "")) {
+            try (Statement s = c.createStatement()) {
+                s.execute("create cached table patient (id " + idType + " primary key, username varchar(255))");
+                s.execute("create cached table relation (id " + idType + " primary key, patient_id " + idType + " not null references patient(id))");
+                s.execute("create cached table measurement (id " + idType + " primary key, relation_id " + idType + " not null references relation(id), steps int)");
+            }
+            insert(c, binary);
+
+            String join = "select sum(m.steps) from measurement m join relation r on m.relation_id = r.id join patient p on r.patient_id = p.id";
+            result.joinMillis = Long.MAX_VALUE;
+            for (int i = 0; i < JOIN_RUNS; i++) {
+                long start = System.nanoTime();
+                try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery(join)) {
+                    rs.next();
+                    result.joinedSteps = rs.getLong(1);
+                }
+                result.joinMillis = Math.min(result.joinMillis, (System.nanoTime() - start) / 1000000);
+            }
+
+            // Writes all rows and indexes to the data file
+            try (Statement s = c.createStatement()) {
+                s.execute("shutdown");
+            }
+        }
+
+        result.size = new File(dir, name + ".data").length();
+        return result;
+    }
+
+    private void insert(Connection c, boolean binary) throws SQLException {
+        c.setAutoCommit(false);
+
+        try (PreparedStatement patients     = c.prepareStatement("insert into patient values (?, ?)");
+             PreparedStatement relations    = c.prepareStatement("insert into relation values (?, ?)");
+             PreparedStatement measurements = c.prepareStatement("insert into measurement values (?, ?, ?)")) {
+
+            for (int r = 0; r < ROWS / MEASUREMENTS_PER_RELATION; r++) {
+                String patientId = UUID.randomUUID().toString();
+                String relationId = UUID.randomUUID().toString();
+
+                setId(patients, 1, patientId, binary);
+                patients.setString(2, "P-" + r);
+                patients.addBatch();
+
+                setId(relations, 1, relationId, binary);
+                setId(relations, 2, patientId, binary);
+                relations.addBatch();
+
+                for (int m = 0; m < MEASUREMENTS_PER_RELATION; m++) {
+                    setId(measurements, 1, UUID.randomUUID().toString(), binary);
+                    setId(measurements, 2, relationId, binary);
+                    measurements.setInt(3, m);
+                    measurements.addBatch();
+                }
+
+                if (r % 1000 == 0) {
+                    patients.executeBatch();
+                    relations.executeBatch();
+                    measurements.executeBatch();
+                }
+            }
+            patients.executeBatch();
+            relations.executeBatch();
+            measurements.executeBatch();
+        }
+
+        c.commit();
+    }
+
+    private void setId(PreparedStatement statement, int index, String id, boolean binary) throws SQLException {
+        if (binary) {
+            statement.setBytes(index, Uuids.toBytes(id));
+        } else {
+            statement.setString(index, id);
+        }
+    }
+
+    private int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) return diff;
+        }
+        return 0;
+    }
+
+    private static class Result {
+        long size;
+        long joinMillis;
+        long joinedSteps;
+    }
+}